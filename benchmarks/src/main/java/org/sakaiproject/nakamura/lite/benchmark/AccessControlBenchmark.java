@@ -0,0 +1,95 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.benchmark;
+
+import com.google.common.collect.ImmutableMap;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AclModification;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.Permissions;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.Security;
+import org.sakaiproject.nakamura.api.lite.authorizable.User;
+import org.sakaiproject.nakamura.lite.accesscontrol.AccessControlManagerImpl;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checking read permission for a user other than admin on a deep path, where
+ * the only ACL granting access is on the root of the tree.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AccessControlBenchmark {
+
+    @Param({ BenchmarkRepository.MEMORY, BenchmarkRepository.DERBY })
+    public String storage;
+
+    @Param({ "2", "8", "16" })
+    public int depth;
+
+    private BenchmarkRepository repository;
+    private AccessControlManagerImpl accessControlManager;
+    private String path;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        repository = new BenchmarkRepository(storage);
+        User admin = repository.login("admin", "admin");
+        AccessControlManagerImpl adminAccessControl = repository.getAccessControlManager(admin);
+        String userId = "benchmark-user";
+        repository.getAuthorizableManager(admin, adminAccessControl).createUser(userId,
+                "Benchmark User", "password", ImmutableMap.of("test", (Object) "test"));
+        String root = "benchmark-acl";
+        adminAccessControl.setAcl(Security.ZONE_CONTENT, root, new AclModification[] {
+                new AclModification(AclModification.grantKey(userId),
+                        Permissions.CAN_READ.getPermission(), AclModification.Operation.OP_OR) });
+        StringBuilder sb = new StringBuilder(root);
+        for (int i = 0; i < depth; i++) {
+            sb.append("/level").append(i);
+        }
+        path = sb.toString();
+        accessControlManager = repository.getAccessControlManager(repository.login(userId,
+                "password"));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        repository.close();
+    }
+
+    @Benchmark
+    public void check() throws Exception {
+        accessControlManager.check(Security.ZONE_CONTENT, path, Permissions.CAN_READ);
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.benchmark;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+
+import org.sakaiproject.nakamura.api.lite.CacheHolder;
+import org.sakaiproject.nakamura.api.lite.ClientPoolException;
+import org.sakaiproject.nakamura.api.lite.Configuration;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.authorizable.User;
+import org.sakaiproject.nakamura.lite.ConfigurationImpl;
+import org.sakaiproject.nakamura.lite.LoggingStorageListener;
+import org.sakaiproject.nakamura.lite.accesscontrol.AccessControlManagerImpl;
+import org.sakaiproject.nakamura.lite.accesscontrol.AuthenticatorImpl;
+import org.sakaiproject.nakamura.lite.accesscontrol.PrincipalValidatorResolverImpl;
+import org.sakaiproject.nakamura.lite.authorizable.AuthorizableActivator;
+import org.sakaiproject.nakamura.lite.authorizable.AuthorizableManagerImpl;
+import org.sakaiproject.nakamura.lite.content.ContentManagerImpl;
+import org.sakaiproject.nakamura.lite.storage.AbstractClientConnectionPool;
+import org.sakaiproject.nakamura.lite.storage.ConcurrentLRUMap;
+import org.sakaiproject.nakamura.lite.storage.StorageClient;
+import org.sakaiproject.nakamura.lite.storage.jdbc.JDBCStorageClientPool;
+import org.sakaiproject.nakamura.lite.storage.mem.MemoryStorageClientPool;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * A repository set up in the same way as the unit tests, on either the memory
+ * client or an embedded in memory Derby database. Any other
+ * {@link AbstractClientConnectionPool} may be used by naming its class or,
+ * for MySQL, PostgreSQL and other JDBC databases, with {@link #JDBC} and the
+ * connection settings in the pool properties.
+ */
+public class BenchmarkRepository {
+
+    public static final String MEMORY = "memory";
+    public static final String DERBY = "derby";
+    public static final String JDBC = "jdbc";
+
+    private ConfigurationImpl configuration;
+    private AbstractClientConnectionPool clientPool;
+    private StorageClient client;
+    private Map<String, CacheHolder> sharedCache = new ConcurrentLRUMap<String, CacheHolder>(10000);
+
+    public BenchmarkRepository(String storage) throws IOException, ClassNotFoundException,
+            ClientPoolException, StorageClientException, AccessDeniedException {
+        this(storage, ImmutableMap.<String, Object> of());
+    }
+
+    /**
+     * @param storage memory, derby, jdbc or the class name of a pool.
+     * @param poolProperties properties used to activate the pool, eg the
+     *        jdbc-url, jdbc-driver, username and password.
+     */
+    public BenchmarkRepository(String storage, Map<String, Object> poolProperties)
+            throws IOException, ClassNotFoundException, ClientPoolException,
+            StorageClientException, AccessDeniedException {
+        Map<String, Object> properties = Maps.newHashMap();
+        properties.put("keyspace", "n");
+        properties.put("acl-column-family", "ac");
+        properties.put("authorizable-column-family", "au");
+        properties.put("content-column-family", "cn");
+        configuration = new ConfigurationImpl();
+        configuration.activate(properties);
+        Map<String, Object> activateProperties = Maps.newHashMap();
+        if (DERBY.equals(storage)) {
+            clientPool = new JDBCStorageClientPool();
+            activateProperties.put(JDBCStorageClientPool.CONNECTION_URL,
+                    "jdbc:derby:memory:benchmark;create=true");
+            activateProperties.put(JDBCStorageClientPool.JDBC_DRIVER,
+                    "org.apache.derby.jdbc.EmbeddedDriver");
+            activateProperties.put(AbstractClientConnectionPool.FS_STORE_BASE_DIR, "target/store");
+        } else if (MEMORY.equals(storage)) {
+            clientPool = new MemoryStorageClientPool();
+        } else if (JDBC.equals(storage)) {
+            clientPool = new JDBCStorageClientPool();
+            activateProperties.put(AbstractClientConnectionPool.FS_STORE_BASE_DIR, "target/store");
+        } else {
+            try {
+                clientPool = (AbstractClientConnectionPool) Class.forName(storage).newInstance();
+            } catch (InstantiationException e) {
+                throw new IllegalArgumentException("Unable to create storage " + storage, e);
+            } catch (IllegalAccessException e) {
+                throw new IllegalArgumentException("Unable to create storage " + storage, e);
+            } catch (ClassNotFoundException e) {
+                throw new IllegalArgumentException("Unknown storage " + storage, e);
+            }
+        }
+        activateProperties.putAll(poolProperties);
+        activateProperties.put(Configuration.class.getName(), configuration);
+        clientPool.activate(activateProperties);
+        client = clientPool.getClient();
+        new AuthorizableActivator(client, configuration).setup();
+    }
+
+    public StorageClient getClient() {
+        return client;
+    }
+
+    public AbstractClientConnectionPool getClientPool() {
+        return clientPool;
+    }
+
+    public Configuration getConfiguration() {
+        return configuration;
+    }
+
+    public User login(String userId, String password) {
+        return login(client, userId, password);
+    }
+
+    public AccessControlManagerImpl getAccessControlManager(User user)
+            throws StorageClientException {
+        return getAccessControlManager(client, user);
+    }
+
+    public AuthorizableManagerImpl getAuthorizableManager(User user,
+            AccessControlManagerImpl accessControlManager) throws StorageClientException,
+            AccessDeniedException {
+        return new AuthorizableManagerImpl(user, client, configuration, accessControlManager,
+                sharedCache, new LoggingStorageListener());
+    }
+
+    public ContentManagerImpl getContentManager(AccessControlManagerImpl accessControlManager) {
+        return getContentManager(client, accessControlManager);
+    }
+
+    /*
+     * The same, on a client taken from the pool, so that each thread of a
+     * workload can have its own connection.
+     */
+
+    public User login(StorageClient storageClient, String userId, String password) {
+        return new AuthenticatorImpl(storageClient, configuration).authenticate(userId, password);
+    }
+
+    public AccessControlManagerImpl getAccessControlManager(StorageClient storageClient,
+            User user) throws StorageClientException {
+        return new AccessControlManagerImpl(storageClient, user, configuration, sharedCache,
+                new LoggingStorageListener(), new PrincipalValidatorResolverImpl());
+    }
+
+    public ContentManagerImpl getContentManager(StorageClient storageClient,
+            AccessControlManagerImpl accessControlManager) {
+        return new ContentManagerImpl(storageClient, accessControlManager, configuration,
+                sharedCache, new LoggingStorageListener());
+    }
+
+    public void close() {
+        client.close();
+        clientPool.deactivate(ImmutableMap.<String, Object> of());
+    }
+}
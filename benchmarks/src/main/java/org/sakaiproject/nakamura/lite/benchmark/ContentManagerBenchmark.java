@@ -0,0 +1,101 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.benchmark;
+
+import com.google.common.collect.ImmutableMap;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.lite.content.ContentManagerImpl;
+
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Getting, updating and listing the children of content as admin, on the
+ * memory client and on embedded Derby.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ContentManagerBenchmark {
+
+    private static final String PARENT = "benchmark-content";
+    private static final int CHILDREN = 100;
+
+    @Param({ BenchmarkRepository.MEMORY, BenchmarkRepository.DERBY })
+    public String storage;
+
+    private BenchmarkRepository repository;
+    private ContentManagerImpl contentManager;
+    private Content content;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        repository = new BenchmarkRepository(storage);
+        contentManager = repository.getContentManager(repository.getAccessControlManager(repository
+                .login("admin", "admin")));
+        for (int i = 0; i < CHILDREN; i++) {
+            contentManager.update(new Content(PARENT + "/child" + i, ImmutableMap.of("title",
+                    (Object) ("Child " + i), "sling:resourceType", "sakai/page")));
+        }
+        content = contentManager.get(PARENT + "/child0");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        repository.close();
+    }
+
+    @Benchmark
+    public Content get() throws Exception {
+        next = (next + 1) % CHILDREN;
+        return contentManager.get(PARENT + "/child" + next);
+    }
+
+    @Benchmark
+    public void update() throws Exception {
+        content.setProperty("count", next++);
+        contentManager.update(content);
+    }
+
+    @Benchmark
+    public void listChildren(Blackhole blackhole) throws Exception {
+        Iterator<Content> children = contentManager.listChildren(PARENT);
+        while (children.hasNext()) {
+            blackhole.consume(children.next());
+        }
+    }
+}
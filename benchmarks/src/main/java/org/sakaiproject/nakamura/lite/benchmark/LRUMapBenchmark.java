@@ -0,0 +1,132 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.sakaiproject.nakamura.lite.storage.ConcurrentLRUMap;
+import org.sakaiproject.nakamura.lite.storage.SegmentedLRUMap;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Gets and puts on the LRU maps used as caches, from several threads at once.
+ * Keys are drawn from a skewed distribution, so some keys are hot, and there
+ * are more keys than the map holds, so puts evict. The read through benchmark
+ * uses a map as the shared cache does, putting a key only when the get
+ * misses.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LRUMapBenchmark {
+
+    private static final int MAX_SIZE = 10000;
+    private static final int KEYS = 4 * MAX_SIZE;
+
+    @Param({ "concurrent", "segmented" })
+    public String map;
+
+    private Map<String, String> lru;
+    private String[] keys;
+
+    @State(Scope.Thread)
+    public static class Access {
+        private int[] order = new int[1 << 16];
+        private int next;
+
+        @Setup
+        public void setup() {
+            Random random = new Random(Thread.currentThread().getId());
+            for (int i = 0; i < order.length; i++) {
+                // squaring a uniform value skews towards the low keys.
+                double d = random.nextDouble();
+                order[i] = (int) (d * d * KEYS);
+            }
+        }
+
+        private int next() {
+            next = (next + 1) & (order.length - 1);
+            return order[next];
+        }
+    }
+
+    @Setup
+    public void setup() {
+        if ("segmented".equals(map)) {
+            lru = new SegmentedLRUMap<String, String>(MAX_SIZE);
+        } else {
+            lru = new ConcurrentLRUMap<String, String>(MAX_SIZE);
+        }
+        keys = new String[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            keys[i] = "n:cn:/content/item/" + i;
+        }
+        for (int i = 0; i < MAX_SIZE; i++) {
+            lru.put(keys[i], keys[i]);
+        }
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(3)
+    public String get(Access access) {
+        return lru.get(keys[access.next()]);
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(1)
+    public String put(Access access) {
+        String key = keys[access.next()];
+        return lru.put(key, key);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public String readThrough(Access access) {
+        String key = keys[access.next()];
+        try {
+            String value = lru.get(key);
+            if (value == null) {
+                lru.put(key, key);
+            }
+            return value;
+        } catch (RuntimeException e) {
+            // ConcurrentLRUMap can fail to sort while the timestamps change.
+            return null;
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.lite.storage.DigestRowHasher;
+import org.sakaiproject.nakamura.lite.storage.jdbc.JDBCStorageClient;
+
+import java.security.MessageDigest;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashing row keys in the JDBC client, which is done for every get and insert,
+ * compared with a {@link DigestRowHasher} on its own and with looking up a
+ * MessageDigest for every hash.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RowHashBenchmark {
+
+    private BenchmarkRepository repository;
+    private JDBCStorageClient client;
+    private DigestRowHasher hasher;
+
+    @State(Scope.Thread)
+    public static class Keys {
+        private String[] keys = new String[1024];
+        private int next;
+
+        @Setup
+        public void setup() {
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = "/a/path/to/content/" + Thread.currentThread().getId() + "/item" + i;
+            }
+        }
+
+        private String next() {
+            next = (next + 1) & (keys.length - 1);
+            return keys[next];
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        repository = new BenchmarkRepository(BenchmarkRepository.DERBY);
+        client = (JDBCStorageClient) repository.getClient();
+        hasher = DigestRowHasher.getInstance("SHA1");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        repository.close();
+    }
+
+    @Benchmark
+    public String rowHash(Keys keys) throws Exception {
+        return client.rowHash("n", "cn", keys.next());
+    }
+
+    @Benchmark
+    @Threads(4)
+    public String rowHashContended(Keys keys) throws Exception {
+        return client.rowHash("n", "cn", keys.next());
+    }
+
+    @Benchmark
+    public String digestRowHasher(Keys keys) {
+        return hasher.rowHash("n", "cn", keys.next());
+    }
+
+    /**
+     * The original hashing, a MessageDigest looked up for every hash.
+     */
+    @Benchmark
+    public String messageDigestPerCall(Keys keys) throws Exception {
+        String keystring = "n:cn:" + keys.next();
+        return StorageClientUtils.encode(MessageDigest.getInstance("SHA1").digest(
+                keystring.getBytes("UTF8")));
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.benchmark;
+
+import com.google.common.collect.Maps;
+
+import org.apache.commons.io.IOUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.sakaiproject.nakamura.lite.types.Types;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Calendar;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Encoding and decoding a typical content row in each row format, into the
+ * reused buffer and into a copied stream. Run with -prof gc to see the bytes
+ * allocated per row.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(java.util.concurrent.TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TypesBenchmark {
+
+    @Param({ "1", "2" })
+    public int rowFormat;
+
+    private Map<String, Object> row;
+    private byte[] encoded;
+
+    @Setup
+    public void setup() throws IOException {
+        row = Maps.newHashMap();
+        row.put("_path", "a/path/to/some/content/item");
+        row.put("sling:resourceType", "sakai/page");
+        row.put("_created", System.currentTimeMillis());
+        row.put("_createdBy", "ieb");
+        row.put("_lastModified", System.currentTimeMillis());
+        row.put("_lastModifiedBy", "ieb");
+        row.put("_mimeType", "text/html");
+        row.put("_length", 12345L);
+        row.put("title", "A page with a title");
+        row.put("tags", new String[] { "one", "two", "three" });
+        row.put("published", Calendar.getInstance());
+        row.put("count", 10);
+        encoded = IOUtils.toByteArray(Types.storeMapToStream("key", row, "cn", rowFormat));
+    }
+
+    @Benchmark
+    public int encode() throws IOException {
+        return Types.storeMapToBuffer("key", row, "cn", rowFormat).getLength();
+    }
+
+    /**
+     * Encode a row to a stream that is a copy of the row, as callers that
+     * keep the row do.
+     */
+    @Benchmark
+    public int encodeStream() throws IOException {
+        return Types.storeMapToStream("key", row, "cn", rowFormat).available();
+    }
+
+    /**
+     * Decode a row and read one property, as a permission check does.
+     */
+    @Benchmark
+    public Object decodeOne() throws IOException {
+        return Types.loadMapFromStream("key", new ByteArrayInputStream(encoded), "cn").get(
+                "_path");
+    }
+
+    /**
+     * Decode a row and read every property.
+     */
+    @Benchmark
+    public void decodeAll(Blackhole blackhole) throws IOException {
+        Map<String, Object> m = Types.loadMapFromStream("key", new ByteArrayInputStream(encoded),
+                "cn");
+        for (Entry<String, Object> e : m.entrySet()) {
+            blackhole.consume(e.getValue());
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.workload;
+
+import org.sakaiproject.nakamura.api.lite.accesscontrol.Permissions;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.Security;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+
+import java.io.InputStream;
+import java.util.Iterator;
+
+/**
+ * The operations a workload is made of, each performed on the item with the
+ * given key.
+ */
+public enum Operation {
+
+    /**
+     * Get an item and read its properties.
+     */
+    READ("read") {
+        @Override
+        void execute(WorkloadSession session, int key) throws Exception {
+            Content content = session.getContentManager().get(
+                    session.getConfiguration().getPath(key));
+            if (content != null) {
+                content.getProperties();
+            }
+        }
+    },
+    /**
+     * Get an item, change a property and save it.
+     */
+    UPDATE("update") {
+        @Override
+        void execute(WorkloadSession session, int key) throws Exception {
+            Content content = session.getContentManager().get(
+                    session.getConfiguration().getPath(key));
+            if (content != null) {
+                content.setProperty(WorkloadSession.COUNTER_FIELD, session.nextCount());
+                session.getContentManager().update(content);
+            }
+        }
+    },
+    /**
+     * Find the items in the category of the key, reading up to the find limit.
+     * The memory client does not index content properties, so there the find
+     * returns nothing.
+     */
+    FIND("find") {
+        @Override
+        void execute(WorkloadSession session, int key) throws Exception {
+            WorkloadConfiguration configuration = session.getConfiguration();
+            Iterator<Content> found = session.getContentManager()
+                    .find(configuration.getFindQuery(key)).iterator();
+            for (int i = 0; i < configuration.getFindLimit() && found.hasNext(); i++) {
+                found.next();
+            }
+        }
+    },
+    /**
+     * List all the children of the parent of the item.
+     */
+    LIST_CHILDREN("list-children") {
+        @Override
+        void execute(WorkloadSession session, int key) throws Exception {
+            Iterator<Content> children = session.getContentManager().listChildren(
+                    session.getConfiguration().getParentPath(key));
+            while (children.hasNext()) {
+                children.next();
+            }
+        }
+    },
+    /**
+     * Check that the session user can read the item.
+     */
+    ACL_CHECK("acl-check") {
+        @Override
+        void execute(WorkloadSession session, int key) throws Exception {
+            session.getAccessControlManager().can(session.getUser(), Security.ZONE_CONTENT,
+                    session.getConfiguration().getPath(key), Permissions.CAN_READ);
+        }
+    },
+    /**
+     * Stream the whole body of the item.
+     */
+    STREAM_BODY("stream-body") {
+        @Override
+        void execute(WorkloadSession session, int key) throws Exception {
+            InputStream in = session.getContentManager().getInputStream(
+                    session.getConfiguration().getPath(key));
+            if (in != null) {
+                try {
+                    byte[] buffer = session.getBuffer();
+                    while (in.read(buffer) >= 0) {
+                    }
+                } finally {
+                    in.close();
+                }
+            }
+        }
+    };
+
+    private final String name;
+
+    private Operation(String name) {
+        this.name = name;
+    }
+
+    /**
+     * @return the name used for the operation in the configuration and the
+     *         results.
+     */
+    public String getName() {
+        return name;
+    }
+
+    abstract void execute(WorkloadSession session, int key) throws Exception;
+}
@@ -0,0 +1,253 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.workload;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+
+import org.HdrHistogram.Histogram;
+import org.sakaiproject.nakamura.api.lite.ClientPoolException;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AclModification;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.Permissions;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.Security;
+import org.sakaiproject.nakamura.api.lite.authorizable.User;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.lite.accesscontrol.AccessControlManagerImpl;
+import org.sakaiproject.nakamura.lite.benchmark.BenchmarkRepository;
+import org.sakaiproject.nakamura.lite.content.ContentManagerImpl;
+import org.sakaiproject.nakamura.lite.storage.StorageClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replays a mix of operations against a repository from a number of threads,
+ * each with its own storage client. Keys are picked with a Zipfian
+ * distribution and the operation by weight, from a Random per thread seeded
+ * from the configuration, so the sequence each thread performs is the same
+ * on every run. With a target rate each thread is given a fixed schedule of
+ * start times, but still runs its operations one after another, so a slow
+ * operation delays the ones behind it. Latency is measured from the intended
+ * start time rather than the actual one, so that queueing behind a stall is
+ * recorded instead of hidden (a correction for coordinated omission). It is
+ * not a true open loop: the offered load drops while every thread is stalled.
+ */
+public class Workload {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(Workload.class);
+
+    public static final String USER_ID = "workload-user";
+    private static final String PASSWORD = "workload";
+
+    private final WorkloadConfiguration configuration;
+    private final BenchmarkRepository repository;
+    private final ZipfianGenerator keys;
+
+    public Workload(WorkloadConfiguration configuration) throws IOException,
+            ClassNotFoundException, ClientPoolException, StorageClientException,
+            AccessDeniedException {
+        this.configuration = configuration;
+        this.repository = new BenchmarkRepository(configuration.getStorage(),
+                configuration.getPoolProperties());
+        this.keys = new ZipfianGenerator(configuration.getItems(),
+                configuration.getZipfExponent(), configuration.getSeed());
+    }
+
+    /**
+     * Create the workload user, grant it everything on the root and create any
+     * items that do not already exist, so a persistent database only needs
+     * to be loaded once.
+     */
+    public void setup() throws StorageClientException, AccessDeniedException, IOException {
+        User admin = repository.login("admin", "admin");
+        AccessControlManagerImpl accessControlManager = repository.getAccessControlManager(admin);
+        repository.getAuthorizableManager(admin, accessControlManager).createUser(USER_ID,
+                "Workload User", PASSWORD, ImmutableMap.of("test", (Object) "test"));
+        accessControlManager.setAcl(Security.ZONE_CONTENT, configuration.getRoot(),
+                new AclModification[] { new AclModification(AclModification.grantKey(USER_ID),
+                        Permissions.CAN_ANYTHING.getPermission(),
+                        AclModification.Operation.OP_OR) });
+        ContentManagerImpl contentManager = repository.getContentManager(accessControlManager);
+        int created = 0;
+        for (int key = 0; key < configuration.getItems(); key++) {
+            String path = configuration.getPath(key);
+            if (contentManager.exists(path)) {
+                continue;
+            }
+            Map<String, Object> properties = Maps.newHashMap();
+            properties.put("sling:resourceType", "workload/item");
+            properties.put(WorkloadConfiguration.CATEGORY_FIELD, configuration.getCategory(key));
+            properties.put(WorkloadSession.COUNTER_FIELD, 0L);
+            contentManager.update(new Content(path, properties));
+            // each body differs so that none are shared.
+            byte[] body = new byte[configuration.getBodySize()];
+            new Random(configuration.getSeed() + key).nextBytes(body);
+            contentManager.writeBody(path, new ByteArrayInputStream(body));
+            created++;
+            if (created % 1000 == 0) {
+                LOGGER.info("Created {} items ", created);
+            }
+        }
+        LOGGER.info("Created {} of {} items ", created, configuration.getItems());
+    }
+
+    /**
+     * Run the warm up and the measured period.
+     */
+    public WorkloadResult run() throws InterruptedException, ClientPoolException,
+            StorageClientException {
+        int nthreads = configuration.getThreads();
+        Worker[] workers = new Worker[nthreads];
+        for (int i = 0; i < nthreads; i++) {
+            StorageClient client = repository.getClientPool().getClient();
+            User user = repository.login(client, USER_ID, PASSWORD);
+            AccessControlManagerImpl accessControlManager = repository.getAccessControlManager(
+                    client, user);
+            workers[i] = new Worker(i, new WorkloadSession(configuration, client, user,
+                    accessControlManager, repository.getContentManager(client,
+                            accessControlManager)));
+        }
+        long intervalNanos = 0;
+        if (configuration.getRate() > 0) {
+            intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) * nthreads / configuration
+                    .getRate());
+        }
+        long startNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+        long measureNanos = startNanos + TimeUnit.SECONDS.toNanos(configuration.getWarmup());
+        long endNanos = measureNanos + TimeUnit.SECONDS.toNanos(configuration.getDuration());
+        CountDownLatch finished = new CountDownLatch(nthreads);
+        for (int i = 0; i < nthreads; i++) {
+            // stagger the threads over one interval so they dont all fire together.
+            workers[i].schedule(startNanos + intervalNanos * i / nthreads, intervalNanos,
+                    measureNanos, endNanos, finished);
+            Thread t = new Thread(workers[i], "workload-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+        LOGGER.info("Running {} threads for {}s after {}s warmup ", new Object[] { nthreads,
+                configuration.getDuration(), configuration.getWarmup() });
+        finished.await();
+
+        Map<Operation, Histogram> histograms = new EnumMap<Operation, Histogram>(Operation.class);
+        Map<Operation, Long> errors = new EnumMap<Operation, Long>(Operation.class);
+        for (Operation operation : Operation.values()) {
+            Histogram h = new Histogram(3);
+            long e = 0;
+            for (Worker worker : workers) {
+                h.add(worker.histograms[operation.ordinal()]);
+                e += worker.errors[operation.ordinal()];
+            }
+            histograms.put(operation, h);
+            errors.put(operation, e);
+        }
+        return new WorkloadResult(configuration, histograms, errors, endNanos - measureNanos);
+    }
+
+    public void close() {
+        repository.close();
+    }
+
+    private class Worker implements Runnable {
+
+        private final WorkloadSession session;
+        private final Random random;
+        private final Histogram[] histograms;
+        private final long[] errors;
+        private long firstNanos;
+        private long intervalNanos;
+        private long measureNanos;
+        private long endNanos;
+        private CountDownLatch finished;
+
+        private Worker(int index, WorkloadSession session) {
+            this.session = session;
+            this.random = new Random(configuration.getSeed() * 31 + index);
+            this.histograms = new Histogram[Operation.values().length];
+            for (int i = 0; i < histograms.length; i++) {
+                histograms[i] = new Histogram(3);
+            }
+            this.errors = new long[histograms.length];
+        }
+
+        private void schedule(long firstNanos, long intervalNanos, long measureNanos,
+                long endNanos, CountDownLatch finished) {
+            this.firstNanos = firstNanos;
+            this.intervalNanos = intervalNanos;
+            this.measureNanos = measureNanos;
+            this.endNanos = endNanos;
+            this.finished = finished;
+        }
+
+        public void run() {
+            try {
+                long next = firstNanos;
+                waitUntil(firstNanos);
+                while (true) {
+                    long intended;
+                    if (intervalNanos > 0) {
+                        intended = next;
+                        next += intervalNanos;
+                        if (intended >= endNanos) {
+                            break;
+                        }
+                        waitUntil(intended);
+                    } else {
+                        intended = System.nanoTime();
+                        if (intended >= endNanos) {
+                            break;
+                        }
+                    }
+                    Operation operation = configuration.nextOperation(random);
+                    int key = keys.next(random);
+                    try {
+                        operation.execute(session, key);
+                    } catch (Exception e) {
+                        errors[operation.ordinal()]++;
+                        LOGGER.debug("{} of {} failed {} ", new Object[] { operation.getName(),
+                                key, e.getMessage() });
+                    }
+                    long latency = System.nanoTime() - intended;
+                    if (intended >= measureNanos) {
+                        histograms[operation.ordinal()].recordValue(latency / 1000);
+                    }
+                }
+            } finally {
+                session.close();
+                finished.countDown();
+            }
+        }
+
+        private void waitUntil(long nanos) {
+            long wait = nanos - System.nanoTime();
+            while (wait > 0) {
+                LockSupport.parkNanos(wait);
+                wait = nanos - System.nanoTime();
+            }
+        }
+    }
+}
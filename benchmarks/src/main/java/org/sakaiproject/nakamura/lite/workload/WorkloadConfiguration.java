@@ -0,0 +1,252 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.workload;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * The settings of a workload, read from a map of Strings such as a properties
+ * file. Any setting not given takes its default, and the settings together
+ * with the seed fully determine the sequence of operations each thread
+ * performs, so a run can be repeated against another storage or another
+ * build. The data set is a tree of items under the root, fanout items to a
+ * parent, each item having a category that find queries select on and a body.
+ */
+public class WorkloadConfiguration {
+
+    public static final String STORAGE = "storage";
+    public static final String THREADS = "threads";
+    public static final String RATE = "rate";
+    public static final String DURATION = "duration";
+    public static final String WARMUP = "warmup";
+    public static final String ITEMS = "items";
+    public static final String FANOUT = "fanout";
+    public static final String CATEGORIES = "categories";
+    public static final String BODY_SIZE = "body-size";
+    public static final String ZIPF = "zipf";
+    public static final String SEED = "seed";
+    public static final String FIND_LIMIT = "find-limit";
+    public static final String ROOT = "root";
+    public static final String OUTPUT = "output";
+    /**
+     * Prefix of the weight of each operation, eg mix.read=50.
+     */
+    public static final String MIX_PREFIX = "mix.";
+    /**
+     * Prefix of the properties used to activate the storage client pool, eg
+     * pool.jdbc-url=jdbc:mysql://localhost/nakamura
+     */
+    public static final String POOL_PREFIX = "pool.";
+
+    public static final String CATEGORY_FIELD = "sakai:category";
+
+    private static final Map<String, String> DEFAULTS;
+    static {
+        Map<String, String> defaults = Maps.newLinkedHashMap();
+        defaults.put(STORAGE, "memory");
+        defaults.put(THREADS, "4");
+        defaults.put(RATE, "0");
+        defaults.put(DURATION, "60");
+        defaults.put(WARMUP, "10");
+        defaults.put(ITEMS, "10000");
+        defaults.put(FANOUT, "100");
+        defaults.put(CATEGORIES, "16");
+        defaults.put(BODY_SIZE, "4096");
+        defaults.put(ZIPF, "0.99");
+        defaults.put(SEED, "1");
+        defaults.put(FIND_LIMIT, "25");
+        defaults.put(ROOT, "workload");
+        defaults.put(OUTPUT, "target/workload");
+        defaults.put(MIX_PREFIX + Operation.READ.getName(), "50");
+        defaults.put(MIX_PREFIX + Operation.UPDATE.getName(), "15");
+        defaults.put(MIX_PREFIX + Operation.FIND.getName(), "5");
+        defaults.put(MIX_PREFIX + Operation.LIST_CHILDREN.getName(), "10");
+        defaults.put(MIX_PREFIX + Operation.ACL_CHECK.getName(), "15");
+        defaults.put(MIX_PREFIX + Operation.STREAM_BODY.getName(), "5");
+        DEFAULTS = defaults;
+    }
+
+    private final Map<String, String> settings;
+    private final Map<String, Object> poolProperties;
+    private final Operation[] operations;
+    private final int[] cumulativeWeights;
+    private final int totalWeight;
+    private final int items;
+    private final int fanout;
+    private final int categories;
+    private final String root;
+
+    public WorkloadConfiguration(Map<String, String> settings) {
+        this.settings = new TreeMap<String, String>(DEFAULTS);
+        this.settings.putAll(settings);
+        Map<String, Object> pool = Maps.newHashMap();
+        for (Entry<String, String> e : this.settings.entrySet()) {
+            if (e.getKey().startsWith(POOL_PREFIX)) {
+                pool.put(e.getKey().substring(POOL_PREFIX.length()), e.getValue());
+            }
+        }
+        poolProperties = ImmutableMap.copyOf(pool);
+        operations = Operation.values();
+        cumulativeWeights = new int[operations.length];
+        int total = 0;
+        for (int i = 0; i < operations.length; i++) {
+            int weight = getInt(MIX_PREFIX + operations[i].getName());
+            if (weight < 0) {
+                throw new IllegalArgumentException("Weight of " + operations[i].getName()
+                        + " must not be negative " + weight);
+            }
+            total += weight;
+            cumulativeWeights[i] = total;
+        }
+        if (total == 0) {
+            throw new IllegalArgumentException("At least one operation must have a weight");
+        }
+        totalWeight = total;
+        items = getInt(ITEMS);
+        fanout = Math.max(1, getInt(FANOUT));
+        categories = Math.max(1, getInt(CATEGORIES));
+        root = this.settings.get(ROOT);
+    }
+
+    private int getInt(String name) {
+        return Integer.parseInt(settings.get(name).trim());
+    }
+
+    private long getLong(String name) {
+        return Long.parseLong(settings.get(name).trim());
+    }
+
+    private double getDouble(String name) {
+        return Double.parseDouble(settings.get(name).trim());
+    }
+
+    /**
+     * @return memory, derby, jdbc or the class name of a storage client pool.
+     */
+    public String getStorage() {
+        return settings.get(STORAGE);
+    }
+
+    public Map<String, Object> getPoolProperties() {
+        return poolProperties;
+    }
+
+    public int getThreads() {
+        return getInt(THREADS);
+    }
+
+    /**
+     * @return the target rate in operations per second over all threads, or 0
+     *         to run each thread as fast as it can.
+     */
+    public double getRate() {
+        return getDouble(RATE);
+    }
+
+    /**
+     * @return the measured duration in seconds.
+     */
+    public long getDuration() {
+        return getLong(DURATION);
+    }
+
+    /**
+     * @return the duration before measurement starts in seconds.
+     */
+    public long getWarmup() {
+        return getLong(WARMUP);
+    }
+
+    public int getItems() {
+        return items;
+    }
+
+    public int getBodySize() {
+        return getInt(BODY_SIZE);
+    }
+
+    public double getZipfExponent() {
+        return getDouble(ZIPF);
+    }
+
+    public long getSeed() {
+        return getLong(SEED);
+    }
+
+    public int getFindLimit() {
+        return getInt(FIND_LIMIT);
+    }
+
+    public String getOutput() {
+        return settings.get(OUTPUT);
+    }
+
+    public String getRoot() {
+        return root;
+    }
+
+    /**
+     * @return the next operation, picked by weight.
+     */
+    public Operation nextOperation(Random random) {
+        int r = random.nextInt(totalWeight);
+        for (int i = 0; i < cumulativeWeights.length; i++) {
+            if (r < cumulativeWeights[i]) {
+                return operations[i];
+            }
+        }
+        // cant happen, r is less than the last cumulative weight.
+        throw new IllegalStateException("No operation for " + r);
+    }
+
+    public String getParentPath(int key) {
+        return root + "/" + (key / fanout);
+    }
+
+    public String getPath(int key) {
+        return getParentPath(key) + "/item" + key;
+    }
+
+    public String getCategory(int key) {
+        return "category" + (key % categories);
+    }
+
+    public Map<String, Object> getFindQuery(int key) {
+        return ImmutableMap.of(CATEGORY_FIELD, (Object) getCategory(key));
+    }
+
+    /**
+     * @return the settings, including the defaults, one per line in
+     *         properties file format, with passwords masked.
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Entry<String, String> e : settings.entrySet()) {
+            String value = e.getKey().endsWith("password") ? "*****" : e.getValue();
+            sb.append(e.getKey()).append('=').append(value).append('\n');
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.workload;
+
+import com.google.common.collect.Maps;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Runs a workload from the command line. Each argument is either a
+ * properties file of settings or a single name=value setting, later
+ * arguments overriding earlier ones, eg
+ * <pre>
+ * java -cp target/benchmarks.jar org.sakaiproject.nakamura.lite.workload.WorkloadMain \
+ *     production.properties storage=derby rate=500
+ * </pre>
+ * The summary is printed and, with the configuration and the full latency
+ * distributions, written to the output directory.
+ */
+public class WorkloadMain {
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> settings = Maps.newHashMap();
+        for (String arg : args) {
+            int i = arg.indexOf('=');
+            if (i > 0) {
+                settings.put(arg.substring(0, i).trim(), arg.substring(i + 1).trim());
+            } else {
+                Properties properties = new Properties();
+                InputStream in = new FileInputStream(arg);
+                try {
+                    properties.load(in);
+                } finally {
+                    in.close();
+                }
+                for (String name : properties.stringPropertyNames()) {
+                    settings.put(name, properties.getProperty(name).trim());
+                }
+            }
+        }
+        WorkloadConfiguration configuration = new WorkloadConfiguration(settings);
+        System.out.print(configuration);
+        Workload workload = new Workload(configuration);
+        try {
+            workload.setup();
+            WorkloadResult result = workload.run();
+            result.report(System.out);
+            result.write(new File(configuration.getOutput()));
+        } finally {
+            workload.close();
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.workload;
+
+import org.HdrHistogram.Histogram;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Map;
+
+/**
+ * The latencies and errors of each operation over the measured part of a
+ * run. Latencies are recorded in microseconds and, when the run has a target
+ * rate, are measured from the time the operation should have started rather
+ * than when it did, so that a stall is charged to every operation it delays
+ * and not just the one that was running.
+ */
+public class WorkloadResult {
+
+    private static final double[] PERCENTILES = { 50.0, 90.0, 99.0, 99.9 };
+
+    private final WorkloadConfiguration configuration;
+    private final Map<Operation, Histogram> histograms;
+    private final Map<Operation, Long> errors;
+    private final long durationNanos;
+
+    public WorkloadResult(WorkloadConfiguration configuration,
+            Map<Operation, Histogram> histograms, Map<Operation, Long> errors,
+            long durationNanos) {
+        this.configuration = configuration;
+        this.histograms = histograms;
+        this.errors = errors;
+        this.durationNanos = durationNanos;
+    }
+
+    /**
+     * @return the latency histogram of the operation, in microseconds.
+     */
+    public Histogram getHistogram(Operation operation) {
+        return histograms.get(operation);
+    }
+
+    /**
+     * @return the latency histogram of all operations together, in
+     *         microseconds.
+     */
+    public Histogram getTotalHistogram() {
+        Histogram total = new Histogram(3);
+        for (Histogram h : histograms.values()) {
+            total.add(h);
+        }
+        return total;
+    }
+
+    public long getErrors(Operation operation) {
+        return errors.get(operation);
+    }
+
+    /**
+     * @return the achieved rate over the measured period, in operations per
+     *         second.
+     */
+    public double getThroughput(Histogram histogram) {
+        return histogram.getTotalCount() * 1000000000.0 / durationNanos;
+    }
+
+    /**
+     * Print a table of the count, rate, errors and latency percentiles in
+     * milliseconds of each operation.
+     */
+    public void report(PrintStream out) {
+        out.printf("%-14s %10s %10s %8s %9s", "operation", "count", "ops/s", "errors", "mean");
+        for (double p : PERCENTILES) {
+            out.printf(" %9s", "p" + p);
+        }
+        out.printf(" %9s%n", "max");
+        long totalErrors = 0;
+        for (Operation operation : Operation.values()) {
+            Histogram h = histograms.get(operation);
+            if (h.getTotalCount() > 0 || errors.get(operation) > 0) {
+                report(out, operation.getName(), h, errors.get(operation));
+            }
+            totalErrors += errors.get(operation);
+        }
+        report(out, "all", getTotalHistogram(), totalErrors);
+    }
+
+    private void report(PrintStream out, String name, Histogram h, long errorCount) {
+        out.printf("%-14s %10d %10.1f %8d %9.3f", name, h.getTotalCount(), getThroughput(h),
+                errorCount, h.getMean() / 1000.0);
+        for (double p : PERCENTILES) {
+            out.printf(" %9.3f", h.getValueAtPercentile(p) / 1000.0);
+        }
+        out.printf(" %9.3f%n", h.getMaxValue() / 1000.0);
+    }
+
+    /**
+     * Write the configuration, the summary table and the full percentile
+     * distribution of each operation in milliseconds, in the hgrm format that
+     * the HdrHistogram plotter reads, into the directory.
+     */
+    public void write(File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create " + directory);
+        }
+        PrintStream out = new PrintStream(new FileOutputStream(new File(directory,
+                "workload.properties")), false, "UTF-8");
+        try {
+            out.print(configuration);
+        } finally {
+            out.close();
+        }
+        out = new PrintStream(new FileOutputStream(new File(directory, "summary.txt")), false,
+                "UTF-8");
+        try {
+            report(out);
+        } finally {
+            out.close();
+        }
+        for (Operation operation : Operation.values()) {
+            Histogram h = histograms.get(operation);
+            if (h.getTotalCount() > 0) {
+                writeDistribution(new File(directory, operation.getName() + ".hgrm"), h);
+            }
+        }
+        writeDistribution(new File(directory, "all.hgrm"), getTotalHistogram());
+    }
+
+    private void writeDistribution(File file, Histogram histogram) throws IOException {
+        PrintStream out = new PrintStream(new FileOutputStream(file), false, "UTF-8");
+        try {
+            histogram.outputPercentileDistribution(out, 1000.0);
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.workload;
+
+import org.sakaiproject.nakamura.api.lite.authorizable.User;
+import org.sakaiproject.nakamura.lite.accesscontrol.AccessControlManagerImpl;
+import org.sakaiproject.nakamura.lite.content.ContentManagerImpl;
+import org.sakaiproject.nakamura.lite.storage.StorageClient;
+
+/**
+ * The state of one workload thread, a storage client of its own and the
+ * managers of the workload user bound to it.
+ */
+public class WorkloadSession {
+
+    public static final String COUNTER_FIELD = "workload:counter";
+
+    private final WorkloadConfiguration configuration;
+    private final StorageClient client;
+    private final User user;
+    private final AccessControlManagerImpl accessControlManager;
+    private final ContentManagerImpl contentManager;
+    private final byte[] buffer = new byte[8192];
+    private long count;
+
+    public WorkloadSession(WorkloadConfiguration configuration, StorageClient client,
+            User user, AccessControlManagerImpl accessControlManager,
+            ContentManagerImpl contentManager) {
+        this.configuration = configuration;
+        this.client = client;
+        this.user = user;
+        this.accessControlManager = accessControlManager;
+        this.contentManager = contentManager;
+    }
+
+    public WorkloadConfiguration getConfiguration() {
+        return configuration;
+    }
+
+    public User getUser() {
+        return user;
+    }
+
+    public AccessControlManagerImpl getAccessControlManager() {
+        return accessControlManager;
+    }
+
+    public ContentManagerImpl getContentManager() {
+        return contentManager;
+    }
+
+    /**
+     * @return a buffer for reading bodies, only to be used by this session.
+     */
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    public long nextCount() {
+        return ++count;
+    }
+
+    public void close() {
+        client.close();
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.workload;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Picks keys in the range 0..n-1 with a Zipfian distribution, where the
+ * probability of the key of rank i is proportional to 1/i^s. An exponent of 0
+ * gives a uniform distribution, around 1 gives the skew usually seen in
+ * production traffic. Ranks are mapped to keys through a permutation drawn
+ * from the seed, so the popular keys are spread over the tree rather than all
+ * being under the same parent. The generator is immutable and may be shared,
+ * all randomness comes from the Random passed to {@link #next(Random)}.
+ */
+public class ZipfianGenerator {
+
+    private final double[] cumulative;
+    private final int[] keys;
+
+    /**
+     * @param n the number of keys.
+     * @param exponent the skew, 0 or more.
+     * @param seed the seed for the mapping of ranks to keys.
+     */
+    public ZipfianGenerator(int n, double exponent, long seed) {
+        if (n <= 0) {
+            throw new IllegalArgumentException("Number of keys must be greater than 0 " + n);
+        }
+        if (exponent < 0) {
+            throw new IllegalArgumentException("Exponent must not be negative " + exponent);
+        }
+        cumulative = new double[n];
+        double total = 0;
+        for (int i = 0; i < n; i++) {
+            total += 1.0 / Math.pow(i + 1, exponent);
+            cumulative[i] = total;
+        }
+        for (int i = 0; i < n; i++) {
+            cumulative[i] /= total;
+        }
+        keys = new int[n];
+        for (int i = 0; i < n; i++) {
+            keys[i] = i;
+        }
+        Random random = new Random(seed);
+        for (int i = n - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int k = keys[i];
+            keys[i] = keys[j];
+            keys[j] = k;
+        }
+    }
+
+    /**
+     * @return the next key.
+     */
+    public int next(Random random) {
+        int rank = Arrays.binarySearch(cumulative, random.nextDouble());
+        if (rank < 0) {
+            rank = -rank - 1;
+        }
+        return keys[Math.min(rank, keys.length - 1)];
+    }
+
+    /**
+     * @return the key with the given popularity rank, 0 being the most
+     *         popular.
+     */
+    public int getKey(int rank) {
+        return keys[rank];
+    }
+
+    /**
+     * @return the probability of the key with the given rank being picked.
+     */
+    public double getProbability(int rank) {
+        return rank == 0 ? cumulative[0] : cumulative[rank] - cumulative[rank - 1];
+    }
+
+    public int size() {
+        return keys.length;
+    }
+}
@@ -22,13 +22,31 @@ import java.util.Map;
 public class CacheHolder {
 
     private Map<String, Object> o;
+    private long expires;
 
     public CacheHolder(Map<String, Object> o) {
+        this(o, 0L);
+    }
+
+    /**
+     * @param o the cached object.
+     * @param expires the time in ms after which the holder is no longer
+     *        valid, or 0 if it does not expire.
+     */
+    public CacheHolder(Map<String, Object> o, long expires) {
         this.o = o;
+        this.expires = expires;
     }
 
     public Map<String, Object> get() {
         return o;
     }
 
+    /**
+     * @return true if the holder has expired and should be reloaded.
+     */
+    public boolean isExpired() {
+        return expires > 0 && System.currentTimeMillis() > expires;
+    }
+
 }
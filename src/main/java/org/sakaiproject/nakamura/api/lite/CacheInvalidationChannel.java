@@ -0,0 +1,63 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.lite;
+
+/**
+ * A channel that carries cache invalidations between the nodes of a cluster
+ * sharing the same store, so that objects written on one node are removed
+ * from the caches of the others. Invalidations are sent asynchronously and
+ * implementations may batch them and coalesce repeated invalidations of the
+ * same key. Register an implementation as an OSGi service to enable it.
+ */
+public interface CacheInvalidationChannel {
+
+    /**
+     * Receives invalidations from other nodes.
+     */
+    interface Listener {
+
+        /**
+         * @param cacheKey the cache key of an object that was modified on
+         *        another node.
+         */
+        void invalidated(String cacheKey);
+
+        /**
+         * Invalidations may have been lost, everything cached should be
+         * discarded.
+         */
+        void invalidatedAll();
+    }
+
+    /**
+     * Announce to other nodes that an object has been modified on this node.
+     * Listeners on this node are not notified.
+     * @param cacheKey the cache key of the object.
+     */
+    void invalidate(String cacheKey);
+
+    /**
+     * @param listener a listener to be notified of invalidations from other nodes.
+     */
+    void addListener(Listener listener);
+
+    /**
+     * @param listener a listener that should no longer be notified.
+     */
+    void removeListener(Listener listener);
+}
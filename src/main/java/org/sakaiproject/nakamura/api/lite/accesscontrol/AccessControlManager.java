@@ -21,6 +21,9 @@ import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -91,6 +94,39 @@ public interface AccessControlManager {
     void check(String objectType, String objectPath, Permission permission)
             throws AccessDeniedException, StorageClientException;
 
+    /**
+     * Check the current user has the permission on a number of objects, as
+     * {@link #check(String, String, Permission)} would for each, but loading
+     * the ACLs of all the objects and their parents together and without
+     * throwing for those that are denied. Intended for filtering lists and
+     * search results.
+     * 
+     * @param objectType
+     *            the object type @see {@link Security}
+     * @param objectPaths
+     *            the paths to the objects
+     * @param permission
+     *            the permission (may be aggregated) to check.
+     * @return the paths the current user has the permission on, in the order
+     *         given.
+     * @throws StorageClientException
+     */
+    List<String> checkAll(String objectType, Collection<String> objectPaths,
+            Permission permission) throws StorageClientException;
+
+    /**
+     * Lazily filter paths down to those the current user can read. Paths are
+     * checked in batches with {@link #checkAll(String, Collection, Permission)}
+     * as the result is iterated, unreadable paths are skipped.
+     * 
+     * @param objectType
+     *            the object type @see {@link Security}
+     * @param objectPaths
+     *            the paths to filter
+     * @return an iterator over the readable paths, in the order given.
+     */
+    Iterator<String> filterReadable(String objectType, Iterator<String> objectPaths);
+
     /**
      * @return the current user ID associated with this AccessControlManager
      */
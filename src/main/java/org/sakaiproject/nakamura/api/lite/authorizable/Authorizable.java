@@ -56,6 +56,12 @@ public class Authorizable {
      */
     public static final String MEMBERS_FIELD = "members";
 
+    /**
+     * List of the groups this Authorizable is a direct or indirect member of,
+     * maintained by the AuthorizableManager when group membership changes.
+     */
+    public static final String MEMBERSHIP_FIELD = "membership";
+
     /**
      * The ID of the authorizable.
      */
@@ -106,7 +112,8 @@ public class Authorizable {
     /**
      * A set of properties to filter out when sending out and setting.
      */
-    private static final Set<String> FILTER_PROPERTIES = ImmutableSet.of(PASSWORD_FIELD, ID_FIELD);
+    private static final Set<String> FILTER_PROPERTIES = ImmutableSet.of(PASSWORD_FIELD, ID_FIELD,
+            MEMBERSHIP_FIELD);
 
     /**
      * A set of properties that are not visiable.
@@ -203,6 +210,19 @@ public class Authorizable {
         return principals.toArray(new String[principals.size()]);
     }
 
+    /**
+     * @return the ids of the groups this authorizable is a direct or indirect
+     *         member of, or null if the membership has not been materialized
+     *         for this authorizable.
+     */
+    public String[] getMembership() {
+        Object membership = authorizableMap.get(MEMBERSHIP_FIELD);
+        if (membership == null) {
+            return null;
+        }
+        return StringUtils.split((String) membership, ';');
+    }
+
     /**
      * @return the ID of this authorizable (immutable)
      */
@@ -351,6 +371,15 @@ public class Authorizable {
     public Iterator<Group> memberOf(final AuthorizableManager authorizableManager) {
         final List<String> memberIds = new ArrayList<String>();
         Collections.addAll(memberIds, getPrincipals());
+        final String[] membership = getMembership();
+        if (membership != null) {
+            // already materialized, so there is no need to follow the groups.
+            for (String groupId : membership) {
+                if (!memberIds.contains(groupId)) {
+                    memberIds.add(groupId);
+                }
+            }
+        }
         return new PreemptiveIterator<Group>() {
 
             private int p;
@@ -365,6 +394,9 @@ public class Authorizable {
                         Authorizable a = authorizableManager.findAuthorizable(id);
                         if (a instanceof Group) {
                             group = (Group) a;
+                            if (membership != null) {
+                                return true;
+                            }
                             for (String pid : a.getPrincipals()) {
                                 if (!memberIds.contains(pid)) {
                                     memberIds.add(pid);
@@ -0,0 +1,47 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.lite.content;
+
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A channel over a body stored in a file. The bytes of the body can be
+ * transferred directly to another channel, such as a socket, without being
+ * copied through the heap. Streams returned by
+ * {@link ContentManager#getInputStream(String, String, long, long)} implement
+ * this interface when the body is stored in a file.
+ */
+public interface BodyChannel extends ReadableByteChannel {
+
+    /**
+     * @return the number of bytes left to read.
+     */
+    long getRemaining();
+
+    /**
+     * Transfer the remaining bytes of the body to a channel.
+     * 
+     * @param target
+     *            the channel to write to.
+     * @return the number of bytes transferred.
+     * @throws IOException
+     */
+    long transferTo(WritableByteChannel target) throws IOException;
+}
@@ -23,6 +23,7 @@ import org.sakaiproject.nakamura.api.lite.accesscontrol.PrincipalTokenResolver;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.ReadableByteChannel;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -206,6 +207,61 @@ public interface ContentManager {
     InputStream getInputStream(String path, String streamId) throws StorageClientException,
             AccessDeniedException, IOException;
 
+    /**
+     * Get an input stream for part of a body associated with the content
+     * object at the path, for instance to serve a range request. The content
+     * before the offset is not read from the store.
+     * 
+     * @param path
+     *            the path to the content object.
+     * @param streamId
+     *            the name of the alternative stream, or null for the default
+     *            body.
+     * @param offset
+     *            the offset of the first byte to read.
+     * @param length
+     *            the maximum number of bytes to read, or -1 to read to the end
+     *            of the body.
+     * @return an Input Stream positioned at the offset.
+     * @throws StorageClientException
+     *             if there was a problem with the operation.
+     * @throws AccessDeniedException
+     *             if the user is unable to read the body of the object at the
+     *             path.
+     * @throws IOException
+     *             if there was a problem creating the stream.
+     */
+    InputStream getInputStream(String path, String streamId, long offset, long length)
+            throws StorageClientException, AccessDeniedException, IOException;
+
+    /**
+     * Get a channel for part of a body associated with the content object at
+     * the path. When the body is stored in a file the channel is a
+     * {@link BodyChannel}, which can transfer the body to another channel
+     * without copying it through the heap.
+     * 
+     * @param path
+     *            the path to the content object.
+     * @param streamId
+     *            the name of the alternative stream, or null for the default
+     *            body.
+     * @param offset
+     *            the offset of the first byte to read.
+     * @param length
+     *            the maximum number of bytes to read, or -1 to read to the end
+     *            of the body.
+     * @return a channel positioned at the offset.
+     * @throws StorageClientException
+     *             if there was a problem with the operation.
+     * @throws AccessDeniedException
+     *             if the user is unable to read the body of the object at the
+     *             path.
+     * @throws IOException
+     *             if there was a problem creating the channel.
+     */
+    ReadableByteChannel getChannel(String path, String streamId, long offset, long length)
+            throws StorageClientException, AccessDeniedException, IOException;
+
     /**
      * @param path
      * @return true if the path exists
@@ -0,0 +1,174 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite;
+
+import com.google.common.base.ReferenceType;
+import com.google.common.collect.ReferenceMap;
+
+import org.sakaiproject.nakamura.api.lite.CacheHolder;
+import org.sakaiproject.nakamura.api.lite.CacheInvalidationChannel;
+import org.sakaiproject.nakamura.api.lite.StorageCacheManager;
+import org.sakaiproject.nakamura.lite.storage.StorageClientPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.ref.WeakReference;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Invalidates objects in a shared cache, both for modifications made on this
+ * node, which are also sent to the other nodes through the
+ * {@link CacheInvalidationChannel} if one is bound, and for modifications
+ * received from the other nodes. There is one instance per cache, shared by
+ * all of the {@link CachingManager}s that use it. Caches derived from the
+ * objects may register to be told about every invalidation, local or remote.
+ */
+public class CacheInvalidator implements CacheInvalidationChannel.Listener {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CacheInvalidator.class);
+
+    /**
+     * Invalidators by cache, the keys are weak and compared by identity.
+     */
+    private static final Map<Map<String, CacheHolder>, CacheInvalidator> INVALIDATORS = new ReferenceMap<Map<String, CacheHolder>, CacheInvalidator>(
+            ReferenceType.WEAK, ReferenceType.STRONG);
+
+    private final WeakReference<Map<String, CacheHolder>> cache;
+    private final PendingLoads pendingLoads;
+    private final List<CacheInvalidationChannel.Listener> listeners = new CopyOnWriteArrayList<CacheInvalidationChannel.Listener>();
+    private volatile CacheInvalidationChannel channel;
+
+    /**
+     * @param cache
+     * @return the invalidator for the cache.
+     */
+    public static CacheInvalidator getInstance(Map<String, CacheHolder> cache) {
+        synchronized (INVALIDATORS) {
+            CacheInvalidator invalidator = INVALIDATORS.get(cache);
+            if (invalidator == null) {
+                invalidator = new CacheInvalidator(cache);
+                INVALIDATORS.put(cache, invalidator);
+            }
+            return invalidator;
+        }
+    }
+
+    /**
+     * @return the key a row is cached under.
+     */
+    public static String getCacheKey(String keySpace, String columnFamily, String key) {
+        return keySpace + ":" + columnFamily + ":" + key;
+    }
+
+    /**
+     * Invalidate a row written directly through a storage client, rather
+     * than through a {@link CachingManager}.
+     * @param cache the cache the row may be held in, may be null.
+     */
+    public static void invalidate(Map<String, CacheHolder> cache, String keySpace,
+            String columnFamily, String key) {
+        if (cache != null) {
+            getInstance(cache).invalidate(getCacheKey(keySpace, columnFamily, key));
+        }
+    }
+
+    /**
+     * Invalidate a content row written directly through a storage client of
+     * a pool.
+     * @param pool the pool the client belongs to, may be null.
+     */
+    public static void invalidateContent(StorageClientPool pool, String keySpace,
+            String columnFamily, String key) {
+        StorageCacheManager storageCacheManager = pool == null ? null : pool
+                .getStorageCacheManager();
+        if (storageCacheManager != null) {
+            invalidate(storageCacheManager.getContentCache(), keySpace, columnFamily, key);
+        }
+    }
+
+    private CacheInvalidator(Map<String, CacheHolder> cache) {
+        this.cache = new WeakReference<Map<String, CacheHolder>>(cache);
+        this.pendingLoads = PendingLoads.getInstance(cache);
+    }
+
+    /**
+     * Bind the channel used to exchange invalidations with other nodes.
+     * @param channel the channel, or null to stop exchanging invalidations.
+     */
+    public synchronized void setChannel(CacheInvalidationChannel channel) {
+        if (this.channel == channel) {
+            return;
+        }
+        if (this.channel != null) {
+            this.channel.removeListener(this);
+        }
+        this.channel = channel;
+        if (channel != null) {
+            channel.addListener(this);
+            LOGGER.info("Cache invalidations are being exchanged through {} ", channel);
+        }
+    }
+
+    /**
+     * Invalidate an object modified on this node.
+     * @param cacheKey
+     */
+    public void invalidate(String cacheKey) {
+        invalidated(cacheKey);
+        CacheInvalidationChannel c = channel;
+        if (c != null) {
+            c.invalidate(cacheKey);
+        }
+    }
+
+    public void invalidated(String cacheKey) {
+        pendingLoads.invalidate(cacheKey);
+        Map<String, CacheHolder> c = cache.get();
+        if (c != null) {
+            c.remove(cacheKey);
+        }
+        for (CacheInvalidationChannel.Listener listener : listeners) {
+            listener.invalidated(cacheKey);
+        }
+    }
+
+    public void invalidatedAll() {
+        pendingLoads.invalidateAll();
+        Map<String, CacheHolder> c = cache.get();
+        if (c != null) {
+            c.clear();
+        }
+        for (CacheInvalidationChannel.Listener listener : listeners) {
+            listener.invalidatedAll();
+        }
+    }
+
+    /**
+     * @param listener a listener to be told of every invalidation of the
+     *        cache, whether made on this node or received from another.
+     */
+    public void addListener(CacheInvalidationChannel.Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(CacheInvalidationChannel.Listener listener) {
+        listeners.remove(listener);
+    }
+}
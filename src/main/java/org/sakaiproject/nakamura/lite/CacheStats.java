@@ -0,0 +1,291 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite;
+
+import com.google.common.base.ReferenceType;
+import com.google.common.collect.ReferenceMap;
+
+import org.sakaiproject.nakamura.api.lite.CacheHolder;
+import org.sakaiproject.nakamura.lite.storage.SegmentedLRUMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Statistics for a shared cache, collected by all of the
+ * {@link CachingManager}s that use it. There is one instance per cache. The
+ * stats of caches named by their pool are registered with the platform
+ * MBeanServer as org.sakaiproject.nakamura.lite:type=CacheStats,name=&lt;name&gt;
+ * so that caches can be sized from the hit ratios and load times, and are
+ * unregistered when the pool is deactivated. Stats of unnamed caches are only
+ * held while the cache is in use. The counters are atomic and may be read
+ * while they are being updated.
+ */
+public class CacheStats implements CacheStatsMBean {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CacheStats.class);
+
+    /**
+     * Stats by cache, the keys are weak and compared by identity.
+     */
+    private static final Map<Map<String, CacheHolder>, CacheStats> STATS = new ReferenceMap<Map<String, CacheHolder>, CacheStats>(
+            ReferenceType.WEAK, ReferenceType.STRONG);
+
+    private volatile String name;
+    private final WeakReference<Map<String, CacheHolder>> cache;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong negativeHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong loads = new AtomicLong();
+    private final AtomicLong loadTime = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong lookups = new AtomicLong();
+    private ObjectName objectName;
+
+    /**
+     * Get the stats for a cache, registering them under the name if they are
+     * not already registered. The caller must {@link #unregister(Map)} the
+     * cache when it is no longer used.
+     * @param cache the cache, may be null in which case the stats are not registered.
+     * @param name the name to register the stats under.
+     * @return the stats for the cache.
+     */
+    public static CacheStats getInstance(Map<String, CacheHolder> cache, String name) {
+        if (cache == null) {
+            return new CacheStats(null, name);
+        }
+        synchronized (STATS) {
+            CacheStats stats = get(cache);
+            if (stats.objectName == null) {
+                stats.name = name;
+                stats.register();
+            }
+            return stats;
+        }
+    }
+
+    /**
+     * Get the stats for a cache without registering them, the stats are
+     * dropped with the cache.
+     * @param cache
+     * @return the stats for the cache.
+     */
+    public static CacheStats getInstance(Map<String, CacheHolder> cache) {
+        if (cache == null) {
+            return new CacheStats(null, getDefaultName(null));
+        }
+        synchronized (STATS) {
+            return get(cache);
+        }
+    }
+
+    private static CacheStats get(Map<String, CacheHolder> cache) {
+        CacheStats stats = STATS.get(cache);
+        if (stats == null) {
+            stats = new CacheStats(cache, getDefaultName(cache));
+            STATS.put(cache, stats);
+        }
+        return stats;
+    }
+
+    private static String getDefaultName(Map<String, CacheHolder> cache) {
+        return "cache-" + Integer.toHexString(System.identityHashCode(cache));
+    }
+
+    /**
+     * Unregister the stats for a cache that is no longer being used.
+     * @param cache
+     */
+    public static void unregister(Map<String, CacheHolder> cache) {
+        if (cache == null) {
+            return;
+        }
+        CacheStats stats = null;
+        synchronized (STATS) {
+            stats = STATS.remove(cache);
+        }
+        if (stats != null) {
+            stats.unregister();
+        }
+    }
+
+    CacheStats(Map<String, CacheHolder> cache, String name) {
+        this.cache = new WeakReference<Map<String, CacheHolder>>(cache);
+        this.name = name;
+    }
+
+    private void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName on = new ObjectName("org.sakaiproject.nakamura.lite:type=CacheStats,name="
+                    + ObjectName.quote(name));
+            if (!server.isRegistered(on)) {
+                server.registerMBean(this, on);
+                objectName = on;
+            }
+        } catch (JMException e) {
+            LOGGER.warn("Unable to register cache statistics for {}: {}", name, e.getMessage());
+        } catch (SecurityException e) {
+            LOGGER.warn("Unable to register cache statistics for {}: {}", name, e.getMessage());
+        }
+    }
+
+    private void unregister() {
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (JMException e) {
+                LOGGER.debug("Unable to unregister cache statistics for {}: {}", name,
+                        e.getMessage());
+            }
+            objectName = null;
+        }
+    }
+
+    /**
+     * Record a lookup that found a row.
+     * @return the number of lookups so far.
+     */
+    public long hit() {
+        hits.incrementAndGet();
+        return lookups.incrementAndGet();
+    }
+
+    /**
+     * Record a lookup that found a cached missing row.
+     * @return the number of lookups so far.
+     */
+    public long negativeHit() {
+        negativeHits.incrementAndGet();
+        return lookups.incrementAndGet();
+    }
+
+    /**
+     * Record a lookup that found nothing in the cache.
+     * @return the number of lookups so far.
+     */
+    public long miss() {
+        misses.incrementAndGet();
+        return lookups.incrementAndGet();
+    }
+
+    /**
+     * Record a load from storage.
+     * @param rows the number of rows loaded.
+     * @param nanos the time taken in ns.
+     */
+    public void loaded(int rows, long nanos) {
+        loads.addAndGet(rows);
+        loadTime.addAndGet(nanos);
+    }
+
+    /**
+     * Record a miss that waited for another thread to load the row.
+     */
+    public void coalesced() {
+        coalesced.incrementAndGet();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getNegativeHitCount() {
+        return negativeHits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public double getHitRatio() {
+        long h = hits.get() + negativeHits.get();
+        long total = h + misses.get();
+        if (total <= 0) {
+            return 0.0;
+        }
+        return (double) h / (double) total;
+    }
+
+    public long getLoadCount() {
+        return loads.get();
+    }
+
+    public long getTotalLoadTime() {
+        return loadTime.get() / 1000000L;
+    }
+
+    public long getCoalescedLoadCount() {
+        return coalesced.get();
+    }
+
+    public double getAverageLoadTime() {
+        long n = loads.get();
+        if (n <= 0) {
+            return 0.0;
+        }
+        return (double) loadTime.get() / (1000000.0 * n);
+    }
+
+    public long getEvictionCount() {
+        Map<String, CacheHolder> c = cache.get();
+        if (c instanceof SegmentedLRUMap<?, ?>) {
+            return ((SegmentedLRUMap<?, ?>) c).getEvictionCount();
+        }
+        return -1;
+    }
+
+    public int getSize() {
+        Map<String, CacheHolder> c = cache.get();
+        if (c == null) {
+            return -1;
+        }
+        return c.size();
+    }
+
+    public void reset() {
+        hits.set(0);
+        negativeHits.set(0);
+        misses.set(0);
+        loads.set(0);
+        loadTime.set(0);
+        coalesced.set(0);
+        lookups.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return name + " hits " + getHitCount() + " negative hits " + getNegativeHitCount()
+                + " misses " + getMissCount() + " hit% " + Math.round(100 * getHitRatio())
+                + " loads " + getLoadCount() + " coalesced " + getCoalescedLoadCount()
+                + " avg load " + getAverageLoadTime() + " ms"
+                + " evictions " + getEvictionCount() + " size " + getSize();
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite;
+
+/**
+ * Management interface for the statistics of a shared cache.
+ */
+public interface CacheStatsMBean {
+
+    /**
+     * @return the name of the cache.
+     */
+    String getName();
+
+    /**
+     * @return the number of lookups that found a row in the cache.
+     */
+    long getHitCount();
+
+    /**
+     * @return the number of lookups that found a cached missing row.
+     */
+    long getNegativeHitCount();
+
+    /**
+     * @return the number of lookups that did not find anything in the cache.
+     */
+    long getMissCount();
+
+    /**
+     * @return the proportion of lookups answered by the cache, 0 if there
+     *         have been no lookups.
+     */
+    double getHitRatio();
+
+    /**
+     * @return the number of rows loaded from storage.
+     */
+    long getLoadCount();
+
+    /**
+     * @return the total time spent loading rows in ms.
+     */
+    long getTotalLoadTime();
+
+    /**
+     * @return the number of misses that waited for another thread to load
+     *         the row rather than loading it themselves.
+     */
+    long getCoalescedLoadCount();
+
+    /**
+     * @return the average time to load a row in ms, 0 if nothing has been
+     *         loaded.
+     */
+    double getAverageLoadTime();
+
+    /**
+     * @return the number of entries evicted by the cache, or -1 if the cache
+     *         does not report evictions.
+     */
+    long getEvictionCount();
+
+    /**
+     * @return the number of entries in the cache, or -1 if it has gone.
+     */
+    int getSize();
+
+    /**
+     * Reset the counters.
+     */
+    void reset();
+}
@@ -17,12 +17,20 @@
  */
 package org.sakaiproject.nakamura.lite;
 
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
 import org.sakaiproject.nakamura.api.lite.CacheHolder;
+import org.sakaiproject.nakamura.api.lite.Configuration;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
 import org.sakaiproject.nakamura.lite.storage.StorageClient;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -30,12 +38,23 @@ import java.util.Map;
  */
 public abstract class CachingManager {
 
+    /**
+     * The time in ms that a lookup of a missing object is cached for, set in
+     * the shared configuration. 0 caches missing objects until they are
+     * invalidated and a negative value disables negative caching. Code that
+     * writes rows directly through a {@link StorageClient} must invalidate
+     * them with {@link CacheInvalidator}, the expiry only bounds how long a
+     * missed invalidation is seen for.
+     */
+    public static final String NEGATIVE_CACHE_TTL = "negative-cache-ttl";
+    public static final long DEFAULT_NEGATIVE_CACHE_TTL = 60000L;
     private static final Logger LOGGER = LoggerFactory.getLogger(CachingManager.class);
     private Map<String, CacheHolder> sharedCache;
     private StorageClient client;
-    private int hit;
-    private int miss;
-    private long calls;
+    private CacheStats stats;
+    private PendingLoads pendingLoads;
+    private CacheInvalidator invalidator;
+    private long negativeCacheTTL = DEFAULT_NEGATIVE_CACHE_TTL;
 
     /**
      * Create a new {@link CachingManager}
@@ -43,13 +62,37 @@ public abstract class CachingManager {
      * @param sharedCache the cache where the objects will be stored
      */
     public CachingManager(StorageClient client, Map<String, CacheHolder> sharedCache) {
+        this(client, sharedCache, null);
+    }
+
+    /**
+     * Create a new {@link CachingManager}
+     * @param client a client to the underlying storage engine
+     * @param sharedCache the cache where the objects will be stored
+     * @param config the configuration, may be null in which case defaults are used.
+     */
+    public CachingManager(StorageClient client, Map<String, CacheHolder> sharedCache,
+            Configuration config) {
         this.client = client;
         this.sharedCache = sharedCache;
+        if (config != null && config.getSharedConfig() != null) {
+            this.negativeCacheTTL = StorageClientUtils.getSetting(
+                    config.getSharedConfig().get(NEGATIVE_CACHE_TTL), DEFAULT_NEGATIVE_CACHE_TTL);
+        }
+        this.stats = CacheStats.getInstance(sharedCache);
+        if (sharedCache != null) {
+            this.pendingLoads = PendingLoads.getInstance(sharedCache);
+            this.invalidator = CacheInvalidator.getInstance(sharedCache);
+        }
     }
 
     /**
      * Try to retrieve an object from the cache.
      * Has the side-effect of loading an uncached object into cache the first time.
+     * If other threads miss on the same object while it is being loaded they
+     * wait for the load rather than going to storage themselves. Objects that
+     * do not exist are cached for negative-cache-ttl ms, and returned as an
+     * empty map.
      * @param keySpace the key space we're operating in.
      * @param columnFamily the column family for the object
      * @param key the object key
@@ -61,35 +104,202 @@ public abstract class CachingManager {
         Map<String, Object> m = null;
         String cacheKey = getCacheKey(keySpace, columnFamily, key);
 
-
-        if (sharedCache != null && sharedCache.containsKey(cacheKey)) {
-            CacheHolder cacheHolder = sharedCache.get(cacheKey);
-            if (cacheHolder != null) {
-                m = cacheHolder.get();
+        long lookups;
+        CacheHolder cacheHolder = getCacheHolder(cacheKey);
+        if (cacheHolder == null) {
+            lookups = stats.miss();
+        } else {
+            m = cacheHolder.get();
+            if (m == null) {
+                m = Maps.newHashMap();
+                lookups = stats.negativeHit();
+            } else {
                 LOGGER.debug("Cache Hit {} {} {} ",new Object[]{cacheKey, cacheHolder, m});
-                hit++;
+                lookups = stats.hit();
             }
         }
-        if (m == null) {
-            m = client.get(keySpace, columnFamily, key);
-            miss++;
-            if (sharedCache != null) {
-                if (m != null) {
-                    LOGGER.debug("Cache Miss, Found Map {} {}", cacheKey, m);
+        if (cacheHolder == null) {
+            if (sharedCache == null) {
+                m = load(keySpace, columnFamily, key);
+            } else {
+                m = loadCached(keySpace, columnFamily, key, cacheKey);
+            }
+        }
+        if ((lookups % 1000) == 0) {
+            getLogger().info("Cache Stats {}", stats);
+        }
+        return m;
+    }
+
+    /**
+     * Load an object into the cache, or wait for the thread that is already
+     * loading it.
+     */
+    private Map<String, Object> loadCached(String keySpace, String columnFamily, String key,
+            String cacheKey) throws StorageClientException {
+        PendingLoads.Load load = new PendingLoads.Load();
+        PendingLoads.Load inProgress = pendingLoads.start(cacheKey, load);
+        if (inProgress != null) {
+            try {
+                Map<String, Object> m = inProgress.get();
+                stats.coalesced();
+                if (m != null && m.isEmpty()) {
+                    // the loader's map is its own, waiters get a map of their own.
+                    m = Maps.newHashMap();
                 }
-                sharedCache.put(cacheKey, new CacheHolder(m));
+                return m;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return load(keySpace, columnFamily, key);
             }
         }
-        calls++;
-        if ((calls % 1000) == 0) {
-            getLogger().info("Cache Stats Hits {} Misses {}  hit% {}", new Object[] { hit, miss,
-                    ((100 * hit) / (hit + miss)) });
+        long version = pendingLoads.version(cacheKey);
+        Map<String, Object> m = null;
+        try {
+            m = load(keySpace, columnFamily, key);
+        } catch (StorageClientException e) {
+            pendingLoads.finish(cacheKey, load);
+            load.failed(e);
+            throw e;
+        } catch (RuntimeException e) {
+            pendingLoads.finish(cacheKey, load);
+            load.failed(new StorageClientException(e.getMessage(), e));
+            throw e;
         }
+        // only cache the result if the object was not modified during the load.
+        if (pendingLoads.finish(cacheKey, load) && version == pendingLoads.version(cacheKey)) {
+            if (m != null) {
+                LOGGER.debug("Cache Miss, Found Map {} {}", cacheKey, m);
+            }
+            m = putCacheHolder(cacheKey, m);
+        } else if (!isMissing(m)) {
+            // the result is shared with the waiting threads even when it is not cached.
+            m = Collections.unmodifiableMap(m);
+        }
+        load.done(m);
         return m;
     }
 
+    /**
+     * @return the holder for a cache key, or null if there is none or it has
+     *         expired.
+     */
+    private CacheHolder getCacheHolder(String cacheKey) {
+        if (sharedCache == null) {
+            return null;
+        }
+        CacheHolder cacheHolder = sharedCache.get(cacheKey);
+        if (cacheHolder != null && cacheHolder.isExpired()) {
+            return null;
+        }
+        return cacheHolder;
+    }
+
+    /**
+     * Cache a loaded object, objects that do not exist are held as null and
+     * expire after the negative cache ttl, if it is set. Cached rows are shared by every
+     * manager using the cache, and things are derived from them by identity,
+     * so they are cached unmodifiable.
+     * @return the object as it is cached.
+     */
+    private Map<String, Object> putCacheHolder(String cacheKey, Map<String, Object> m) {
+        if (!isMissing(m)) {
+            m = Collections.unmodifiableMap(m);
+            sharedCache.put(cacheKey, new CacheHolder(m));
+        } else if (negativeCacheTTL > 0) {
+            sharedCache.put(cacheKey, new CacheHolder(null, System.currentTimeMillis()
+                    + negativeCacheTTL));
+        } else if (negativeCacheTTL == 0) {
+            sharedCache.put(cacheKey, new CacheHolder(null));
+        } else {
+            sharedCache.remove(cacheKey);
+        }
+        return m;
+    }
+
+    /**
+     * @return true if the loaded object represents a row that does not exist.
+     *         Storage clients return either null or an empty map.
+     */
+    private boolean isMissing(Map<String, Object> m) {
+        return m == null || m.isEmpty();
+    }
+
+    private Map<String, Object> load(String keySpace, String columnFamily, String key)
+            throws StorageClientException {
+        long t = System.nanoTime();
+        Map<String, Object> m = client.get(keySpace, columnFamily, key);
+        stats.loaded(1, System.nanoTime() - t);
+        return m;
+    }
+
+    /**
+     * Retrieve a number of objects, from the cache where possible, loading all
+     * of the uncached objects with a single multi-get against the store.
+     * @param keySpace the key space we're operating in.
+     * @param columnFamily the column family for the objects
+     * @param keys the object keys
+     * @return a map of key to object, in the order of the keys supplied.
+     * @throws StorageClientException
+     */
+    protected Map<String, Map<String, Object>> getCachedMany(String keySpace,
+            String columnFamily, Collection<String> keys) throws StorageClientException {
+        Map<String, Map<String, Object>> result = Maps.newLinkedHashMap();
+        List<String> toLoad = Lists.newArrayList();
+        for (String key : keys) {
+            Map<String, Object> m = null;
+            CacheHolder cacheHolder = getCacheHolder(getCacheKey(keySpace, columnFamily, key));
+            if (cacheHolder == null) {
+                stats.miss();
+                toLoad.add(key);
+            } else {
+                m = cacheHolder.get();
+                if (m == null) {
+                    m = Maps.newHashMap();
+                    stats.negativeHit();
+                } else {
+                    stats.hit();
+                }
+            }
+            result.put(key, m);
+        }
+        if (toLoad.size() > 0) {
+            long[] versions = new long[toLoad.size()];
+            if (sharedCache != null) {
+                for (int i = 0; i < versions.length; i++) {
+                    versions[i] = pendingLoads.version(getCacheKey(keySpace, columnFamily,
+                            toLoad.get(i)));
+                }
+            }
+            long t = System.nanoTime();
+            Map<String, Map<String, Object>> loaded = client.getMany(keySpace, columnFamily,
+                    toLoad);
+            stats.loaded(toLoad.size(), System.nanoTime() - t);
+            for (int i = 0; i < versions.length; i++) {
+                String key = toLoad.get(i);
+                Map<String, Object> m = loaded.get(key);
+                if (sharedCache != null) {
+                    String cacheKey = getCacheKey(keySpace, columnFamily, key);
+                    // dont cache objects that were modified during the load.
+                    if (versions[i] == pendingLoads.version(cacheKey)) {
+                        m = putCacheHolder(cacheKey, m);
+                    }
+                }
+                result.put(key, m);
+            }
+        }
+        return result;
+    }
+
     protected abstract Logger getLogger();
 
+    /**
+     * @return the statistics for the cache used by this manager.
+     */
+    public CacheStats getCacheStats() {
+        return stats;
+    }
+
     /**
      * Combine the parameters into a key suitable for storage and lookup in the cache.
      * @param keySpace
@@ -98,7 +308,7 @@ public abstract class CachingManager {
      * @return the cache key
      */
     private String getCacheKey(String keySpace, String columnFamily, String key) {
-        return keySpace + ":" + columnFamily + ":" + key;
+        return CacheInvalidator.getCacheKey(keySpace, columnFamily, key);
     }
 
     /**
@@ -109,7 +319,7 @@ public abstract class CachingManager {
      */
     protected void removeFromCache(String keySpace, String columnFamily, String key) {
         if (sharedCache != null) {
-            sharedCache.remove(getCacheKey(keySpace, columnFamily, key));
+            invalidator.invalidate(getCacheKey(keySpace, columnFamily, key));
         }
     }
     
@@ -0,0 +1,157 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite;
+
+import com.google.common.base.ReferenceType;
+import com.google.common.collect.Maps;
+import com.google.common.collect.ReferenceMap;
+
+import org.sakaiproject.nakamura.api.lite.CacheHolder;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The loads in progress for a shared cache, so that when many threads miss
+ * on the same key only one of them goes to storage and the rest wait for its
+ * result. A version is kept for every key, which changes when the key is
+ * invalidated, so that a load that overlaps an invalidation is not cached.
+ * Keys share versions by hash, a collision only means an object is not
+ * cached. There is one instance per cache, shared by all of the
+ * {@link CachingManager}s that use it.
+ */
+class PendingLoads {
+
+    /**
+     * A load of a single key. The thread that registered it loads the row and
+     * calls {@link #done(Map)} or {@link #failed(StorageClientException)},
+     * other threads call {@link #get()}.
+     */
+    static class Load {
+        private final CountDownLatch latch = new CountDownLatch(1);
+        private Map<String, Object> result;
+        private StorageClientException failure;
+
+        void done(Map<String, Object> result) {
+            this.result = result;
+            latch.countDown();
+        }
+
+        void failed(StorageClientException failure) {
+            this.failure = failure;
+            latch.countDown();
+        }
+
+        /**
+         * @return the loaded row, or null if it does not exist.
+         * @throws StorageClientException if the load failed.
+         * @throws InterruptedException if interrupted while waiting.
+         */
+        Map<String, Object> get() throws StorageClientException, InterruptedException {
+            latch.await();
+            if (failure != null) {
+                throw failure;
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Loads by cache, the keys are weak and compared by identity.
+     */
+    private static final Map<Map<String, CacheHolder>, PendingLoads> LOADS = new ReferenceMap<Map<String, CacheHolder>, PendingLoads>(
+            ReferenceType.WEAK, ReferenceType.STRONG);
+
+    private static final int VERSION_BUCKETS = 4096;
+
+    private final ConcurrentMap<String, Load> loads = Maps.newConcurrentHashMap();
+    private final AtomicLongArray versions = new AtomicLongArray(VERSION_BUCKETS);
+
+    /**
+     * @param cache
+     * @return the pending loads for the cache.
+     */
+    static PendingLoads getInstance(Map<String, CacheHolder> cache) {
+        synchronized (LOADS) {
+            PendingLoads pendingLoads = LOADS.get(cache);
+            if (pendingLoads == null) {
+                pendingLoads = new PendingLoads();
+                LOADS.put(cache, pendingLoads);
+            }
+            return pendingLoads;
+        }
+    }
+
+    /**
+     * Register a load of a key.
+     * @param cacheKey
+     * @param load a new load.
+     * @return null if the load was registered and the caller must perform it,
+     *         otherwise the load already in progress.
+     */
+    Load start(String cacheKey, Load load) {
+        return loads.putIfAbsent(cacheKey, load);
+    }
+
+    /**
+     * Deregister a load.
+     * @param cacheKey
+     * @param load
+     * @return true if the load was still registered, false if it was
+     *         cancelled by {@link #invalidate(String)} while in progress.
+     */
+    boolean finish(String cacheKey, Load load) {
+        return loads.remove(cacheKey, load);
+    }
+
+    /**
+     * Invalidate a key, changing its version and cancelling any load in
+     * progress so that the result is not cached. Threads already waiting
+     * still receive the result.
+     * @param cacheKey
+     */
+    void invalidate(String cacheKey) {
+        versions.incrementAndGet(bucket(cacheKey));
+        loads.remove(cacheKey);
+    }
+
+    /**
+     * Invalidate every key.
+     */
+    void invalidateAll() {
+        for (int i = 0; i < VERSION_BUCKETS; i++) {
+            versions.incrementAndGet(i);
+        }
+        loads.clear();
+    }
+
+    /**
+     * @param cacheKey
+     * @return the current version of the key.
+     */
+    long version(String cacheKey) {
+        return versions.get(bucket(cacheKey));
+    }
+
+    private int bucket(String cacheKey) {
+        return (cacheKey.hashCode() & 0x7fffffff) % VERSION_BUCKETS;
+    }
+}
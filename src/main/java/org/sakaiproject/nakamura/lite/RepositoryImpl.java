@@ -21,11 +21,16 @@ import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Deactivate;
 import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.ReferenceCardinality;
+import org.apache.felix.scr.annotations.ReferencePolicy;
 import org.apache.felix.scr.annotations.Service;
+import org.sakaiproject.nakamura.api.lite.CacheHolder;
+import org.sakaiproject.nakamura.api.lite.CacheInvalidationChannel;
 import org.sakaiproject.nakamura.api.lite.ClientPoolException;
 import org.sakaiproject.nakamura.api.lite.Configuration;
 import org.sakaiproject.nakamura.api.lite.Repository;
 import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageCacheManager;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StoreListener;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
@@ -58,6 +63,9 @@ public class RepositoryImpl implements Repository {
     @Reference
     protected PrincipalValidatorResolver principalValidatorResolver;
 
+    @Reference(cardinality = ReferenceCardinality.OPTIONAL_UNARY, policy = ReferencePolicy.DYNAMIC)
+    protected CacheInvalidationChannel cacheInvalidationChannel;
+
 
     public RepositoryImpl() {
     }
@@ -68,8 +76,10 @@ public class RepositoryImpl implements Repository {
         StorageClient client = null;
         try {
             client = clientPool.getClient();
+            StorageCacheManager storageCacheManager = getStorageCacheManager();
             AuthorizableActivator authorizableActivator = new AuthorizableActivator(client,
-                    configuration);
+                    configuration, storageCacheManager == null ? null
+                            : storageCacheManager.getAuthorizableCache());
             authorizableActivator.setup();
         } finally {
             if ( client != null ) {
@@ -114,7 +124,7 @@ public class RepositoryImpl implements Repository {
             if (currentUser == null) {
                 throw new StorageClientException("User " + username + " cant login with password");
             }
-            return new SessionImpl(this, currentUser, client, configuration, clientPool.getStorageCacheManager(), storeListener, principalValidatorResolver);
+            return new SessionImpl(this, currentUser, client, configuration, getStorageCacheManager(), storeListener, principalValidatorResolver);
         } catch (ClientPoolException e) {
             clientPool.getClient();
             throw e;
@@ -141,7 +151,7 @@ public class RepositoryImpl implements Repository {
                 throw new StorageClientException("User " + username
                         + " does not exist, cant login administratively as this user");
             }
-            return new SessionImpl(this, currentUser, client, configuration,  clientPool.getStorageCacheManager(), storeListener, principalValidatorResolver);
+            return new SessionImpl(this, currentUser, client, configuration, getStorageCacheManager(), storeListener, principalValidatorResolver);
         } catch (ClientPoolException e) {
             clientPool.getClient();
             throw e;
@@ -157,6 +167,27 @@ public class RepositoryImpl implements Repository {
         }
     }
 
+    /**
+     * @return the cache manager of the pool, with its caches bound to the
+     *         invalidation channel if there is one.
+     */
+    private StorageCacheManager getStorageCacheManager() {
+        StorageCacheManager storageCacheManager = clientPool.getStorageCacheManager();
+        if (storageCacheManager != null) {
+            CacheInvalidationChannel channel = cacheInvalidationChannel;
+            bindChannel(storageCacheManager.getAccessControlCache(), channel);
+            bindChannel(storageCacheManager.getAuthorizableCache(), channel);
+            bindChannel(storageCacheManager.getContentCache(), channel);
+        }
+        return storageCacheManager;
+    }
+
+    private void bindChannel(Map<String, CacheHolder> cache, CacheInvalidationChannel channel) {
+        if (cache != null) {
+            CacheInvalidator.getInstance(cache).setChannel(channel);
+        }
+    }
+
     public void setConfiguration(Configuration configuration) {
         this.configuration = configuration;
     }
@@ -170,4 +201,8 @@ public class RepositoryImpl implements Repository {
         
     }
 
+    public void setCacheInvalidationChannel(CacheInvalidationChannel cacheInvalidationChannel) {
+        this.cacheInvalidationChannel = cacheInvalidationChannel;
+    }
+
 }
@@ -17,12 +17,14 @@
  */
 package org.sakaiproject.nakamura.lite.accesscontrol;
 
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 
 import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.lang.StringUtils;
 import org.sakaiproject.nakamura.api.lite.CacheHolder;
 import org.sakaiproject.nakamura.api.lite.Configuration;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
@@ -49,6 +51,8 @@ import org.slf4j.LoggerFactory;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -64,10 +68,15 @@ public class AccessControlManagerImpl extends CachingManager implements AccessCo
     private static final String _KEY = "_aclKey";
     private static final Logger LOGGER = LoggerFactory.getLogger(AccessControlManagerImpl.class);
     private static final Set<String> PROTECTED_PROPERTIES = ImmutableSet.of(_SECRET_KEY);
+    /**
+     * The number of ancestors above a path whose ACLs are applied to it.
+     */
+    private static final int MAX_ANCESTORS = 20;
     private static final Set<String> READ_ONLY_PROPERTIES = ImmutableSet.of(_SECRET_KEY, _PATH, _OBJECT_TYPE, _KEY);
     private User user;
     private String keySpace;
     private String aclColumnFamily;
+    private String authorizableColumnFamily;
     private Map<String, int[]> cache = new ConcurrentHashMap<String, int[]>();
     private boolean closed;
     private StoreListener storeListener;
@@ -75,12 +84,23 @@ public class AccessControlManagerImpl extends CachingManager implements AccessCo
     private PrincipalTokenResolver principalTokenResolver;
     private SecureRandom secureRandom;
     private AuthorizableManager authorizableManager;
+    /**
+     * Principals by authorizable id, refreshed from the stored authorizable
+     * when there is a shared cache, otherwise held for the life of the manager.
+     */
     private Map<String, String[]> principalCache = new ConcurrentHashMap<String, String[]>();
+    private Map<String, String> fingerprints = new ConcurrentHashMap<String, String>();
+    private Map<String, int[]> principalIdCache = new ConcurrentHashMap<String, int[]>();
+    private Map<String, Map<String, Object>> principalRows = new ConcurrentHashMap<String, Map<String, Object>>();
+    private boolean refreshPrincipals;
+    private CompiledPermissionCache compiledPermissionCache;
+    private AclCompiler aclCompiler;
+    private int everyoneId;
     private ThreadLocal<String> principalRecursionLock = new ThreadLocal<String>();
 
     public AccessControlManagerImpl(StorageClient client, User currentUser, Configuration config,
             Map<String, CacheHolder> sharedCache, StoreListener storeListener, PrincipalValidatorResolver principalValidatorResolver) throws StorageClientException {
-        super(client, sharedCache);
+        super(client, sharedCache, config);
         this.user = currentUser;
         this.aclColumnFamily = config.getAclColumnFamily();
         this.keySpace = config.getKeySpace();
@@ -88,6 +108,14 @@ public class AccessControlManagerImpl extends CachingManager implements AccessCo
         this.storeListener = storeListener;
         principalTokenValidator = new PrincipalTokenValidator(principalValidatorResolver);
         secureRandom = new SecureRandom();
+        this.authorizableColumnFamily = config.getAuthorizableColumnFamily();
+        aclCompiler = AclCompiler.getInstance(sharedCache);
+        everyoneId = aclCompiler.principalId(Group.EVERYONE);
+        if (sharedCache != null) {
+            refreshPrincipals = true;
+            compiledPermissionCache = CompiledPermissionCache.getInstance(sharedCache, keySpace,
+                    aclColumnFamily);
+        }
     }
 
     public Map<String, Object> getAcl(String objectType, String objectPath)
@@ -184,6 +212,10 @@ public class AccessControlManagerImpl extends CachingManager implements AccessCo
         }
         LOGGER.debug("Updating ACL {} {} ", key, modifications);
         putCached(keySpace, aclColumnFamily, key, modifications, (currentAcl == null || currentAcl.size() == 0));
+        // permissions this manager compiled below the path may come from the old ACL. The
+        // shared compiled permissions are invalidated by the cache listener when putCached
+        // invalidates the ACL row.
+        cache.clear();
         storeListener.onUpdate(objectType, objectPath,  getCurrentUserId(), false, null, "op:acl");
     }
     
@@ -225,13 +257,37 @@ public class AccessControlManagerImpl extends CachingManager implements AccessCo
         if (Security.ZONE_AUTHORIZABLES.equals(objectType) && user.getId().equals(objectPath)) {
             return;
         }
-        int[] privileges = compilePermission(user, objectType, objectPath, 0);
+        int[] privileges = compilePermission(user, objectType, objectPath);
         if (!((permission.getPermission() & privileges[0]) == permission.getPermission())) {
             throw new AccessDeniedException(objectType, objectPath, permission.getName(),
                     user.getId());
         }
     }
 
+    public List<String> checkAll(String objectType, Collection<String> objectPaths,
+            Permission permission) throws StorageClientException {
+        List<String> paths = Lists.newArrayList(objectPaths);
+        if (user.isAdmin()) {
+            return paths;
+        }
+        int[][] privileges = compilePermissions(user, objectType, paths);
+        List<String> permitted = Lists.newArrayList();
+        for (int i = 0; i < privileges.length; i++) {
+            String path = paths.get(i);
+            // users can always operate on their own user object.
+            if ((permission.getPermission() & privileges[i][0]) == permission.getPermission()
+                    || (Security.ZONE_AUTHORIZABLES.equals(objectType) && user.getId().equals(
+                            path))) {
+                permitted.add(path);
+            }
+        }
+        return permitted;
+    }
+
+    public Iterator<String> filterReadable(String objectType, Iterator<String> objectPaths) {
+        return new PermissionFilterIterator(this, objectType, objectPaths, Permissions.CAN_READ);
+    }
+
     private String getAclKey(String objectType, String objectPath) {
         return objectType + ";" + objectPath;
     }
@@ -244,167 +300,293 @@ public class AccessControlManagerImpl extends CachingManager implements AccessCo
     }
 
     private int[] compilePermission(Authorizable authorizable, String objectType,
-            String objectPath, int recursion) throws StorageClientException {
-        String key = getAclKey(objectType, objectPath);
-        if (user.getId().equals(authorizable.getId()) && cache.containsKey(key)) {
-            return cache.get(key);
-        } else {
-            LOGGER.debug("Cache Miss {} [{}] ", cache, key);
+            String objectPath) throws StorageClientException {
+        return compilePermissions(authorizable, objectType, Collections.singletonList(objectPath))[0];
+    }
+
+    /**
+     * Compile the permissions of an authorizable on a number of paths. The
+     * ancestors of each path are walked up to the first one that is already
+     * compiled, the ACLs of all the uncompiled paths are loaded in one
+     * batch, then each path is compiled down from its top ancestor, each
+     * level being memoized so that paths sharing ancestors only compile them
+     * once.
+     * @return {granted, denied} for each path, in the same order.
+     */
+    private int[][] compilePermissions(Authorizable authorizable, String objectType,
+            List<String> paths) throws StorageClientException {
+        refreshPrincipals(authorizable);
+        CompiledPermissions compiled = new CompiledPermissions(authorizable, objectType);
+        int[][] privileges = new int[paths.size()][];
+        List<List<String>> chains = Lists.newArrayList();
+        Set<String> toLoad = Sets.newLinkedHashSet();
+        for (int i = 0; i < privileges.length; i++) {
+            String path = paths.get(i);
+            privileges[i] = compiled.get(path);
+            if (privileges[i] != null) {
+                chains.add(null);
+                continue;
+            }
+            // the path and its uncompiled ancestors, nearest first.
+            List<String> chain = Lists.newArrayList();
+            String current = path;
+            while (true) {
+                chain.add(current);
+                toLoad.add(getAclKey(objectType, current));
+                if (chain.size() > MAX_ANCESTORS || StorageClientUtils.isRoot(current)) {
+                    break;
+                }
+                current = StorageClientUtils.getParentObjectPath(current);
+                if (compiled.get(current) != null) {
+                    break;
+                }
+            }
+            chains.add(chain);
+        }
+        if (toLoad.isEmpty()) {
+            return privileges;
+        }
+        Map<String, Map<String, Object>> acls = getCachedMany(keySpace, aclColumnFamily, toLoad);
+        for (int i = 0; i < privileges.length; i++) {
+            List<String> chain = chains.get(i);
+            if (chain == null) {
+                continue;
+            }
+            String top = chain.get(chain.size() - 1);
+            int[] parent = null;
+            if (!StorageClientUtils.isRoot(top)) {
+                parent = compiled.get(StorageClientUtils.getParentObjectPath(top));
+            }
+            // a chain cut short by the ancestor limit only gives the right answer for the path itself.
+            boolean complete = parent != null || StorageClientUtils.isRoot(top);
+            for (int j = chain.size() - 1; j >= 0; j--) {
+                String current = chain.get(j);
+                int[] memo = compiled.get(current);
+                if (memo != null) {
+                    // compiled for an earlier path in this batch.
+                    parent = memo;
+                    complete = true;
+                    continue;
+                }
+                parent = compileLevel(authorizable, objectType, current,
+                        acls.get(getAclKey(objectType, current)), parent);
+                if (complete || j == 0) {
+                    compiled.put(current, parent);
+                }
+            }
+            privileges[i] = parent;
         }
+        return privileges;
+    }
 
-        Map<String, Object> acl = getCached(keySpace, aclColumnFamily, key);
+    /**
+     * Compile the permissions at one level from the ACL at that level and the
+     * compiled permissions of the parent, if any.
+     */
+    private int[] compileLevel(Authorizable authorizable, String objectType, String objectPath,
+            Map<String, Object> acl, int[] parentPriv) throws StorageClientException {
+        String key = getAclKey(objectType, objectPath);
         LOGGER.debug("ACL on {} is {} ", key, acl);
+        if (acl == null) {
+            acl = ImmutableMap.<String, Object> of();
+        }
 
-        int grants = 0;
-        int denies = 0;
-        if (acl != null) {
-
-            {
-                String principal = authorizable.getId();
-                int tg = toInt(acl.get(principal
-                        + AclModification.GRANTED_MARKER));
-                int td = toInt(acl
-                        .get(principal + AclModification.DENIED_MARKER));
-                grants = grants | tg;
-                denies = denies | td;
-                LOGGER.debug("Added Permissions for {} g{} d{} => g{} d{}",new
-                Object[]{principal,tg,td,grants,denies});
-
-            }
-            /*
-             * Deal with any proxy principals, these override groups 
-             */
-            if (principalTokenResolver != null) {
-                Set<String> inspected = Sets.newHashSet();
-                if ( acl.containsKey(_SECRET_KEY)) {
-                    String secretKey = (String) acl.get(_SECRET_KEY);
-                    if ( secretKey != null ) {
-                        for (Entry<String, Object> ace : acl.entrySet()) {
-                            String k = ace.getKey();
-                            LOGGER.debug("Checking {} ",k);
-                            if (k.startsWith(DYNAMIC_PRINCIPAL_STEM)) {
-                                String proxyPrincipal = AclModification.getPrincipal(k).substring(DYNAMIC_PRINCIPAL_STEM.length());
-                                if ( !inspected.contains(proxyPrincipal)) {
-                                    inspected.add(proxyPrincipal);
-                                    LOGGER.debug("Is Dynamic {}, checking ",k);
-                                    List<Content> proxyPrincipalTokens = Lists.newArrayList();
-                                    principalTokenResolver.resolveTokens(proxyPrincipal, proxyPrincipalTokens);
-                                    for ( Content proxyPrincipalToken : proxyPrincipalTokens ) {
-                                        if ( principalTokenValidator.validatePrincipal(proxyPrincipalToken, secretKey)) {
-                                            String pname = DYNAMIC_PRINCIPAL_STEM+proxyPrincipal;
-                                            LOGGER.debug("Has this principal {} ", proxyPrincipal);
-                                            int tg = toInt(acl.get(pname
-                                                    + AclModification.GRANTED_MARKER));
-                                            int td = toInt(acl.get(pname
-                                                    + AclModification.DENIED_MARKER));
-                                            grants = grants | tg;
-                                            denies = denies | td;
-                                            LOGGER.debug("Added Permissions for {} g{} d{} => g{} d{}",new
-                                                    Object[]{pname, tg,td,grants,denies});
-                                            break;
-                                        }
+        // the authorizable and all its static principals in one pass over the compiled ACL.
+        CompiledAcl compiledAcl = aclCompiler.compile(acl);
+        int[] principalPermissions = compiledAcl.getPermissions(getPrincipalIds(authorizable));
+        int grants = principalPermissions[0];
+        int denies = principalPermissions[1];
+        LOGGER.debug("Added Permissions for {} => g{} d{}", new Object[] { authorizable.getId(),
+                grants, denies });
+        /*
+         * Deal with any proxy principals, these override groups 
+         */
+        if (principalTokenResolver != null) {
+            Set<String> inspected = Sets.newHashSet();
+            if ( acl.containsKey(_SECRET_KEY)) {
+                String secretKey = (String) acl.get(_SECRET_KEY);
+                if ( secretKey != null ) {
+                    for (Entry<String, Object> ace : acl.entrySet()) {
+                        String k = ace.getKey();
+                        LOGGER.debug("Checking {} ",k);
+                        if (k.startsWith(DYNAMIC_PRINCIPAL_STEM)) {
+                            String proxyPrincipal = AclModification.getPrincipal(k).substring(DYNAMIC_PRINCIPAL_STEM.length());
+                            if ( !inspected.contains(proxyPrincipal)) {
+                                inspected.add(proxyPrincipal);
+                                LOGGER.debug("Is Dynamic {}, checking ",k);
+                                List<Content> proxyPrincipalTokens = Lists.newArrayList();
+                                principalTokenResolver.resolveTokens(proxyPrincipal, proxyPrincipalTokens);
+                                for ( Content proxyPrincipalToken : proxyPrincipalTokens ) {
+                                    if ( principalTokenValidator.validatePrincipal(proxyPrincipalToken, secretKey)) {
+                                        String pname = DYNAMIC_PRINCIPAL_STEM+proxyPrincipal;
+                                        LOGGER.debug("Has this principal {} ", proxyPrincipal);
+                                        int tg = toInt(acl.get(pname
+                                                + AclModification.GRANTED_MARKER));
+                                        int td = toInt(acl.get(pname
+                                                + AclModification.DENIED_MARKER));
+                                        grants = grants | tg;
+                                        denies = denies | td;
+                                        LOGGER.debug("Added Permissions for {} g{} d{} => g{} d{}",new
+                                                Object[]{pname, tg,td,grants,denies});
+                                        break;
                                     }
                                 }
                             }
                         }
-                    } else {
-                        LOGGER.debug("Secret Key is null");
                     }
                 } else {
-                    LOGGER.debug("No Secret Key Key ");
+                    LOGGER.debug("Secret Key is null");
                 }
             } else {
-                LOGGER.debug("No principalToken Resolver");
-            }
-            // then deal with static principals
-            for (String principal : getPrincipals(authorizable) ) {
-                int tg = toInt(acl.get(principal
-                        + AclModification.GRANTED_MARKER));
-                int td = toInt(acl
-                        .get(principal + AclModification.DENIED_MARKER));
-                grants = grants | tg;
-                denies = denies | td;
-                LOGGER.debug("Added Permissions for {} g{} d{} => g{} d{}",new
-                  Object[]{principal,tg,td,grants,denies});
+                LOGGER.debug("No Secret Key Key ");
             }
+        } else {
+            LOGGER.debug("No principalToken Resolver");
+        }
+        // Everyone must be the last principal to be applied
+        if (!User.ANON_USER.equals(authorizable.getId())) {
+            // all users except anon are in the group everyone, by default
+            // but only if not already denied or granted by a more specific
+            // permission.
+            int[] everyone = compiledAcl.getPermissions(everyoneId);
+            int tg = everyone[0] & ~denies;
+            int td = everyone[1] & ~grants;
+            grants = grants | tg;
+            denies = denies | td;
+            LOGGER.debug("Added Permissions for {} g{} d{} => g{} d{}",new
+                    Object[]{Group.EVERYONE,tg,td,grants,denies});
 
-            // Everyone must be the last principal to be applied
-            if (!User.ANON_USER.equals(authorizable.getId())) {
-                // all users except anon are in the group everyone, by default
-                // but only if not already denied or granted by a more specific
-                // permission.
-                int tg = (toInt(acl.get(Group.EVERYONE
-                        + AclModification.GRANTED_MARKER)) & ~denies);
-                int td = (toInt(acl.get(Group.EVERYONE
-                        + AclModification.DENIED_MARKER)) & ~grants);
-                grants = grants | tg;
-                denies = denies | td;
-                LOGGER.debug("Added Permissions for {} g{} d{} => g{} d{}",new
-                        Object[]{Group.EVERYONE,tg,td,grants,denies});
+        }
+        /*
+         * grants contains the granted permissions in a bitmap denies
+         * contains the denied permissions in a bitmap
+         */
+        int granted = grants;
+        int denied = denies;
 
-            }
+        /*
+         * Only apply the parent if this is not the root object and
+         * everything is not granted and denied
+         */
+        if (parentPriv != null && (granted != 0xffff || denied != 0xffff)) {
             /*
-             * grants contains the granted permissions in a bitmap denies
-             * contains the denied permissions in a bitmap
+             * Grant permission not denied at this level parentPriv[0]
+             * is permissions granted by the parent ~denies is
+             * permissions not denied here parentPriv[0] & ~denies is
+             * permissions granted by the parent that have not been
+             * denied here. we need to add those to things granted here.
+             * ie |
              */
-            int granted = grants;
-            int denied = denies;
-
+            granted = grants | (parentPriv[0] & ~denies);
             /*
-             * Only look to parent objects if this is not the root object and
-             * everything is not granted and denied
+             * Deny permissions not granted at this level
              */
-            if (recursion < 20 && !StorageClientUtils.isRoot(objectPath)
-                    && (granted != 0xffff || denied != 0xffff)) {
-                recursion++;
-                int[] parentPriv = compilePermission(authorizable, objectType,
-                        StorageClientUtils.getParentObjectPath(objectPath), recursion);
-                if (parentPriv != null) {
-                    /*
-                     * Grant permission not denied at this level parentPriv[0]
-                     * is permissions granted by the parent ~denies is
-                     * permissions not denied here parentPriv[0] & ~denies is
-                     * permissions granted by the parent that have not been
-                     * denied here. we need to add those to things granted here.
-                     * ie |
-                     */
-                    granted = grants | (parentPriv[0] & ~denies);
-                    /*
-                     * Deny permissions not granted at this level
-                     */
-                    denied = denies | (parentPriv[1] & ~grants);
+            denied = denies | (parentPriv[1] & ~grants);
+        }
+        // If not denied all users and groups can read other users and
+        // groups and all content can be read
+        if (((denied & Permissions.CAN_READ.getPermission()) == 0)
+                && (Security.ZONE_AUTHORIZABLES.equals(objectType) || Security.ZONE_CONTENT
+                        .equals(objectType))) {
+            granted = granted | Permissions.CAN_READ.getPermission();
+            LOGGER.debug("Default Read Permission set {} {} ",key,denied);
+        } else {
+            LOGGER.debug("Default Read has been denied {} {} ",key,
+             denied);
+        }
+        LOGGER.debug("Permissions on {} for {} is {} {} ",new
+           Object[]{key,user.getId(),granted,denied});
+        return new int[] { granted, denied };
+    }
+
+    /**
+     * The compiled permissions of one authorizable for one object type,
+     * looked up in this manager's cache, the shared cache and those compiled
+     * during the current batch.
+     */
+    private class CompiledPermissions {
+        private final String objectType;
+        private final boolean currentUser;
+        private final String fingerprint;
+        private final long compiledVersion;
+        private final Map<String, int[]> batch = Maps.newHashMap();
+
+        private CompiledPermissions(Authorizable authorizable, String objectType) {
+            this.objectType = objectType;
+            this.currentUser = user.getId().equals(authorizable.getId());
+            // proxy principals depend on the request, so those permissions are not shared.
+            if (compiledPermissionCache != null && principalTokenResolver == null) {
+                fingerprint = getFingerprint(authorizable);
+                compiledVersion = compiledPermissionCache.getVersion();
+            } else {
+                fingerprint = null;
+                compiledVersion = 0;
+            }
+        }
+
+        private int[] get(String path) {
+            int[] privileges = batch.get(path);
+            if (privileges != null) {
+                return privileges;
+            }
+            String key = getAclKey(objectType, path);
+            if (currentUser) {
+                privileges = cache.get(key);
+            }
+            if (privileges == null && fingerprint != null) {
+                privileges = compiledPermissionCache.get(fingerprint, objectType, path);
+                if (privileges != null && currentUser) {
+                    cache.put(key, privileges);
                 }
             }
-            // If not denied all users and groups can read other users and
-            // groups and all content can be read
-            if (((denied & Permissions.CAN_READ.getPermission()) == 0)
-                    && (Security.ZONE_AUTHORIZABLES.equals(objectType) || Security.ZONE_CONTENT
-                            .equals(objectType))) {
-                granted = granted | Permissions.CAN_READ.getPermission();
-                LOGGER.debug("Default Read Permission set {} {} ",key,denied);
+            if (privileges == null) {
+                LOGGER.debug("Cache Miss [{}] ", key);
             } else {
-                LOGGER.debug("Default Read has been denied {} {} ",key,
-                 denied);
+                batch.put(path, privileges);
             }
-            LOGGER.debug("Permissions on {} for {} is {} {} ",new
-               Object[]{key,user.getId(),granted,denied});
+            return privileges;
+        }
+
+        private void put(String path, int[] privileges) {
+            batch.put(path, privileges);
             /*
              * Keep a cached copy
              */
-            if (user.getId().equals(authorizable.getId())) {
-                cache.put(key, new int[] { granted, denied });
+            if (currentUser) {
+                cache.put(getAclKey(objectType, path), privileges);
+            }
+            if (fingerprint != null) {
+                compiledPermissionCache.put(fingerprint, objectType, path, privileges,
+                        compiledVersion);
             }
-            return new int[] { granted, denied };
-
         }
-        if (Security.ZONE_AUTHORIZABLES.equals(objectType)
-                || Security.ZONE_CONTENT.equals(objectType)) {
-            // unless explicitly denied all users can read other users.
-            return new int[] { Permissions.CAN_READ.getPermission(), 0 };
+    }
+
+    /**
+     * @return the interned ints of the authorizable id and its principals,
+     *         sorted.
+     */
+    private int[] getPrincipalIds(Authorizable authorizable) {
+        String k = authorizable.getId();
+        int[] principalIds = principalIdCache.get(k);
+        if (principalIds == null) {
+            List<String> principals = Lists.newArrayList(getPrincipals(authorizable));
+            principals.add(k);
+            principalIds = aclCompiler.principalIds(principals);
+            principalIdCache.put(k, principalIds);
         }
-        return new int[] { 0, 0 };
+        return principalIds;
     }
 
+    private String getFingerprint(Authorizable authorizable) {
+        String k = authorizable.getId();
+        String fingerprint = fingerprints.get(k);
+        if (fingerprint == null) {
+            fingerprint = CompiledPermissionCache.fingerprint(k, getPrincipals(authorizable));
+            fingerprints.put(k, fingerprint);
+        }
+        return fingerprint;
+    }
 
     private String[] getPrincipals(final Authorizable authorizable) {
         String k = authorizable.getId();
@@ -412,7 +594,11 @@ public class AccessControlManagerImpl extends CachingManager implements AccessCo
             return principalCache.get(k);
         }
         Set<String> memberOfSet = Sets.newHashSet(authorizable.getPrincipals());
-        if ( authorizableManager != null ) {
+        String[] membership = authorizable.getMembership();
+        if (membership != null) {
+            // materialized by the authorizable manager, no need to resolve groups.
+            Collections.addAll(memberOfSet, membership);
+        } else if ( authorizableManager != null ) {
             // membership resolution is possible, but we had better turn off recursion
             if ( principalRecursionLock.get() == null ) {
                 principalRecursionLock.set("l");
@@ -431,6 +617,55 @@ public class AccessControlManagerImpl extends CachingManager implements AccessCo
         return m;
     }
 
+    /**
+     * Check the stored principals and membership of an authorizable against
+     * those cached by this manager and drop everything derived from them if
+     * they have changed. Where the membership has been materialized the stored
+     * authorizable is used in preference to the one supplied, which may be
+     * out of date. This is only done when there is a shared cache, so
+     * the stored authorizable is normally a cache hit, and only when the
+     * cached row has been replaced since the last check. Without a shared
+     * cache each check would read the authorizable from storage, so the
+     * principals are fixed for the life of this manager, which is normally
+     * a single session.
+     */
+    private void refreshPrincipals(Authorizable authorizable) throws StorageClientException {
+        if (!refreshPrincipals) {
+            return;
+        }
+        String k = authorizable.getId();
+        Map<String, Object> authorizableMap = getCached(keySpace, authorizableColumnFamily, k);
+        if (authorizableMap == null || authorizableMap.isEmpty()
+                || principalRows.get(k) == authorizableMap) {
+            return;
+        }
+        principalRows.put(k, authorizableMap);
+        Set<String> stored = Sets.newHashSet();
+        String principals = (String) authorizableMap.get(Authorizable.PRINCIPALS_FIELD);
+        if (principals != null) {
+            Collections.addAll(stored, StringUtils.split(principals, ';'));
+        }
+        String membership = (String) authorizableMap.get(Authorizable.MEMBERSHIP_FIELD);
+        if (membership == null) {
+            // not materialized, resolving the groups on each check would cost too much.
+            return;
+        }
+        Collections.addAll(stored, StringUtils.split(membership, ';'));
+        stored.remove(Group.EVERYONE);
+        String[] current = principalCache.get(k);
+        if (current == null) {
+            principalCache.put(k, stored.toArray(new String[stored.size()]));
+        } else if (!stored.equals(Sets.newHashSet(current))) {
+            LOGGER.debug("Principals of {} changed to {} ", k, stored);
+            principalCache.put(k, stored.toArray(new String[stored.size()]));
+            fingerprints.remove(k);
+            principalIdCache.remove(k);
+            if (user.getId().equals(k)) {
+                cache.clear();
+            }
+        }
+    }
+
 
     private int toInt(Object object) {
         if ( object instanceof Integer ) {
@@ -465,7 +700,7 @@ public class AccessControlManagerImpl extends CachingManager implements AccessCo
             return true;
         }
         try {
-            int[] privileges = compilePermission(authorizable, objectType, objectPath, 0);
+            int[] privileges = compilePermission(authorizable, objectType, objectPath);
             if (!((permission.getPermission() & privileges[0]) == permission.getPermission())) {
                 return false;
             }
@@ -477,7 +712,7 @@ public class AccessControlManagerImpl extends CachingManager implements AccessCo
     }
 
     public Permission[] getPermissions(String objectType, String path) throws StorageClientException {
-        int[] perms = compilePermission(this.user, objectType, path, 0);
+        int[] perms = compilePermission(this.user, objectType, path);
         List<Permission> permissions = Lists.newArrayList();
         for (Permission p : Permissions.PRIMARY_PERMISSIONS) {
             if ((perms[0] & p.getPermission()) == p.getPermission()) {
@@ -0,0 +1,169 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.accesscontrol;
+
+import com.google.common.base.ReferenceType;
+import com.google.common.collect.Maps;
+import com.google.common.collect.ReferenceMap;
+
+import org.sakaiproject.nakamura.api.lite.CacheHolder;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AclModification;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compiles ACL rows into {@link CompiledAcl}s. Principal ids are interned to
+ * ints, which are only meaningful to the compiler that interned them, so
+ * there is one compiler per shared ACL cache and the interned principals live
+ * as long as the cache does. Managers without a shared cache get a compiler
+ * of their own. A row is compiled once and the compiled form is kept for as
+ * long as the row map itself is reachable, normally while it is in the shared
+ * cache, where rows are held unmodifiable.
+ */
+public class AclCompiler {
+
+    /**
+     * Compilers by ACL cache, the keys are weak and compared by identity.
+     */
+    private static final Map<Map<String, CacheHolder>, AclCompiler> COMPILERS = new ReferenceMap<Map<String, CacheHolder>, AclCompiler>(
+            ReferenceType.WEAK, ReferenceType.STRONG);
+
+    private final ConcurrentMap<String, Integer> principalIds = Maps.newConcurrentHashMap();
+    private final AtomicInteger nextPrincipalId = new AtomicInteger();
+    /**
+     * Compiled ACLs, keyed by the identity of the ACL row map.
+     */
+    private final Map<Map<String, Object>, CompiledAcl> compiled = new ReferenceMap<Map<String, Object>, CompiledAcl>(
+            ReferenceType.WEAK, ReferenceType.STRONG);
+
+    /**
+     * @param sharedCache the ACL cache, may be null.
+     * @return the compiler for the cache, or a new compiler if there is no
+     *         cache.
+     */
+    public static AclCompiler getInstance(Map<String, CacheHolder> sharedCache) {
+        if (sharedCache == null) {
+            return new AclCompiler();
+        }
+        synchronized (COMPILERS) {
+            AclCompiler compiler = COMPILERS.get(sharedCache);
+            if (compiler == null) {
+                compiler = new AclCompiler();
+                COMPILERS.put(sharedCache, compiler);
+            }
+            return compiler;
+        }
+    }
+
+    /**
+     * @param acl an ACL row, may be null.
+     * @return the compiled ACL, compiling the row if it has not been seen
+     *         before.
+     */
+    public CompiledAcl compile(Map<String, Object> acl) {
+        if (acl == null || acl.isEmpty()) {
+            return CompiledAcl.EMPTY;
+        }
+        CompiledAcl compiledAcl = compiled.get(acl);
+        if (compiledAcl == null) {
+            compiledAcl = compileRow(acl);
+            compiled.put(acl, compiledAcl);
+        }
+        return compiledAcl;
+    }
+
+    private CompiledAcl compileRow(Map<String, Object> acl) {
+        Map<Integer, int[]> aces = Maps.newHashMap();
+        for (Entry<String, Object> e : acl.entrySet()) {
+            String key = e.getKey();
+            if (!(e.getValue() instanceof Integer)) {
+                continue;
+            }
+            boolean grant = AclModification.isGrant(key);
+            if (!grant && !AclModification.isDeny(key)) {
+                continue;
+            }
+            Integer principal = principalId(AclModification.getPrincipal(key));
+            int[] ace = aces.get(principal);
+            if (ace == null) {
+                ace = new int[2];
+                aces.put(principal, ace);
+            }
+            ace[grant ? 0 : 1] |= ((Integer) e.getValue()).intValue();
+        }
+        int[] principals = new int[aces.size()];
+        int i = 0;
+        for (Integer principal : aces.keySet()) {
+            principals[i++] = principal.intValue();
+        }
+        Arrays.sort(principals);
+        int[] grants = new int[principals.length];
+        int[] denies = new int[principals.length];
+        for (i = 0; i < principals.length; i++) {
+            int[] ace = aces.get(principals[i]);
+            grants[i] = ace[0];
+            denies[i] = ace[1];
+        }
+        return new CompiledAcl(principals, grants, denies);
+    }
+
+    /**
+     * @return the int interned for a principal id.
+     */
+    public int principalId(String principal) {
+        Integer id = principalIds.get(principal);
+        if (id == null) {
+            Integer newId = nextPrincipalId.getAndIncrement();
+            id = principalIds.putIfAbsent(principal, newId);
+            if (id == null) {
+                id = newId;
+            }
+        }
+        return id.intValue();
+    }
+
+    /**
+     * @return the sorted, distinct ints interned for a number of principal
+     *         ids.
+     */
+    public int[] principalIds(Collection<String> principals) {
+        int[] ids = new int[principals.size()];
+        int n = 0;
+        for (String principal : principals) {
+            ids[n++] = principalId(principal);
+        }
+        Arrays.sort(ids);
+        int distinct = 0;
+        for (int i = 0; i < n; i++) {
+            if (distinct == 0 || ids[distinct - 1] != ids[i]) {
+                ids[distinct++] = ids[i];
+            }
+        }
+        if (distinct == ids.length) {
+            return ids;
+        }
+        int[] distinctIds = new int[distinct];
+        System.arraycopy(ids, 0, distinctIds, 0, distinct);
+        return distinctIds;
+    }
+}
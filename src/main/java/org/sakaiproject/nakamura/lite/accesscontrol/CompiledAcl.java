@@ -0,0 +1,106 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.accesscontrol;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * An ACL row compiled into primitive arrays by an {@link AclCompiler}. The
+ * grant and deny bitmaps of the ACL are held in arrays sorted by the interned
+ * principal int, so the permissions of a set of principals are found by
+ * intersecting two sorted int arrays rather than by building and looking up a
+ * key for every principal. Principal ints must come from the compiler that
+ * compiled the ACL.
+ */
+public class CompiledAcl {
+
+    public static final CompiledAcl EMPTY = new CompiledAcl(new int[0], new int[0], new int[0]);
+
+    private final int[] principals;
+    private final int[] grants;
+    private final int[] denies;
+
+    CompiledAcl(int[] principals, int[] grants, int[] denies) {
+        this.principals = principals;
+        this.grants = grants;
+        this.denies = denies;
+    }
+
+    /**
+     * @param principalIds sorted principal ints, as from
+     *        {@link AclCompiler#principalIds(Collection)}.
+     * @return {granted, denied}, the union of the bitmaps of all the principals
+     *         that appear in this ACL.
+     */
+    public int[] getPermissions(int[] principalIds) {
+        int granted = 0;
+        int denied = 0;
+        // walk the smaller array, searching the larger.
+        if (principalIds.length <= principals.length) {
+            int from = 0;
+            for (int id : principalIds) {
+                int i = Arrays.binarySearch(principals, from, principals.length, id);
+                if (i >= 0) {
+                    granted |= grants[i];
+                    denied |= denies[i];
+                    from = i + 1;
+                } else {
+                    from = -i - 1;
+                }
+                if (from == principals.length) {
+                    break;
+                }
+            }
+        } else {
+            int from = 0;
+            for (int i = 0; i < principals.length; i++) {
+                int j = Arrays.binarySearch(principalIds, from, principalIds.length, principals[i]);
+                if (j >= 0) {
+                    granted |= grants[i];
+                    denied |= denies[i];
+                    from = j + 1;
+                } else {
+                    from = -j - 1;
+                }
+                if (from == principalIds.length) {
+                    break;
+                }
+            }
+        }
+        return new int[] { granted, denied };
+    }
+
+    /**
+     * @return {granted, denied} for a single principal.
+     */
+    public int[] getPermissions(int principalId) {
+        int i = Arrays.binarySearch(principals, principalId);
+        if (i < 0) {
+            return new int[] { 0, 0 };
+        }
+        return new int[] { grants[i], denies[i] };
+    }
+
+    /**
+     * @return the number of principals with entries in this ACL.
+     */
+    public int size() {
+        return principals.length;
+    }
+}
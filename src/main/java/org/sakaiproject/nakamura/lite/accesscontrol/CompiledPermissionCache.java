@@ -0,0 +1,301 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.accesscontrol;
+
+import com.google.common.base.ReferenceType;
+import com.google.common.collect.Maps;
+import com.google.common.collect.ReferenceMap;
+
+import org.sakaiproject.nakamura.api.lite.CacheHolder;
+import org.sakaiproject.nakamura.api.lite.CacheInvalidationChannel;
+import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.lite.CacheInvalidator;
+import org.sakaiproject.nakamura.lite.storage.SegmentedLRUMap;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Compiled permissions, {granted, denied}, shared by every
+ * {@link AccessControlManagerImpl} using the same ACL cache, so that a new
+ * session does not walk the ACLs of every ancestor again for paths that
+ * other sessions of the same user have already checked. Entries are keyed by
+ * a fingerprint of the authorizable and its principals, the object type and
+ * the path. A change in membership changes the principals and so the
+ * fingerprint, the old entries are simply never used again. A change to an
+ * ACL, made here or on another node, removes the entries for the path and
+ * every path below it, since those were compiled from it. To find those
+ * entries without scanning the cache, each entry is indexed under the ACL key
+ * of its path and of every ancestor. There is one instance per cache.
+ */
+public class CompiledPermissionCache implements CacheInvalidationChannel.Listener {
+
+    public static final int DEFAULT_MAX_SIZE = 10000;
+
+    /**
+     * Caches by ACL cache, the keys are weak and compared by identity.
+     */
+    private static final Map<Map<String, CacheHolder>, CompiledPermissionCache> CACHES = new ReferenceMap<Map<String, CacheHolder>, CompiledPermissionCache>(
+            ReferenceType.WEAK, ReferenceType.STRONG);
+
+    private static volatile int maxSize = DEFAULT_MAX_SIZE;
+
+    private static final class Key {
+        private final String fingerprint;
+        private final String objectType;
+        private final String path;
+        private final int hashCode;
+
+        private Key(String fingerprint, String objectType, String path) {
+            this.fingerprint = fingerprint;
+            this.objectType = objectType;
+            this.path = path;
+            this.hashCode = (fingerprint.hashCode() * 31 + objectType.hashCode()) * 31
+                    + path.hashCode();
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) obj;
+            return hashCode == k.hashCode && path.equals(k.path)
+                    && objectType.equals(k.objectType) && fingerprint.equals(k.fingerprint);
+        }
+    }
+
+    private final String aclKeyPrefix;
+    private final SegmentedLRUMap<Key, int[]> compiled;
+    private final AtomicLong version = new AtomicLong();
+    /**
+     * Entries by the ACL keys they were compiled from. Entries evicted from
+     * the cache are swept from the index once it has grown to twice the size
+     * of the cache.
+     */
+    private final ConcurrentMap<String, ConcurrentMap<Key, Boolean>> index = Maps
+            .newConcurrentHashMap();
+    private final AtomicInteger indexed = new AtomicInteger();
+    /**
+     * Held for reading to update the index, for writing to sweep it.
+     */
+    private final ReadWriteLock indexLock = new ReentrantReadWriteLock();
+    private final int maxIndexed;
+
+    /**
+     * @param aclCache the shared cache the ACL rows are held in.
+     * @param keySpace
+     * @param aclColumnFamily
+     * @return the compiled permission cache for the ACL cache.
+     */
+    public static CompiledPermissionCache getInstance(Map<String, CacheHolder> aclCache,
+            String keySpace, String aclColumnFamily) {
+        synchronized (CACHES) {
+            CompiledPermissionCache cache = CACHES.get(aclCache);
+            if (cache == null) {
+                cache = new CompiledPermissionCache(keySpace + ":" + aclColumnFamily + ":");
+                CacheInvalidator.getInstance(aclCache).addListener(cache);
+                CACHES.put(aclCache, cache);
+            }
+            return cache;
+        }
+    }
+
+    /**
+     * @param maxSize the maximum number of compiled permissions kept, applies
+     *        to caches created after the call.
+     */
+    public static void setMaxSize(int maxSize) {
+        CompiledPermissionCache.maxSize = maxSize;
+    }
+
+    private CompiledPermissionCache(String aclKeyPrefix) {
+        this.aclKeyPrefix = aclKeyPrefix;
+        this.compiled = new SegmentedLRUMap<Key, int[]>(Math.max(1, maxSize));
+        this.maxIndexed = 2 * Math.max(1, maxSize);
+    }
+
+    /**
+     * @param authorizableId
+     * @param principals the principals of the authorizable.
+     * @return a fingerprint identifying the authorizable and the set of
+     *         principals, independent of their order.
+     */
+    public static String fingerprint(String authorizableId, String[] principals) {
+        String[] sorted = principals.clone();
+        Arrays.sort(sorted);
+        StringBuilder sb = new StringBuilder();
+        sb.append(authorizableId.length()).append(':').append(authorizableId);
+        for (String principal : sorted) {
+            // length prefixed so that no two sets can produce the same string.
+            sb.append(principal.length()).append(':').append(principal);
+        }
+        return StorageClientUtils.insecureHash(sb.toString());
+    }
+
+    /**
+     * @return the current version, to be passed to
+     *         {@link #put(String, String, String, int[], long)} after
+     *         compiling a permission, it changes on every invalidation.
+     */
+    public long getVersion() {
+        return version.get();
+    }
+
+    /**
+     * @return the compiled {granted, denied} or null if not cached.
+     */
+    public int[] get(String fingerprint, String objectType, String path) {
+        return compiled.get(new Key(fingerprint, objectType, path));
+    }
+
+    /**
+     * Cache a compiled permission, unless an ACL was invalidated since
+     * version was read, in which case it may have been compiled from the old
+     * ACL.
+     */
+    public void put(String fingerprint, String objectType, String path, int[] privileges,
+            long version) {
+        if (version != this.version.get()) {
+            return;
+        }
+        Key key = new Key(fingerprint, objectType, path);
+        compiled.put(key, privileges);
+        indexLock.readLock().lock();
+        try {
+            addToIndex(objectType + ";" + path, key);
+            for (int i = path.lastIndexOf('/'); i >= 0; i = path.lastIndexOf('/', i - 1)) {
+                addToIndex(objectType + ";" + path.substring(0, i), key);
+                if (i == 0) {
+                    break;
+                }
+            }
+        } finally {
+            indexLock.readLock().unlock();
+        }
+        // an invalidation may have used the index before the put.
+        if (version != this.version.get()) {
+            compiled.remove(key);
+        }
+        if (indexed.incrementAndGet() > maxIndexed) {
+            sweep();
+        }
+    }
+
+    private void addToIndex(String aclKey, Key key) {
+        ConcurrentMap<Key, Boolean> keys = index.get(aclKey);
+        if (keys == null) {
+            ConcurrentMap<Key, Boolean> newKeys = Maps.newConcurrentHashMap();
+            keys = index.putIfAbsent(aclKey, newKeys);
+            if (keys == null) {
+                keys = newKeys;
+            }
+        }
+        keys.put(key, Boolean.TRUE);
+    }
+
+    /**
+     * Drop index entries whose compiled permissions have been evicted.
+     */
+    private void sweep() {
+        indexLock.writeLock().lock();
+        try {
+            if (indexed.get() <= maxIndexed) {
+                return;
+            }
+            Set<Key> live = compiled.keySet();
+            for (Iterator<ConcurrentMap<Key, Boolean>> i = index.values().iterator(); i
+                    .hasNext();) {
+                ConcurrentMap<Key, Boolean> keys = i.next();
+                keys.keySet().retainAll(live);
+                if (keys.isEmpty()) {
+                    i.remove();
+                }
+            }
+            indexed.set(live.size());
+        } finally {
+            indexLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Remove the compiled permissions of a path and all paths below it.
+     */
+    public void invalidate(String objectType, String path) {
+        version.incrementAndGet();
+        indexLock.readLock().lock();
+        try {
+            removeIndexed(objectType + ";" + path);
+            if (path.endsWith("/")) {
+                removeIndexed(objectType + ";" + path.substring(0, path.length() - 1));
+            }
+        } finally {
+            indexLock.readLock().unlock();
+        }
+    }
+
+    private void removeIndexed(String aclKey) {
+        ConcurrentMap<Key, Boolean> keys = index.remove(aclKey);
+        if (keys != null) {
+            for (Key key : keys.keySet()) {
+                compiled.remove(key);
+            }
+        }
+    }
+
+    public void invalidated(String cacheKey) {
+        if (cacheKey.startsWith(aclKeyPrefix)) {
+            String aclKey = cacheKey.substring(aclKeyPrefix.length());
+            int i = aclKey.indexOf(';');
+            if (i >= 0) {
+                invalidate(aclKey.substring(0, i), aclKey.substring(i + 1));
+            }
+        }
+    }
+
+    public void invalidatedAll() {
+        version.incrementAndGet();
+        compiled.clear();
+        indexLock.writeLock().lock();
+        try {
+            index.clear();
+            indexed.set(0);
+        } finally {
+            indexLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return the number of compiled permissions held.
+     */
+    public int size() {
+        return compiled.size();
+    }
+}
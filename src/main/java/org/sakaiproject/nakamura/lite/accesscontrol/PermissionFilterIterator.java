@@ -0,0 +1,131 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.accesscontrol;
+
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessControlManager;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.Permission;
+import org.sakaiproject.nakamura.api.lite.util.PreemptiveIterator;
+import org.sakaiproject.nakamura.lite.storage.Disposable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Lazily filters paths down to those the current user has a permission on.
+ * Paths are read from the source a batch at a time and checked together with
+ * {@link AccessControlManager#checkAll(String, java.util.Collection, Permission)},
+ * so the ACLs of a batch are loaded together and denied paths are simply
+ * dropped rather than raising exceptions. If a batch check fails its paths are
+ * checked one at a time and any that still cannot be checked are skipped. Closing the iterator closes the
+ * source if it is {@link Disposable}.
+ */
+public class PermissionFilterIterator extends PreemptiveIterator<String> {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PermissionFilterIterator.class);
+
+    public static final int DEFAULT_BATCH_SIZE = 25;
+
+    private final AccessControlManager accessControlManager;
+    private final String objectType;
+    private final Iterator<String> source;
+    private final Permission permission;
+    private final int batchSize;
+    private Iterator<String> batch = Iterators.emptyIterator();
+    private String path;
+
+    public PermissionFilterIterator(AccessControlManager accessControlManager,
+            String objectType, Iterator<String> source, Permission permission) {
+        this(accessControlManager, objectType, source, permission, DEFAULT_BATCH_SIZE);
+    }
+
+    public PermissionFilterIterator(AccessControlManager accessControlManager,
+            String objectType, Iterator<String> source, Permission permission, int batchSize) {
+        this.accessControlManager = accessControlManager;
+        this.objectType = objectType;
+        this.source = source;
+        this.permission = permission;
+        this.batchSize = batchSize;
+    }
+
+    @Override
+    protected boolean internalHasNext() {
+        while (!batch.hasNext() && source.hasNext()) {
+            List<String> paths = Lists.newArrayList();
+            while (paths.size() < batchSize && source.hasNext()) {
+                String p = source.next();
+                if (p != null) {
+                    paths.add(p);
+                }
+            }
+            try {
+                batch = accessControlManager.checkAll(objectType, paths, permission).iterator();
+            } catch (StorageClientException e) {
+                LOGGER.warn("Batch permission check failed, checking {} paths one at a time: {} ",
+                        paths.size(), e.getMessage());
+                batch = checkEach(paths).iterator();
+            }
+        }
+        if (batch.hasNext()) {
+            path = batch.next();
+            return true;
+        }
+        path = null;
+        close();
+        return false;
+    }
+
+    /**
+     * Checks the paths of a failed batch individually, so one bad ACL does not
+     * hide every path that was read with it.
+     */
+    private List<String> checkEach(List<String> paths) {
+        List<String> allowed = Lists.newArrayList();
+        for (String p : paths) {
+            try {
+                accessControlManager.check(objectType, p, permission);
+                allowed.add(p);
+            } catch (AccessDeniedException e) {
+                LOGGER.debug(e.getMessage());
+            } catch (StorageClientException e) {
+                LOGGER.warn("Unable to check {} on {}, skipping: {} ",
+                        new Object[] { permission, p, e.getMessage() });
+            }
+        }
+        return allowed;
+    }
+
+    @Override
+    protected String internalNext() {
+        return path;
+    }
+
+    @Override
+    public void close() {
+        if (source instanceof Disposable) {
+            ((Disposable) source).close();
+        }
+        super.close();
+    }
+}
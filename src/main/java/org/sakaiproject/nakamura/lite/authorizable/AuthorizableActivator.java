@@ -19,12 +19,14 @@ package org.sakaiproject.nakamura.lite.authorizable;
 
 import com.google.common.collect.ImmutableMap;
 
+import org.sakaiproject.nakamura.api.lite.CacheHolder;
 import org.sakaiproject.nakamura.api.lite.Configuration;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
 import org.sakaiproject.nakamura.api.lite.authorizable.User;
+import org.sakaiproject.nakamura.lite.CacheInvalidator;
 import org.sakaiproject.nakamura.lite.storage.StorageClient;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -37,12 +39,25 @@ public class AuthorizableActivator {
     private StorageClient client;
     private String keySpace;
     private String authorizableColumnFamily;
+    private Map<String, CacheHolder> authorizableCache;
 
     public AuthorizableActivator(StorageClient client, Configuration configuration)
             throws StorageClientException, AccessDeniedException {
+        this(client, configuration, null);
+    }
+
+    /**
+     * @param authorizableCache
+     *            the cache of authorizables, invalidated for the users and
+     *            groups that are created, may be null.
+     */
+    public AuthorizableActivator(StorageClient client, Configuration configuration,
+            Map<String, CacheHolder> authorizableCache) throws StorageClientException,
+            AccessDeniedException {
         this.client = client;
         this.authorizableColumnFamily = configuration.getAuthorizableColumnFamily();
         this.keySpace = configuration.getKeySpace();
+        this.authorizableCache = authorizableCache;
     }
 
     public synchronized void setup() throws StorageClientException {
@@ -63,8 +78,7 @@ public class AuthorizableActivator {
                     Authorizable.AUTHORIZABLE_TYPE_FIELD, Authorizable.GROUP_VALUE);
             LOGGER.debug("Creating System User user as {} with {} ",
                     Authorizable.ADMINISTRATORS_GROUP, group);
-            client.insert(keySpace, authorizableColumnFamily, Authorizable.ADMINISTRATORS_GROUP,
-                    group, true);
+            insert(Authorizable.ADMINISTRATORS_GROUP, group);
         } else {
             LOGGER.debug("System User user exists as {} with {} ",
                     Authorizable.ADMINISTRATORS_GROUP, authorizableMap);
@@ -82,7 +96,7 @@ public class AuthorizableActivator {
                     "--no-password--",
                     Authorizable.AUTHORIZABLE_TYPE_FIELD, Authorizable.USER_VALUE);
             LOGGER.info("Creating System User user as {} with {} ", User.SYSTEM_USER, user);
-            client.insert(keySpace, authorizableColumnFamily, User.SYSTEM_USER, user, true);
+            insert(User.SYSTEM_USER, user);
         } else {
             LOGGER.info("System User user exists as {} with {} ", User.SYSTEM_USER, authorizableMap);
 
@@ -99,7 +113,7 @@ public class AuthorizableActivator {
                     StorageClientUtils.secureHash("admin"),
                     Authorizable.AUTHORIZABLE_TYPE_FIELD, Authorizable.USER_VALUE);
             LOGGER.info("Creating Admin User user as {} with {} ", User.ADMIN_USER, user);
-            client.insert(keySpace, authorizableColumnFamily, User.ADMIN_USER, user, true);
+            insert(User.ADMIN_USER, user);
         } else {
             LOGGER.info("Admin User user exists as {} with {} ", User.ADMIN_USER, authorizableMap);
         }
@@ -115,10 +129,16 @@ public class AuthorizableActivator {
                     Authorizable.NO_PASSWORD,
                     Authorizable.AUTHORIZABLE_TYPE_FIELD, Authorizable.USER_VALUE);
             LOGGER.info("Creating Anon user as {} with {} ", User.ANON_USER, user);
-            client.insert(keySpace, authorizableColumnFamily, User.ANON_USER, user, true);
+            insert(User.ANON_USER, user);
         } else {
             LOGGER.info("Anon User user exists as {} with {} ", User.ANON_USER, authorizableMap);
         }
     }
 
+    private void insert(String id, Map<String, Object> authorizable)
+            throws StorageClientException {
+        client.insert(keySpace, authorizableColumnFamily, id, authorizable, true);
+        CacheInvalidator.invalidate(authorizableCache, keySpace, authorizableColumnFamily, id);
+    }
+
 }
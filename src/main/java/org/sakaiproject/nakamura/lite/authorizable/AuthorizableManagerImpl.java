@@ -17,6 +17,7 @@
  */
 package org.sakaiproject.nakamura.lite.authorizable;
 
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -50,6 +51,7 @@ import com.google.common.collect.ImmutableMap.Builder;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 
 /**
  * An Authourizable Manager bound to a user, on creation the user ID specified
@@ -61,9 +63,9 @@ import com.google.common.collect.Maps;
 public class AuthorizableManagerImpl extends CachingManager implements AuthorizableManager {
 
     private static final Set<String> FILTER_ON_UPDATE = ImmutableSet.of(Authorizable.ID_FIELD,
-            Authorizable.PASSWORD_FIELD);
+            Authorizable.PASSWORD_FIELD, Authorizable.MEMBERSHIP_FIELD);
     private static final Set<String> FILTER_ON_CREATE = ImmutableSet.of(Authorizable.ID_FIELD,
-            Authorizable.PASSWORD_FIELD);
+            Authorizable.PASSWORD_FIELD, Authorizable.MEMBERSHIP_FIELD);
     private static final Logger LOGGER = LoggerFactory.getLogger(AuthorizableManagerImpl.class);
     private String currentUserId;
     private StorageClient client;
@@ -79,7 +81,7 @@ public class AuthorizableManagerImpl extends CachingManager implements Authoriza
             Configuration configuration, AccessControlManagerImpl accessControlManager,
             Map<String, CacheHolder> sharedCache, StoreListener storeListener) throws StorageClientException,
             AccessDeniedException {
-        super(client, sharedCache);
+        super(client, sharedCache, configuration);
         this.currentUserId = currentUser.getId();
         if (currentUserId == null) {
             throw new RuntimeException("Current User ID shoud not be null");
@@ -170,7 +172,7 @@ public class AuthorizableManagerImpl extends CachingManager implements Authoriza
                     if (newMembers[i] == null) {
                         LOGGER.warn("===================== Added member {} does not exist, and had been removed from the list to be added",newMember );
                         group.removeMember(newMember);
-                    } else if (isCyclicMembership(id, newMembers[i])) {
+                    } else if (isCyclicMembership(group, newMembers[i])) {
                         LOGGER.warn("Member {} would create circular group membership and has been removed from the list to be added", newMember);
                         newMembers[i] = null;
                         group.removeMember(newMember);
@@ -241,6 +243,20 @@ public class AuthorizableManagerImpl extends CachingManager implements Authoriza
                 }
             }
             LOGGER.debug(" Finished Updating other principals, made {} changes, Saving Changes to {} ", changes, id);
+            if (changes > 0) {
+                List<String> changed = Lists.newArrayList();
+                for (Authorizable newMember : newMembers) {
+                    if (newMember != null) {
+                        changed.add(newMember.getId());
+                    }
+                }
+                for (Authorizable retiredMember : retiredMembers) {
+                    if (retiredMember != null) {
+                        changed.add(retiredMember.getId());
+                    }
+                }
+                updateMembership(changed);
+            }
 
             // if there were added or removed members, send them out as event properties for
             // external integration
@@ -357,6 +373,10 @@ public class AuthorizableManagerImpl extends CachingManager implements Authoriza
         if (authorizable != null){
             removeFromCache(keySpace, authorizableColumnFamily, authorizableId);
             client.remove(keySpace, authorizableColumnFamily, authorizableId);
+            if (authorizable instanceof Group) {
+                // the members no longer inherit this group or the groups above it.
+                updateMembership(Lists.newArrayList(((Group) authorizable).getMembers()));
+            }
             storeListener.onDelete(Security.ZONE_AUTHORIZABLES, authorizableId, accessControlManager.getCurrentUserId(), authorizable.getOriginalProperties());
         }
     }
@@ -482,11 +502,27 @@ public class AuthorizableManagerImpl extends CachingManager implements Authoriza
                         .get(Authorizable.AUTHORIZABLE_TYPE_FIELD));
     }
 
-    private boolean isCyclicMembership(String groupId, Authorizable newMember) {
+    /**
+     * Adding a member is cyclic if the group is already, directly or
+     * indirectly, a member of the new member.
+     */
+    private boolean isCyclicMembership(Group group, Authorizable newMember) {
+        if (group.getId().equals(newMember.getId())) {
+            return true;
+        }
         if (newMember.isGroup()) {
+            String[] membership = group.getMembership();
+            if (membership != null) {
+                for (String groupId : membership) {
+                    if (newMember.getId().equals(groupId)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
             Group newGroupMember = (Group) newMember;
             for (String memberOfNewMember : newGroupMember.getMembers()) {
-                if (groupId.equals(memberOfNewMember)) {
+                if (group.getId().equals(memberOfNewMember)) {
                     return true;
                 }
             }
@@ -494,6 +530,100 @@ public class AuthorizableManagerImpl extends CachingManager implements Authoriza
         return false;
     }
 
+    /**
+     * Recalculate the materialized membership of authorizables whose
+     * principals have changed and of everything below them. The affected
+     * authorizables are found by following the members of groups down from
+     * the changed authorizables, and each is recalculated after the groups it
+     * is a member of, from its principals and their membership.
+     * @param changed the ids of the authorizables whose principals changed.
+     * @throws StorageClientException
+     */
+    private void updateMembership(List<String> changed) throws StorageClientException {
+        List<String> order = Lists.newArrayList();
+        Set<String> visited = Sets.newHashSet();
+        for (String id : changed) {
+            visitMembers(id, visited, order);
+        }
+        // the reverse of the post order puts groups before their members.
+        Collections.reverse(order);
+        Map<String, String[]> computed = Maps.newHashMap();
+        for (String id : order) {
+            Map<String, Object> authorizableMap = getCached(keySpace, authorizableColumnFamily, id);
+            if (authorizableMap == null || authorizableMap.isEmpty()) {
+                continue;
+            }
+            String[] membership = computeMembership(authorizableMap, computed,
+                    Sets.newHashSet(id));
+            if (isAGroup(authorizableMap)) {
+                computed.put(id, membership);
+            }
+            String membershipValue = StringUtils.join(membership, ';');
+            if (!membershipValue.equals(authorizableMap.get(Authorizable.MEMBERSHIP_FIELD))) {
+                putCached(keySpace, authorizableColumnFamily, id,
+                        ImmutableMap.of(Authorizable.MEMBERSHIP_FIELD, (Object) membershipValue),
+                        false);
+                LOGGER.debug("Updated membership of {} to {} ", id, membershipValue);
+            }
+        }
+    }
+
+    private void visitMembers(String id, Set<String> visited, List<String> order)
+            throws StorageClientException {
+        if (!visited.add(id)) {
+            return;
+        }
+        Map<String, Object> authorizableMap = getCached(keySpace, authorizableColumnFamily, id);
+        if (isAGroup(authorizableMap)) {
+            String members = (String) authorizableMap.get(Authorizable.MEMBERS_FIELD);
+            if (members != null) {
+                for (String member : StringUtils.split(members, ';')) {
+                    visitMembers(member, visited, order);
+                }
+            }
+        }
+        order.add(id);
+    }
+
+    /**
+     * @return the groups an authorizable is a direct or indirect member of,
+     *         using the materialized membership of its groups where present.
+     */
+    private String[] computeMembership(Map<String, Object> authorizableMap,
+            Map<String, String[]> computed, Set<String> inProgress) throws StorageClientException {
+        Set<String> membership = Sets.newLinkedHashSet();
+        String principals = (String) authorizableMap.get(Authorizable.PRINCIPALS_FIELD);
+        if (principals != null) {
+            for (String principal : StringUtils.split(principals, ';')) {
+                if (Group.EVERYONE.equals(principal) || inProgress.contains(principal)) {
+                    continue;
+                }
+                String[] groupMembership = computed.get(principal);
+                if (groupMembership == null) {
+                    Map<String, Object> groupMap = getCached(keySpace, authorizableColumnFamily,
+                            principal);
+                    // principals that are not groups have no membership.
+                    if (!isAGroup(groupMap)) {
+                        continue;
+                    }
+                    String m = (String) groupMap.get(Authorizable.MEMBERSHIP_FIELD);
+                    if (m != null) {
+                        groupMembership = StringUtils.split(m, ';');
+                    } else {
+                        // not yet materialized, inProgress guards against cycles in old data.
+                        inProgress.add(principal);
+                        groupMembership = computeMembership(groupMap, computed, inProgress);
+                        inProgress.remove(principal);
+                    }
+                    computed.put(principal, groupMembership);
+                }
+                membership.add(principal);
+                Collections.addAll(membership, groupMembership);
+            }
+        }
+        return membership.toArray(new String[membership.size()]);
+    }
+
     @Override
     protected Logger getLogger() {
         return LOGGER;
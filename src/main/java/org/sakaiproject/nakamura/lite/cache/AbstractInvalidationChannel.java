@@ -0,0 +1,163 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.cache;
+
+import com.google.common.collect.Sets;
+
+import org.sakaiproject.nakamura.api.lite.CacheInvalidationChannel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Base class for invalidation channels. Invalidations are coalesced into a
+ * set and published as a batch every flush-interval ms, or as soon as
+ * max-batch keys are waiting. Subclasses publish batches to the other nodes
+ * and pass batches they receive to {@link #deliver(Collection)}.
+ */
+public abstract class AbstractInvalidationChannel implements CacheInvalidationChannel {
+
+    public static final String CONFIG_FLUSH_INTERVAL = "invalidation-flush-interval";
+    public static final String CONFIG_MAX_BATCH = "invalidation-max-batch";
+    public static final long DEFAULT_FLUSH_INTERVAL = 50L;
+    public static final int DEFAULT_MAX_BATCH = 500;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AbstractInvalidationChannel.class);
+
+    private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+    /**
+     * Held while a batch is taken and published, so batches go out in the
+     * order they were taken and sequence numbers are sent in order.
+     */
+    private final Object publishLock = new Object();
+    private Set<String> pending = Sets.newLinkedHashSet();
+    private int maxBatch = DEFAULT_MAX_BATCH;
+    private Timer timer;
+
+    /**
+     * Start publishing batches.
+     * @param flushInterval the maximum time in ms an invalidation waits
+     *        before it is published, 0 to only publish on {@link #flush()} or
+     *        when the batch is full.
+     * @param maxBatch the number of keys that causes a batch to be published
+     *        immediately.
+     */
+    protected synchronized void start(long flushInterval, int maxBatch) {
+        this.maxBatch = maxBatch;
+        if (flushInterval > 0) {
+            timer = new Timer("Cache invalidation " + this, true);
+            timer.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    flush();
+                }
+            }, flushInterval, flushInterval);
+        }
+    }
+
+    /**
+     * Stop publishing, any pending invalidations are published first.
+     */
+    protected void stop() {
+        synchronized (this) {
+            if (timer != null) {
+                timer.cancel();
+                timer = null;
+            }
+        }
+        flush();
+    }
+
+    public void invalidate(String cacheKey) {
+        boolean full;
+        synchronized (this) {
+            pending.add(cacheKey);
+            full = pending.size() >= maxBatch;
+        }
+        if (full) {
+            flush();
+        }
+    }
+
+    /**
+     * Publish any pending invalidations now. Only one batch is published at a
+     * time, invalidations made while a batch is being sent go into the next.
+     */
+    public void flush() {
+        synchronized (publishLock) {
+            Set<String> batch;
+            synchronized (this) {
+                if (pending.isEmpty()) {
+                    return;
+                }
+                batch = pending;
+                pending = Sets.newLinkedHashSet();
+            }
+            try {
+                publish(batch);
+            } catch (IOException e) {
+                LOGGER.warn("Failed to publish {} cache invalidations: {}", batch.size(),
+                        e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Send a batch of invalidations to the other nodes.
+     * @param cacheKeys
+     * @throws IOException
+     */
+    protected abstract void publish(Collection<String> cacheKeys) throws IOException;
+
+    /**
+     * Pass a batch of invalidations received from another node to the listeners.
+     * @param cacheKeys
+     */
+    protected void deliver(Collection<String> cacheKeys) {
+        for (Listener listener : listeners) {
+            for (String cacheKey : cacheKeys) {
+                listener.invalidated(cacheKey);
+            }
+        }
+    }
+
+    /**
+     * Tell the listeners to discard everything, when invalidations may have
+     * been lost.
+     */
+    protected void deliverAll() {
+        for (Listener listener : listeners) {
+            listener.invalidatedAll();
+        }
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.cache;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An invalidation channel that delivers to the other channels in the same
+ * group within this JVM. Used to run several repositories against one store
+ * in a single process, mainly for testing.
+ */
+public class LoopbackInvalidationChannel extends AbstractInvalidationChannel {
+
+    private static final Map<String, List<LoopbackInvalidationChannel>> GROUPS = Maps
+            .newHashMap();
+
+    private final String group;
+
+    /**
+     * Create a channel publishing with the default flush interval and batch size.
+     * @param group
+     */
+    public LoopbackInvalidationChannel(String group) {
+        this(group, DEFAULT_FLUSH_INTERVAL, DEFAULT_MAX_BATCH);
+    }
+
+    /**
+     * @param group the name of the group of channels to deliver to.
+     * @param flushInterval
+     * @param maxBatch
+     */
+    public LoopbackInvalidationChannel(String group, long flushInterval, int maxBatch) {
+        this.group = group;
+        synchronized (GROUPS) {
+            List<LoopbackInvalidationChannel> members = GROUPS.get(group);
+            if (members == null) {
+                members = Lists.newArrayList();
+                GROUPS.put(group, members);
+            }
+            members.add(this);
+        }
+        start(flushInterval, maxBatch);
+    }
+
+    @Override
+    protected void publish(Collection<String> cacheKeys) {
+        List<LoopbackInvalidationChannel> members;
+        synchronized (GROUPS) {
+            members = GROUPS.get(group);
+            if (members == null) {
+                return;
+            }
+            members = Lists.newArrayList(members);
+        }
+        for (LoopbackInvalidationChannel member : members) {
+            if (member != this) {
+                member.deliver(cacheKeys);
+            }
+        }
+    }
+
+    /**
+     * Leave the group, publishing any pending invalidations first.
+     */
+    public void close() {
+        stop();
+        synchronized (GROUPS) {
+            List<LoopbackInvalidationChannel> members = GROUPS.get(group);
+            if (members != null) {
+                members.remove(this);
+                if (members.isEmpty()) {
+                    GROUPS.remove(group);
+                }
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "loopback:" + group;
+    }
+}
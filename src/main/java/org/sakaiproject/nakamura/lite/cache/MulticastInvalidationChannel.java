@@ -0,0 +1,233 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.cache;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.ConfigurationPolicy;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Service;
+import org.sakaiproject.nakamura.api.lite.CacheInvalidationChannel;
+import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.MulticastSocket;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Exchanges cache invalidations between the nodes of a cluster with UDP
+ * multicast. Each packet carries the id of the sending node and a sequence
+ * number. UDP does not guarantee delivery, so when a receiver sees a gap in
+ * the sequence from a node it tells the listeners to discard everything
+ * rather than risk serving stale objects. The component only starts when it
+ * has been configured.
+ */
+@Component(immediate = true, metatype = true, policy = ConfigurationPolicy.REQUIRE)
+@Service(value = CacheInvalidationChannel.class)
+public class MulticastInvalidationChannel extends AbstractInvalidationChannel implements
+        Runnable {
+
+    @Property(value = "239.255.27.1")
+    public static final String CONFIG_GROUP = "multicast-group";
+    @Property(intValue = 45588)
+    public static final String CONFIG_PORT = "multicast-port";
+    @Property(intValue = 1)
+    public static final String CONFIG_TTL = "multicast-ttl";
+    @Property(longValue = 50)
+    private static final String FLUSH_INTERVAL = CONFIG_FLUSH_INTERVAL;
+    @Property(intValue = 500)
+    private static final String MAX_BATCH = CONFIG_MAX_BATCH;
+
+    private static final Logger LOGGER = LoggerFactory
+            .getLogger(MulticastInvalidationChannel.class);
+    private static final int MAGIC = 0x53494e56;
+    private static final int MAX_PACKET = 8192;
+
+    /**
+     * A decoded packet.
+     */
+    static class Message {
+        String node;
+        long sequence;
+        List<String> cacheKeys = Lists.newArrayList();
+    }
+
+    private String node = UUID.randomUUID().toString();
+    private AtomicLong sequence = new AtomicLong();
+    private MulticastSocket socket;
+    private InetAddress group;
+    private int port;
+    private Thread receiver;
+    private volatile boolean running;
+
+    @Activate
+    public void activate(Map<String, Object> properties) throws IOException {
+        group = InetAddress.getByName(StorageClientUtils.getSetting(properties.get(CONFIG_GROUP),
+                "239.255.27.1"));
+        port = StorageClientUtils.getSetting(properties.get(CONFIG_PORT), 45588);
+        socket = new MulticastSocket(port);
+        socket.setTimeToLive(StorageClientUtils.getSetting(properties.get(CONFIG_TTL), 1));
+        socket.joinGroup(group);
+        running = true;
+        receiver = new Thread(this, "Cache invalidation receiver " + group + ":" + port);
+        receiver.setDaemon(true);
+        receiver.start();
+        start(StorageClientUtils.getSetting(properties.get(CONFIG_FLUSH_INTERVAL),
+                DEFAULT_FLUSH_INTERVAL), StorageClientUtils.getSetting(
+                properties.get(CONFIG_MAX_BATCH), DEFAULT_MAX_BATCH));
+        LOGGER.info("Node {} exchanging cache invalidations on {}:{} ", new Object[] { node,
+                group, port });
+    }
+
+    @Deactivate
+    public void deactivate(Map<String, Object> properties) {
+        stop();
+        running = false;
+        try {
+            socket.leaveGroup(group);
+        } catch (IOException e) {
+            LOGGER.debug("Failed to leave group {} ", e.getMessage());
+        }
+        // closing the socket releases the receiver
+        socket.close();
+    }
+
+    @Override
+    protected void publish(Collection<String> cacheKeys) throws IOException {
+        for (byte[] packet : encode(node, sequence, cacheKeys, MAX_PACKET)) {
+            socket.send(new DatagramPacket(packet, packet.length, group, port));
+        }
+    }
+
+    public void run() {
+        Map<String, Long> lastSequence = Maps.newHashMap();
+        byte[] buffer = new byte[65536];
+        while (running) {
+            try {
+                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                socket.receive(packet);
+                Message message = decode(packet.getData(), packet.getOffset(),
+                        packet.getLength());
+                if (message == null || node.equals(message.node)) {
+                    continue;
+                }
+                Long last = lastSequence.put(message.node, message.sequence);
+                if (last != null && message.sequence != last + 1) {
+                    LOGGER.info("Missed cache invalidations from {}, got {} after {}, clearing caches ",
+                            new Object[] { message.node, message.sequence, last });
+                    deliverAll();
+                } else {
+                    deliver(message.cacheKeys);
+                }
+            } catch (IOException e) {
+                if (running) {
+                    LOGGER.warn("Failed to receive cache invalidations: {}", e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Encode invalidations into packets of at most maxPacket bytes.
+     */
+    static List<byte[]> encode(String node, AtomicLong sequence, Collection<String> cacheKeys,
+            int maxPacket) throws IOException {
+        List<byte[]> packets = Lists.newArrayList();
+        List<String> batch = Lists.newArrayList();
+        // magic, node, sequence and count
+        int header = 4 + 2 + node.length() * 3 + 8 + 4;
+        int size = header;
+        for (String cacheKey : cacheKeys) {
+            int keySize = 2 + cacheKey.length() * 3;
+            if (header + keySize > maxPacket) {
+                throw new IOException("Cache key too long to send " + cacheKey);
+            }
+            if (size + keySize > maxPacket) {
+                packets.add(encodePacket(node, sequence.incrementAndGet(), batch));
+                batch.clear();
+                size = header;
+            }
+            batch.add(cacheKey);
+            size += keySize;
+        }
+        if (batch.size() > 0) {
+            packets.add(encodePacket(node, sequence.incrementAndGet(), batch));
+        }
+        return packets;
+    }
+
+    private static byte[] encodePacket(String node, long sequence, List<String> cacheKeys)
+            throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(baos);
+        out.writeInt(MAGIC);
+        out.writeUTF(node);
+        out.writeLong(sequence);
+        out.writeInt(cacheKeys.size());
+        for (String cacheKey : cacheKeys) {
+            out.writeUTF(cacheKey);
+        }
+        out.flush();
+        return baos.toByteArray();
+    }
+
+    /**
+     * @return the decoded packet or null if it was not an invalidation packet.
+     */
+    static Message decode(byte[] data, int offset, int length) {
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, offset,
+                    length));
+            if (in.readInt() != MAGIC) {
+                return null;
+            }
+            Message message = new Message();
+            message.node = in.readUTF();
+            message.sequence = in.readLong();
+            int n = in.readInt();
+            for (int i = 0; i < n; i++) {
+                message.cacheKeys.add(in.readUTF());
+            }
+            return message;
+        } catch (IOException e) {
+            LOGGER.debug("Ignoring invalid packet {} ", e.getMessage());
+            return null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "multicast:" + group + ":" + port;
+    }
+}
@@ -6,10 +6,15 @@ import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessControlManager;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AclModification;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.Permission;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.Permissions;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.PrincipalTokenResolver;
 import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
 import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.lite.accesscontrol.PermissionFilterIterator;
 
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 
 public class AccessControlManagerTokenWrapper implements AccessControlManager {
@@ -63,6 +68,21 @@ public class AccessControlManagerTokenWrapper implements AccessControlManager {
         }
     }
 
+    public List<String> checkAll(String objectType, Collection<String> objectPaths,
+            Permission permission) throws StorageClientException {
+        try {
+            delegate.setRequestPrincipalResolver(principalTokenResovler);
+            return delegate.checkAll(objectType, objectPaths, permission);
+        } finally {
+            delegate.clearRequestPrincipalResolver();
+        }
+    }
+
+    public Iterator<String> filterReadable(String objectType, Iterator<String> objectPaths) {
+        // each batch is checked through this wrapper, with the resolver bound.
+        return new PermissionFilterIterator(this, objectType, objectPaths, Permissions.CAN_READ);
+    }
+
     public String getCurrentUserId() {
         return delegate.getCurrentUserId();
     }
@@ -36,6 +36,21 @@ public interface BlockContentHelper {
     InputStream readBody(String keySpace, String contentColumnFamily, String contentBlockId,
             String streamId, int nBlocks) throws StorageClientException, AccessDeniedException;
 
+    /**
+     * Read part of a body, seeking directly to the block containing the
+     * offset.
+     * 
+     * @param content
+     *            the content row holding the body metadata.
+     * @param offset
+     *            the offset of the first byte to read.
+     * @param length
+     *            the maximum number of bytes to read, -1 to read to the end.
+     */
+    InputStream readBody(String keySpace, String contentColumnFamily, String contentBlockId,
+            String streamId, Map<String, Object> content, long offset, long length)
+            throws StorageClientException, AccessDeniedException;
+
     boolean hasBody(Map<String, Object> content, String streamId);
 
 }
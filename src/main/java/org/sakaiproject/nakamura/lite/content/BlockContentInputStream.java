@@ -26,15 +26,31 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
+/**
+ * Reads a body stored as block sets. Each block set is a row holding a number
+ * of blocks, every block but the last is blockSize long. When the block size
+ * is known the stream seeks directly to the block containing an offset,
+ * otherwise it has to load every block set up to that offset. If given an
+ * executor the stream loads the next block set in the background while the
+ * current one is read.
+ */
 public class BlockContentInputStream extends InputStream {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(BlockContentInputStream.class);
     private byte[] buffer;
     private String blockId;
     private int nBlocks;
-    private int blockLength;
+    private int blockSize;
+    private int blocksPerSet;
     private int offset;
+    private long position;
+    private long end;
+    private boolean seekPending;
     private int currentBlockSet;
     private int currentBlockNumber;
     private int blocksInSet;
@@ -42,73 +58,257 @@ public class BlockContentInputStream extends InputStream {
     private String keySpace;
     private String contentColumnFamily;
     private StorageClient client;
+    private ExecutorService prefetchExecutor;
+    private Future<Map<String, Object>> prefetch;
+    private int prefetchBlockSet;
 
     public BlockContentInputStream(StorageClient client, String keySpace,
             String contentColumnFamily, String blockId, int nBlocks) throws StorageClientException,
             AccessDeniedException {
+        this(client, keySpace, contentColumnFamily, blockId, nBlocks, 0, 0, 0, -1, null);
+    }
+
+    /**
+     * @param nBlocks
+     *            the number of block sets.
+     * @param blockSize
+     *            the size of each block, 0 if not known.
+     * @param blocksPerSet
+     *            the number of blocks in each full block set, 0 if not known.
+     * @param start
+     *            the offset of the first byte to read.
+     * @param length
+     *            the maximum number of bytes to read, or -1 to read to the end.
+     * @param prefetchExecutor
+     *            used to load block sets ahead of the reader, or null to only
+     *            load them when needed. The client must be safe to use from
+     *            the executor while the stream is being read.
+     */
+    public BlockContentInputStream(StorageClient client, String keySpace,
+            String contentColumnFamily, String blockId, int nBlocks, int blockSize,
+            int blocksPerSet, long start, long length, ExecutorService prefetchExecutor)
+            throws StorageClientException, AccessDeniedException {
 
         this.blockId = blockId;
         this.nBlocks = nBlocks;
+        this.blockSize = blockSize;
+        this.blocksPerSet = blocksPerSet;
         this.keySpace = keySpace;
         this.contentColumnFamily = contentColumnFamily;
         this.client = client;
+        this.prefetchExecutor = prefetchExecutor;
 
         currentBlockSet = -1;
         currentBlockNumber = -1;
         blocksInSet = -1;
-
+        position = Math.max(0, start);
+        end = length < 0 ? Long.MAX_VALUE : position + length;
+        seekPending = position > 0;
     }
 
     @Override
     public int read() throws IOException {
-        if (buffer == null) {
-            if (!readBuffer()) {
-                return -1;
-            }
-        }
-        if (offset >= buffer.length) {
-            if (!readBuffer()) {
-                return -1;
-            }
+        if (!fill()) {
+            return -1;
         }
         int v = (int) buffer[offset] & 0xff;
         offset++;
+        position++;
         return v;
     }
 
-    private boolean readBuffer() throws IOException {
-        currentBlockNumber++;
-        if (currentBlockNumber >= blocksInSet) {
-            LOGGER.debug("No more blocks In set, next set ? blocks {} {} ", currentBlockSet, nBlocks);
-            if (currentBlockSet + 1 == nBlocks) {
-                LOGGER.debug("No more blocks {} {} ", currentBlockSet, nBlocks);
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!fill()) {
+            return -1;
+        }
+        int n = (int) Math.min(Math.min(len, buffer.length - offset), end - position);
+        System.arraycopy(buffer, offset, b, off, n);
+        offset += n;
+        position += n;
+        return n;
+    }
+
+    /**
+     * Make sure there is at least one byte to read in the buffer.
+     * 
+     * @return false at the end of the stream.
+     */
+    private boolean fill() throws IOException {
+        if (position >= end) {
+            return false;
+        }
+        if (seekPending) {
+            seekPending = false;
+            long target = position;
+            position = 0;
+            if (!seek(target)) {
+                atEnd();
                 return false;
             }
-            currentBlockSet++;
-            String blockKey = blockId + ":" + currentBlockSet;
-            try {
-                block = client.get(keySpace, contentColumnFamily, blockKey);
-                LOGGER.debug("New Block Loaded {} {} ", blockKey, block);
-            } catch (StorageClientException e) {
-                throw new IOException(e.getMessage(), e);
+        }
+        while (buffer == null || offset >= buffer.length) {
+            if (!nextBlock()) {
+                return false;
             }
-            currentBlockNumber = 0;
+        }
+        return true;
+    }
+
+    private boolean nextBlock() throws IOException {
+        if (currentBlockSet >= 0 && currentBlockNumber + 1 < blocksInSet) {
+            return loadBlock(currentBlockSet, currentBlockNumber + 1);
+        }
+        if (currentBlockSet + 1 >= nBlocks) {
+            LOGGER.debug("No more blocks {} {} ", currentBlockSet, nBlocks);
+            return false;
+        }
+        return loadBlock(currentBlockSet + 1, 0);
+    }
+
+    /**
+     * Position the buffer at the start of a block.
+     * 
+     * @return false if there is no such block.
+     */
+    private boolean loadBlock(int blockSet, int blockNumber) throws IOException {
+        if (blockSet != currentBlockSet) {
+            block = loadBlockSet(blockSet);
+            currentBlockSet = blockSet;
             blocksInSet = toInt(block.get(BlockSetContentHelper.NUMBLOCKS_FIELD));
             LOGGER.debug("Loaded New Block Set {}  containing {} blocks ", currentBlockSet,
                     blocksInSet);
-
         }
-
-        LOGGER.debug("Loading block {} {} ", currentBlockNumber, blocksInSet);
-        blockLength = toInt(block
-                .get(BlockSetContentHelper.BLOCK_LENGTH_FIELD_STUB + currentBlockNumber));
+        if (blockNumber >= blocksInSet) {
+            return false;
+        }
+        currentBlockNumber = blockNumber;
         buffer = (byte[]) block.get(BlockSetContentHelper.BODY_FIELD_STUB + currentBlockNumber);
+        if (buffer == null) {
+            throw new IOException("Block " + blockNumber + " missing from " + blockId + ":"
+                    + blockSet);
+        }
         offset = 0;
         LOGGER.debug("Loaded Buffer {} {} size {} ", new Object[] { currentBlockSet,
                 currentBlockNumber, buffer.length });
         return true;
     }
 
+    private Map<String, Object> loadBlockSet(int blockSet) throws IOException {
+        Map<String, Object> loaded = null;
+        Future<Map<String, Object>> pending = prefetch;
+        prefetch = null;
+        if (pending != null && prefetchBlockSet == blockSet) {
+            try {
+                loaded = pending.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted loading " + blockId + ":" + blockSet);
+            } catch (ExecutionException e) {
+                throw new IOException(e.getCause().getMessage(), e.getCause());
+            }
+        } else {
+            if (pending != null) {
+                pending.cancel(false);
+            }
+            try {
+                loaded = client.get(keySpace, contentColumnFamily, blockId + ":" + blockSet);
+            } catch (StorageClientException e) {
+                throw new IOException(e.getMessage(), e);
+            }
+        }
+        startPrefetch(blockSet + 1);
+        return loaded;
+    }
+
+    private void startPrefetch(final int blockSet) {
+        if (prefetchExecutor == null || blockSet >= nBlocks) {
+            return;
+        }
+        if (blockSize > 0 && blocksPerSet > 0
+                && (long) blockSet * blocksPerSet * blockSize >= end) {
+            // the reader will stop before this block set.
+            return;
+        }
+        prefetchBlockSet = blockSet;
+        prefetch = prefetchExecutor.submit(new Callable<Map<String, Object>>() {
+            public Map<String, Object> call() throws Exception {
+                return client.get(keySpace, contentColumnFamily, blockId + ":" + blockSet);
+            }
+        });
+    }
+
+    /**
+     * Move forward to an absolute offset.
+     * 
+     * @return false if the offset is beyond the end of the body.
+     */
+    private boolean seek(long target) throws IOException {
+        if (blockSize > 0 && blocksPerSet == 0 && nBlocks > 1) {
+            // older bodies dont record the number of blocks in a set, the first set is always full.
+            if (!loadBlock(0, 0)) {
+                return false;
+            }
+            blocksPerSet = blocksInSet;
+            position = 0;
+        }
+        if (blockSize > 0 && (blocksPerSet > 0 || nBlocks == 1)) {
+            long blockIndex = target / blockSize;
+            int blockSet = 0;
+            int blockNumber = (int) blockIndex;
+            if (blocksPerSet > 0) {
+                blockSet = (int) (blockIndex / blocksPerSet);
+                blockNumber = (int) (blockIndex % blocksPerSet);
+            }
+            if (blockSet >= nBlocks || !loadBlock(blockSet, blockNumber)) {
+                return false;
+            }
+            long blockOffset = target - blockIndex * blockSize;
+            if (blockOffset > buffer.length) {
+                return false;
+            }
+            offset = (int) blockOffset;
+            position = target;
+            return true;
+        }
+        return skipForward(target - position) == target - position;
+    }
+
+    /**
+     * Move forward by reading through the blocks.
+     * 
+     * @return the number of bytes skipped.
+     */
+    private long skipForward(long n) throws IOException {
+        long skipped = 0;
+        while (skipped < n) {
+            if (buffer == null || offset >= buffer.length) {
+                if (!nextBlock()) {
+                    LOGGER.debug("Skipped over EOF {} ", skipped);
+                    break;
+                }
+                continue;
+            }
+            int step = (int) Math.min(n - skipped, buffer.length - offset);
+            offset += step;
+            position += step;
+            skipped += step;
+        }
+        return skipped;
+    }
+
+    /**
+     * After a failed seek the buffer may not match the position, so nothing
+     * more can be read.
+     */
+    private void atEnd() {
+        buffer = null;
+        end = position;
+    }
+
     private int toInt(Object object) {
         if (object instanceof Integer) {
             return ((Integer) object).intValue();
@@ -123,24 +323,36 @@ public class BlockContentInputStream extends InputStream {
 
     @Override
     public long skip(long n) throws IOException {
-        long skipped = 0;
-        while (n > 0) {
-            if (n < blockLength - offset) {
-                offset += n;
-                skipped += n;
-                n = 0;
-            } else {
-                n = n - (blockLength - offset);
-                skipped += (blockLength - offset);
-                if (!readBuffer()) {
-                    LOGGER.debug("Skipped over EOF {} ", skipped);
-                    return skipped;
-                }
-                LOGGER.debug("Skipped Partial {} ", skipped);
-            }
+        if (n <= 0) {
+            return 0;
         }
-        LOGGER.debug("Skipped Final {} ", skipped);
-        return skipped;
+        long target = Math.min(position + n, end);
+        if (seekPending) {
+            long skipped = target - position;
+            position = target;
+            return skipped;
+        }
+        long start = position;
+        if (buffer != null && target - position < buffer.length - offset) {
+            offset += (int) (target - position);
+            position = target;
+        } else if (!seek(target)) {
+            LOGGER.debug("Skipped over EOF from {} ", start);
+            atEnd();
+            return position - start;
+        }
+        LOGGER.debug("Skipped Final {} ", position - start);
+        return position - start;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (prefetch != null) {
+            prefetch.cancel(false);
+            prefetch = null;
+        }
+        buffer = null;
+        block = null;
     }
 
-}
\ No newline at end of file
+}
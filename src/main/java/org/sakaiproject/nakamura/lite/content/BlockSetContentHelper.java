@@ -17,7 +17,7 @@
  */
 package org.sakaiproject.nakamura.lite.content;
 
-import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 
 import org.sakaiproject.nakamura.api.lite.Repository;
@@ -25,13 +25,29 @@ import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.lite.CacheInvalidator;
 import org.sakaiproject.nakamura.lite.storage.StorageClient;
+import org.sakaiproject.nakamura.lite.storage.StorageClientPool;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.security.MessageDigest;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class BlockSetContentHelper implements BlockContentHelper {
 
@@ -49,80 +65,389 @@ public class BlockSetContentHelper implements BlockContentHelper {
      * The number of blocks in this block set
      */
     public static final String NUMBLOCKS_FIELD = Repository.SYSTEM_PROP_PREFIX + "numblocks";
+    /**
+     * The number of blocks in each full block set of a body, stored with the
+     * content.
+     */
+    public static final String BLOCKS_PER_SET_FIELD = Repository.SYSTEM_PROP_PREFIX + "blocksPerSet";
 
     public static final int DEFAULT_BLOCK_SIZE = 1024 * 1024;
     public static final int DEFAULT_MAX_CHUNKS_PER_BLOCK = 64;
 
+    private static final int PREFETCH_THREADS = 2;
+    private static ExecutorService prefetchExecutor;
+    private static final int WRITE_BUFFERS = 4;
+    private static final int WRITE_THREADS = 8;
+
     private StorageClient client;
+    private StorageClientPool pool;
+    private ExecutorService executor;
+    private ExecutorService writeExecutor;
+    private BodyIndex bodyIndex;
 
     public BlockSetContentHelper(StorageClient client) {
+        this(client, null);
+    }
+
+    /**
+     * @param client
+     * @param executor
+     *            used to prefetch block sets while bodies are read, or null.
+     *            Only supply an executor if the client can be used from
+     *            another thread.
+     */
+    public BlockSetContentHelper(StorageClient client, ExecutorService executor) {
+        this(client, executor, null);
+    }
+
+    /**
+     * @param client
+     * @param executor
+     *            used to prefetch block sets while bodies are read, or null.
+     * @param pool
+     *            the pool of the client, the content cache of which is
+     *            invalidated for the rows written, may be null.
+     */
+    public BlockSetContentHelper(StorageClient client, ExecutorService executor,
+            StorageClientPool pool) {
+        this(client, executor, null, pool);
+    }
+
+    /**
+     * @param client
+     * @param executor
+     *            used to prefetch block sets while bodies are read, or null.
+     * @param writeExecutor
+     *            used to write block sets while bodies are uploaded, see
+     *            {@link #newWriteExecutor()}, or null to write each body on a
+     *            thread of its own.
+     * @param pool
+     *            the pool of the client, the content cache of which is
+     *            invalidated for the rows written, may be null.
+     */
+    public BlockSetContentHelper(StorageClient client, ExecutorService executor,
+            ExecutorService writeExecutor, StorageClientPool pool) {
         this.client = client;
+        this.executor = executor;
+        this.writeExecutor = writeExecutor;
+        this.pool = pool;
+        this.bodyIndex = new BodyIndex(client, pool);
+    }
+
+    /**
+     * @return a small executor of daemon threads shared by all streams that
+     *         prefetch block sets.
+     */
+    public static synchronized ExecutorService getPrefetchExecutor() {
+        if (prefetchExecutor == null) {
+            prefetchExecutor = Executors.newFixedThreadPool(PREFETCH_THREADS, new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "sparse-block-prefetch-" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return prefetchExecutor;
+    }
+
+    /**
+     * @return a fixed pool of daemon threads that write the block sets of
+     *         bodies while the uploading threads read the next blocks. When
+     *         all the threads are busy uploads wait for one, after filling
+     *         their buffers. The owner shuts it down once no more bodies are
+     *         written.
+     */
+    public static ExecutorService newWriteExecutor() {
+        return Executors.newFixedThreadPool(WRITE_THREADS, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "sparse-block-writer-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Start writing a body, on the write executor if there is one.
+     */
+    private Future<Void> startWriter(BlockSetWriter writer) {
+        if (writeExecutor != null) {
+            return writeExecutor.submit(writer);
+        }
+        FutureTask<Void> task = new FutureTask<Void>(writer);
+        Thread t = new Thread(task, "sparse-block-writer");
+        t.setDaemon(true);
+        t.start();
+        return task;
     }
 
     public Map<String, Object> writeBody(String keySpace, String contentColumnFamily,
             String contentId, String contentBlockId, String streamId, int blockSize, int maxChunksPerBlockSet,
             InputStream in) throws StorageClientException, AccessDeniedException, IOException {
 
-        int i = 0;
-        int lastBlockWrite = 0;
+        // blocks are read on this thread into a small ring of buffers while
+        // the writer stores them, so the read and the write overlap.
+        int blocksPerSet = maxChunksPerBlockSet + 1;
+        BlockSetWriter writer = new BlockSetWriter(keySpace, contentColumnFamily, contentId,
+                contentBlockId, blockSize, blocksPerSet);
+        Future<Void> written = startWriter(writer);
+        MessageDigest digest = BodyIndex.newDigest();
         long length = 0;
-        int bodyNum = 0;
-        byte[] buffer = new byte[blockSize];
-        for (;;) {
-            int offset = 0;
-            int nread = 0;
-            while (offset < buffer.length) {
-                nread = in.read(buffer, offset, buffer.length - offset);
-                if (nread < 0) {
-                    LOGGER.debug("Got to end of stream ");
-                    break; // end of input stream, in a block read
+        int nchunks = 0;
+        boolean complete = false;
+        try {
+            for (;;) {
+                byte[] buffer = writer.nextFreeBuffer(written);
+                int offset = 0;
+                while (offset < buffer.length) {
+                    int nread = in.read(buffer, offset, buffer.length - offset);
+                    if (nread < 0) {
+                        LOGGER.debug("Got to end of stream ");
+                        break; // end of input stream, in a block read
+                    }
+                    offset += nread;
+                }
+                LOGGER.debug("Read {} bytes ", offset);
+                if (offset > 0) {
+                    digest.update(buffer, 0, offset);
+                    writer.put(buffer, offset);
+                    length = length + offset;
+                    nchunks++;
+                }
+                if (offset < buffer.length) {
+                    break; // end of the input stream.
                 }
-                offset += nread;
-            }
-            LOGGER.debug("Read {} bytes ", offset);
-
-            if (offset == 0 && nread < 0) {
-                break; // end of the input stream and the block was empty.
             }
-            byte[] saveBuffer = buffer;
-
-            if (offset < buffer.length) {
-                saveBuffer = new byte[offset];
-                System.arraycopy(buffer, 0, saveBuffer, 0, saveBuffer.length);
-            }
-
-            String key = contentBlockId + ":" + i;
-            String blockLengthKey = BLOCK_LENGTH_FIELD_STUB + bodyNum;
-            String bodyKey = BODY_FIELD_STUB + bodyNum;
-            int bufferLength = saveBuffer.length;
-            length = length + bufferLength;
-            lastBlockWrite = i;
-            client.insert(keySpace, contentColumnFamily, key, ImmutableMap.of(Content.getUuidField(),
-                    (Object)contentId, 
-                    CONTENT_BLOCK_ID, key,
-                    NUMBLOCKS_FIELD,
-                    bodyNum + 1, blockLengthKey,
-                    bufferLength, bodyKey, saveBuffer), false);
-            bodyNum++;
-            if (bodyNum > maxChunksPerBlockSet) {
-                bodyNum = 0;
-                i++;
+            writer.finish();
+            waitFor(written);
+            complete = true;
+        } finally {
+            if (!complete) {
+                // the client is not used by the writer once this returns.
+                writer.abort();
             }
         }
+        int lastBlockWrite = nchunks == 0 ? 0 : (nchunks - 1) / blocksPerSet;
         Map<String, Object> metadata = Maps.newHashMap();
 
         metadata.put(StorageClientUtils.getAltField(Content.BLOCKID_FIELD, streamId), contentBlockId);
         metadata.put(StorageClientUtils.getAltField(Content.NBLOCKS_FIELD, streamId), lastBlockWrite + 1);
         metadata.put(StorageClientUtils.getAltField(Content.LENGTH_FIELD, streamId), length);
         metadata.put(StorageClientUtils.getAltField(Content.BLOCKSIZE_FIELD, streamId), blockSize);
+        metadata.put(StorageClientUtils.getAltField(BLOCKS_PER_SET_FIELD, streamId), maxChunksPerBlockSet + 1);
+
+        String bodyHash = BodyIndex.getBodyHash(digest, length);
+        metadata.put(StorageClientUtils.getAltField(BodyIndex.BODY_HASH_FIELD, streamId), bodyHash);
 
         LOGGER.debug(
                 "Saved Last block ContentID {} BlockID {} Nblocks {}  length {}  blocksize {} ",
                 new Object[] { contentId, contentBlockId, lastBlockWrite + 1, length, blockSize });
+        Map<String, Object> stored = bodyIndex.addOrFind(keySpace, contentColumnFamily,
+                bodyHash, streamId, metadata);
+        if (stored != null) {
+            // the same body is already stored, so the blocks just written are not needed.
+            for (int i = 0; i < nchunks; i += blocksPerSet) {
+                String key = contentBlockId + ":" + (i / blocksPerSet);
+                client.remove(keySpace, contentColumnFamily, key);
+                CacheInvalidator.invalidateContent(pool, keySpace, contentColumnFamily, key);
+            }
+            return stored;
+        }
         return metadata;
 
     }
 
+    /**
+     * Wait for the writer, rethrowing anything it failed with.
+     */
+    private static void waitFor(Future<Void> written) throws StorageClientException,
+            IOException {
+        try {
+            written.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for blocks to be written");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof StorageClientException) {
+                throw (StorageClientException) cause;
+            } else if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new StorageClientException(cause.getMessage(), cause);
+        }
+    }
+
+    /**
+     * A buffer read from the body and the number of bytes read into it.
+     */
+    private static class Block {
+        private final byte[] buffer;
+        private final int length;
+
+        private Block(byte[] buffer, int length) {
+            this.buffer = buffer;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Writes the blocks of a body as they are read. Blocks that are waiting
+     * are written to their block set row in a single insert, and the first
+     * insert of each block set is made knowing the row is new, so it is never
+     * read back. Buffers are handed back to the reader once written, the
+     * number of buffers bounds the memory used by an upload.
+     */
+    private class BlockSetWriter implements Callable<Void> {
+
+        private final Block end = new Block(null, 0);
+        private final Block aborted = new Block(null, 0);
+        private final String keySpace;
+        private final String columnFamily;
+        private final String contentId;
+        private final String contentBlockId;
+        private final int blockSize;
+        private final int blocksPerSet;
+        private final BlockingQueue<byte[]> free = new ArrayBlockingQueue<byte[]>(WRITE_BUFFERS);
+        private final BlockingQueue<Block> filled = new ArrayBlockingQueue<Block>(WRITE_BUFFERS + 2);
+        private int allocated;
+        private boolean stopped;
+
+        private BlockSetWriter(String keySpace, String columnFamily, String contentId,
+                String contentBlockId, int blockSize, int blocksPerSet) {
+            this.keySpace = keySpace;
+            this.columnFamily = columnFamily;
+            this.contentId = contentId;
+            this.contentBlockId = contentBlockId;
+            this.blockSize = blockSize;
+            this.blocksPerSet = blocksPerSet;
+        }
+
+        /**
+         * @return an empty buffer, waiting for one to be written if all are in
+         *         use.
+         */
+        private byte[] nextFreeBuffer(Future<Void> written) throws StorageClientException,
+                IOException {
+            byte[] buffer = free.poll();
+            if (buffer == null && allocated < WRITE_BUFFERS) {
+                allocated++;
+                return new byte[blockSize];
+            }
+            try {
+                while (buffer == null) {
+                    if (written.isDone()) {
+                        waitFor(written);
+                        throw new IOException("Block writer stopped before the body was written");
+                    }
+                    buffer = free.poll(100, TimeUnit.MILLISECONDS);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for a block buffer");
+            }
+            return buffer;
+        }
+
+        private void put(byte[] buffer, int length) {
+            // there are never more buffers than places in the queue.
+            filled.add(new Block(buffer, length));
+        }
+
+        private void finish() {
+            filled.add(end);
+        }
+
+        /**
+         * Stop the writer, waiting for any write in progress. No writes are
+         * made once this returns, whether or not the writer has started.
+         */
+        private void abort() {
+            synchronized (this) {
+                stopped = true;
+            }
+            filled.offer(aborted);
+        }
+
+        public Void call() throws Exception {
+            List<Block> blocks = Lists.newArrayList();
+            int set = 0;
+            int bodyNum = 0;
+            for (;;) {
+                blocks.add(filled.take());
+                filled.drainTo(blocks);
+                Map<String, Object> row = null;
+                boolean newRow = false;
+                String key = null;
+                boolean finished = false;
+                for (Block block : blocks) {
+                    if (block == aborted) {
+                        return null;
+                    }
+                    if (block == end) {
+                        finished = true;
+                        break;
+                    }
+                    if (row == null) {
+                        key = contentBlockId + ":" + set;
+                        newRow = bodyNum == 0;
+                        row = Maps.newHashMap();
+                        row.put(Content.getUuidField(), contentId);
+                        row.put(CONTENT_BLOCK_ID, key);
+                    }
+                    int bufferLength = block.length;
+                    byte[] saveBuffer = block.buffer;
+                    if (bufferLength < saveBuffer.length) {
+                        saveBuffer = new byte[bufferLength];
+                        System.arraycopy(block.buffer, 0, saveBuffer, 0, bufferLength);
+                    }
+                    row.put(BLOCK_LENGTH_FIELD_STUB + bodyNum, bufferLength);
+                    row.put(BODY_FIELD_STUB + bodyNum, saveBuffer);
+                    row.put(NUMBLOCKS_FIELD, bodyNum + 1);
+                    bodyNum++;
+                    if (bodyNum == blocksPerSet) {
+                        writeRow(key, row, newRow);
+                        row = null;
+                        bodyNum = 0;
+                        set++;
+                    }
+                }
+                if (row != null) {
+                    writeRow(key, row, newRow);
+                }
+                for (Block block : blocks) {
+                    if (block != end) {
+                        free.add(block.buffer);
+                    }
+                }
+                blocks.clear();
+                if (finished) {
+                    return null;
+                }
+            }
+        }
+
+        private synchronized void writeRow(String key, Map<String, Object> row, boolean newRow)
+                throws StorageClientException {
+            if (stopped) {
+                throw new StorageClientException("Block writer for " + contentBlockId
+                        + " has been stopped");
+            }
+            LOGGER.debug("Writing block set {} with {} blocks ", key, row.get(NUMBLOCKS_FIELD));
+            client.insert(keySpace, columnFamily, key, row, newRow);
+            CacheInvalidator.invalidateContent(pool, keySpace, columnFamily, key);
+        }
+    }
+
     public InputStream readBody(String keySpace, String contentColumnFamily, String contentBlockId, String streamId,
             int nBlocks) throws StorageClientException, AccessDeniedException {
         // all the information is stored against the contentBlockId which is unique to the stream
@@ -130,6 +455,25 @@ public class BlockSetContentHelper implements BlockContentHelper {
                 nBlocks);
     }
 
+    public InputStream readBody(String keySpace, String contentColumnFamily,
+            String contentBlockId, String streamId, Map<String, Object> content, long offset,
+            long length) throws StorageClientException, AccessDeniedException {
+        int nBlocks = StorageClientUtils.toInt(content.get(StorageClientUtils.getAltField(
+                Content.NBLOCKS_FIELD, streamId)));
+        int blockSize = StorageClientUtils.toInt(content.get(StorageClientUtils.getAltField(
+                Content.BLOCKSIZE_FIELD, streamId)));
+        int blocksPerSet = StorageClientUtils.toInt(content.get(StorageClientUtils.getAltField(
+                BLOCKS_PER_SET_FIELD, streamId)));
+        Object bodyLength = content.get(StorageClientUtils.getAltField(Content.LENGTH_FIELD,
+                streamId));
+        if (bodyLength instanceof Long) {
+            long available = Math.max(0, ((Long) bodyLength).longValue() - offset);
+            length = length < 0 ? available : Math.min(length, available);
+        }
+        return new BlockContentInputStream(client, keySpace, contentColumnFamily, contentBlockId,
+                nBlocks, blockSize, blocksPerSet, offset, length, executor);
+    }
+
     public boolean hasBody(Map<String, Object> content, String streamId) {
         return content.containsKey(StorageClientUtils.getAltField(Content.BLOCKID_FIELD, streamId));
     }
@@ -0,0 +1,142 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.content;
+
+import com.google.common.collect.Maps;
+
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.lite.CacheInvalidator;
+import org.sakaiproject.nakamura.lite.storage.StorageClient;
+import org.sakaiproject.nakamura.lite.storage.StorageClientPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Indexes stored bodies by the hash of their content, so that content with the
+ * same hash shares one body. Bodies are immutable once written, so copies and
+ * versions of content share the bodies of the source. This only deduplicates
+ * bodies, it does not reclaim storage: a body is hashed as it is written, so a
+ * duplicate is written in full and then removed, and bodies are never freed,
+ * as they were not before they were shared. The index is kept as rows in the
+ * content column family.
+ */
+class BodyIndex {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BodyIndex.class);
+
+    /**
+     * The hash and length of a body, stored with the content.
+     */
+    static final String BODY_HASH_FIELD = Repository.SYSTEM_PROP_PREFIX + "bodyHash";
+    private static final String INDEX_KEY_PREFIX = Repository.SYSTEM_PROP_PREFIX + "bodyIndex:";
+    private static final String HASH_ALGORITHM = "SHA1";
+
+    private StorageClient client;
+    private StorageClientPool pool;
+
+    /**
+     * @param client
+     * @param pool
+     *            the pool of the client, whose content cache is invalidated
+     *            for the index rows written, or null if the caller
+     *            invalidates them.
+     */
+    BodyIndex(StorageClient client, StorageClientPool pool) {
+        this.client = client;
+        this.pool = pool;
+    }
+
+    /**
+     * @return the key of the index row of a body.
+     */
+    static String getIndexKey(String bodyHash) {
+        return INDEX_KEY_PREFIX + bodyHash;
+    }
+
+    private void insert(String keySpace, String columnFamily, String key,
+            Map<String, Object> values, boolean probablyNew) throws StorageClientException {
+        client.insert(keySpace, columnFamily, key, values, probablyNew);
+        CacheInvalidator.invalidateContent(pool, keySpace, columnFamily, key);
+    }
+
+    /**
+     * @return a new digest used to hash bodies as they are written.
+     */
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            // every JVM has SHA1
+            throw new IllegalStateException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @return the hash of a body, including the length so that a collision
+     *         also needs a body of the same length.
+     */
+    static String getBodyHash(MessageDigest digest, long length) {
+        return StorageClientUtils.encode(digest.digest()) + ":" + length;
+    }
+
+    /**
+     * Add a newly written body to the index, or find the body already stored
+     * with the same hash.
+     * 
+     * @param bodyHash
+     *            the hash of the new body.
+     * @param streamId
+     *            the stream the body was written to.
+     * @param metadata
+     *            the metadata of the new body, for the stream.
+     * @return the metadata of the stored body for the stream, in which case
+     *         the new body is not needed and should be removed, or null if
+     *         the new body was added.
+     * @throws StorageClientException
+     */
+    Map<String, Object> addOrFind(String keySpace, String columnFamily, String bodyHash,
+            String streamId, Map<String, Object> metadata) throws StorageClientException {
+        String key = getIndexKey(bodyHash);
+        Map<String, Object> stored = client.get(keySpace, columnFamily, key);
+        if (stored != null && stored.size() > 0) {
+            Map<String, Object> body = Maps.newHashMap();
+            for (Entry<String, Object> e : stored.entrySet()) {
+                body.put(StorageClientUtils.getAltField(e.getKey(), streamId), e.getValue());
+            }
+            LOGGER.debug("Body {} is already stored ", bodyHash);
+            return body;
+        }
+        String suffix = StorageClientUtils.getAltField("", streamId);
+        Map<String, Object> body = Maps.newHashMap();
+        for (Entry<String, Object> e : metadata.entrySet()) {
+            String field = e.getKey();
+            if (field.endsWith(suffix)) {
+                body.put(field.substring(0, field.length() - suffix.length()), e.getValue());
+            }
+        }
+        insert(keySpace, columnFamily, key, body, true);
+        return null;
+    }
+}
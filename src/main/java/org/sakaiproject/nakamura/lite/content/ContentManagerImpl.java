@@ -45,12 +45,13 @@ import static org.sakaiproject.nakamura.lite.content.InternalContent.VERSION_NUM
 import com.google.common.collect.ImmutableMap.Builder;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterators;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
-import com.google.common.collect.Sets;
 
 import org.sakaiproject.nakamura.api.lite.CacheHolder;
 import org.sakaiproject.nakamura.api.lite.Configuration;
+import org.sakaiproject.nakamura.api.lite.RemoveProperty;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
 import org.sakaiproject.nakamura.api.lite.StorageConstants;
@@ -73,6 +74,8 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Iterator;
@@ -151,6 +154,10 @@ public class ContentManagerImpl extends CachingManager implements ContentManager
                                                                         Content.getUuidField(),
                                                                         PATH_FIELD);
 
+    /**
+     * The number of children whose content rows are loaded together when listing children.
+     */
+    private static final int CHILD_BATCH_SIZE = 25;
 
     /**
      * Storage Client
@@ -183,7 +190,7 @@ public class ContentManagerImpl extends CachingManager implements ContentManager
 
     public ContentManagerImpl(StorageClient client, AccessControlManager accessControlManager,
             Configuration config,  Map<String, CacheHolder> sharedCache, StoreListener eventListener) {
-        super(client, sharedCache);
+        super(client, sharedCache, config);
         this.client = client;
         keySpace = config.getKeySpace();
         contentColumnFamily = config.getContentColumnFamily();
@@ -225,6 +232,14 @@ public class ContentManagerImpl extends CachingManager implements ContentManager
     public Content get(String path) throws StorageClientException, AccessDeniedException {
         checkOpen();
         accessControlManager.check(Security.ZONE_CONTENT, path, Permissions.CAN_READ);
+        return loadContent(path);
+    }
+
+    /**
+     * Load content, read permission must already have been checked.
+     * @return the content or null if it does not exist.
+     */
+    private Content loadContent(String path) throws StorageClientException {
         Map<String, Object> structure = getCached(keySpace, contentColumnFamily, path);
         if (structure != null && structure.size() > 0) {
             String contentId = (String)structure.get(STRUCTURE_UUID_FIELD);
@@ -246,23 +261,16 @@ public class ContentManagerImpl extends CachingManager implements ContentManager
         return new PreemptiveIterator<Content>() {
 
             private Content content;
+            private Iterator<Content> batch = Iterators.emptyIterator();
 
             @Override
             protected boolean internalHasNext() {
                 content = null;
-                while(content == null && childContent.hasNext()) {
-                    try {
-                        Map<String, Object> structureMap = childContent.next();
-                        LOGGER.debug("Loaded Next as {} ", structureMap);
-                        if ( structureMap != null && structureMap.size() > 0 ) {
-                            String path = (String) structureMap.get(PATH_FIELD);
-                            content = get(path);
-                        }
-                    } catch (AccessDeniedException e) {
-                        LOGGER.debug(e.getMessage(),e);
-                    } catch (StorageClientException e) {
-                        LOGGER.debug(e.getMessage(),e);
-                    }
+                while (!batch.hasNext() && childContent.hasNext()) {
+                    batch = loadChildBatch(childContent);
+                }
+                if (batch.hasNext()) {
+                    content = batch.next();
                 }
                 if  (content == null) {
                     // this is over the top as a disposable iterator should close auto
@@ -280,46 +288,118 @@ public class ContentManagerImpl extends CachingManager implements ContentManager
         };
     }
 
-    public Iterator<String> listChildPaths(final String path) throws StorageClientException {
-        final Iterator<Map<String, Object>> childContent = client.listChildren(keySpace,
-                contentColumnFamily, path);
-        return new PreemptiveIterator<String>() {
+    /**
+     * Read the next batch of child structure rows, check read access on them
+     * together and load the content rows for the readable children with one
+     * multi-get.
+     * @param childContent the child structure rows.
+     * @return an iterator of the readable children in this batch.
+     */
+    private Iterator<Content> loadChildBatch(Iterator<Map<String, Object>> childContent) {
+        Map<String, String> contentIds = Maps.newLinkedHashMap();
+        while (contentIds.size() < CHILD_BATCH_SIZE && childContent.hasNext()) {
+            Map<String, Object> structureMap = childContent.next();
+            LOGGER.debug("Loaded Next as {} ", structureMap);
+            if ( structureMap != null && structureMap.size() > 0 ) {
+                String path = (String) structureMap.get(PATH_FIELD);
+                String contentId = (String) structureMap.get(STRUCTURE_UUID_FIELD);
+                if (path != null && contentId != null) {
+                    contentIds.put(path, contentId);
+                }
+            }
+        }
+        List<Content> children = Lists.newArrayList();
+        if (contentIds.size() > 0) {
+            try {
+                List<String> readable = accessControlManager.checkAll(Security.ZONE_CONTENT,
+                        contentIds.keySet(), Permissions.CAN_READ);
+                List<String> readableIds = Lists.newArrayList();
+                for (String path : readable) {
+                    readableIds.add(contentIds.get(path));
+                }
+                Map<String, Map<String, Object>> contentMaps = getCachedMany(keySpace,
+                        contentColumnFamily, readableIds);
+                for (String path : readable) {
+                    addChild(children, path, contentMaps.get(contentIds.get(path)));
+                }
+            } catch (StorageClientException e) {
+                LOGGER.warn("Child batch failed, loading {} children one at a time: {} ",
+                        contentIds.size(), e.getMessage());
+                children = loadEachChild(contentIds);
+            }
+        }
+        return children.iterator();
+    }
 
-            private String childPath;
+    /**
+     * Check and load the children of a failed batch individually, skipping
+     * only those that still fail.
+     * @param contentIds the content ids of the children, keyed by path.
+     * @return the readable children.
+     */
+    private List<Content> loadEachChild(Map<String, String> contentIds) {
+        List<Content> children = Lists.newArrayList();
+        for (Entry<String, String> e : contentIds.entrySet()) {
+            try {
+                accessControlManager.check(Security.ZONE_CONTENT, e.getKey(),
+                        Permissions.CAN_READ);
+                addChild(children, e.getKey(), getCached(keySpace, contentColumnFamily,
+                        e.getValue()));
+            } catch (AccessDeniedException ex) {
+                LOGGER.debug(ex.getMessage());
+            } catch (StorageClientException ex) {
+                LOGGER.warn("Unable to load child {}, skipping: {} ", e.getKey(), ex.getMessage());
+            }
+        }
+        return children;
+    }
 
-            @Override
-            protected boolean internalHasNext() {
-                while(childContent.hasNext()) {
-                    try {
-                        Map<String, Object> structureMap = childContent.next();
-                        LOGGER.debug("Loaded Next child of {} as {} ", path, structureMap);
-                        if ( structureMap != null && structureMap.size() > 0 ) {
-                            String testChildPath = (String) structureMap.get(PATH_FIELD);
-                                accessControlManager.check(Security.ZONE_CONTENT, testChildPath, Permissions.CAN_READ);
-                                childPath = testChildPath;
-                                // this is not that efficient since it requires the map is
-                                // loaded, at the moment I dont have a way round this with the
-                                // underlying index strucutre.
-                                LOGGER.debug("Got Next Child of {} as {} ", path, childPath);
-                                return true;
+    private void addChild(List<Content> children, String path, Map<String, Object> content) {
+        if (content != null && content.size() > 0) {
+            Content contentObject = new Content(path, content);
+            ((InternalContent) contentObject).internalize(this, false);
+            children.add(contentObject);
+        }
+    }
+
+    public Iterator<String> listChildPaths(final String path) throws StorageClientException {
+        final DisposableIterator<Map<String, Object>> childContent = client.listChildren(
+                keySpace, contentColumnFamily, path);
+        return accessControlManager.filterReadable(Security.ZONE_CONTENT,
+                new PreemptiveIterator<String>() {
+
+                    private String childPath;
+
+                    @Override
+                    protected boolean internalHasNext() {
+                        while (childContent.hasNext()) {
+                            Map<String, Object> structureMap = childContent.next();
+                            LOGGER.debug("Loaded Next child of {} as {} ", path, structureMap);
+                            if (structureMap != null && structureMap.size() > 0) {
+                                childPath = (String) structureMap.get(PATH_FIELD);
+                                if (childPath != null) {
+                                    LOGGER.debug("Got Next Child of {} as {} ", path, childPath);
+                                    return true;
+                                }
+                            }
                         }
-                    } catch (AccessDeniedException e) {
-                        LOGGER.debug(e.getMessage(),e);
-                    } catch (StorageClientException e) {
-                        LOGGER.debug(e.getMessage(),e);
+                        LOGGER.debug("No more");
+                        childPath = null;
+                        close();
+                        return false;
                     }
-                }
-                LOGGER.debug("No more");
-                childPath = null;
-                close();
-                return false;
-            }
 
-            @Override
-            protected String internalNext() {
-                return childPath;
-            }
-        };
+                    @Override
+                    protected String internalNext() {
+                        return childPath;
+                    }
+
+                    @Override
+                    public void close() {
+                        childContent.close();
+                        super.close();
+                    }
+                });
     }
 
     public void update(Content excontent) throws AccessDeniedException, StorageClientException {
@@ -394,7 +474,7 @@ public class ContentManagerImpl extends CachingManager implements ContentManager
             putCached(keySpace, contentColumnFamily, path,
                     ImmutableMap.of(STRUCTURE_UUID_FIELD, (Object)id, PATH_FIELD, path), true);
         }
-        // save the content id.
+        // save the content id, a new id has never been stored so the client need not read it first.
         putCached(keySpace, contentColumnFamily, id, toSave, isnew);
         LOGGER.debug("Saved {} at {} as {} ", new Object[] { path, id, toSave });
         // reset state to unmodified to take further modifications.
@@ -454,6 +534,7 @@ public class ContentManagerImpl extends CachingManager implements ContentManager
         if (content.containsKey(blockIdField)) {
             isnew = false;      
         }
+        String bodyHashField = StorageClientUtils.getAltField(BodyIndex.BODY_HASH_FIELD, streamId);
         String contentBlockId = StorageClientUtils.getInternalUuid();
         
         Map<String, Object> metadata = client.streamBodyIn(keySpace, contentColumnFamily,
@@ -468,6 +549,9 @@ public class ContentManagerImpl extends CachingManager implements ContentManager
             metadata.put(StorageClientUtils.getAltField(BODY_CREATED_BY_FIELD, streamId),
                     accessControlManager.getCurrentUserId());
         }
+        if (!metadata.containsKey(bodyHashField)) {
+            metadata.put(bodyHashField, new RemoveProperty());
+        }
         putCached(keySpace, contentColumnFamily, contentId, metadata, isnew);
         long length = 0;
         String lengthFieldName = StorageClientUtils.getAltField(LENGTH_FIELD, streamId);
@@ -494,6 +578,32 @@ public class ContentManagerImpl extends CachingManager implements ContentManager
         return internalGetInputStream(contentId, streamId);
     }
 
+    public InputStream getInputStream(String path, String streamId, long offset, long length)
+            throws StorageClientException, AccessDeniedException, IOException {
+        checkOpen();
+        if (offset < 0) {
+            throw new IllegalArgumentException("Offset must not be negative " + offset);
+        }
+        accessControlManager.check(Security.ZONE_CONTENT, path, Permissions.CAN_READ);
+        Map<String, Object> structure = getCached(keySpace, contentColumnFamily, path);
+        LOGGER.debug("Structure Loaded {} {} ", path, structure);
+        String contentId = (String)structure.get(STRUCTURE_UUID_FIELD);
+        Map<String, Object> content = getCached(keySpace, contentColumnFamily, contentId);
+        String contentBlockId = (String)content.get(StorageClientUtils
+                .getAltField(BLOCKID_FIELD, streamId));
+        return client.streamBodyOut(keySpace, contentColumnFamily, contentId, contentBlockId, streamId,
+                content, offset, length);
+    }
+
+    public ReadableByteChannel getChannel(String path, String streamId, long offset, long length)
+            throws StorageClientException, AccessDeniedException, IOException {
+        InputStream in = getInputStream(path, streamId, offset, length);
+        if (in == null || in instanceof ReadableByteChannel) {
+            return (ReadableByteChannel) in;
+        }
+        return Channels.newChannel(in);
+    }
+
     private InputStream internalGetInputStream(String contentId, String streamId)
             throws StorageClientException, AccessDeniedException, IOException {
         Map<String, Object> content = getCached(keySpace, contentColumnFamily, contentId);
@@ -535,18 +645,15 @@ public class ContentManagerImpl extends CachingManager implements ContentManager
            LOGGER.debug("Deleting {} ",to);
            delete(to);
         }
-        Set<String> streams = Sets.newHashSet();
         Map<String, Object> copyProperties = Maps.newHashMap();
         if (withStreams) {
+            // bodies are never modified once written, so the copy shares the
+            // bodies of the source rather than copying them.
             for (Entry<String, Object> p : f.getProperties().entrySet()) {
                 // Protected fields (such as ID and path) will differ between
                 // the source and destination, so don't copy them.
                 if (!PROTECTED_FIELDS.contains(p.getKey())) {
-                    if (p.getKey().startsWith(BLOCKID_FIELD)) {
-                        streams.add(p.getKey());
-                    } else {
-                        copyProperties.put(p.getKey(), p.getValue());
-                    }
+                    copyProperties.put(p.getKey(), p.getValue());
                 }
             }
         } else {
@@ -558,16 +665,6 @@ public class ContentManagerImpl extends CachingManager implements ContentManager
         t = new Content(to, copyProperties);
         update(t);
         LOGGER.debug("Copy Updated {} {} ",to,t);
-
-        for (String stream : streams) {
-            String streamId = null;
-            if (stream.length() > BLOCKID_FIELD.length()) {
-                streamId = stream.substring(BLOCKID_FIELD.length() + 1);
-            }
-            InputStream fromStream = getInputStream(from, streamId);
-            writeBody(to, fromStream);
-            fromStream.close();
-        }
         eventListener.onUpdate(Security.ZONE_CONTENT, to, accessControlManager.getCurrentUserId(), true, null, "op:copy");
 
     }
@@ -629,7 +726,7 @@ public class ContentManagerImpl extends CachingManager implements ContentManager
 
     move(from, to);
 
-    PreemptiveIterator<String> iter = (PreemptiveIterator<String>) listChildPaths(from);
+    Iterator<String> iter = listChildPaths(from);
     while (iter.hasNext()) {
       String childPath = iter.next();
 
@@ -692,7 +789,9 @@ public class ContentManagerImpl extends CachingManager implements ContentManager
         accessControlManager.check(Security.ZONE_CONTENT, path, Permissions.CAN_WRITE);
         Map<String, Object> structure = getCached(keySpace, contentColumnFamily, path);
         String contentId = (String)structure.get(STRUCTURE_UUID_FIELD);
-        Map<String, Object> saveVersion = getCached(keySpace, contentColumnFamily, contentId);
+        // a copy, the cached row is shared and is not modified.
+        Map<String, Object> saveVersion = Maps.newHashMap(getCached(keySpace,
+                contentColumnFamily, contentId));
 
         // versionHistoryId is the UUID of the version history for this node.
 
@@ -860,21 +959,43 @@ public class ContentManagerImpl extends CachingManager implements ContentManager
             Iterator<Content> contentResultsIterator = null;
             try {
               final DisposableIterator<Map<String,Object>> clientSearchKeysIterator = client.find(keySpace, contentColumnFamily, finalSearchProperties);
+              final Iterator<String> readablePaths = accessControlManager.filterReadable(
+                      Security.ZONE_CONTENT, new PreemptiveIterator<String>() {
+                          String path;
+
+                          protected boolean internalHasNext() {
+                              while (clientSearchKeysIterator.hasNext()) {
+                                  Map<String, Object> structureMap = clientSearchKeysIterator.next();
+                                  LOGGER.debug("Loaded Next as {} ", structureMap);
+                                  if ( structureMap != null && structureMap.size() > 0 ) {
+                                      path = (String) structureMap.get(PATH_FIELD);
+                                      if (path != null) {
+                                          return true;
+                                      }
+                                  }
+                              }
+                              path = null;
+                              return false;
+                          }
+
+                          protected String internalNext() {
+                              return path;
+                          }
+
+                          @Override
+                          public void close() {
+                              clientSearchKeysIterator.close();
+                              super.close();
+                          }
+                      });
               contentResultsIterator = new PreemptiveIterator<Content>() {
                   Content contentResult;
 
                   protected boolean internalHasNext() {
                       contentResult = null;
-                      while (contentResult == null && clientSearchKeysIterator.hasNext()) {
+                      while (contentResult == null && readablePaths.hasNext()) {
                           try {
-                              Map<String, Object> structureMap = clientSearchKeysIterator.next();
-                              LOGGER.debug("Loaded Next as {} ", structureMap);
-                              if ( structureMap != null && structureMap.size() > 0 ) {
-                                  String path = (String) structureMap.get(PATH_FIELD);
-                                  contentResult = get(path);
-                              }
-                          } catch (AccessDeniedException e) {
-                              LOGGER.debug(e.getMessage(),e);
+                              contentResult = loadContent(readablePaths.next());
                           } catch (StorageClientException e) {
                               LOGGER.debug(e.getMessage(),e);
                           }
@@ -894,7 +1015,7 @@ public class ContentManagerImpl extends CachingManager implements ContentManager
                   public void close() {
                       clientSearchKeysIterator.close();
                       super.close();
-                  };
+                  }
               };
             } catch (StorageClientException e) {
               LOGGER.error("Unable to iterate over sparsemap search results.", e);
@@ -0,0 +1,139 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.content;
+
+import org.sakaiproject.nakamura.api.lite.content.BodyChannel;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Reads a range of a body stored in a file using positional reads on a
+ * {@link FileChannel}, so a range is read without seeking past the start and
+ * the body can be transferred to another channel by the operating system.
+ */
+class FileBodyInputStream extends InputStream implements BodyChannel {
+
+    private final FileChannel channel;
+    private long position;
+    private final long end;
+
+    /**
+     * @param file
+     *            the file holding the body.
+     * @param offset
+     *            the offset of the first byte to read.
+     * @param length
+     *            the maximum number of bytes to read, -1 to read to the end.
+     * @throws IOException
+     */
+    FileBodyInputStream(File file, long offset, long length) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        long size;
+        try {
+            size = in.getChannel().size();
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+        this.channel = in.getChannel();
+        this.position = Math.min(offset, size);
+        this.end = length < 0 ? size : Math.min(size, position + length);
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        int n = read(b, 0, 1);
+        if (n <= 0) {
+            return -1;
+        }
+        return b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        return read(ByteBuffer.wrap(b, off, len));
+    }
+
+    public int read(ByteBuffer dst) throws IOException {
+        long remaining = getRemaining();
+        if (remaining <= 0) {
+            return -1;
+        }
+        int limit = dst.limit();
+        if (dst.remaining() > remaining) {
+            dst.limit(dst.position() + (int) remaining);
+        }
+        try {
+            int n = channel.read(dst, position);
+            if (n > 0) {
+                position += n;
+            }
+            return n;
+        } finally {
+            dst.limit(limit);
+        }
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = Math.max(0, Math.min(n, getRemaining()));
+        position += skipped;
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (int) Math.min(Integer.MAX_VALUE, getRemaining());
+    }
+
+    public long getRemaining() {
+        return end - position;
+    }
+
+    public long transferTo(WritableByteChannel target) throws IOException {
+        long transferred = 0;
+        while (position < end) {
+            long n = channel.transferTo(position, end - position, target);
+            if (n <= 0) {
+                break; // a non blocking target is full.
+            }
+            position += n;
+            transferred += n;
+        }
+        return transferred;
+    }
+
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -19,21 +19,25 @@ package org.sakaiproject.nakamura.lite.content;
 
 import com.google.common.collect.Maps;
 
-import org.apache.commons.io.IOUtils;
 import org.sakaiproject.nakamura.api.lite.Repository;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.lite.storage.AbstractClientConnectionPool;
 import org.sakaiproject.nakamura.lite.storage.RowHasher;
+import org.sakaiproject.nakamura.lite.storage.StorageClient;
+import org.sakaiproject.nakamura.lite.storage.StorageClientPool;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
 import java.util.Calendar;
 import java.util.GregorianCalendar;
 import java.util.Map;
@@ -42,13 +46,62 @@ public class FileStreamContentHelper implements StreamedContentHelper {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(FileStreamContentHelper.class);
     private static final String STORE_LOCATION_FIELD = Repository.SYSTEM_PROP_PREFIX + "bodyLocation";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The directory bodies are written to in a month.
+     */
+    private static class DateDirectory {
+        private final String directory;
+        private final long from;
+        private final long until;
+
+        private DateDirectory(String directory, long from, long until) {
+            this.directory = directory;
+            this.from = from;
+            this.until = until;
+        }
+    }
+
     private String fileStore;
+    private boolean fsync;
     private RowHasher rowHasher;
+    private BodyIndex bodyIndex;
+    private volatile DateDirectory dateDirectory;
 
     public FileStreamContentHelper(RowHasher rowHasher, Map<String, Object> properties) {
+        this(null, rowHasher, properties);
+    }
+
+    /**
+     * @param client
+     *            used to share bodies with the same content, or null if
+     *            bodies are not shared.
+     */
+    public FileStreamContentHelper(StorageClient client, RowHasher rowHasher,
+            Map<String, Object> properties) {
+        this(client, null, rowHasher, properties);
+    }
+
+    /**
+     * @param client
+     *            used to share bodies with the same content, or null if
+     *            bodies are not shared.
+     * @param pool
+     *            the pool of the client, the content cache of which is
+     *            invalidated for the index rows written, may be null.
+     */
+    public FileStreamContentHelper(StorageClient client, StorageClientPool pool,
+            RowHasher rowHasher, Map<String, Object> properties) {
         fileStore = StorageClientUtils.getSetting(properties.get(AbstractClientConnectionPool.FS_STORE_BASE_DIR),
                 AbstractClientConnectionPool.DEFAULT_FILE_STORE);
+        fsync = StorageClientUtils.getSetting(properties.get(AbstractClientConnectionPool.FS_STORE_FSYNC),
+                false);
         this.rowHasher = rowHasher;
+        if (client != null) {
+            bodyIndex = new BodyIndex(client, pool);
+        }
     }
 
     public Map<String, Object> writeBody(String keySpace, String columnFamily, String contentId,
@@ -58,50 +111,160 @@ public class FileStreamContentHelper implements StreamedContentHelper {
         File file = new File(fileStore + "/" + path);
         File parentFile = file.getParentFile();
         if (!parentFile.exists()) {
-            if (!parentFile.mkdirs()) {
+            if (!parentFile.mkdirs() && !parentFile.isDirectory()) {
                 throw new IOException("Unable to create directory " + parentFile.getAbsolutePath());
             }
         }
-        FileOutputStream out = new FileOutputStream(file);
-        long length = IOUtils.copyLarge(in, out);
-        out.close();
+        // write to a temporary file and rename it, so that a body is never
+        // seen partly written.
+        File tempFile = new File(parentFile, file.getName() + TEMP_SUFFIX);
+        MessageDigest digest = BodyIndex.newDigest();
+        long length = 0;
+        boolean written = false;
+        FileOutputStream out = new FileOutputStream(tempFile);
+        try {
+            FileChannel channel = out.getChannel();
+            byte[] buffer = new byte[WRITE_BUFFER_SIZE];
+            ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+            int n;
+            while ((n = in.read(buffer)) >= 0) {
+                digest.update(buffer, 0, n);
+                byteBuffer.clear();
+                byteBuffer.limit(n);
+                while (byteBuffer.hasRemaining()) {
+                    channel.write(byteBuffer);
+                }
+                length += n;
+            }
+            if (fsync) {
+                channel.force(true);
+            }
+            written = true;
+        } finally {
+            out.close();
+            if (!written && !tempFile.delete()) {
+                LOGGER.warn("Unable to remove {} ", tempFile.getAbsolutePath());
+            }
+        }
+        if (!tempFile.renameTo(file)) {
+            tempFile.delete();
+            throw new IOException("Unable to rename " + tempFile.getAbsolutePath() + " to "
+                    + file.getName());
+        }
+        if (fsync) {
+            // the rename is only durable once the directory entry is.
+            fsyncDirectory(parentFile);
+        }
         LOGGER.debug("Wrote {} bytes to {} as body of {}:{}:{} stream {} ", new Object[] { length, path,
                 keySpace, columnFamily, contentBlockId, streamId });
         Map<String, Object> metadata = Maps.newHashMap();
         metadata.put(StorageClientUtils.getAltField(Content.LENGTH_FIELD, streamId), length);
         metadata.put(StorageClientUtils.getAltField(Content.BLOCKID_FIELD, streamId), contentBlockId);
         metadata.put(StorageClientUtils.getAltField(STORE_LOCATION_FIELD, streamId), path);
+        if (bodyIndex != null) {
+            String bodyHash = BodyIndex.getBodyHash(digest, length);
+            metadata.put(StorageClientUtils.getAltField(BodyIndex.BODY_HASH_FIELD, streamId),
+                    bodyHash);
+            Map<String, Object> stored = bodyIndex.addOrFind(keySpace, columnFamily,
+                    bodyHash, streamId, metadata);
+            if (stored != null) {
+                // the same body is already stored, so the new file is not needed.
+                if (!file.delete()) {
+                    LOGGER.warn("Unable to remove duplicate body {} ", file.getAbsolutePath());
+                }
+                return stored;
+            }
+        }
         return metadata;
     }
 
+    /**
+     * Flush a directory to disk. Directories can only be opened with the Java
+     * 7 file API, which is called reflectively since the core is built for
+     * Java 5. On older runtimes, and on platforms that cannot open a
+     * directory, the directory is not flushed.
+     */
+    private static void fsyncDirectory(File directory) {
+        FileChannel channel = null;
+        try {
+            Object path = File.class.getMethod("toPath").invoke(directory);
+            Class<?> openOption = Class.forName("java.nio.file.OpenOption");
+            Object options = Array.newInstance(openOption, 1);
+            Array.set(options, 0, Class.forName("java.nio.file.StandardOpenOption")
+                    .getField("READ").get(null));
+            channel = (FileChannel) FileChannel.class.getMethod("open",
+                    Class.forName("java.nio.file.Path"), options.getClass()).invoke(null, path,
+                    options);
+            channel.force(true);
+        } catch (Exception e) {
+            LOGGER.debug("Unable to flush directory {} {} ", directory.getAbsolutePath(),
+                    e.getMessage());
+        } finally {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    LOGGER.debug(e.getMessage(), e);
+                }
+            }
+        }
+    }
+
     private String getPath(String keySpace, String columnFamily, String contentBlockId)
             throws StorageClientException {
-        Calendar c = new GregorianCalendar();
-        c.setTimeInMillis(System.currentTimeMillis());
-        int year = c.get(Calendar.YEAR);
-        int month = c.get(Calendar.MONTH);
         String rowHash = rowHasher.rowHash(keySpace, columnFamily, contentBlockId);
-        return year + "/" + month + "/" + rowHash.substring(0, 2) + "/" + rowHash.substring(2, 4)
+        return getDateDirectory() + rowHash.substring(0, 2) + "/" + rowHash.substring(2, 4)
                 + "/" + rowHash.substring(4, 6) + "/" + rowHash;
     }
 
+    /**
+     * @return the year/month/ directory of bodies written now, the calendar is
+     *         only used when the month changes.
+     */
+    private String getDateDirectory() {
+        long now = System.currentTimeMillis();
+        DateDirectory d = dateDirectory;
+        if (d == null || now < d.from || now >= d.until) {
+            Calendar c = new GregorianCalendar();
+            c.setTimeInMillis(now);
+            String directory = c.get(Calendar.YEAR) + "/" + c.get(Calendar.MONTH) + "/";
+            c.set(Calendar.DAY_OF_MONTH, 1);
+            c.set(Calendar.HOUR_OF_DAY, 0);
+            c.set(Calendar.MINUTE, 0);
+            c.set(Calendar.SECOND, 0);
+            c.set(Calendar.MILLISECOND, 0);
+            long from = c.getTimeInMillis();
+            c.add(Calendar.MONTH, 1);
+            d = new DateDirectory(directory, from, c.getTimeInMillis());
+            dateDirectory = d;
+        }
+        return d.directory;
+    }
+
+    private File getFile(String streamId, Map<String, Object> content) {
+        String path = (String) content.get(StorageClientUtils.getAltField(STORE_LOCATION_FIELD, streamId));
+        return new File(fileStore + "/" + path);
+    }
+
     public InputStream readBody(String keySpace, String columnFamily, String contentBlockId, String streamId,
             Map<String, Object> content) throws IOException {
-        String path = (String) content.get(StorageClientUtils.getAltField(STORE_LOCATION_FIELD, streamId));
-        LOGGER.debug("Reading from {} as body of {}:{}:{} ", new Object[] { path, keySpace,
+        return readBody(keySpace, columnFamily, contentBlockId, streamId, content, 0, -1);
+    }
+
+    public InputStream readBody(String keySpace, String columnFamily, String contentBlockId,
+            String streamId, Map<String, Object> content, long offset, long length)
+            throws IOException {
+        File file = getFile(streamId, content);
+        LOGGER.debug("Reading from {} as body of {}:{}:{} ", new Object[] { file, keySpace,
                 columnFamily, contentBlockId });
-        File file = new File(fileStore + "/" + path);
-        if ( file.exists() ) {
-            return new FileInputStream(file);
-        } else {
+        if (!file.exists()) {
             return null;
         }
+        return new FileBodyInputStream(file, offset, length);
     }
 
     public boolean hasStream(Map<String, Object> content, String streamId ) {
-        String path = (String) content.get(StorageClientUtils.getAltField(STORE_LOCATION_FIELD, streamId));
-        File file = new File(fileStore + "/" + path);
-        return file.exists();
+        return getFile(streamId, content).exists();
     }
 
 
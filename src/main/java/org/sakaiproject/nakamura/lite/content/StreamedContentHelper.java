@@ -32,6 +32,19 @@ public interface StreamedContentHelper {
     InputStream readBody(String keySpace, String columnFamily, String contentBlockId,
             String streamId, Map<String, Object> content) throws IOException;
 
+    /**
+     * Read part of a body.
+     * 
+     * @param offset
+     *            the offset of the first byte to read.
+     * @param length
+     *            the maximum number of bytes to read, -1 to read to the end.
+     * @return the stream or null if there is no body.
+     */
+    InputStream readBody(String keySpace, String columnFamily, String contentBlockId,
+            String streamId, Map<String, Object> content, long offset, long length)
+            throws IOException;
+
     boolean hasStream(Map<String, Object> content, String streamId);
 
 
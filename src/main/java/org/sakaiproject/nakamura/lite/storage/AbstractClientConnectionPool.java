@@ -18,7 +18,9 @@
 package org.sakaiproject.nakamura.lite.storage;
 
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
 
+import org.apache.commons.lang.StringUtils;
 import org.apache.commons.pool.PoolableObjectFactory;
 import org.apache.commons.pool.impl.GenericObjectPool;
 import org.apache.felix.scr.annotations.Activate;
@@ -29,12 +31,17 @@ import org.apache.felix.scr.annotations.Reference;
 import org.sakaiproject.nakamura.api.lite.ClientPoolException;
 import org.sakaiproject.nakamura.api.lite.Configuration;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.lite.accesscontrol.CompiledPermissionCache;
+import org.sakaiproject.nakamura.lite.content.BlockSetContentHelper;
+import org.sakaiproject.nakamura.lite.types.LongString;
 import org.sakaiproject.nakamura.lite.types.StringType;
+import org.sakaiproject.nakamura.lite.types.Types;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
 
 @Component(componentAbstract = true)
 public abstract class AbstractClientConnectionPool implements StorageClientPool {
@@ -64,10 +71,33 @@ public abstract class AbstractClientConnectionPool implements StorageClientPool
     private static final String WHEN_EHAUSTED = "when-exhausted-action";
     @Property(intValue = 0)
     private static final String LONG_STRING_SIZE = "long-string-size";
+    @Property(longValue = 16777216)
+    private static final String LONG_STRING_CACHE_SIZE = "long-string-cache-size";
+    @Property(intValue = 1)
+    private static final String ROW_FORMAT = "row-format";
+    /**
+     * Column families whose rows are compressed when they are written. Only
+     * rows in row-format 2 are compressed, so this needs row-format = 2.
+     */
+    @Property
+    private static final String COMPRESSED_COLUMN_FAMILIES = "compressed-column-families";
+    /**
+     * Size in bytes above which rows in compressed column families are compressed.
+     */
+    @Property(intValue = Types.DEFAULT_COMPRESSION_THRESHOLD)
+    private static final String COMPRESSION_THRESHOLD = "compression-threshold";
+    @Property(intValue = 10000)
+    private static final String COMPILED_ACL_CACHE_SIZE = "compiled-acl-cache-size";
 
     public  static final String DEFAULT_FILE_STORE = "store";
     @Property(value = "store")
     public static final String FS_STORE_BASE_DIR = "store-base-dir";
+    /**
+     * If true, bodies written to the file store are forced to disk before
+     * they are used.
+     */
+    @Property(boolValue = false)
+    public static final String FS_STORE_FSYNC = "store-fsync";
 
     @Reference
     private Configuration configuration;
@@ -78,6 +108,15 @@ public abstract class AbstractClientConnectionPool implements StorageClientPool
 
     private GenericObjectPool pool;
 
+    private int rowFormat = Types.DEFAULT_ROW_FORMAT;
+
+    private Set<String> compressedColumnFamilies = ImmutableSet.of();
+
+    private int compressionThreshold = Types.DEFAULT_COMPRESSION_THRESHOLD;
+
+    private final StorageStats storageStats = new StorageStats(getClass().getSimpleName());
+
+    private ExecutorService writeExecutor;
 
     public AbstractClientConnectionPool() {
     }
@@ -116,17 +155,91 @@ public abstract class AbstractClientConnectionPool implements StorageClientPool
         
         // set the maximum size of a string, if this is not 0, strings over this size will become files.
         StringType.setLengthLimit(StorageClientUtils.getSetting(properties.get(LONG_STRING_SIZE),0));
+        // the number of bytes of long string values kept in memory.
+        LongString.setCacheSize(StorageClientUtils.getSetting(properties.get(LONG_STRING_CACHE_SIZE),
+                LongString.DEFAULT_CACHE_SIZE));
+        // the number of compiled permissions shared between sessions.
+        CompiledPermissionCache.setMaxSize(StorageClientUtils.getSetting(
+                properties.get(COMPILED_ACL_CACHE_SIZE), CompiledPermissionCache.DEFAULT_MAX_SIZE));
+        // the format rows are written in, leave at 1 while servers that can only read that format share the database.
+        rowFormat = Types.checkRowFormat(StorageClientUtils.getSetting(properties.get(ROW_FORMAT),
+                Types.DEFAULT_ROW_FORMAT));
+        Set<String> columnFamilies = Sets.newHashSet();
+        for (String columnFamily : StorageClientUtils.getSetting(
+                properties.get(COMPRESSED_COLUMN_FAMILIES), new String[0])) {
+            if (StringUtils.isNotBlank(columnFamily)) {
+                columnFamilies.add(columnFamily.trim());
+            }
+        }
+        compressedColumnFamilies = ImmutableSet.copyOf(columnFamilies);
+        compressionThreshold = StorageClientUtils.getSetting(
+                properties.get(COMPRESSION_THRESHOLD), Types.DEFAULT_COMPRESSION_THRESHOLD);
+        if (compressedColumnFamilies.size() > 0) {
+            if (rowFormat == Types.ROW_FORMAT_V2) {
+                LOGGER.info("Compressing rows over {} bytes in column families {} ",
+                        compressionThreshold, compressedColumnFamilies);
+            } else {
+                LOGGER.warn("Rows in column families {} will not be compressed, compression "
+                        + "needs row-format = 2 ", compressedColumnFamilies);
+            }
+        }
+        storageStats.register();
 
     }
 
 
     protected abstract PoolableObjectFactory getConnectionPoolFactory();
 
+    /**
+     * @return the format that clients of this pool write rows in.
+     */
+    public int getRowFormat() {
+        return rowFormat;
+    }
+
+    /**
+     * @return the size in bytes above which rows of a column family are
+     *         compressed when they are written, or
+     *         {@link Types#NOT_COMPRESSED} if they are not compressed.
+     */
+    public int getCompressionThreshold(String columnFamily) {
+        if (rowFormat == Types.ROW_FORMAT_V2 && compressedColumnFamilies.contains(columnFamily)) {
+            return compressionThreshold;
+        }
+        return Types.NOT_COMPRESSED;
+    }
+
+    /**
+     * @return the threads that write the bodies of the clients of this pool,
+     *         created when first needed and shut down with the pool.
+     */
+    public synchronized ExecutorService getWriteExecutor() {
+        if (writeExecutor == null) {
+            writeExecutor = BlockSetContentHelper.newWriteExecutor();
+        }
+        return writeExecutor;
+    }
+
+    /**
+     * @return the write statistics of the clients of this pool.
+     */
+    public StorageStats getStorageStats() {
+        return storageStats;
+    }
+
     @Deactivate
     public void deactivate(Map<String, Object> properties) {
         try {
             pool.clear();
             pool.close();
+            synchronized (this) {
+                if (writeExecutor != null) {
+                    // writes already submitted complete.
+                    writeExecutor.shutdown();
+                    writeExecutor = null;
+                }
+            }
+            storageStats.unregister();
             LOGGER.debug("Sparse Map Content client pool closed ");
         } catch (Exception e) {
             LOGGER.error("Failed to close pool ", e);
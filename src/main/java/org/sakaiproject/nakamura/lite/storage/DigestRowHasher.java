@@ -0,0 +1,185 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.storage;
+
+import com.google.common.collect.Maps;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Generates row ids by digesting keySpace:columnFamily:key as UTF-8 and
+ * encoding the digest as unpadded URL safe Base64, producing exactly the same
+ * ids as {@link org.sakaiproject.nakamura.api.lite.StorageClientUtils#encode(byte[])}
+ * over {@link MessageDigest#digest(byte[])}. Each thread keeps its own digest
+ * and buffers, so after warm up the only allocation per hash is the resulting
+ * String. Instances are shared per algorithm and are thread safe.
+ */
+public class DigestRowHasher implements RowHasher {
+
+    private static final char[] BASE64_URL_SAFE = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_"
+            .toCharArray();
+
+    private static final ConcurrentMap<String, DigestRowHasher> INSTANCES = Maps
+            .newConcurrentHashMap();
+
+    /**
+     * Per thread hashing state.
+     */
+    private static class HashState {
+        private MessageDigest digest;
+        private byte[] input = new byte[256];
+        private byte[] hash;
+        private char[] encoded;
+
+        private HashState(MessageDigest digest) {
+            this.digest = digest;
+            this.hash = new byte[digest.getDigestLength()];
+            this.encoded = new char[(hash.length * 4 + 2) / 3];
+        }
+    }
+
+    private final String algorithm;
+    private final ThreadLocal<HashState> state = new ThreadLocal<HashState>() {
+        @Override
+        protected HashState initialValue() {
+            try {
+                return new HashState(MessageDigest.getInstance(algorithm));
+            } catch (NoSuchAlgorithmException e) {
+                // checked when the hasher was created.
+                throw new IllegalStateException(e.getMessage(), e);
+            }
+        }
+    };
+
+    /**
+     * @param algorithm the name of the digest algorithm, eg SHA1 or MD5
+     * @return the shared hasher for the algorithm.
+     * @throws NoSuchAlgorithmException if the algorithm is not available.
+     */
+    public static DigestRowHasher getInstance(String algorithm) throws NoSuchAlgorithmException {
+        DigestRowHasher hasher = INSTANCES.get(algorithm);
+        if (hasher == null) {
+            hasher = new DigestRowHasher(algorithm);
+            DigestRowHasher existing = INSTANCES.putIfAbsent(algorithm, hasher);
+            if (existing != null) {
+                hasher = existing;
+            }
+        }
+        return hasher;
+    }
+
+    private DigestRowHasher(String algorithm) throws NoSuchAlgorithmException {
+        MessageDigest.getInstance(algorithm);
+        this.algorithm = algorithm;
+    }
+
+    public String rowHash(String keySpace, String columnFamily, String key) {
+        HashState s = state.get();
+        int maxLength = (keySpace.length() + columnFamily.length() + key.length()) * 3 + 2;
+        if (s.input.length < maxLength) {
+            s.input = new byte[maxLength];
+        }
+        byte[] input = s.input;
+        int n = encodeUTF8(keySpace, input, 0);
+        input[n++] = ':';
+        n = encodeUTF8(columnFamily, input, n);
+        input[n++] = ':';
+        n = encodeUTF8(key, input, n);
+
+        MessageDigest digest = s.digest;
+        digest.reset();
+        digest.update(input, 0, n);
+        byte[] hash = s.hash;
+        try {
+            digest.digest(hash, 0, hash.length);
+        } catch (DigestException e) {
+            // cant happen, the buffer is always the digest length.
+            throw new IllegalStateException(e.getMessage(), e);
+        }
+        return new String(s.encoded, 0, encodeBase64(hash, s.encoded));
+    }
+
+    /**
+     * Encode a String as UTF-8 in the same way as String.getBytes("UTF-8"),
+     * including the replacement of unpaired surrogates with '?'.
+     * @return the offset after the last byte written.
+     */
+    private static int encodeUTF8(String s, byte[] out, int offset) {
+        int n = offset;
+        int len = s.length();
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                out[n++] = (byte) c;
+            } else if (c < 0x800) {
+                out[n++] = (byte) (0xc0 | (c >> 6));
+                out[n++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < len
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                out[n++] = (byte) (0xf0 | (cp >> 18));
+                out[n++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                out[n++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                out[n++] = (byte) (0x80 | (cp & 0x3f));
+            } else if (Character.isHighSurrogate(c) || Character.isLowSurrogate(c)) {
+                out[n++] = '?';
+            } else {
+                out[n++] = (byte) (0xe0 | (c >> 12));
+                out[n++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                out[n++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Encode bytes as unpadded URL safe Base64.
+     * @return the number of chars written.
+     */
+    private static int encodeBase64(byte[] in, char[] out) {
+        int n = 0;
+        int i = 0;
+        int full = in.length - in.length % 3;
+        while (i < full) {
+            int b = ((in[i++] & 0xff) << 16) | ((in[i++] & 0xff) << 8) | (in[i++] & 0xff);
+            out[n++] = BASE64_URL_SAFE[(b >> 18) & 0x3f];
+            out[n++] = BASE64_URL_SAFE[(b >> 12) & 0x3f];
+            out[n++] = BASE64_URL_SAFE[(b >> 6) & 0x3f];
+            out[n++] = BASE64_URL_SAFE[b & 0x3f];
+        }
+        int remaining = in.length - full;
+        if (remaining == 1) {
+            int b = (in[i] & 0xff) << 16;
+            out[n++] = BASE64_URL_SAFE[(b >> 18) & 0x3f];
+            out[n++] = BASE64_URL_SAFE[(b >> 12) & 0x3f];
+        } else if (remaining == 2) {
+            int b = ((in[i] & 0xff) << 16) | ((in[i + 1] & 0xff) << 8);
+            out[n++] = BASE64_URL_SAFE[(b >> 18) & 0x3f];
+            out[n++] = BASE64_URL_SAFE[(b >> 12) & 0x3f];
+            out[n++] = BASE64_URL_SAFE[(b >> 6) & 0x3f];
+        }
+        return n;
+    }
+
+    public String getAlgorithm() {
+        return algorithm;
+    }
+}
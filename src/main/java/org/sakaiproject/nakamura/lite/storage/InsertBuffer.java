@@ -0,0 +1,188 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.storage;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import org.sakaiproject.nakamura.api.lite.CacheHolder;
+import org.sakaiproject.nakamura.api.lite.StorageCacheManager;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.lite.CacheInvalidator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * A write behind buffer for bulk loading. Row mutations are coalesced in
+ * memory and written to the {@link StorageClient} with
+ * {@link StorageClient#insertAll(String, String, Map)}. Flushing only happens
+ * on {@link #insert(String, String, String, Map)}, when the buffer then holds
+ * flush-size rows or the oldest buffered mutation is older than
+ * flush-interval ms, and on {@link #flush()} or {@link #close()}. There is no
+ * timer, so rows stay buffered while no inserts are made. Buffered rows are
+ * not seen by readers until they are flushed, when they are invalidated in
+ * the caches of the {@link StorageCacheManager} if one is given, so it should
+ * only be used for bulk operations such as provisioning or migration, and like
+ * the StorageClient it wraps it is not thread safe. Callers must call {@link #flush()} or {@link #close()} when they
+ * are done.
+ */
+public class InsertBuffer {
+
+    public static final String CONFIG_FLUSH_SIZE = "insert-buffer-flush-size";
+    public static final String CONFIG_FLUSH_INTERVAL = "insert-buffer-flush-interval";
+    public static final int DEFAULT_FLUSH_SIZE = 500;
+    public static final long DEFAULT_FLUSH_INTERVAL = 1000L;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(InsertBuffer.class);
+
+    private StorageClient client;
+    private List<Map<String, CacheHolder>> caches = Lists.newArrayList();
+    private int flushSize;
+    private long flushInterval;
+    /**
+     * Buffered rows keyed by keyspace:columnfamily and then by row key.
+     */
+    private Map<String, Map<String, Map<String, Object>>> buffer = Maps.newLinkedHashMap();
+    private int bufferedRows;
+    private long firstBuffered;
+
+    public InsertBuffer(StorageClient client, Map<String, Object> properties) {
+        this(client, null, properties);
+    }
+
+    /**
+     * @param storageCacheManager
+     *            the caches rows are invalidated in when they are flushed,
+     *            may be null.
+     */
+    public InsertBuffer(StorageClient client, StorageCacheManager storageCacheManager,
+            Map<String, Object> properties) {
+        this(client, storageCacheManager, StorageClientUtils.getSetting(
+                properties.get(CONFIG_FLUSH_SIZE), DEFAULT_FLUSH_SIZE), StorageClientUtils
+                .getSetting(properties.get(CONFIG_FLUSH_INTERVAL), DEFAULT_FLUSH_INTERVAL));
+    }
+
+    public InsertBuffer(StorageClient client, int flushSize, long flushInterval) {
+        this(client, null, flushSize, flushInterval);
+    }
+
+    public InsertBuffer(StorageClient client, StorageCacheManager storageCacheManager,
+            int flushSize, long flushInterval) {
+        this.client = client;
+        this.flushSize = flushSize;
+        this.flushInterval = flushInterval;
+        if (storageCacheManager != null) {
+            addCache(storageCacheManager.getAccessControlCache());
+            addCache(storageCacheManager.getAuthorizableCache());
+            addCache(storageCacheManager.getContentCache());
+        }
+    }
+
+    private void addCache(Map<String, CacheHolder> cache) {
+        // the caches may be one and the same.
+        for (Map<String, CacheHolder> c : caches) {
+            if (c == cache) {
+                return;
+            }
+        }
+        if (cache != null) {
+            caches.add(cache);
+        }
+    }
+
+    /**
+     * Buffer a row mutation, with the same semantics as
+     * {@link StorageClient#insert(String, String, String, Map, boolean)}.
+     * Mutations to a row that is already buffered are merged into it, then the
+     * buffer is flushed if it is full or its oldest mutation has waited
+     * flush-interval ms.
+     * @param keySpace
+     * @param columnFamily
+     * @param key
+     * @param values
+     * @throws StorageClientException if the buffer was flushed and the flush failed.
+     */
+    public void insert(String keySpace, String columnFamily, String key,
+            Map<String, Object> values) throws StorageClientException {
+        String group = keySpace + ":" + columnFamily;
+        Map<String, Map<String, Object>> rows = buffer.get(group);
+        if (rows == null) {
+            rows = Maps.newLinkedHashMap();
+            buffer.put(group, rows);
+        }
+        Map<String, Object> row = rows.get(key);
+        if (row == null) {
+            row = Maps.newHashMap();
+            rows.put(key, row);
+            if (bufferedRows == 0) {
+                firstBuffered = System.currentTimeMillis();
+            }
+            bufferedRows++;
+        }
+        row.putAll(values);
+        if (bufferedRows >= flushSize
+                || System.currentTimeMillis() - firstBuffered >= flushInterval) {
+            flush();
+        }
+    }
+
+    /**
+     * Write all buffered rows to the store.
+     * @throws StorageClientException
+     */
+    public void flush() throws StorageClientException {
+        if (bufferedRows == 0) {
+            return;
+        }
+        Map<String, Map<String, Map<String, Object>>> toWrite = buffer;
+        int nrows = bufferedRows;
+        buffer = Maps.newLinkedHashMap();
+        bufferedRows = 0;
+        long t = System.currentTimeMillis();
+        for (Entry<String, Map<String, Map<String, Object>>> group : toWrite.entrySet()) {
+            String[] ksCf = group.getKey().split(":", 2);
+            client.insertAll(ksCf[0], ksCf[1], group.getValue());
+            for (Map<String, CacheHolder> cache : caches) {
+                for (String key : group.getValue().keySet()) {
+                    CacheInvalidator.invalidate(cache, ksCf[0], ksCf[1], key);
+                }
+            }
+        }
+        LOGGER.debug("Flushed {} rows in {} ms ", nrows, (System.currentTimeMillis() - t));
+    }
+
+    /**
+     * @return the number of rows waiting to be written.
+     */
+    public int size() {
+        return bufferedRows;
+    }
+
+    /**
+     * Flush any remaining rows.
+     * @throws StorageClientException
+     */
+    public void close() throws StorageClientException {
+        flush();
+    }
+}
@@ -0,0 +1,353 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.storage;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A concurrent, bounded LRU map. Keys are striped over a number of segments,
+ * each of which is an access ordered map guarded by its own lock, so
+ * contention is limited to threads hitting the same segment and eviction
+ * removes the least recently used entry of a segment in constant time. The
+ * ordering is approximate over the whole map, since each segment evicts
+ * independently. The map may also be bounded by weight, normally an estimate
+ * of the size in bytes, using a {@link Weigher}. Null keys and values are not
+ * supported. The collection views are snapshots.
+ *
+ * @param <K>
+ * @param <V>
+ */
+public class SegmentedLRUMap<K, V> implements Map<K, V> {
+
+    /**
+     * Calculates the weight of a cache entry.
+     *
+     * @param <K>
+     * @param <V>
+     */
+    public interface Weigher<K, V> {
+        /**
+         * @return the weight of the entry, must not change while the entry is
+         *         in the map.
+         */
+        int weigh(K key, V value);
+    }
+
+    public static final int DEFAULT_SEGMENTS = 16;
+
+    private static class Weighted<V> {
+        private V value;
+        private int weight;
+
+        private Weighted(V value, int weight) {
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    private static class Segment<K, V> extends LinkedHashMap<K, Weighted<V>> {
+
+        private static final long serialVersionUID = 2839611893813932539L;
+        private final int maxSegmentSize;
+        private final long maxSegmentWeight;
+        private final Weigher<? super K, ? super V> weigher;
+        private final AtomicLong evictions;
+        private long weight;
+
+        private Segment(int maxSegmentSize, long maxSegmentWeight,
+                Weigher<? super K, ? super V> weigher, AtomicLong evictions) {
+            super(16, 0.75f, true);
+            this.maxSegmentSize = maxSegmentSize;
+            this.maxSegmentWeight = maxSegmentWeight;
+            this.weigher = weigher;
+            this.evictions = evictions;
+        }
+
+        private synchronized V getValue(Object key) {
+            Weighted<V> w = super.get(key);
+            if (w == null) {
+                return null;
+            }
+            return w.value;
+        }
+
+        private synchronized V putValue(K key, V value) {
+            int entryWeight = weigher == null ? 0 : weigher.weigh(key, value);
+            Weighted<V> previous = super.put(key, new Weighted<V>(value, entryWeight));
+            weight += entryWeight;
+            if (previous != null) {
+                weight -= previous.weight;
+            }
+            // the eldest entry is at the head, so each eviction is O(1)
+            Iterator<Weighted<V>> eldest = values().iterator();
+            while (size() > 1 && (size() > maxSegmentSize || weight > maxSegmentWeight)) {
+                Weighted<V> evicted = eldest.next();
+                eldest.remove();
+                weight -= evicted.weight;
+                evictions.incrementAndGet();
+            }
+            if (previous == null) {
+                return null;
+            }
+            return previous.value;
+        }
+
+        private synchronized V removeValue(Object key) {
+            Weighted<V> w = super.remove(key);
+            if (w == null) {
+                return null;
+            }
+            weight -= w.weight;
+            return w.value;
+        }
+
+        private synchronized boolean containsValueObject(Object value) {
+            for (Weighted<V> w : values()) {
+                if (w.value.equals(value)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private synchronized void clearValues() {
+            super.clear();
+            weight = 0;
+        }
+
+        private synchronized int sizeValues() {
+            return super.size();
+        }
+
+        private synchronized long getWeight() {
+            return weight;
+        }
+
+        private synchronized void snapshot(Map<K, V> target) {
+            for (Entry<K, Weighted<V>> e : entrySet()) {
+                target.put(e.getKey(), e.getValue().value);
+            }
+        }
+    }
+
+    private final Segment<K, V>[] segments;
+    private final int segmentMask;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param maxSize the maximum number of entries.
+     */
+    public SegmentedLRUMap(int maxSize) {
+        this(maxSize, DEFAULT_SEGMENTS, 0, null);
+    }
+
+    /**
+     * @param maxSize the maximum number of entries.
+     * @param concurrency the number of segments, rounded up to a power of 2.
+     * @param maxWeight the maximum total weight, ignored if 0 or there is no
+     *        weigher.
+     * @param weigher the weigher, or null if entries are not weighed.
+     */
+    public SegmentedLRUMap(int maxSize, int concurrency, long maxWeight,
+            Weigher<? super K, ? super V> weigher) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("Max size must be greater than 0 " + maxSize);
+        }
+        int nsegments = 1;
+        while (nsegments < concurrency && nsegments < maxSize) {
+            nsegments <<= 1;
+        }
+        int maxSegmentSize = (maxSize + nsegments - 1) / nsegments;
+        long maxSegmentWeight = Long.MAX_VALUE;
+        if (weigher != null && maxWeight > 0) {
+            maxSegmentWeight = (maxWeight + nsegments - 1) / nsegments;
+        }
+        segments = newSegments(nsegments);
+        for (int i = 0; i < nsegments; i++) {
+            segments[i] = new Segment<K, V>(maxSegmentSize, maxSegmentWeight, weigher, evictions);
+        }
+        segmentMask = nsegments - 1;
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private static <K, V> Segment<K, V>[] newSegments(int nsegments) {
+        return new Segment[nsegments];
+    }
+
+    private Segment<K, V> segmentFor(Object key) {
+        int h = key.hashCode();
+        // spread the high bits down, as String hashes are poor in the low bits.
+        h ^= (h >>> 20) ^ (h >>> 12);
+        h ^= (h >>> 7) ^ (h >>> 4);
+        return segments[h & segmentMask];
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment<K, V> s : segments) {
+            size += s.sizeValues();
+        }
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public boolean containsKey(Object key) {
+        Segment<K, V> s = segmentFor(key);
+        synchronized (s) {
+            return s.containsKey(key);
+        }
+    }
+
+    public boolean containsValue(Object value) {
+        for (Segment<K, V> s : segments) {
+            if (s.containsValueObject(value)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public V get(Object key) {
+        V v = segmentFor(key).getValue(key);
+        if (v == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return v;
+    }
+
+    public V put(K key, V value) {
+        if (value == null) {
+            throw new NullPointerException("Null values are not supported, key " + key);
+        }
+        return segmentFor(key).putValue(key, value);
+    }
+
+    public V remove(Object key) {
+        return segmentFor(key).removeValue(key);
+    }
+
+    public void putAll(Map<? extends K, ? extends V> t) {
+        for (Entry<? extends K, ? extends V> e : t.entrySet()) {
+            put(e.getKey(), e.getValue());
+        }
+    }
+
+    public void clear() {
+        for (Segment<K, V> s : segments) {
+            s.clearValues();
+        }
+    }
+
+    private Map<K, V> snapshot() {
+        Map<K, V> snapshot = Maps.newHashMap();
+        for (Segment<K, V> s : segments) {
+            s.snapshot(snapshot);
+        }
+        return snapshot;
+    }
+
+    public Set<K> keySet() {
+        return Sets.newHashSet(snapshot().keySet());
+    }
+
+    public Collection<V> values() {
+        return Lists.newArrayList(snapshot().values());
+    }
+
+    public Set<Entry<K, V>> entrySet() {
+        Set<Entry<K, V>> set = Sets.newHashSet();
+        for (final Entry<K, V> e : snapshot().entrySet()) {
+            set.add(new Entry<K, V>() {
+
+                public K getKey() {
+                    return e.getKey();
+                }
+
+                public V getValue() {
+                    return e.getValue();
+                }
+
+                public V setValue(V value) {
+                    return put(e.getKey(), value);
+                }
+            });
+        }
+        return set;
+    }
+
+    /**
+     * @return the total weight of the entries in the map, 0 if there is no
+     *         weigher.
+     */
+    public long getWeight() {
+        long weight = 0;
+        for (Segment<K, V> s : segments) {
+            weight += s.getWeight();
+        }
+        return weight;
+    }
+
+    /**
+     * @return the number of gets that found a value.
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of gets that did not find a value.
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * @return the number of entries evicted to keep the map within its bounds.
+     */
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    @Override
+    public String toString() {
+        List<String> stats = Lists.newArrayList();
+        stats.add("size=" + size());
+        stats.add("weight=" + getWeight());
+        stats.add("hits=" + getHitCount());
+        stats.add("misses=" + getMissCount());
+        stats.add("evictions=" + getEvictionCount());
+        return "SegmentedLRUMap" + stats;
+    }
+}
@@ -19,6 +19,7 @@ package org.sakaiproject.nakamura.lite.storage;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Collection;
 import java.util.Map;
 
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
@@ -37,18 +38,46 @@ public interface StorageClient {
     Map<String, Object> get(String keySpace, String columnFamily, String key)
             throws StorageClientException;
 
+    /**
+     * Lookup a number of objects by key, in as few round trips to the store as
+     * the implementation allows.
+     * @param keySpace the keyspace to search
+     * @param columnFamily the group of columns we're considering
+     * @param keys the keys of the rows
+     * @return a map of key to the key value pairs in each row, in the order of
+     *         the keys supplied. Rows that do not exist are empty maps, as with
+     *         {@link #get(String, String, String)}
+     * @throws StorageClientException
+     */
+    Map<String, Map<String, Object>> getMany(String keySpace, String columnFamily,
+            Collection<String> keys) throws StorageClientException;
+
     /**
      * Insert or update a row in the store.
      * @param keySpace the keyspace to search
      * @param columnFamily the group of columns we're considering
      * @param key the key of the row
      * @param values the Map of column values to associate with this key
-     * @param probablyNew whether or not the row is probably new
+     * @param probablyNew whether or not the row is probably new, implementations
+     *        that merge the values with the stored row may write a probably new
+     *        row without reading it first.
      * @throws StorageClientException
      */
     void insert(String keySpace, String columnFamily, String key, Map<String, Object> values, boolean probablyNew)
             throws StorageClientException;
 
+    /**
+     * Insert or update a number of rows in the store as a single operation.
+     * Implementations that can, coalesce the writes into batches and commit
+     * them together.
+     * @param keySpace the keyspace to search
+     * @param columnFamily the group of columns we're considering
+     * @param rows a Map of row key to the Map of column values to associate with that key
+     * @throws StorageClientException
+     */
+    void insertAll(String keySpace, String columnFamily, Map<String, Map<String, Object>> rows)
+            throws StorageClientException;
+
     /**
      * Remove a row in the store.
      * @param keySpace the keyspace to search
@@ -75,6 +104,26 @@ public interface StorageClient {
             String contentBlockId, String streamId, Map<String, Object> content) throws StorageClientException,
             AccessDeniedException, IOException;
 
+    /**
+     * Get an {@link InputStream} to read part of a stream of content, without
+     * reading the content before the offset.
+     * @param keySpace the keyspace to search
+     * @param columnFamily the group of columns we're considering
+     * @param contentId the id of the content item
+     * @param contentBlockId the block offset
+     * @param streamId the id of the correct stream for this piece of content
+     * @param content the properties of the content item
+     * @param offset the offset of the first byte to read
+     * @param length the maximum number of bytes to read, -1 to read to the end
+     * @return an stream that will read the range
+     * @throws StorageClientException
+     * @throws AccessDeniedException
+     * @throws IOException
+     */
+    InputStream streamBodyOut(String keySpace, String columnFamily, String contentId,
+            String contentBlockId, String streamId, Map<String, Object> content, long offset,
+            long length) throws StorageClientException, AccessDeniedException, IOException;
+
     /**
      * Write in the body of a piece of content.
      * @param keySpace the keyspace to search
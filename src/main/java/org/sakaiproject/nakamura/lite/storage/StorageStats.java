@@ -0,0 +1,124 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.storage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Statistics for the writes made by the clients of a storage pool. There is
+ * one instance per pool, registered with the platform MBeanServer as
+ * org.sakaiproject.nakamura.lite:type=StorageStats,name=&lt;name&gt; while the
+ * pool is active. The counters are atomic and may be read while they are
+ * being updated.
+ */
+public class StorageStats implements StorageStatsMBean {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(StorageStats.class);
+
+    private final String name;
+    private final AtomicLong inserts = new AtomicLong();
+    private final AtomicLong readsBeforeWriteSkipped = new AtomicLong();
+    private ObjectName objectName;
+
+    public StorageStats(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Register the stats under their name, if nothing else is registered
+     * under it.
+     */
+    public synchronized void register() {
+        if (objectName != null) {
+            return;
+        }
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName on = new ObjectName("org.sakaiproject.nakamura.lite:type=StorageStats,name="
+                    + ObjectName.quote(name));
+            if (!server.isRegistered(on)) {
+                server.registerMBean(this, on);
+                objectName = on;
+            }
+        } catch (JMException e) {
+            LOGGER.warn("Unable to register storage statistics for {}: {}", name, e.getMessage());
+        } catch (SecurityException e) {
+            LOGGER.warn("Unable to register storage statistics for {}: {}", name, e.getMessage());
+        }
+    }
+
+    /**
+     * Unregister the stats, if they were registered.
+     */
+    public synchronized void unregister() {
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (JMException e) {
+                LOGGER.debug("Unable to unregister storage statistics for {}: {}", name,
+                        e.getMessage());
+            }
+            objectName = null;
+        }
+    }
+
+    /**
+     * Record a row written by insert.
+     */
+    public void insert() {
+        inserts.incrementAndGet();
+    }
+
+    /**
+     * Record an insert that wrote a new row without reading it first.
+     */
+    public void readBeforeWriteSkipped() {
+        readsBeforeWriteSkipped.incrementAndGet();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getInsertCount() {
+        return inserts.get();
+    }
+
+    public long getReadBeforeWriteSkippedCount() {
+        return readsBeforeWriteSkipped.get();
+    }
+
+    public void reset() {
+        inserts.set(0);
+        readsBeforeWriteSkipped.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return name + " inserts " + getInsertCount() + " reads before write skipped "
+                + getReadBeforeWriteSkippedCount();
+    }
+}
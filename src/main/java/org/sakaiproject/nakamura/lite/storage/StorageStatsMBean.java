@@ -0,0 +1,45 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.storage;
+
+/**
+ * Management interface for the write statistics of a storage pool.
+ */
+public interface StorageStatsMBean {
+
+    /**
+     * @return the name of the pool.
+     */
+    String getName();
+
+    /**
+     * @return the number of rows written by insert.
+     */
+    long getInsertCount();
+
+    /**
+     * @return the number of inserts of probably new rows that were written
+     *         without reading the stored row first.
+     */
+    long getReadBeforeWriteSkippedCount();
+
+    /**
+     * Reset the counters.
+     */
+    void reset();
+}
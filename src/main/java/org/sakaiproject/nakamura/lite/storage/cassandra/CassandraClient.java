@@ -58,9 +58,11 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -93,7 +95,7 @@ public class CassandraClient extends Client implements StorageClient {
         this.indexColumns = indexColums;
         this.tSocket = tSocket;
         this.pool = pool;
-        contentHelper = new BlockSetContentHelper(this);
+        contentHelper = new BlockSetContentHelper(this, null, pool.getWriteExecutor(), pool);
         blockSize = StorageClientUtils.getSetting(properties.get(CONFIG_BLOCK_SIZE),
                 DEFAULT_BLOCK_SIZE);
         maxChunksPerBlockSet = StorageClientUtils.getSetting(
@@ -138,21 +140,45 @@ public class CassandraClient extends Client implements StorageClient {
             ColumnParent parent = new ColumnParent(columnFamily);
             List<ColumnOrSuperColumn> results = get_slice(keySpace, key, parent, predicate,ConsistencyLevel.ONE);
 
-            for (ColumnOrSuperColumn result : results) {
-                if (result.isSetSuper_column()) {
-                    Map<String, Object> sc = new HashMap<String, Object>();
+            loadRow(row, results);
 
-                    for (Column column : result.super_column.columns) {
-                        Object columnValue = Types.toObject(column.value);
-                        sc.put(new String(column.name, "UTF-8"), columnValue);
-                    }
-                    row.put(new String(result.super_column.name, "UTF-8"), sc);
-                } else {
-                    row.put(new String(result.column.name, "UTF-8"),
-                            Types.toObject(result.column.value));
+        } catch (InvalidRequestException e) {
+            throw new StorageClientException(e.getMessage(), e);
+        } catch (UnavailableException e) {
+            throw new StorageClientException(e.getMessage(), e);
+        } catch (TimedOutException e) {
+            throw new StorageClientException(e.getMessage(), e);
+        } catch (TException e) {
+            throw new StorageClientException(e.getMessage(), e);
+        } catch (IOException e) {
+            LOGGER.debug(e.getMessage());
+        }
+        return row;
+    }
+
+    public Map<String, Map<String, Object>> getMany(String keySpace, String columnFamily,
+            Collection<String> keys) throws StorageClientException {
+        Map<String, Map<String, Object>> rows = new LinkedHashMap<String, Map<String, Object>>();
+        for (String key : keys) {
+            rows.put(key, new HashMap<String, Object>());
+        }
+        try {
+            SlicePredicate predicate = new SlicePredicate();
+            SliceRange sliceRange = new SliceRange();
+            sliceRange.setStart(new byte[0]);
+            sliceRange.setFinish(new byte[0]);
+            predicate.setSlice_range(sliceRange);
+
+            ColumnParent parent = new ColumnParent(columnFamily);
+            Map<String, List<ColumnOrSuperColumn>> results = multiget_slice(keySpace,
+                    new ArrayList<String>(rows.keySet()), parent, predicate, ConsistencyLevel.ONE);
+
+            for (Entry<String, List<ColumnOrSuperColumn>> result : results.entrySet()) {
+                Map<String, Object> row = rows.get(result.getKey());
+                if (row != null && result.getValue() != null) {
+                    loadRow(row, result.getValue());
                 }
             }
-
         } catch (InvalidRequestException e) {
             throw new StorageClientException(e.getMessage(), e);
         } catch (UnavailableException e) {
@@ -164,7 +190,25 @@ public class CassandraClient extends Client implements StorageClient {
         } catch (IOException e) {
             LOGGER.debug(e.getMessage());
         }
-        return row;
+        return rows;
+    }
+
+    private void loadRow(Map<String, Object> row, List<ColumnOrSuperColumn> results)
+            throws IOException {
+        for (ColumnOrSuperColumn result : results) {
+            if (result.isSetSuper_column()) {
+                Map<String, Object> sc = new HashMap<String, Object>();
+
+                for (Column column : result.super_column.columns) {
+                    Object columnValue = Types.toObject(column.value);
+                    sc.put(new String(column.name, "UTF-8"), columnValue);
+                }
+                row.put(new String(result.super_column.name, "UTF-8"), sc);
+            } else {
+                row.put(new String(result.column.name, "UTF-8"),
+                        Types.toObject(result.column.value));
+            }
+        }
     }
 
     public void insert(String keySpace, String columnFamily, String key, Map<String, Object> values, boolean probablyNew)
@@ -230,6 +274,13 @@ public class CassandraClient extends Client implements StorageClient {
         }
     }
 
+    public void insertAll(String keySpace, String columnFamily,
+            Map<String, Map<String, Object>> rows) throws StorageClientException {
+        for (Entry<String, Map<String, Object>> row : rows.entrySet()) {
+            insert(keySpace, columnFamily, row.getKey(), row.getValue(), false);
+        }
+    }
+
     public void remove(String keySpace, String columnFamily, String key)
             throws StorageClientException {
       if(!columnFamily.equals(INDEX_COLUMN_FAMILY)){
@@ -283,6 +334,13 @@ public class CassandraClient extends Client implements StorageClient {
         return contentHelper.readBody(keySpace, contentColumnFamily, contentBlockId, streamId, nBlocks);
     }
 
+    public InputStream streamBodyOut(String keySpace, String contentColumnFamily, String contentId,
+            String contentBlockId, String streamId, Map<String, Object> content, long offset,
+            long length) throws StorageClientException, AccessDeniedException {
+        return contentHelper.readBody(keySpace, contentColumnFamily, contentBlockId, streamId,
+                content, offset, length);
+    }
+
     public DisposableIterator<Map<String, Object>> find(String keySpace,
             String authorizableColumnFamily, Map<String, Object> properties) throws StorageClientException {
       final String fKeyspace = keySpace;
@@ -39,9 +39,10 @@ import org.sakaiproject.nakamura.api.lite.ClientPoolException;
 import org.sakaiproject.nakamura.api.lite.StorageCacheManager;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.lite.CacheStats;
 import org.sakaiproject.nakamura.lite.ConfigurationImpl;
 import org.sakaiproject.nakamura.lite.storage.AbstractClientConnectionPool;
-import org.sakaiproject.nakamura.lite.storage.ConcurrentLRUMap;
+import org.sakaiproject.nakamura.lite.storage.SegmentedLRUMap;
 import org.sakaiproject.nakamura.lite.storage.StorageClientPool;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -213,7 +214,8 @@ public class CassandraClientPool extends AbstractClientConnectionPool {
              } 
    
      
-      sharedCache = new ConcurrentLRUMap<String, CacheHolder>(10000);
+      sharedCache = new SegmentedLRUMap<String, CacheHolder>(10000);
+      CacheStats.getInstance(sharedCache, "CassandraClientPool");
       defaultStorageManagerCache = new StorageCacheManager() {
           
           public Map<String, CacheHolder> getContentCache() {
@@ -234,6 +236,7 @@ public class CassandraClientPool extends AbstractClientConnectionPool {
     @Deactivate
     public void deactivate(Map<String, Object> properties) {
         super.deactivate(properties);
+        CacheStats.unregister(sharedCache);
     }
 
     @Override
@@ -50,9 +50,11 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -81,7 +83,7 @@ public class HBaseStorageClient implements StorageClient {
       HTablePool htab) {
     this.pool = pool;
     this.htab = htab;
-    contentHelper = new BlockSetContentHelper(this);
+    contentHelper = new BlockSetContentHelper(this, null, pool.getWriteExecutor(), pool);
     blockSize = StorageClientUtils.getSetting(properties.get(CONFIG_BLOCK_SIZE),
         DEFAULT_BLOCK_SIZE);
     maxChunksPerBlockSet = StorageClientUtils.getSetting(
@@ -162,6 +164,54 @@ public class HBaseStorageClient implements StorageClient {
     return resultRow;
   }
 
+  public Map<String, Map<String, Object>> getMany(String keySpace, String columnFamily,
+      Collection<String> keys) throws StorageClientException {
+    Map<String, Map<String, Object>> resultRows = new LinkedHashMap<String, Map<String, Object>>();
+    List<String> keyList = new ArrayList<String>(keys);
+    HTableInterface table = null;
+    try {
+      byte[] family = columnFamily.getBytes("UTF-8");
+      List<Get> gets = new ArrayList<Get>(keyList.size());
+      for (String key : keyList) {
+        resultRows.put(key, new HashMap<String, Object>());
+        gets.add(new Get(key.getBytes("UTF-8")));
+      }
+      table = htab.getTable(columnFamily);
+      Result[] rowResults = table.get(gets);
+      for (int i = 0; i < rowResults.length; i++) {
+        if (rowResults[i] == null) {
+          continue;
+        }
+        NavigableMap<byte[], byte[]> row = rowResults[i].getFamilyMap(family);
+        if (row == null) {
+          continue;
+        }
+        Map<String, Object> resultRow = resultRows.get(keyList.get(i));
+        for (Entry<byte[], byte[]> value : row.entrySet()) {
+          resultRow.put(new String(value.getKey()), Types.toObject(value.getValue()));
+        }
+      }
+    } catch (UnsupportedEncodingException e1) {
+      LOGGER.debug(e1.getMessage());
+    } catch (IOException e1) {
+      LOGGER.debug(e1.getMessage());
+    } catch (Exception e) {
+      LOGGER.debug(e.getMessage());
+    } finally {
+      if (htab != null) {
+        htab.putTable(table);
+      }
+    }
+    return resultRows;
+  }
+
+  public void insertAll(String keySpace, String columnFamily,
+        Map<String, Map<String, Object>> rows) throws StorageClientException {
+    for (Entry<String, Map<String, Object>> row : rows.entrySet()) {
+      insert(keySpace, columnFamily, row.getKey(), row.getValue(), false);
+    }
+  }
+
   public void remove(String keySpace, String columnFamily, String key)
       throws StorageClientException {
     HTableInterface indexTable = null;
@@ -256,6 +306,14 @@ public class HBaseStorageClient implements StorageClient {
         streamId, nBlocks);
   }
 
+  public InputStream streamBodyOut(String keySpace, String contentColumnFamily,
+      String contentId, String contentBlockId, String streamId,
+      Map<String, Object> content, long offset, long length) throws StorageClientException,
+      AccessDeniedException {
+    return contentHelper.readBody(keySpace, contentColumnFamily, contentBlockId,
+        streamId, content, offset, length);
+  }
+
   public DisposableIterator<Map<String, Object>> find(String keySpace,
       String authorizableColumnFamily, Map<String, Object> properties)
       throws StorageClientException {
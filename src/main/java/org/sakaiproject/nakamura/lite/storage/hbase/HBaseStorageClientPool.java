@@ -29,8 +29,9 @@ import org.apache.hadoop.hbase.client.HTablePool;
 import org.sakaiproject.nakamura.api.lite.CacheHolder;
 import org.sakaiproject.nakamura.api.lite.ClientPoolException;
 import org.sakaiproject.nakamura.api.lite.StorageCacheManager;
+import org.sakaiproject.nakamura.lite.CacheStats;
 import org.sakaiproject.nakamura.lite.storage.AbstractClientConnectionPool;
-import org.sakaiproject.nakamura.lite.storage.ConcurrentLRUMap;
+import org.sakaiproject.nakamura.lite.storage.SegmentedLRUMap;
 import org.sakaiproject.nakamura.lite.storage.hbase.HBaseStorageClient;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -134,7 +135,8 @@ public class HBaseStorageClientPool extends AbstractClientConnectionPool {
       }
     }
 
-    sharedCache = new ConcurrentLRUMap<String, CacheHolder>(10000);
+    sharedCache = new SegmentedLRUMap<String, CacheHolder>(10000);
+    CacheStats.getInstance(sharedCache, "HBaseStorageClientPool");
     defaultStorageManagerCache = new StorageCacheManager() {
 
       public Map<String, CacheHolder> getContentCache() {
@@ -155,6 +157,7 @@ public class HBaseStorageClientPool extends AbstractClientConnectionPool {
   @Deactivate
   public void deactivate(Map<String, Object> properties) {
     super.deactivate(properties);
+    CacheStats.unregister(sharedCache);
   }
 
   public StorageCacheManager getStorageCacheManager() {
@@ -18,12 +18,11 @@
 package org.sakaiproject.nakamura.lite.storage.jdbc;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.UTFDataFormatException;
-import java.io.UnsupportedEncodingException;
-import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
@@ -33,6 +32,7 @@ import java.sql.SQLException;
 import java.sql.Statement;
 import java.text.MessageFormat;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -52,11 +52,13 @@ import org.sakaiproject.nakamura.api.lite.util.PreemptiveIterator;
 import org.sakaiproject.nakamura.lite.content.FileStreamContentHelper;
 import org.sakaiproject.nakamura.lite.content.InternalContent;
 import org.sakaiproject.nakamura.lite.content.StreamedContentHelper;
+import org.sakaiproject.nakamura.lite.storage.DigestRowHasher;
 import org.sakaiproject.nakamura.lite.storage.Disposable;
 import org.sakaiproject.nakamura.lite.storage.DisposableIterator;
 import org.sakaiproject.nakamura.lite.storage.Disposer;
 import org.sakaiproject.nakamura.lite.storage.RowHasher;
 import org.sakaiproject.nakamura.lite.storage.StorageClient;
+import org.sakaiproject.nakamura.lite.types.RowBuffer;
 import org.sakaiproject.nakamura.lite.types.Types;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -87,6 +89,7 @@ private static final String INVALID_DATA_ERROR = "Data invalid for storage.";
 
     private static final String SQL_BLOCK_DELETE_ROW = "block-delete-row";
     private static final String SQL_BLOCK_SELECT_ROW = "block-select-row";
+    private static final String SQL_BLOCK_SELECT_ROWS = "block-select-rows";
     private static final String SQL_BLOCK_INSERT_ROW = "block-insert-row";
     private static final String SQL_BLOCK_UPDATE_ROW = "block-update-row";
 
@@ -95,6 +98,7 @@ private static final String INVALID_DATA_ERROR = "Data invalid for storage.";
     private static final String JDBC_SUPPORT_LEVEL = "jdbc-support-level";
     private static final String SQL_STATEMENT_SEQUENCE = "sql-statement-sequence";
     private static final String UPDATE_FIRST_SEQUENCE = "updateFirst";
+    private static final String MULTI_GET_SIZE = "multi-get-size";
     /**
      * A set of columns that are indexed to allow operations within the driver.
      */
@@ -119,10 +123,12 @@ private static final String INVALID_DATA_ERROR = "Data invalid for storage.";
     private Exception closed;
     private Exception passivate;
     private String rowidHash;
+    private DigestRowHasher rowHasher;
     private Map<String, AtomicInteger> counters = Maps.newConcurrentHashMap();
     private Set<String> indexColumns;
     private long slowQueryThreshold;
     private long verySlowQueryThreshold;
+    private int multiGetSize;
 
     public JDBCStorageClient(JDBCStorageClientPool jdbcStorageClientConnectionPool,
             Map<String, Object> properties, Map<String, Object> sqlConfig, Set<String> indexColumns) throws SQLException,
@@ -140,7 +146,8 @@ private static final String INVALID_DATA_ERROR = "Data invalid for storage.";
             throw new StorageClientException("Null Index Colums, cant create Client");
         }
         this.jcbcStorageClientConnection = jdbcStorageClientConnectionPool;
-        streamedContentHelper = new FileStreamContentHelper(this, properties);
+        streamedContentHelper = new FileStreamContentHelper(this,
+                jdbcStorageClientConnectionPool, this, properties);
 
         this.sqlConfig = sqlConfig;
         this.indexColumns = indexColumns;
@@ -148,6 +155,7 @@ private static final String INVALID_DATA_ERROR = "Data invalid for storage.";
         if (rowidHash == null) {
             rowidHash = "MD5";
         }
+        rowHasher = DigestRowHasher.getInstance(rowidHash);
         active = true;
         slowQueryThreshold = 50L;
         verySlowQueryThreshold = 100L;
@@ -157,6 +165,10 @@ private static final String INVALID_DATA_ERROR = "Data invalid for storage.";
         if (sqlConfig.containsKey(VERY_SLOW_QUERY_THRESHOLD)) {
             verySlowQueryThreshold = Long.parseLong((String)sqlConfig.get(VERY_SLOW_QUERY_THRESHOLD));
         }
+        multiGetSize = 100;
+        if (sqlConfig.containsKey(MULTI_GET_SIZE)) {
+            multiGetSize = Integer.parseInt((String)sqlConfig.get(MULTI_GET_SIZE));
+        }
     }
 
     public Map<String, Object> get(String keySpace, String columnFamily, String key)
@@ -167,7 +179,7 @@ private static final String INVALID_DATA_ERROR = "Data invalid for storage.";
     }
     private Map<String, Object> internalGet(String keySpace, String columnFamily, String rid) throws StorageClientException {
         ResultSet body = null;
-        Map<String, Object> result = Maps.newHashMap();
+        Map<String, Object> result = null;
         PreparedStatement selectStringRow = null;
         try {
             selectStringRow = getStatement(keySpace, columnFamily, SQL_BLOCK_SELECT_ROW, rid, null);
@@ -178,7 +190,9 @@ private static final String INVALID_DATA_ERROR = "Data invalid for storage.";
             body = selectStringRow.executeQuery();
             inc("B");
             if (body.next()) {
-                Types.loadFromStream(rid, result, body.getBinaryStream(1), columnFamily);
+                result = Types.loadMapFromStream(rid, body.getBinaryStream(1), columnFamily);
+            } else {
+                result = Maps.newHashMap();
             }
         } catch (SQLException e) {
             LOGGER.warn("Failed to perform get operation on  " + keySpace + ":" + columnFamily
@@ -207,27 +221,129 @@ private static final String INVALID_DATA_ERROR = "Data invalid for storage.";
         return result;
     }
 
-    public String rowHash(String keySpace, String columnFamily, String key)
+    public Map<String, Map<String, Object>> getMany(String keySpace, String columnFamily,
+            Collection<String> keys) throws StorageClientException {
+        checkClosed();
+        Map<String, String> rids = Maps.newLinkedHashMap();
+        for (String key : keys) {
+            rids.put(key, rowHash(keySpace, columnFamily, key));
+        }
+        Map<String, Map<String, Object>> rows = internalGetMany(keySpace, columnFamily,
+                rids.values(), null);
+        Map<String, Map<String, Object>> result = Maps.newLinkedHashMap();
+        for (Entry<String, String> e : rids.entrySet()) {
+            result.put(e.getKey(), rows.get(e.getValue()));
+        }
+        return result;
+    }
+
+    /**
+     * Load a set of rows by row id using as few selects as possible. Row ids
+     * are grouped by shard, and each group is loaded in chunks of at most
+     * {@link #multiGetSize} with a single block-select-rows statement. If no
+     * block-select-rows statement is configured the rows are loaded one at a
+     * time.
+     * 
+     * @param keySpace
+     * @param columnFamily
+     * @param rids
+     * @param existing if not null, the row ids of the rows that exist are added to this set.
+     * @return a map of row id to row, missing rows are empty maps.
+     * @throws StorageClientException
+     */
+    private Map<String, Map<String, Object>> internalGetMany(String keySpace,
+            String columnFamily, Collection<String> rids, Set<String> existing)
             throws StorageClientException {
-        MessageDigest hasher;
-        try {
-            hasher = MessageDigest.getInstance(rowidHash);
-        } catch (NoSuchAlgorithmException e1) {
-            throw new StorageClientException("Unable to get hash algorithm " + e1.getMessage(), e1);
+        Map<String, Map<String, Object>> result = Maps.newHashMap();
+        Map<String, List<String>> statementGroups = Maps.newLinkedHashMap();
+        for (String rid : rids) {
+            if (result.containsKey(rid)) {
+                continue;
+            }
+            String statementKey = getStatementKey(keySpace, columnFamily, SQL_BLOCK_SELECT_ROWS, rid);
+            if (statementKey == null) {
+                Map<String, Object> row = internalGet(keySpace, columnFamily, rid);
+                if (existing != null && row.size() > 0) {
+                    existing.add(rid);
+                }
+                result.put(rid, row);
+            } else {
+                Map<String, Object> row = Maps.newHashMap();
+                result.put(rid, row);
+                List<String> group = statementGroups.get(statementKey);
+                if (group == null) {
+                    group = Lists.newArrayList();
+                    statementGroups.put(statementKey, group);
+                }
+                group.add(rid);
+            }
         }
-        String keystring = keySpace + ":" + columnFamily + ":" + key;
-        byte[] ridkey;
+        for (Entry<String, List<String>> group : statementGroups.entrySet()) {
+            List<String> groupRids = group.getValue();
+            for (int s = 0; s < groupRids.size(); s += multiGetSize) {
+                List<String> chunk = groupRids.subList(s,
+                        Math.min(s + multiGetSize, groupRids.size()));
+                loadRows(keySpace, columnFamily, getSql(group.getKey()), chunk, result, existing);
+            }
+        }
+        return result;
+    }
+
+    private void loadRows(String keySpace, String columnFamily, String sqlTemplate,
+            List<String> rids, Map<String, Map<String, Object>> result, Set<String> existing)
+            throws StorageClientException {
+        StringBuilder placeHolders = new StringBuilder();
+        for (int i = 0; i < rids.size(); i++) {
+            if (i > 0) {
+                placeHolders.append(",");
+            }
+            placeHolders.append("?");
+        }
+        String sql = MessageFormat.format(sqlTemplate, placeHolders.toString());
+        ResultSet body = null;
+        PreparedStatement selectRows = null;
         try {
-            ridkey = keystring.getBytes("UTF8");
-        } catch (UnsupportedEncodingException e) {
-            ridkey = keystring.getBytes();
+            selectRows = jcbcStorageClientConnection.getConnection().prepareStatement(sql);
+            inc("getMany");
+            int i = 1;
+            for (String rid : rids) {
+                selectRows.setString(i, rid);
+                i++;
+            }
+            body = selectRows.executeQuery();
+            inc("getMany r");
+            while (body.next()) {
+                String rid = body.getString(1);
+                if (result.containsKey(rid)) {
+                    result.put(rid, Types.loadMapFromStream(rid, body.getBinaryStream(2), columnFamily));
+                    if (existing != null) {
+                        existing.add(rid);
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            LOGGER.warn("Failed to perform get operation on  " + keySpace + ":" + columnFamily
+                    + ":" + rids, e);
+            throw new StorageClientException(e.getMessage(), e);
+        } catch (IOException e) {
+            LOGGER.warn("Failed to perform get operation on  " + keySpace + ":" + columnFamily
+                    + ":" + rids, e);
+            throw new StorageClientException(e.getMessage(), e);
+        } finally {
+            close(body, "getMany r");
+            close(selectRows, "getMany");
         }
-        return StorageClientUtils.encode(hasher.digest(ridkey));
+    }
+
+    public String rowHash(String keySpace, String columnFamily, String key)
+            throws StorageClientException {
+        return rowHasher.rowHash(keySpace, columnFamily, key);
     }
 
     public void insert(String keySpace, String columnFamily, String key, Map<String, Object> values, boolean probablyNew)
             throws StorageClientException {
         checkClosed();
+        jcbcStorageClientConnection.getStorageStats().insert();
 
         Map<String, PreparedStatement> statementCache = Maps.newHashMap();
         boolean autoCommit = true;
@@ -243,35 +359,24 @@ private static final String INVALID_DATA_ERROR = "Data invalid for storage.";
                 }
             }
 
-            Map<String, Object> m = get(keySpace, columnFamily, key);
-            for (Entry<String, Object> e : values.entrySet()) {
-                String k = e.getKey();
-                Object o = e.getValue();
-
-                if (o instanceof RemoveProperty || o == null) {
-                    m.remove(k);
-                } else {
-                    m.put(k, o);
-                }
+            boolean insertFirst = probablyNew && !UPDATE_FIRST_SEQUENCE.equals(getSql(SQL_STATEMENT_SEQUENCE));
+            // when the row is probably new, assume it is empty and only read it if the insert fails.
+            // otherwise the stored row is always read, as any copy the caller holds may be stale.
+            Map<String, Object> m = null;
+            if (insertFirst) {
+                m = Maps.newHashMap();
+            } else {
+                m = get(keySpace, columnFamily, key);
             }
+            mergeValues(m, values);
             LOGGER.debug("Saving {} {} {} ", new Object[]{key, rid, m});
-            if ( probablyNew && !UPDATE_FIRST_SEQUENCE.equals(getSql(SQL_STATEMENT_SEQUENCE))) {
+            if ( insertFirst ) {
                 PreparedStatement insertBlockRow = getStatement(keySpace, columnFamily,
                         SQL_BLOCK_INSERT_ROW, rid, statementCache);
                 insertBlockRow.clearWarnings();
                 insertBlockRow.clearParameters();
                 insertBlockRow.setString(1, rid);
-                InputStream insertStream = null;
-                try {
-                  insertStream = Types.storeMapToStream(rid, m, columnFamily);
-                } catch (UTFDataFormatException e) {
-                  throw new DataFormatException(INVALID_DATA_ERROR, e);
-                }
-              if ("1.5".equals(getSql(JDBC_SUPPORT_LEVEL))) {
-                  insertBlockRow.setBinaryStream(2, insertStream, insertStream.available());
-                } else {
-                  insertBlockRow.setBinaryStream(2, insertStream);
-                }
+                setBlockStream(insertBlockRow, 2, rid, m, columnFamily, false);
                 int rowsInserted = 0;
                 try {
                     rowsInserted = insertBlockRow.executeUpdate();
@@ -279,27 +384,22 @@ private static final String INVALID_DATA_ERROR = "Data invalid for storage.";
                     LOGGER.debug(e.getMessage(),e);
                 }
                 if ( rowsInserted == 0 ) {
+                    // the row was not new after all, merge with what is stored.
+                    m = get(keySpace, columnFamily, key);
+                    mergeValues(m, values);
                     PreparedStatement updateBlockRow = getStatement(keySpace, columnFamily,
                             SQL_BLOCK_UPDATE_ROW, rid, statementCache);
                     updateBlockRow.clearWarnings();
                     updateBlockRow.clearParameters();
                     updateBlockRow.setString(2, rid);
-                  try {
-                    insertStream = Types.storeMapToStream(rid, m, columnFamily);
-                  } catch (UTFDataFormatException e) {
-                    throw new DataFormatException(INVALID_DATA_ERROR, e);
-                  }
-                  if ("1.5".equals(getSql(JDBC_SUPPORT_LEVEL))) {
-                      updateBlockRow.setBinaryStream(1, insertStream, insertStream.available());
-                    } else {
-                      updateBlockRow.setBinaryStream(1, insertStream);
-                    }
+                    setBlockStream(updateBlockRow, 1, rid, m, columnFamily, false);
                     if( updateBlockRow.executeUpdate() == 0) {
                         throw new StorageClientException("Failed to save " + rid);
                     } else {
                         LOGGER.debug("Updated {} ", rid);
                     }
                 } else {
+                    jcbcStorageClientConnection.getStorageStats().readBeforeWriteSkipped();
                     LOGGER.debug("Inserted {} ", rid);                    
                 }                
             } else {
@@ -308,33 +408,14 @@ private static final String INVALID_DATA_ERROR = "Data invalid for storage.";
                 updateBlockRow.clearWarnings();
                 updateBlockRow.clearParameters();
                 updateBlockRow.setString(2, rid);
-              InputStream updateStream = null;
-              try {
-                updateStream = Types.storeMapToStream(rid, m, columnFamily);
-              } catch (UTFDataFormatException e) {
-                  throw new DataFormatException(INVALID_DATA_ERROR, e);
-              }
-              if ("1.5".equals(getSql(JDBC_SUPPORT_LEVEL))) {
-                  updateBlockRow.setBinaryStream(1, updateStream, updateStream.available());
-                } else {
-                  updateBlockRow.setBinaryStream(1, updateStream);
-                }
+                setBlockStream(updateBlockRow, 1, rid, m, columnFamily, false);
                 if (updateBlockRow.executeUpdate() == 0) {
                     PreparedStatement insertBlockRow = getStatement(keySpace, columnFamily,
                             SQL_BLOCK_INSERT_ROW, rid, statementCache);
                     insertBlockRow.clearWarnings();
                     insertBlockRow.clearParameters();
                     insertBlockRow.setString(1, rid);
-                  try {
-                    updateStream = Types.storeMapToStream(rid, m, columnFamily);
-                  } catch (UTFDataFormatException e) {
-                    throw new DataFormatException(INVALID_DATA_ERROR, e);
-                  }
-                  if ("1.5".equals(getSql(JDBC_SUPPORT_LEVEL))) {
-                      insertBlockRow.setBinaryStream(2, updateStream, updateStream.available());
-                    } else {
-                      insertBlockRow.setBinaryStream(2, updateStream);
-                    }
+                    setBlockStream(insertBlockRow, 2, rid, m, columnFamily, false);
                     if (insertBlockRow.executeUpdate() == 0) {
                         throw new StorageClientException("Failed to save " + rid);
                     } else {
@@ -578,6 +659,173 @@ private static final String INVALID_DATA_ERROR = "Data invalid for storage.";
         }
     }
 
+    private void mergeValues(Map<String, Object> m, Map<String, Object> values) {
+        for (Entry<String, Object> e : values.entrySet()) {
+            String k = e.getKey();
+            Object o = e.getValue();
+
+            if (o instanceof RemoveProperty || o == null) {
+                m.remove(k);
+            } else {
+                m.put(k, o);
+            }
+        }
+    }
+
+    public void insertAll(String keySpace, String columnFamily,
+            Map<String, Map<String, Object>> rows) throws StorageClientException {
+        checkClosed();
+        if (rows.size() == 0) {
+            return;
+        }
+        for (Map<String, Object> values : rows.values()) {
+            for (Entry<String, Object> e : values.entrySet()) {
+                if (e.getValue() instanceof byte[]) {
+                    throw new RuntimeException("Invalid content in " + e.getKey()
+                            + ", storing byte[] rather than streaming it");
+                }
+            }
+        }
+        Map<String, PreparedStatement> statementCache = Maps.newHashMap();
+        boolean autoCommit = true;
+        try {
+            autoCommit = startBlock();
+            Map<String, String> rids = Maps.newLinkedHashMap();
+            for (String key : rows.keySet()) {
+                rids.put(key, rowHash(keySpace, columnFamily, key));
+            }
+            // one multi-row select tells us which rows exist and what they contain.
+            Set<String> existing = Sets.newHashSet();
+            Map<String, Map<String, Object>> current = internalGetMany(keySpace, columnFamily,
+                    rids.values(), existing);
+
+            // statements are shared between rows through the statement cache, so each set
+            // holds at most one statement per sql configuration key.
+            Set<PreparedStatement> blockSet = Sets.newLinkedHashSet();
+            Set<PreparedStatement> removeSet = Sets.newLinkedHashSet();
+            Set<PreparedStatement> insertSet = Sets.newLinkedHashSet();
+            for (Entry<String, Map<String, Object>> row : rows.entrySet()) {
+                String key = row.getKey();
+                String rid = rids.get(key);
+                Map<String, Object> values = row.getValue();
+                Map<String, Object> m = current.get(rid);
+                mergeValues(m, values);
+                LOGGER.debug("Batch Saving {} {} {} ", new Object[]{key, rid, m});
+                PreparedStatement blockRow = null;
+                if (existing.contains(rid)) {
+                    blockRow = getStatement(keySpace, columnFamily, SQL_BLOCK_UPDATE_ROW, rid,
+                            statementCache);
+                    setBlockStream(blockRow, 1, rid, m, columnFamily, true);
+                    blockRow.setString(2, rid);
+                } else {
+                    blockRow = getStatement(keySpace, columnFamily, SQL_BLOCK_INSERT_ROW, rid,
+                            statementCache);
+                    blockRow.setString(1, rid);
+                    setBlockStream(blockRow, 2, rid, m, columnFamily, true);
+                }
+                blockRow.addBatch();
+                blockSet.add(blockRow);
+
+                Map<String, Object> indexValues = Maps.newHashMap();
+                for (Entry<String, Object> e : values.entrySet()) {
+                    if (shouldIndex(keySpace, columnFamily, e.getKey())) {
+                        indexValues.put(e.getKey(), e.getValue());
+                    }
+                }
+                if (!StorageClientUtils.isRoot(key)) {
+                    indexValues.put(InternalContent.PARENT_HASH_FIELD, rowHash(keySpace,
+                            columnFamily, StorageClientUtils.getParentObjectPath(key)));
+                }
+                for (Entry<String, Object> e : indexValues.entrySet()) {
+                    String k = e.getKey();
+                    Object o = e.getValue();
+                    // remove all previous values, then insert the new ones.
+                    PreparedStatement removeStringColumn = getStatement(keySpace,
+                            columnFamily, SQL_REMOVE_STRING_COLUMN, rid, statementCache);
+                    removeStringColumn.setString(1, rid);
+                    removeStringColumn.setString(2, k);
+                    removeStringColumn.addBatch();
+                    removeSet.add(removeStringColumn);
+                    if (!(o instanceof RemoveProperty || o == null)) {
+                        Object[] valueMembers = (o instanceof Object[]) ? (Object[]) o : new Object[] { o };
+                        for (Object ov : valueMembers) {
+                            PreparedStatement insertStringColumn = getStatement(keySpace,
+                                    columnFamily, SQL_INSERT_STRING_COLUMN, rid, statementCache);
+                            insertStringColumn.setString(1, ov.toString());
+                            insertStringColumn.setString(2, rid);
+                            insertStringColumn.setString(3, k);
+                            insertStringColumn.addBatch();
+                            insertSet.add(insertStringColumn);
+                        }
+                    }
+                }
+            }
+
+            for (PreparedStatement pst : blockSet) {
+                int[] res = pst.executeBatch();
+                for (int i = 0; i < res.length; i++) {
+                    // Oracle drivers respond with -2 when the number of rows is not known.
+                    if (res[i] == 0) {
+                        throw new StorageClientException("Failed to save batch of " + rows.size()
+                                + " rows in " + keySpace + ":" + columnFamily);
+                    }
+                }
+            }
+            LOGGER.debug("Remove set {}", removeSet);
+            for (PreparedStatement pst : removeSet) {
+                pst.executeBatch();
+            }
+            LOGGER.debug("Insert set {}", insertSet);
+            for (PreparedStatement pst : insertSet) {
+                pst.executeBatch();
+            }
+            endBlock(autoCommit);
+            LOGGER.debug("Saved batch of {} rows in {}:{} ", new Object[] { rows.size(),
+                    keySpace, columnFamily });
+        } catch (SQLException e) {
+            abandonBlock(autoCommit);
+            LOGGER.warn("Failed to perform batch insert/update operation on {}:{} ", new Object[] {
+                    keySpace, columnFamily }, e);
+            throw new StorageClientException(e.getMessage(), e);
+        } catch (IOException e) {
+            abandonBlock(autoCommit);
+            LOGGER.warn("Failed to perform batch insert/update operation on {}:{} ", new Object[] {
+                    keySpace, columnFamily }, e);
+            throw new StorageClientException(e.getMessage(), e);
+        } catch (StorageClientException e) {
+            abandonBlock(autoCommit);
+            throw e;
+        } finally {
+            close(statementCache);
+        }
+    }
+
+    /**
+     * Bind a serialized row to a statement parameter. The row is serialized
+     * into a buffer owned by this thread and bound without copying, unless the
+     * statement is batched, in which case the row must outlive the next
+     * serialization and is copied.
+     */
+    private void setBlockStream(PreparedStatement pst, int parameterIndex, String rid,
+            Map<String, Object> m, String columnFamily, boolean batched) throws SQLException,
+            IOException, StorageClientException {
+        RowBuffer row = null;
+        try {
+            row = Types.storeMapToBuffer(rid, m, columnFamily,
+                    jcbcStorageClientConnection.getRowFormat(),
+                    jcbcStorageClientConnection.getCompressionThreshold(columnFamily));
+        } catch (UTFDataFormatException e) {
+            throw new DataFormatException(INVALID_DATA_ERROR, e);
+        }
+        InputStream blockStream = batched ? new ByteArrayInputStream(row.toByteArray()) : row
+                .toInputStream();
+        if ("1.5".equals(getSql(JDBC_SUPPORT_LEVEL))) {
+            pst.setBinaryStream(parameterIndex, blockStream, row.getLength());
+        } else {
+            pst.setBinaryStream(parameterIndex, blockStream);
+        }
+    }
+
     private void abandonBlock(boolean autoCommit) {
         if (autoCommit) {
             try {
@@ -696,28 +944,47 @@ private static final String INVALID_DATA_ERROR = "Data invalid for storage.";
     private PreparedStatement getStatement(String keySpace, String columnFamily,
             String sqlSelectStringRow, String rid, Map<String, PreparedStatement> statementCache)
             throws SQLException {
+        String k = getStatementKey(keySpace, columnFamily, sqlSelectStringRow, rid);
+        if (k != null) {
+            if (statementCache != null && statementCache.containsKey(k)) {
+                return statementCache.get(k);
+            } else {
+                PreparedStatement pst = jcbcStorageClientConnection.getConnection()
+                        .prepareStatement((String) sqlConfig.get(k));
+                if (statementCache != null) {
+                    inc("cachedStatement");
+                    statementCache.put(k, pst);
+                }
+                return pst;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Locate the most specific SQL configuration key for a statement, taking
+     * into account any sharding on the row id.
+     * 
+     * @param keySpace
+     * @param columnFamily
+     * @param sqlStatementName
+     * @param rid
+     * @return the key in the sql configuration or null if there is none.
+     */
+    private String getStatementKey(String keySpace, String columnFamily,
+            String sqlStatementName, String rid) {
         String shard = rid.substring(0, 1);
         String[] keys = new String[] {
-                sqlSelectStringRow + "." + keySpace + "." + columnFamily + "._" + shard,
-                sqlSelectStringRow + "." + columnFamily + "._" + shard,
-                sqlSelectStringRow + "." + keySpace + "._" + shard,
-                sqlSelectStringRow + "._" + shard,
-                sqlSelectStringRow + "." + keySpace + "." + columnFamily,
-                sqlSelectStringRow + "." + columnFamily, sqlSelectStringRow + "." + keySpace,
-                sqlSelectStringRow };
+                sqlStatementName + "." + keySpace + "." + columnFamily + "._" + shard,
+                sqlStatementName + "." + columnFamily + "._" + shard,
+                sqlStatementName + "." + keySpace + "._" + shard,
+                sqlStatementName + "._" + shard,
+                sqlStatementName + "." + keySpace + "." + columnFamily,
+                sqlStatementName + "." + columnFamily, sqlStatementName + "." + keySpace,
+                sqlStatementName };
         for (String k : keys) {
             if (sqlConfig.containsKey(k)) {
-                if (statementCache != null && statementCache.containsKey(k)) {
-                    return statementCache.get(k);
-                } else {
-                    PreparedStatement pst = jcbcStorageClientConnection.getConnection()
-                            .prepareStatement((String) sqlConfig.get(k));
-                    if (statementCache != null) {
-                        inc("cachedStatement");
-                        statementCache.put(k, pst);
-                    }
-                    return pst;
-                }
+                return k;
             }
         }
         return null;
@@ -887,8 +1154,22 @@ private static final String INVALID_DATA_ERROR = "Data invalid for storage.";
             String contentBlockId, String streamId, Map<String, Object> content)
             throws StorageClientException, AccessDeniedException, IOException {
         checkClosed();
-        final InputStream in = streamedContentHelper.readBody(keySpace, columnFamily,
-                contentBlockId, streamId, content);
+        return registerStream(streamedContentHelper.readBody(keySpace, columnFamily,
+                contentBlockId, streamId, content));
+    }
+
+    public InputStream streamBodyOut(String keySpace, String columnFamily, String contentId,
+            String contentBlockId, String streamId, Map<String, Object> content, long offset,
+            long length) throws StorageClientException, AccessDeniedException, IOException {
+        checkClosed();
+        return registerStream(streamedContentHelper.readBody(keySpace, columnFamily,
+                contentBlockId, streamId, content, offset, length));
+    }
+
+    /**
+     * Make sure a stream is closed when the client is passivated.
+     */
+    private InputStream registerStream(final InputStream in) {
         if ( in != null ) {
             registerDisposable(new Disposable() {
     
@@ -1134,6 +1415,11 @@ private static final String INVALID_DATA_ERROR = "Data invalid for storage.";
 
                 private Map<String, Object> nextValue = Maps.newHashMap();
                 private boolean open = true;
+                private boolean endOfResultSet = false;
+                // row ids read ahead from the result set, loaded with a single multi-row select.
+                private List<String> prefetchedIds = Lists.newArrayList();
+                private Map<String, Map<String, Object>> prefetchedRows = null;
+                private int prefetchPosition = 0;
 
                 @Override
                 protected Map<String, Object> internalNext() {
@@ -1143,19 +1429,26 @@ private static final String INVALID_DATA_ERROR = "Data invalid for storage.";
                 @Override
                 protected boolean internalHasNext() {
                     try {
-                        if (open && rs.next()) {
-                            if ( rawResults ) {
+                        if ( rawResults ) {
+                            if (open && rs.next()) {
                                 Builder<String, Object> b = ImmutableMap.builder();
                                 for  (int i = 1; i <= rsmd.getColumnCount(); i++ ) {
                                     b.put(String.valueOf(i), rs.getObject(i));
                                 }
                                 nextValue = b.build();
-                            } else {
-                               String id = rs.getString(1);
-                               nextValue = internalGet(keySpace, columnFamily, id);
-                               LOGGER.debug("Got Row ID {} {} ", id, nextValue);
+                                return true;
+                            }
+                        } else {
+                            if (prefetchPosition >= prefetchedIds.size()) {
+                                prefetch();
+                            }
+                            if (prefetchPosition < prefetchedIds.size()) {
+                                String id = prefetchedIds.get(prefetchPosition);
+                                prefetchPosition++;
+                                nextValue = prefetchedRows.get(id);
+                                LOGGER.debug("Got Row ID {} {} ", id, nextValue);
+                                return true;
                             }
-                            return true;
                         }
                         close();
                         nextValue = null;
@@ -1174,6 +1467,25 @@ private static final String INVALID_DATA_ERROR = "Data invalid for storage.";
                     }
                 }
 
+                /**
+                 * Read the next set of row ids from the result set and load
+                 * all of the rows they refer to in one go.
+                 */
+                private void prefetch() throws SQLException, StorageClientException {
+                    prefetchedIds.clear();
+                    prefetchPosition = 0;
+                    while (open && !endOfResultSet && prefetchedIds.size() < multiGetSize) {
+                        if (rs.next()) {
+                            prefetchedIds.add(rs.getString(1));
+                        } else {
+                            endOfResultSet = true;
+                        }
+                    }
+                    if (prefetchedIds.size() > 0) {
+                        prefetchedRows = internalGetMany(keySpace, columnFamily, prefetchedIds, null);
+                    }
+                }
+
                 @Override
                 public void close() {
                     if (open) {
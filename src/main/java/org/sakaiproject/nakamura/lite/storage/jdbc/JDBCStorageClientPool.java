@@ -38,8 +38,9 @@ import org.sakaiproject.nakamura.api.lite.Configuration;
 import org.sakaiproject.nakamura.api.lite.StorageCacheManager;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.lite.CacheStats;
 import org.sakaiproject.nakamura.lite.storage.AbstractClientConnectionPool;
-import org.sakaiproject.nakamura.lite.storage.ConcurrentLRUMap;
+import org.sakaiproject.nakamura.lite.storage.SegmentedLRUMap;
 import org.sakaiproject.nakamura.lite.storage.StorageClientPool;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -150,7 +151,8 @@ public class JDBCStorageClientPool extends AbstractClientConnectionPool {
         timer = new Timer();
         timer.schedule(connectionManager, 30000L, 30000L);
 
-        sharedCache = new ConcurrentLRUMap<String, CacheHolder>(10000);
+        sharedCache = new SegmentedLRUMap<String, CacheHolder>(10000);
+        CacheStats.getInstance(sharedCache, "JDBCStorageClientPool");
         // this is a default cache used where none has been provided.
         defaultStorageManagerCache = new StorageCacheManager() {
             
@@ -224,6 +226,7 @@ public class JDBCStorageClientPool extends AbstractClientConnectionPool {
     @Deactivate
     public void deactivate(Map<String, Object> properties) {
         super.deactivate(properties);
+        CacheStats.unregister(sharedCache);
 
         timer.cancel();
         connectionManager.close();
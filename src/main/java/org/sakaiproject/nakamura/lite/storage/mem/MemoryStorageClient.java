@@ -40,6 +40,7 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -69,7 +70,9 @@ public class MemoryStorageClient implements StorageClient {
             Map<String, Object> store, Map<String, Object> properties) {
         this.store = store;
         this.pool = pool;
-        contentHelper = new BlockSetContentHelper(this);
+        // the store is a concurrent map, so block sets can be prefetched from other threads.
+        contentHelper = new BlockSetContentHelper(this, BlockSetContentHelper.getPrefetchExecutor(),
+                pool.getWriteExecutor(), pool);
         blockSize = StorageClientUtils.getSetting(
                 properties.get(BlockSetContentHelper.CONFIG_BLOCK_SIZE),
                 BlockSetContentHelper.DEFAULT_BLOCK_SIZE);
@@ -88,7 +91,25 @@ public class MemoryStorageClient implements StorageClient {
 
     public Map<String, Object> get(String keySpace, String columnFamily, String key)
             throws StorageClientException {
-        return (Map<String, Object>) getOrCreateRow(keySpace, columnFamily, key);
+        // a copy, as callers may hold on to rows and the stored row is updated in place.
+        return Maps.newHashMap(getOrCreateRow(keySpace, columnFamily, key));
+    }
+
+    @SuppressWarnings("unchecked")
+    public Map<String, Map<String, Object>> getMany(String keySpace, String columnFamily,
+            Collection<String> keys) throws StorageClientException {
+        Map<String, Map<String, Object>> result = Maps.newLinkedHashMap();
+        for (String key : keys) {
+            Map<String, Object> row = (Map<String, Object>) store.get(rowHash(keySpace,
+                    columnFamily, key));
+            if (row == null) {
+                row = Maps.newHashMap();
+            } else {
+                row = Maps.newHashMap(row);
+            }
+            result.put(key, row);
+        }
+        return result;
     }
 
     private Map<String, Object> getOrCreateRow(String keySpace, String columnFamily, String key) {
@@ -116,7 +137,7 @@ public class MemoryStorageClient implements StorageClient {
 
     public void insert(String keySpace, String columnFamily, String key, Map<String, Object> values, boolean probablyNew)
             throws StorageClientException {
-        Map<String, Object> row = get(keySpace, columnFamily, key);
+        Map<String, Object> row = getOrCreateRow(keySpace, columnFamily, key);
 
         for (Entry<String, Object> e : values.entrySet()) {
             Object value = e.getValue();
@@ -170,6 +191,13 @@ public class MemoryStorageClient implements StorageClient {
         }
     }
 
+    public void insertAll(String keySpace, String columnFamily,
+            Map<String, Map<String, Object>> rows) throws StorageClientException {
+        for (Entry<String, Map<String, Object>> row : rows.entrySet()) {
+            insert(keySpace, columnFamily, row.getKey(), row.getValue(), false);
+        }
+    }
+
     public void remove(String keySpace, String columnFamily, String key)
             throws StorageClientException {
         String keyName = rowHash(keySpace, columnFamily, key);
@@ -197,6 +225,13 @@ public class MemoryStorageClient implements StorageClient {
         return contentHelper.readBody(keySpace, contentColumnFamily, contentBlockId, streamId, nBlocks);
     }
 
+    public InputStream streamBodyOut(String keySpace, String contentColumnFamily, String contentId,
+            String contentBlockId, String streamId, Map<String, Object> content, long offset,
+            long length) throws StorageClientException, AccessDeniedException {
+        return contentHelper.readBody(keySpace, contentColumnFamily, contentBlockId, streamId,
+                content, offset, length);
+    }
+
     public boolean hasBody(Map<String, Object> content, String streamId) {
         return contentHelper.hasBody(content, streamId);
     }
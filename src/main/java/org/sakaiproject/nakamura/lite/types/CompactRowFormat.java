@@ -0,0 +1,345 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.types;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableMap.Builder;
+
+import org.sakaiproject.nakamura.api.lite.RemoveProperty;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The version 2 row format. A row is laid out as
+ *
+ * <pre>
+ * 0xFF 0x02 flags key columnFamily n (keyCode [keyName] typeId length){n} values
+ * </pre>
+ *
+ * or, if the flags have {@link #FLAG_DEFLATE} set,
+ *
+ * <pre>
+ * 0xFF 0x02 flags uncompressedLength deflate(key ... values)
+ * </pre>
+ *
+ * where all integers are unsigned varints and strings are a varint length
+ * followed by UTF-8. A keyCode of 0 is followed by the property name, any
+ * other keyCode is an index into the {@link #DICTIONARY} of common property
+ * names. The index gives the length of every value, so a row can be loaded
+ * into a {@link LazyRowMap} which only decodes the values that are used. Each
+ * value is stored in the same encoding its {@link Type} uses in the version 1
+ * format. Version 1 rows start with the 2 byte length of the row key, which
+ * never starts with 0xFF, so both formats can be read from the same column.
+ */
+final class CompactRowFormat {
+
+    static final int MAGIC = 0xFF;
+    static final int VERSION = 2;
+    /**
+     * Set when everything after the flags is compressed with a Deflater.
+     */
+    static final int FLAG_DEFLATE = 0x01;
+    private static final int HEADER_LENGTH = 3;
+
+    /**
+     * Property names that are coded as a single byte. Never remove or reorder
+     * entries in this list, there could be billions of records that depend on
+     * it, only append.
+     */
+    static final String[] DICTIONARY = new String[] {
+        "_path",
+        "_:parenthash",
+        "_:cid",
+        "_:link",
+        "_blockId",
+        "_previousVersion",
+        "_previousBlockId",
+        "_nextVersion",
+        "_readOnly",
+        "_deleted",
+        "_blocksize",
+        "_length",
+        "_nblocks",
+        "_bodyLastModified",
+        "_bodyLastModifiedBy",
+        "_bodyCreated",
+        "_bodyCreatedBy",
+        "_created",
+        "_createdBy",
+        "_lastModified",
+        "_lastModifiedBy",
+        "_copiedFrom",
+        "_copiedFromId",
+        "_copiedDeep",
+        "_mimeType",
+        "_encoding",
+        "_versionHistoryId",
+        "_versionNumber",
+        "_versionSavedBy",
+        "sling:resourceType",
+        "id",
+        "name",
+        "type",
+        "principals",
+        "members",
+        "pwd",
+        "lastModified",
+        "lastModifiedBy",
+        "created",
+        "createdBy",
+        "impersonators",
+        "_aclPath",
+        "_aclType",
+        "_aclKey",
+        "_secretKey",
+        "_blocksPerSet",
+        "_bodyHash",
+        "_references"
+    };
+
+    private static final Map<String, Integer> DICTIONARY_CODES = getDictionaryCodes();
+
+    private CompactRowFormat() {
+    }
+
+    private static Map<String, Integer> getDictionaryCodes() {
+        Builder<String, Integer> builder = ImmutableMap.builder();
+        for (int i = 0; i < DICTIONARY.length; i++) {
+            builder.put(DICTIONARY[i], i + 1);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Serialize a row, null and {@link RemoveProperty} values are not stored.
+     *
+     * @param out
+     *            the buffer the row is written to.
+     * @param values
+     *            a scratch buffer for the values.
+     * @param valuesData
+     *            a data output over the values buffer.
+     * @param deflater
+     *            if not null, used to compress the row if it is at least
+     *            compressionThreshold bytes, and compression makes it smaller.
+     */
+    static void store(String key, Map<String, Object> m, String type, RowBuffer out,
+            RowBuffer values, DataOutputStream valuesData, Deflater deflater,
+            int compressionThreshold) throws IOException {
+        values.reset();
+        int size = 0;
+        for (Entry<String, ?> e : m.entrySet()) {
+            Object o = e.getValue();
+            if (o != null && !(o instanceof RemoveProperty)) {
+                size++;
+            }
+        }
+        out.write(MAGIC);
+        out.write(VERSION);
+        out.write(0);
+        out.writeString(key);
+        out.writeString(type);
+        out.writeVarint(size);
+        for (Entry<String, ?> e : m.entrySet()) {
+            Object o = e.getValue();
+            if (o != null && !(o instanceof RemoveProperty)) {
+                String k = e.getKey();
+                Integer code = DICTIONARY_CODES.get(k);
+                if (code == null) {
+                    out.writeVarint(0);
+                    out.writeString(k);
+                } else {
+                    out.writeVarint(code);
+                }
+                Type<?> t = Types.getTypeOfObject(o);
+                out.writeVarint(t.getTypeId());
+                int start = values.getLength();
+                t.save(valuesData, o);
+                out.writeVarint(values.getLength() - start);
+            }
+        }
+        out.write(values);
+        int length = out.getLength() - HEADER_LENGTH;
+        if (deflater != null && length >= compressionThreshold) {
+            RowBuffer compressed = values;
+            compressed.reset();
+            deflater.reset();
+            deflater.setInput(out.getBuffer(), HEADER_LENGTH, length);
+            deflater.finish();
+            compressed.write(deflater);
+            if (compressed.getLength() + 5 < length) {
+                out.truncate(HEADER_LENGTH - 1);
+                out.write(FLAG_DEFLATE);
+                out.writeVarint(length);
+                out.write(compressed);
+            }
+        }
+    }
+
+    /**
+     * Parse the header and index of a row, leaving the values to be decoded
+     * when they are accessed.
+     *
+     * @param data
+     *            the whole row, starting with the magic byte.
+     * @throws IOException
+     *             if the row is not for the key or column family, or is
+     *             corrupt.
+     */
+    static LazyRowMap load(String key, byte[] data, String type) throws IOException {
+        int[] pos = new int[] { 0 };
+        if ((data.length < 3) || ((data[0] & 0xff) != MAGIC)) {
+            throw new IOException("Not a compact row");
+        }
+        if (data[1] != VERSION) {
+            throw new IOException("Unsupported row format version " + data[1]);
+        }
+        int flags = data[2] & 0xff;
+        if ((flags & ~FLAG_DEFLATE) != 0) {
+            throw new IOException("Unsupported row flags " + flags);
+        }
+        pos[0] = HEADER_LENGTH;
+        if ((flags & FLAG_DEFLATE) != 0) {
+            data = inflate(key, data, pos);
+            pos[0] = HEADER_LENGTH;
+        }
+        String ckey = readString(data, pos);
+        if (!key.equals(ckey)) {
+            throw new IOException("Body Key does not match row key, unable to read");
+        }
+        String cftype = readString(data, pos);
+        if (!cftype.equals(type)) {
+            throw new IOException("Object is not of expected column family, unable to read expected ["
+                    + type + "] was [" + cftype + "]");
+        }
+        int size = readVarint(data, pos);
+        if (size > data.length) {
+            throw new IOException("Corrupt row " + key + ", " + size + " properties");
+        }
+        String[] keys = new String[size];
+        Type<?>[] types = new Type<?>[size];
+        int[] offsets = new int[size];
+        int[] lengths = new int[size];
+        for (int i = 0; i < size; i++) {
+            int code = readVarint(data, pos);
+            if (code == 0) {
+                keys[i] = readString(data, pos);
+            } else if (code <= DICTIONARY.length) {
+                keys[i] = DICTIONARY[code - 1];
+            } else {
+                throw new IOException("Unknown property code " + code + " in row " + key);
+            }
+            types[i] = Types.lookupTypeById(readVarint(data, pos));
+            lengths[i] = readVarint(data, pos);
+        }
+        int offset = pos[0];
+        for (int i = 0; i < size; i++) {
+            offsets[i] = offset;
+            offset += lengths[i];
+        }
+        if (offset != data.length) {
+            throw new IOException("Corrupt row " + key + ", expected " + offset + " bytes, was "
+                    + data.length);
+        }
+        return new LazyRowMap(key, data, keys, types, offsets, lengths);
+    }
+
+    /**
+     * @return the row with the compressed part expanded.
+     */
+    private static byte[] inflate(String key, byte[] data, int[] pos) throws IOException {
+        int length = readVarint(data, pos);
+        if (length < 0) {
+            throw new IOException("Corrupt row " + key + ", uncompressed length " + length);
+        }
+        byte[] inflated = new byte[HEADER_LENGTH + length];
+        System.arraycopy(data, 0, inflated, 0, HEADER_LENGTH);
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data, pos[0], data.length - pos[0]);
+            int n = HEADER_LENGTH;
+            while (n < inflated.length && !inflater.finished()) {
+                int read = inflater.inflate(inflated, n, inflated.length - n);
+                if (read == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                n += read;
+            }
+            if (n != inflated.length || !inflater.finished()) {
+                throw new IOException("Corrupt row " + key + ", expected " + length
+                        + " uncompressed bytes");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt row " + key + ", " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+        return inflated;
+    }
+
+    /**
+     * Read the remainder of a stream into a byte array.
+     *
+     * @param prefix
+     *            bytes already read from the stream.
+     */
+    static byte[] readFully(byte[] prefix, InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(256, in.available()
+                + prefix.length));
+        out.write(prefix);
+        byte[] buffer = new byte[4096];
+        int n;
+        while ((n = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    static int readVarint(byte[] data, int[] pos) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            if (pos[0] >= data.length) {
+                throw new IOException("Unexpected end of row");
+            }
+            int b = data[pos[0]++];
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint in row");
+    }
+
+    private static String readString(byte[] data, int[] pos) throws IOException {
+        int length = readVarint(data, pos);
+        if (length < 0 || pos[0] + length > data.length) {
+            throw new IOException("Unexpected end of row");
+        }
+        String s = new String(data, pos[0], length, "UTF-8");
+        pos[0] += length;
+        return s;
+    }
+}
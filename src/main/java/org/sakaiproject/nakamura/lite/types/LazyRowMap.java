@@ -0,0 +1,211 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.types;
+
+import com.google.common.collect.Maps;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A row loaded from the compact row format. Only the index of the row is
+ * parsed when it is loaded, the value of a property is decoded the first time
+ * it is read with {@link #get(Object)}. Iterating over the map, or modifying
+ * it, decodes every value into an ordinary map which is used from then on.
+ * Rows are shared through the caches, so all access is synchronized.
+ */
+class LazyRowMap extends AbstractMap<String, Object> {
+
+    /**
+     * Rows with more properties than this are looked up through a hash index.
+     */
+    private static final int LINEAR_SEARCH_SIZE = 8;
+    private static final Object NOT_DECODED = new Object();
+
+    private final String rowKey;
+    private byte[] data;
+    private String[] keys;
+    private Type<?>[] types;
+    private int[] offsets;
+    private int[] lengths;
+    private Object[] values;
+    private Map<String, Integer> index;
+    private Map<String, Object> decoded;
+
+    LazyRowMap(String rowKey, byte[] data, String[] keys, Type<?>[] types, int[] offsets,
+            int[] lengths) {
+        this.rowKey = rowKey;
+        this.data = data;
+        this.keys = keys;
+        this.types = types;
+        this.offsets = offsets;
+        this.lengths = lengths;
+        this.values = new Object[keys.length];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = NOT_DECODED;
+        }
+    }
+
+    private int indexOf(Object key) {
+        if (key == null) {
+            return -1;
+        }
+        if (keys.length <= LINEAR_SEARCH_SIZE) {
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i].equals(key)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+        if (index == null) {
+            index = Maps.newHashMap();
+            for (int i = 0; i < keys.length; i++) {
+                index.put(keys[i], i);
+            }
+        }
+        Integer i = index.get(key);
+        return i == null ? -1 : i;
+    }
+
+    private Object decode(int i) {
+        if (values[i] == NOT_DECODED) {
+            try {
+                values[i] = types[i].load(new DataInputStream(new ByteArrayInputStream(data,
+                        offsets[i], lengths[i])));
+            } catch (IOException e) {
+                throw new IllegalStateException("Unable to decode property " + keys[i]
+                        + " of row " + rowKey + ", " + e.getMessage(), e);
+            }
+        }
+        return values[i];
+    }
+
+    /**
+     * Decode every value and switch to an ordinary map, releasing the encoded
+     * row.
+     */
+    private Map<String, Object> decodeAll() {
+        if (decoded == null) {
+            Map<String, Object> m = Maps.newHashMapWithExpectedSize(keys.length);
+            for (int i = 0; i < keys.length; i++) {
+                m.put(keys[i], decode(i));
+            }
+            decoded = m;
+            data = null;
+            keys = null;
+            types = null;
+            offsets = null;
+            lengths = null;
+            values = null;
+            index = null;
+        }
+        return decoded;
+    }
+
+    /**
+     * @return the number of values that have been decoded, for testing.
+     */
+    synchronized int getDecodedCount() {
+        if (decoded != null) {
+            return decoded.size();
+        }
+        int n = 0;
+        for (Object o : values) {
+            if (o != NOT_DECODED) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    @Override
+    public synchronized Object get(Object key) {
+        if (decoded != null) {
+            return decoded.get(key);
+        }
+        int i = indexOf(key);
+        return i < 0 ? null : decode(i);
+    }
+
+    @Override
+    public synchronized boolean containsKey(Object key) {
+        if (decoded != null) {
+            return decoded.containsKey(key);
+        }
+        return indexOf(key) >= 0;
+    }
+
+    @Override
+    public synchronized int size() {
+        if (decoded != null) {
+            return decoded.size();
+        }
+        return keys.length;
+    }
+
+    @Override
+    public synchronized boolean isEmpty() {
+        return size() == 0;
+    }
+
+    @Override
+    public synchronized boolean containsValue(Object value) {
+        return decodeAll().containsValue(value);
+    }
+
+    @Override
+    public synchronized Object put(String key, Object value) {
+        return decodeAll().put(key, value);
+    }
+
+    @Override
+    public synchronized Object remove(Object key) {
+        return decodeAll().remove(key);
+    }
+
+    @Override
+    public synchronized void putAll(Map<? extends String, ? extends Object> m) {
+        decodeAll().putAll(m);
+    }
+
+    @Override
+    public synchronized void clear() {
+        decodeAll().clear();
+    }
+
+    @Override
+    public synchronized Set<String> keySet() {
+        return decodeAll().keySet();
+    }
+
+    @Override
+    public synchronized Collection<Object> values() {
+        return decodeAll().values();
+    }
+
+    @Override
+    public synchronized Set<Entry<String, Object>> entrySet() {
+        return decodeAll().entrySet();
+    }
+}
@@ -1,30 +1,29 @@
 package org.sakaiproject.nakamura.lite.types;
 
-import org.apache.commons.io.IOUtils;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.lang.ref.WeakReference;
+import java.io.Reader;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.GregorianCalendar;
 
 /**
- * A string that saves to a file and does not appear in memory. However, there is no garbage collection and strings are immutable at present.
+ * A string that saves to a file and does not appear in memory. However, there is no garbage collection and the files are immutable,
+ * an update writes a new file and moves the string to it.
+ * Recently used values are held in a cache shared by all LongStrings, see {@link #setCacheSize(long)}.
  */
 public class LongString {
 
+    /**
+     * The default number of bytes of values cached.
+     */
+    public static final long DEFAULT_CACHE_SIZE = 16L * 1024L * 1024L;
     
     private static final Logger LOGGER = LoggerFactory.getLogger(LongString.class);
     private String location;
-    private WeakReference<String> value;
-    private long lastModifed = -1;
-    private static String base;
     
 
     LongString(String location) {
@@ -32,31 +31,34 @@ public class LongString {
     }
     
     public static LongString create(String content) throws IOException {
+        LongString ls = new LongString(newLocation());
+        ls.update(content,true);
+        return ls;
+        
+    }
+
+    private static String newLocation() {
         String id = StorageClientUtils.getUuid();
         Calendar c = new GregorianCalendar();
         c.setTimeInMillis(System.currentTimeMillis());
         int year = c.get(Calendar.YEAR);
         int month = c.get(Calendar.MONTH);
-        String location = year + "/" + month + "/" + id.substring(0, 2) + "/" + id.substring(2, 4)
+        return year + "/" + month + "/" + id.substring(0, 2) + "/" + id.substring(2, 4)
                 + "/" + id.substring(4, 6) + "/" + id;
-        LongString ls = new LongString(location);
-        ls.update(content,true);
-        return ls;
-        
     }
-    
+
+    /**
+     * Store the content. An existing value is not overwritten, the content is
+     * written to a new location, which other servers see once the row holding
+     * this LongString has been saved.
+     * @param content
+     * @param isnew true if the value has not been stored before.
+     * @throws IOException
+     */
     public void update(String content, boolean isnew) throws IOException {
-        File f = new File(base, location);
-        if ( isnew && f.exists()) {
-            throw new IOException("LongString Storage file at location "+location+" already exists, this should not happen, nothing stored");
-        }
-        f.getParentFile().mkdirs();
-        FileWriter fw = new FileWriter(f);
-        fw.write(content);
-        fw.close();
-        // re-create the file to ensure the values are updated.
-        f = new File(base, location);
-        lastModifed  = f.lastModified();
+        String newLocation = isnew ? location : newLocation();
+        LongStringStore.write(newLocation, content);
+        location = newLocation;
     }
 
     @Override
@@ -74,33 +76,37 @@ public class LongString {
     
     @Override
     public String toString() {
-        if ( value == null || value.get() == null || lastModifed < 0 ) {
-            try {
-                File f = new File(base, location);
-                if ( value == null || value.get() == null || lastModifed < f.lastModified() ) {
-                    FileReader fr = new FileReader(f);
-                    String v = IOUtils.toString(fr);
-                    fr.close();
-                    value = new WeakReference<String>(v);
-                    lastModifed = f.lastModified();
-                    return v;
-                } else {
-                    return value.get();
-                }
-            } catch ( IOException e) {
-                LOGGER.error(e.getMessage(),e);
-                return "ERROR, unable to load LongString body, see error log on server for details at "+String.valueOf(new Date());
-            }
-        } else {
-            return value.get();
+        try {
+            return LongStringStore.read(location);
+        } catch ( IOException e) {
+            LOGGER.error(e.getMessage(),e);
+            return "ERROR, unable to load LongString body, see error log on server for details at "+String.valueOf(new Date());
         }
     }
 
+    /**
+     * @return a reader over the value, which streams large values from the
+     *         file rather than loading them.
+     * @throws IOException
+     */
+    public Reader getReader() throws IOException {
+        return LongStringStore.openReader(location);
+    }
+
     public String getLocation() {
         return location;
     }
     
     public static void setBase(String base) {
-        LongString.base = base;
+        LongStringStore.setBase(base);
+    }
+
+    /**
+     * @param cacheSize
+     *            the approximate number of bytes of values cached by all
+     *            LongStrings, 0 to disable the cache.
+     */
+    public static void setCacheSize(long cacheSize) {
+        LongStringStore.setCacheSize(cacheSize);
     }
 }
@@ -0,0 +1,191 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.types;
+
+import org.sakaiproject.nakamura.lite.storage.SegmentedLRUMap;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PushbackInputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.Writer;
+import java.nio.charset.Charset;
+
+/**
+ * Stores the values of {@link LongString}s in files under a base directory.
+ * Values are written as UTF-8 after a byte order mark, files without the mark
+ * were written in the platform charset by earlier versions and are read in
+ * that charset. Files are never overwritten, an updated value is written to a
+ * new location, so recently read values are kept in a cache shared by all
+ * LongStrings and bounded by the size of the values, rather than being checked
+ * against the file on each read. Values can be streamed without being loaded.
+ */
+final class LongStringStore {
+
+    private static final int MAX_CACHE_ENTRIES = 10000;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final byte[] BYTE_ORDER_MARK = new byte[] { (byte) 0xEF, (byte) 0xBB,
+            (byte) 0xBF };
+
+    private static final SegmentedLRUMap.Weigher<String, String> WEIGHER = new SegmentedLRUMap.Weigher<String, String>() {
+        public int weigh(String key, String value) {
+            return 64 + (key.length() + value.length()) * 2;
+        }
+    };
+
+    private static String base;
+    private static volatile SegmentedLRUMap<String, String> cache = newCache(LongString.DEFAULT_CACHE_SIZE);
+
+    private LongStringStore() {
+    }
+
+    private static SegmentedLRUMap<String, String> newCache(long cacheSize) {
+        if (cacheSize <= 0) {
+            return null;
+        }
+        return new SegmentedLRUMap<String, String>(MAX_CACHE_ENTRIES,
+                SegmentedLRUMap.DEFAULT_SEGMENTS, cacheSize, WEIGHER);
+    }
+
+    static void setBase(String base) {
+        LongStringStore.base = base;
+    }
+
+    /**
+     * @param cacheSize
+     *            the approximate number of bytes of values to cache, 0 to
+     *            disable the cache.
+     */
+    static void setCacheSize(long cacheSize) {
+        cache = newCache(cacheSize);
+    }
+
+    /**
+     * @return the cache, for tests.
+     */
+    static SegmentedLRUMap<String, String> getCache() {
+        return cache;
+    }
+
+    /**
+     * Write a value to a new file, cached values are never out of date as
+     * existing files are not overwritten.
+     */
+    static void write(String location, String content) throws IOException {
+        File f = new File(base, location);
+        if (f.exists()) {
+            throw new IOException("LongString Storage file at location " + location
+                    + " already exists, this should not happen, nothing stored");
+        }
+        f.getParentFile().mkdirs();
+        FileOutputStream out = new FileOutputStream(f);
+        try {
+            out.write(BYTE_ORDER_MARK);
+            Writer w = new BufferedWriter(new OutputStreamWriter(out, UTF8));
+            w.write(content);
+            w.flush();
+        } finally {
+            out.close();
+        }
+        SegmentedLRUMap<String, String> c = cache;
+        if (c != null) {
+            c.put(location, content);
+        }
+    }
+
+    static String read(String location) throws IOException {
+        SegmentedLRUMap<String, String> c = cache;
+        if (c != null) {
+            String value = c.get(location);
+            if (value != null) {
+                return value;
+            }
+        }
+        File f = new File(base, location);
+        // decoded a buffer at a time, the file is not held open or mapped once read.
+        StringBuilder sb = new StringBuilder((int) Math.min(f.length(), Integer.MAX_VALUE));
+        Reader reader = openFile(f);
+        try {
+            char[] buffer = new char[8192];
+            int n;
+            while ((n = reader.read(buffer)) >= 0) {
+                sb.append(buffer, 0, n);
+            }
+        } finally {
+            reader.close();
+        }
+        String value = sb.toString();
+        if (c != null) {
+            c.put(location, value);
+        }
+        return value;
+    }
+
+    /**
+     * @return a reader over the value, which is not loaded into the cache.
+     */
+    static Reader openReader(String location) throws IOException {
+        SegmentedLRUMap<String, String> c = cache;
+        if (c != null) {
+            String value = c.get(location);
+            if (value != null) {
+                return new StringReader(value);
+            }
+        }
+        return openFile(new File(base, location));
+    }
+
+    private static Reader openFile(File f) throws IOException {
+        PushbackInputStream in = new PushbackInputStream(new FileInputStream(f),
+                BYTE_ORDER_MARK.length);
+        try {
+            byte[] mark = new byte[BYTE_ORDER_MARK.length];
+            int n = readFully(in, mark);
+            if (n == mark.length && mark[0] == BYTE_ORDER_MARK[0]
+                    && mark[1] == BYTE_ORDER_MARK[1] && mark[2] == BYTE_ORDER_MARK[2]) {
+                return new InputStreamReader(in, UTF8);
+            }
+            if (n > 0) {
+                in.unread(mark, 0, n);
+            }
+            return new InputStreamReader(in, Charset.defaultCharset());
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    private static int readFully(InputStream in, byte[] b) throws IOException {
+        int n = 0;
+        while (n < b.length) {
+            int r = in.read(b, n, b.length - n);
+            if (r < 0) {
+                break;
+            }
+            n += r;
+        }
+        return n;
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.types;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+
+/**
+ * A growable byte buffer that is reset and reused rather than reallocated,
+ * used to serialize rows without allocating per row. The content can be
+ * handed on without copying through {@link #toInputStream()} and
+ * {@link #toByteBuffer()}, those views are only valid until the buffer is
+ * next reset. Not thread safe.
+ */
+public class RowBuffer extends OutputStream {
+
+    /**
+     * Buffers that have grown beyond this are discarded on reset, so that one
+     * very large row does not pin memory for the life of the thread.
+     */
+    private static final int MAX_RETAINED_SIZE = 1024 * 1024;
+    private static final int INITIAL_SIZE = 1024;
+
+    private byte[] buffer = new byte[INITIAL_SIZE];
+    private int length;
+
+    /**
+     * Empty the buffer, keeping the storage unless it has grown very large.
+     */
+    public void reset() {
+        if (buffer.length > MAX_RETAINED_SIZE) {
+            buffer = new byte[INITIAL_SIZE];
+        }
+        length = 0;
+    }
+
+    private void ensureCapacity(int extra) {
+        int required = length + extra;
+        if (required > buffer.length) {
+            byte[] b = new byte[Math.max(required, buffer.length * 2)];
+            System.arraycopy(buffer, 0, b, 0, length);
+            buffer = b;
+        }
+    }
+
+    @Override
+    public void write(int b) {
+        ensureCapacity(1);
+        buffer[length++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        ensureCapacity(len);
+        System.arraycopy(b, off, buffer, length, len);
+        length += len;
+    }
+
+    /**
+     * Append the content of another buffer.
+     */
+    public void write(RowBuffer b) {
+        write(b.buffer, 0, b.length);
+    }
+
+    /**
+     * Append all the output of a deflater, which must have its input set and
+     * be finished.
+     */
+    public void write(Deflater deflater) {
+        while (!deflater.finished()) {
+            ensureCapacity(1024);
+            length += deflater.deflate(buffer, length, buffer.length - length);
+        }
+    }
+
+    /**
+     * Discard everything after the first length bytes.
+     */
+    public void truncate(int length) {
+        if (length < 0 || length > this.length) {
+            throw new IllegalArgumentException("Cant truncate " + this.length + " bytes to "
+                    + length);
+        }
+        this.length = length;
+    }
+
+    /**
+     * Write an unsigned varint, 7 bits per byte, least significant first.
+     */
+    public void writeVarint(int value) {
+        ensureCapacity(5);
+        while ((value & ~0x7f) != 0) {
+            buffer[length++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        buffer[length++] = (byte) value;
+    }
+
+    /**
+     * Write a String as a varint length followed by UTF-8, encoded in the
+     * same way as String.getBytes("UTF-8") including the replacement of
+     * unpaired surrogates with '?'.
+     */
+    public void writeString(String s) {
+        int len = s.length();
+        int utfLength = 0;
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                utfLength++;
+            } else if (c < 0x800) {
+                utfLength += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < len
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                utfLength += 4;
+                i++;
+            } else if (Character.isHighSurrogate(c) || Character.isLowSurrogate(c)) {
+                utfLength++;
+            } else {
+                utfLength += 3;
+            }
+        }
+        writeVarint(utfLength);
+        ensureCapacity(utfLength);
+        byte[] out = buffer;
+        int n = length;
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                out[n++] = (byte) c;
+            } else if (c < 0x800) {
+                out[n++] = (byte) (0xc0 | (c >> 6));
+                out[n++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < len
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                out[n++] = (byte) (0xf0 | (cp >> 18));
+                out[n++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                out[n++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                out[n++] = (byte) (0x80 | (cp & 0x3f));
+            } else if (Character.isHighSurrogate(c) || Character.isLowSurrogate(c)) {
+                out[n++] = '?';
+            } else {
+                out[n++] = (byte) (0xe0 | (c >> 12));
+                out[n++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                out[n++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        length = n;
+    }
+
+    /**
+     * @return the number of bytes in the buffer.
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * @return the backing array, valid from 0 to {@link #getLength()}.
+     */
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * @return a stream over the content, sharing the backing array.
+     */
+    public InputStream toInputStream() {
+        return new ByteArrayInputStream(buffer, 0, length);
+    }
+
+    /**
+     * @return a ByteBuffer over the content, sharing the backing array.
+     */
+    public ByteBuffer toByteBuffer() {
+        return ByteBuffer.wrap(buffer, 0, length);
+    }
+
+    /**
+     * @return a copy of the content.
+     */
+    public byte[] toByteArray() {
+        byte[] b = new byte[length];
+        System.arraycopy(buffer, 0, b, 0, length);
+        return b;
+    }
+}
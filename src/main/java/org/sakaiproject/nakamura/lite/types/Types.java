@@ -3,6 +3,7 @@ package org.sakaiproject.nakamura.lite.types;
 
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableMap.Builder;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 
 import org.sakaiproject.nakamura.api.lite.RemoveProperty;
@@ -10,18 +11,61 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.PushbackInputStream;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.zip.Deflater;
 
 public class Types {
 
-    
+    /**
+     * The original row format.
+     */
+    public static final int ROW_FORMAT_V1 = 1;
+    /**
+     * The compact row format, see {@link CompactRowFormat}.
+     */
+    public static final int ROW_FORMAT_V2 = 2;
+    /**
+     * The format rows are written in unless the caller asks for another,
+     * readable by every server.
+     */
+    public static final int DEFAULT_ROW_FORMAT = ROW_FORMAT_V1;
+
+    /**
+     * The default size in bytes above which rows are compressed.
+     */
+    public static final int DEFAULT_COMPRESSION_THRESHOLD = 1024;
+    /**
+     * The compression threshold of rows that are not compressed.
+     */
+    public static final int NOT_COMPRESSED = 0;
+
+    /**
+     * The buffers each thread serializes into.
+     */
+    private static class WriteBuffers {
+        private final RowBuffer row = new RowBuffer();
+        private final DataOutputStream rowData = new DataOutputStream(row);
+        private final RowBuffer values = new RowBuffer();
+        private final DataOutputStream valuesData = new DataOutputStream(values);
+        private final RowBuffer value = new RowBuffer();
+        private final DataOutputStream valueData = new DataOutputStream(value);
+        private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    }
+
+    private static final ThreadLocal<WriteBuffers> WRITE_BUFFERS = new ThreadLocal<WriteBuffers>() {
+        @Override
+        protected WriteBuffers initialValue() {
+            return new WriteBuffers();
+        }
+    };
+
     private static final Type<?>[] ALLTYPES = new Type<?>[]{
         new StringType(),
         new IntegerType(),
@@ -103,7 +147,7 @@ public class Types {
 
 
     /**
-     * Load a Map from binary stream
+     * Load a Map from binary stream, in either row format.
      * 
      * @param output
      * @param binaryStream
@@ -111,6 +155,51 @@ public class Types {
      */
     public static void loadFromStream(String key, Map<String, Object> output, InputStream binaryStream, String type)
             throws IOException {
+        PushbackInputStream in = new PushbackInputStream(binaryStream, 1);
+        int first = in.read();
+        if (first == CompactRowFormat.MAGIC) {
+            output.putAll(CompactRowFormat.load(key,
+                    CompactRowFormat.readFully(new byte[] { (byte) first }, in), type));
+            in.close();
+            return;
+        }
+        if (first >= 0) {
+            in.unread(first);
+        }
+        loadV1FromStream(key, output, in, type);
+    }
+
+    /**
+     * Load a row from a binary stream, in either row format. Rows in the
+     * compact format are returned as a map that only decodes the values that
+     * are read.
+     * 
+     * @param key
+     * @param binaryStream
+     * @param type
+     * @return the row, which may be modified.
+     * @throws IOException
+     */
+    public static Map<String, Object> loadMapFromStream(String key, InputStream binaryStream,
+            String type) throws IOException {
+        PushbackInputStream in = new PushbackInputStream(binaryStream, 1);
+        int first = in.read();
+        if (first == CompactRowFormat.MAGIC) {
+            Map<String, Object> output = CompactRowFormat.load(key,
+                    CompactRowFormat.readFully(new byte[] { (byte) first }, in), type);
+            in.close();
+            return output;
+        }
+        if (first >= 0) {
+            in.unread(first);
+        }
+        Map<String, Object> output = Maps.newHashMap();
+        loadV1FromStream(key, output, in, type);
+        return output;
+    }
+
+    private static void loadV1FromStream(String key, Map<String, Object> output, InputStream binaryStream, String type)
+            throws IOException {
         DataInputStream dis = new DataInputStream(binaryStream);
         String ckey = dis.readUTF();
         if (!key.equals(ckey)) {
@@ -140,7 +229,7 @@ public class Types {
     }
 
     /**
-     * Save a map to a binary stream
+     * Save a map to a binary stream, the stream is a copy of the row.
      * 
      *
      * @param m
@@ -149,16 +238,84 @@ public class Types {
      * @return
      * @throws IOException
      */
+    public static InputStream storeMapToStream(String key, Map<String, Object> m, String type)
+            throws IOException {
+        return storeMapToStream(key, m, type, DEFAULT_ROW_FORMAT);
+    }
+
+    /**
+     * Save a map to a binary stream in the given row format, the stream is a
+     * copy of the row.
+     */
+    public static InputStream storeMapToStream(String key, Map<String, Object> m, String type,
+            int rowFormat) throws IOException {
+        return new ByteArrayInputStream(storeMapToBuffer(key, m, type, rowFormat).toByteArray());
+    }
+
+    /**
+     * Save a map into a buffer owned by the current thread, without
+     * allocating. The buffer is reused by the next call on the same thread, so
+     * its content must be consumed or copied before then.
+     * 
+     * @param m
+     *            expected to be keyed by string, can contain any object that
+     *            has a type.
+     * @return the buffer containing the row.
+     * @throws IOException
+     */
+    public static RowBuffer storeMapToBuffer(String key, Map<String, Object> m, String type)
+            throws IOException {
+        return storeMapToBuffer(key, m, type, DEFAULT_ROW_FORMAT);
+    }
+
+    /**
+     * Save a map into a buffer owned by the current thread in the given row
+     * format, see {@link #storeMapToBuffer(String, Map, String)}.
+     * 
+     * @param rowFormat
+     *            {@link #ROW_FORMAT_V1} or {@link #ROW_FORMAT_V2}
+     */
+    public static RowBuffer storeMapToBuffer(String key, Map<String, Object> m, String type,
+            int rowFormat) throws IOException {
+        return storeMapToBuffer(key, m, type, rowFormat, NOT_COMPRESSED);
+    }
+
+    /**
+     * Save a map into a buffer owned by the current thread in the given row
+     * format, compressing it if it is larger than the threshold. Only rows in
+     * {@link #ROW_FORMAT_V2} are compressed, rows record whether they are
+     * compressed so the threshold can be changed at any time.
+     * 
+     * @param rowFormat
+     *            {@link #ROW_FORMAT_V1} or {@link #ROW_FORMAT_V2}
+     * @param compressionThreshold
+     *            the size in bytes above which the row is compressed, or
+     *            {@link #NOT_COMPRESSED}.
+     */
+    public static RowBuffer storeMapToBuffer(String key, Map<String, Object> m, String type,
+            int rowFormat, int compressionThreshold) throws IOException {
+        checkRowFormat(rowFormat);
+        WriteBuffers buffers = WRITE_BUFFERS.get();
+        RowBuffer row = buffers.row;
+        row.reset();
+        if (rowFormat == ROW_FORMAT_V2) {
+            Deflater deflater = compressionThreshold > NOT_COMPRESSED ? buffers.deflater : null;
+            CompactRowFormat.store(key, m, type, row, buffers.values, buffers.valuesData,
+                    deflater, compressionThreshold);
+        } else {
+            storeV1(key, m, type, buffers.rowData);
+        }
+        return row;
+    }
+
     // IF you change this function you will have to change it in a way that
     // either is self healing for all the data out there
     // or write a migration script. Be warned, there could be billions of
     // records out there, so be very careful
     // Appending to record is possible, if you make the loader fail safe when
     // the data isnt there. See the last writeUTF for an example.
-    public static InputStream storeMapToStream(String key, Map<String, Object> m, String type)
-            throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        DataOutputStream dos = new DataOutputStream(baos);
+    private static void storeV1(String key, Map<String, Object> m, String type,
+            DataOutputStream dos) throws IOException {
         dos.writeUTF(key);
         int size = 0;
         for (Entry<String, ?> e : m.entrySet()) {
@@ -184,16 +341,10 @@ public class Types {
         // add the type in
         dos.writeUTF(type);
         LOGGER.debug("Finished Writen {} items",size);
-        dos.flush();
-        baos.flush();
-        byte[] b = baos.toByteArray();
-        baos.close();
-        dos.close();
-        return new ByteArrayInputStream(b);
     }
     
     
-    private static Type<?> lookupTypeById(int typeId) {
+    static Type<?> lookupTypeById(int typeId) {
         Type<?> t = (Type<?>) typeByIdMap.get(typeId);
         if ( t == null ) {
             LOGGER.warn("Unknown Type ID {} found ",typeId);
@@ -203,7 +354,7 @@ public class Types {
     }
 
 
-    private static Type<?> getTypeOfObject(Object object) {
+    static Type<?> getTypeOfObject(Object object) {
         if ( object == null) {
             return (Type<?>) NULL_TYPE;
         }
@@ -224,23 +375,32 @@ public class Types {
         return (Type<?>) UNKNOWN_TYPE;
     }
     
+    /**
+     * Check that a row format is one that can be written. Both formats are
+     * always read, so the original format only needs to be written while older
+     * servers share the database.
+     * 
+     * @param rowFormat
+     *            {@link #ROW_FORMAT_V1} or {@link #ROW_FORMAT_V2}
+     * @return the row format.
+     */
+    public static int checkRowFormat(int rowFormat) {
+        if (rowFormat != ROW_FORMAT_V1 && rowFormat != ROW_FORMAT_V2) {
+            throw new IllegalArgumentException("Unknown row format " + rowFormat);
+        }
+        return rowFormat;
+    }
+
     public static byte[] toByteArray(Object o)throws IOException{
-    	ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        DataOutputStream dos = new DataOutputStream(baos);
-                
-        if ( o != null && !(o instanceof RemoveProperty) ) {             
+        WriteBuffers buffers = WRITE_BUFFERS.get();
+        RowBuffer value = buffers.value;
+        value.reset();
+        if ( o != null && !(o instanceof RemoveProperty) ) {
                 Type<?> t = getTypeOfObject(o);
-                dos.writeInt(t.getTypeId());
-                t.save(dos, o);
+                buffers.valueData.writeInt(t.getTypeId());
+                t.save(buffers.valueData, o);
             }
-        
-        dos.flush();
-        baos.flush();
-        byte[] b = baos.toByteArray();
-        baos.close();
-        dos.close();
-        
-        return b;
+        return value.toByteArray();
     }
     
     public static Object toObject(byte[] columnValue)throws IOException{
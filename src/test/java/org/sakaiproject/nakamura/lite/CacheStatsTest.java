@@ -0,0 +1,107 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.lite.CacheHolder;
+import org.sakaiproject.nakamura.lite.storage.SegmentedLRUMap;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+public class CacheStatsTest {
+
+    @Test
+    public void testCounters() {
+        Map<String, CacheHolder> cache = new SegmentedLRUMap<String, CacheHolder>(1, 1, 0, null);
+        CacheStats stats = CacheStats.getInstance(cache, "CacheStatsTest.testCounters");
+        try {
+            Assert.assertSame(stats, CacheStats.getInstance(cache));
+            Assert.assertEquals(0.0, stats.getHitRatio(), 0.0);
+            Assert.assertEquals(0.0, stats.getAverageLoadTime(), 0.0);
+            Assert.assertEquals(1, stats.miss());
+            Assert.assertEquals(2, stats.hit());
+            Assert.assertEquals(3, stats.negativeHit());
+            stats.hit();
+            stats.loaded(2, 4000000L);
+            Assert.assertEquals(2, stats.getHitCount());
+            Assert.assertEquals(1, stats.getMissCount());
+            Assert.assertEquals(1, stats.getNegativeHitCount());
+            Assert.assertEquals(0.75, stats.getHitRatio(), 0.0001);
+            Assert.assertEquals(2, stats.getLoadCount());
+            Assert.assertEquals(4, stats.getTotalLoadTime());
+            Assert.assertEquals(2.0, stats.getAverageLoadTime(), 0.0001);
+            cache.put("a", new CacheHolder(null));
+            cache.put("b", new CacheHolder(null));
+            Assert.assertEquals(1, stats.getEvictionCount());
+            Assert.assertEquals(1, stats.getSize());
+            stats.reset();
+            Assert.assertEquals(0, stats.getHitCount());
+            Assert.assertEquals(0.0, stats.getHitRatio(), 0.0);
+        } finally {
+            CacheStats.unregister(cache);
+        }
+        Assert.assertNotSame(stats, CacheStats.getInstance(cache));
+        CacheStats.unregister(cache);
+    }
+
+    @Test
+    public void testMBean() throws Exception {
+        Map<String, CacheHolder> cache = new SegmentedLRUMap<String, CacheHolder>(10);
+        CacheStats stats = CacheStats.getInstance(cache, "CacheStatsTest.testMBean");
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName on = new ObjectName("org.sakaiproject.nakamura.lite:type=CacheStats,name="
+                + ObjectName.quote("CacheStatsTest.testMBean"));
+        try {
+            stats.miss();
+            Assert.assertTrue(server.isRegistered(on));
+            Assert.assertEquals(1L, server.getAttribute(on, "MissCount"));
+            Assert.assertEquals("CacheStatsTest.testMBean", server.getAttribute(on, "Name"));
+        } finally {
+            CacheStats.unregister(cache);
+        }
+        Assert.assertFalse(server.isRegistered(on));
+    }
+
+    @Test
+    public void testUnnamedCacheNotRegistered() throws Exception {
+        Map<String, CacheHolder> cache = new SegmentedLRUMap<String, CacheHolder>(10);
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName on = new ObjectName("org.sakaiproject.nakamura.lite:type=CacheStats,name="
+                + ObjectName.quote("CacheStatsTest.testUnnamed"));
+        int registered = server.queryNames(
+                new ObjectName("org.sakaiproject.nakamura.lite:type=CacheStats,*"), null).size();
+        CacheStats stats = CacheStats.getInstance(cache);
+        try {
+            Assert.assertEquals(registered, server.queryNames(
+                    new ObjectName("org.sakaiproject.nakamura.lite:type=CacheStats,*"), null)
+                    .size());
+            // naming the cache later registers the same stats.
+            Assert.assertSame(stats, CacheStats.getInstance(cache, "CacheStatsTest.testUnnamed"));
+            Assert.assertTrue(server.isRegistered(on));
+            Assert.assertEquals("CacheStatsTest.testUnnamed", stats.getName());
+        } finally {
+            CacheStats.unregister(cache);
+        }
+        Assert.assertFalse(server.isRegistered(on));
+    }
+}
@@ -0,0 +1,353 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite;
+
+import static org.mockito.Matchers.anyMap;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableMap;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.sakaiproject.nakamura.api.lite.CacheHolder;
+import org.sakaiproject.nakamura.api.lite.Configuration;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.lite.cache.LoopbackInvalidationChannel;
+import org.sakaiproject.nakamura.lite.storage.SegmentedLRUMap;
+import org.sakaiproject.nakamura.lite.storage.StorageClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class CachingManagerTest {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CachingManagerTest.class);
+
+    private static class TestCachingManager extends CachingManager {
+
+        public TestCachingManager(StorageClient client, Map<String, CacheHolder> sharedCache) {
+            super(client, sharedCache);
+        }
+
+        public TestCachingManager(StorageClient client, Map<String, CacheHolder> sharedCache,
+                Configuration config) {
+            super(client, sharedCache, config);
+        }
+
+        @Override
+        protected Logger getLogger() {
+            return LOGGER;
+        }
+    }
+
+    /**
+     * A storage client that blocks in get until released.
+     */
+    private StorageClient blockingClient(final CountDownLatch loading,
+            final CountDownLatch release, final AtomicInteger gets)
+            throws StorageClientException {
+        StorageClient client = mock(StorageClient.class);
+        when(client.get("n", "cf", "key")).thenAnswer(new Answer<Map<String, Object>>() {
+            public Map<String, Object> answer(InvocationOnMock invocation) throws Throwable {
+                gets.incrementAndGet();
+                loading.countDown();
+                release.await(10, TimeUnit.SECONDS);
+                return ImmutableMap.of("value", (Object) "loaded");
+            }
+        });
+        return client;
+    }
+
+    @Test
+    public void testConcurrentMissesLoadOnce() throws Exception {
+        Map<String, CacheHolder> cache = new SegmentedLRUMap<String, CacheHolder>(100);
+        final CountDownLatch loading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger gets = new AtomicInteger();
+        final CachingManager manager = new TestCachingManager(blockingClient(loading, release,
+                gets), cache);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final AtomicInteger found = new AtomicInteger();
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        Map<String, Object> m = manager.getCached("n", "cf", "key");
+                        if ("loaded".equals(m.get("value"))) {
+                            found.incrementAndGet();
+                        }
+                    } catch (Throwable e) {
+                        failure.set(e);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        Assert.assertTrue(loading.await(10, TimeUnit.SECONDS));
+        // give the other threads time to queue behind the load.
+        Thread.sleep(200);
+        release.countDown();
+        for (Thread t : threads) {
+            t.join();
+        }
+        Assert.assertNull(failure.get());
+        Assert.assertEquals(threads.length, found.get());
+        Assert.assertEquals(1, gets.get());
+        Assert.assertTrue(cache.containsKey("n:cf:key"));
+        Assert.assertEquals(threads.length - 1, manager.getCacheStats().getCoalescedLoadCount()
+                + manager.getCacheStats().getHitCount());
+        CacheStats.unregister(cache);
+    }
+
+    @Test
+    public void testRemoveDuringLoadIsNotCached() throws Exception {
+        Map<String, CacheHolder> cache = new SegmentedLRUMap<String, CacheHolder>(100);
+        final CountDownLatch loading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger gets = new AtomicInteger();
+        final CachingManager manager = new TestCachingManager(blockingClient(loading, release,
+                gets), cache);
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    manager.getCached("n", "cf", "key");
+                } catch (StorageClientException e) {
+                    LOGGER.error(e.getMessage(), e);
+                }
+            }
+        };
+        t.start();
+        Assert.assertTrue(loading.await(10, TimeUnit.SECONDS));
+        manager.removeFromCache("n", "cf", "key");
+        release.countDown();
+        t.join();
+        Assert.assertFalse(cache.containsKey("n:cf:key"));
+        CacheStats.unregister(cache);
+    }
+
+    @Test
+    public void testCachedRowsAreUnmodifiable() throws Exception {
+        Map<String, CacheHolder> cache = new SegmentedLRUMap<String, CacheHolder>(100);
+        StorageClient client = mock(StorageClient.class);
+        Map<String, Object> row = new HashMap<String, Object>();
+        row.put("a", "b");
+        when(client.get("n", "cf", "key")).thenReturn(row);
+        CachingManager manager = new TestCachingManager(client, cache);
+        Map<String, Object> loaded = manager.getCached("n", "cf", "key");
+        Assert.assertSame(loaded, manager.getCached("n", "cf", "key"));
+        try {
+            loaded.put("a", "c");
+            Assert.fail();
+        } catch (UnsupportedOperationException e) {
+            // Ok
+        }
+        Assert.assertEquals("b", manager.getCached("n", "cf", "key").get("a"));
+        CacheStats.unregister(cache);
+    }
+
+    @Test
+    public void testRowModifiedDuringLoadIsUnmodifiable() throws Exception {
+        Map<String, CacheHolder> cache = new SegmentedLRUMap<String, CacheHolder>(100);
+        StorageClient client = mock(StorageClient.class);
+        final CachingManager manager = new TestCachingManager(client, cache);
+        when(client.get("n", "cf", "key")).thenAnswer(new Answer<Map<String, Object>>() {
+            public Map<String, Object> answer(InvocationOnMock invocation) throws Throwable {
+                // the row is modified while it is being loaded.
+                manager.removeFromCache("n", "cf", "key");
+                Map<String, Object> row = new HashMap<String, Object>();
+                row.put("a", "b");
+                return row;
+            }
+        });
+        Map<String, Object> loaded = manager.getCached("n", "cf", "key");
+        Assert.assertFalse(cache.containsKey("n:cf:key"));
+        try {
+            // the result may have been handed to waiting threads.
+            loaded.put("a", "c");
+            Assert.fail();
+        } catch (UnsupportedOperationException e) {
+            // Ok
+        }
+        CacheStats.unregister(cache);
+    }
+
+    @Test
+    public void testFailedLoad() throws Exception {
+        Map<String, CacheHolder> cache = new SegmentedLRUMap<String, CacheHolder>(100);
+        StorageClient client = mock(StorageClient.class);
+        when(client.get("n", "cf", "key")).thenThrow(new StorageClientException("failed"));
+        CachingManager manager = new TestCachingManager(client, cache);
+        for (int i = 0; i < 2; i++) {
+            try {
+                manager.getCached("n", "cf", "key");
+                Assert.fail();
+            } catch (StorageClientException e) {
+                Assert.assertEquals("failed", e.getMessage());
+            }
+        }
+        // a failed load is not left registered.
+        verify(client, times(2)).get("n", "cf", "key");
+        Assert.assertFalse(cache.containsKey("n:cf:key"));
+        CacheStats.unregister(cache);
+    }
+
+    private Configuration negativeTTLConfig(String ttl) {
+        Configuration config = mock(Configuration.class);
+        when(config.getSharedConfig()).thenReturn(
+                ImmutableMap.of(CachingManager.NEGATIVE_CACHE_TTL, ttl));
+        return config;
+    }
+
+    @Test
+    public void testNegativeCaching() throws Exception {
+        Map<String, CacheHolder> cache = new SegmentedLRUMap<String, CacheHolder>(100);
+        StorageClient client = mock(StorageClient.class);
+        when(client.get("n", "cf", "missing")).thenReturn(new HashMap<String, Object>());
+        CachingManager manager = new TestCachingManager(client, cache, negativeTTLConfig("60000"));
+        for (int i = 0; i < 5; i++) {
+            Assert.assertTrue(manager.getCached("n", "cf", "missing").isEmpty());
+        }
+        verify(client, times(1)).get("n", "cf", "missing");
+        Assert.assertEquals(4, manager.getCacheStats().getNegativeHitCount());
+        // each negative hit gets a map of its own.
+        Map<String, Object> missing = manager.getCached("n", "cf", "missing");
+        missing.put("x", "y");
+        Assert.assertNotSame(missing, manager.getCached("n", "cf", "missing"));
+        Assert.assertTrue(manager.getCached("n", "cf", "missing").isEmpty());
+
+        // writing the row invalidates the negative entry.
+        Map<String, Object> values = ImmutableMap.of("a", (Object) "b");
+        manager.putCached("n", "cf", "missing", values, true);
+        verify(client).insert(eq("n"), eq("cf"), eq("missing"), anyMap(), eq(true));
+        when(client.get("n", "cf", "missing")).thenReturn(values);
+        Assert.assertEquals("b", manager.getCached("n", "cf", "missing").get("a"));
+        verify(client, times(2)).get("n", "cf", "missing");
+        Assert.assertEquals("b", manager.getCached("n", "cf", "missing").get("a"));
+        verify(client, times(2)).get("n", "cf", "missing");
+        CacheStats.unregister(cache);
+    }
+
+    @Test
+    public void testNegativeCachingByDefault() throws Exception {
+        Map<String, CacheHolder> cache = new SegmentedLRUMap<String, CacheHolder>(100);
+        StorageClient client = mock(StorageClient.class);
+        when(client.get("n", "cf", "missing")).thenReturn(new HashMap<String, Object>());
+        CachingManager manager = new TestCachingManager(client, cache);
+        Assert.assertTrue(manager.getCached("n", "cf", "missing").isEmpty());
+        Assert.assertTrue(manager.getCached("n", "cf", "missing").isEmpty());
+        verify(client, times(1)).get("n", "cf", "missing");
+        Assert.assertFalse(cache.get("n:cf:missing").isExpired());
+
+        // rows written directly to the client are invalidated by the writer.
+        when(client.get("n", "cf", "missing")).thenReturn(
+                ImmutableMap.of("a", (Object) "b"));
+        CacheInvalidator.invalidate(cache, "n", "cf", "missing");
+        Assert.assertEquals("b", manager.getCached("n", "cf", "missing").get("a"));
+        CacheStats.unregister(cache);
+    }
+
+    @Test
+    public void testNegativeCacheExpires() throws Exception {
+        Map<String, CacheHolder> cache = new SegmentedLRUMap<String, CacheHolder>(100);
+        StorageClient client = mock(StorageClient.class);
+        when(client.get(anyString(), anyString(), anyString())).thenReturn(null);
+        CachingManager manager = new TestCachingManager(client, cache, negativeTTLConfig("1"));
+        Assert.assertNull(manager.getCached("n", "cf", "missing"));
+        Thread.sleep(20);
+        Assert.assertNull(manager.getCached("n", "cf", "missing"));
+        verify(client, times(2)).get("n", "cf", "missing");
+
+        // 0 caches missing rows until they are invalidated.
+        manager = new TestCachingManager(client, cache, negativeTTLConfig("0"));
+        Assert.assertNull(manager.getCached("n", "cf", "kept"));
+        Thread.sleep(20);
+        Assert.assertTrue(manager.getCached("n", "cf", "kept").isEmpty());
+        verify(client, times(1)).get("n", "cf", "kept");
+
+        // a negative value disables negative caching
+        manager = new TestCachingManager(client, cache, negativeTTLConfig("-1"));
+        Assert.assertNull(manager.getCached("n", "cf", "other"));
+        Assert.assertNull(manager.getCached("n", "cf", "other"));
+        verify(client, times(2)).get("n", "cf", "other");
+        Assert.assertFalse(cache.containsKey("n:cf:other"));
+        CacheStats.unregister(cache);
+    }
+
+    @Test
+    public void testClusterInvalidation() throws Exception {
+        // two nodes, each with its own cache over the same store.
+        Map<String, CacheHolder> cache1 = new SegmentedLRUMap<String, CacheHolder>(100);
+        Map<String, CacheHolder> cache2 = new SegmentedLRUMap<String, CacheHolder>(100);
+        LoopbackInvalidationChannel channel1 = new LoopbackInvalidationChannel(
+                "testClusterInvalidation", 0, 100);
+        LoopbackInvalidationChannel channel2 = new LoopbackInvalidationChannel(
+                "testClusterInvalidation", 0, 100);
+        try {
+            CacheInvalidator.getInstance(cache1).setChannel(channel1);
+            CacheInvalidator.getInstance(cache2).setChannel(channel2);
+            StorageClient client = mock(StorageClient.class);
+            Map<String, Object> v1 = ImmutableMap.of("v", (Object) "1");
+            when(client.get("n", "cf", "key")).thenReturn(v1);
+            CachingManager node1 = new TestCachingManager(client, cache1);
+            CachingManager node2 = new TestCachingManager(client, cache2);
+            Assert.assertEquals("1", node1.getCached("n", "cf", "key").get("v"));
+            Assert.assertEquals("1", node2.getCached("n", "cf", "key").get("v"));
+
+            Map<String, Object> v2 = ImmutableMap.of("v", (Object) "2");
+            node1.putCached("n", "cf", "key", v2, false);
+            node1.putCached("n", "cf", "key", v2, false);
+            when(client.get("n", "cf", "key")).thenReturn(v2);
+            // not published yet
+            Assert.assertEquals("1", node2.getCached("n", "cf", "key").get("v"));
+            channel1.flush();
+            Assert.assertFalse(cache2.containsKey("n:cf:key"));
+            Assert.assertEquals("2", node2.getCached("n", "cf", "key").get("v"));
+            Assert.assertEquals("2", node1.getCached("n", "cf", "key").get("v"));
+
+            // invalidations from node2 reach node1 but not node2 itself.
+            node2.removeFromCache("n", "cf", "key");
+            node2.getCached("n", "cf", "key");
+            channel2.flush();
+            Assert.assertFalse(cache1.containsKey("n:cf:key"));
+            Assert.assertTrue(cache2.containsKey("n:cf:key"));
+        } finally {
+            CacheInvalidator.getInstance(cache1).setChannel(null);
+            CacheInvalidator.getInstance(cache2).setChannel(null);
+            channel1.close();
+            channel2.close();
+            CacheStats.unregister(cache1);
+            CacheStats.unregister(cache2);
+        }
+    }
+}
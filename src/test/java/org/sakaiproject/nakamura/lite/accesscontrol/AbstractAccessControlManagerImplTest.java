@@ -27,6 +27,7 @@ import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
+import org.sakaiproject.nakamura.api.lite.CacheHolder;
 import org.sakaiproject.nakamura.api.lite.ClientPoolException;
 import org.sakaiproject.nakamura.api.lite.Configuration;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
@@ -49,6 +50,7 @@ import org.sakaiproject.nakamura.lite.ConfigurationImpl;
 import org.sakaiproject.nakamura.lite.LoggingStorageListener;
 import org.sakaiproject.nakamura.lite.authorizable.AuthorizableActivator;
 import org.sakaiproject.nakamura.lite.authorizable.AuthorizableManagerImpl;
+import org.sakaiproject.nakamura.lite.storage.ConcurrentLRUMap;
 import org.sakaiproject.nakamura.lite.storage.StorageClient;
 import org.sakaiproject.nakamura.lite.storage.StorageClientPool;
 import org.slf4j.Logger;
@@ -470,4 +472,160 @@ public abstract class AbstractAccessControlManagerImplTest {
 
     }
 
+    @Test
+    public void testSharedCompiledPermissions() throws StorageClientException,
+            AccessDeniedException {
+        Map<String, CacheHolder> sharedCache = new ConcurrentLRUMap<String, CacheHolder>(1000);
+        AuthenticatorImpl authenticator = new AuthenticatorImpl(client, configuration);
+        User admin = authenticator.authenticate("admin", "admin");
+        String u1 = "user1-" + System.currentTimeMillis();
+        String basepath = "testshared" + System.currentTimeMillis();
+        AccessControlManagerImpl adminAccessControl = new AccessControlManagerImpl(client, admin,
+                configuration, sharedCache, new LoggingStorageListener(),
+                principalValidatorResolver);
+        new AuthorizableManagerImpl(admin, client, configuration, adminAccessControl,
+                sharedCache, new LoggingStorageListener()).createUser(u1, "User 1", "test",
+                ImmutableMap.of("test", (Object) "test"));
+        adminAccessControl.setAcl(Security.ZONE_CONTENT, basepath + "/a",
+                new AclModification[] { new AclModification(AclModification.grantKey(u1),
+                        Permissions.CAN_WRITE.getPermission(), Operation.OP_REPLACE) });
+
+        User user = authenticator.authenticate(u1, "test");
+        AccessControlManagerImpl session1 = new AccessControlManagerImpl(client, user,
+                configuration, sharedCache, new LoggingStorageListener(),
+                principalValidatorResolver);
+        session1.check(Security.ZONE_CONTENT, basepath + "/a/b/c", Permissions.CAN_WRITE);
+        session1.check(Security.ZONE_CONTENT, basepath + "/x", Permissions.CAN_READ);
+        CompiledPermissionCache compiled = CompiledPermissionCache.getInstance(sharedCache,
+                configuration.getKeySpace(), configuration.getAclColumnFamily());
+        // c, b, a, basepath and x
+        Assert.assertEquals(5, compiled.size());
+
+        // a second session for the same user reuses the compiled permissions.
+        AccessControlManagerImpl session2 = new AccessControlManagerImpl(client, user,
+                configuration, sharedCache, new LoggingStorageListener(),
+                principalValidatorResolver);
+        session2.check(Security.ZONE_CONTENT, basepath + "/a/b/d", Permissions.CAN_WRITE);
+        Assert.assertEquals(6, compiled.size());
+
+        // changing the ACL on b removes b and below but leaves the rest.
+        adminAccessControl.setAcl(Security.ZONE_CONTENT, basepath + "/a/b",
+                new AclModification[] { new AclModification(AclModification.denyKey(u1),
+                        Permissions.CAN_WRITE.getPermission(), Operation.OP_REPLACE) });
+        Assert.assertEquals(3, compiled.size());
+        AccessControlManagerImpl session3 = new AccessControlManagerImpl(client, user,
+                configuration, sharedCache, new LoggingStorageListener(),
+                principalValidatorResolver);
+        Assert.assertFalse(session3.can(user, Security.ZONE_CONTENT, basepath + "/a/b/c",
+                Permissions.CAN_WRITE));
+        Assert.assertTrue(session3.can(user, Security.ZONE_CONTENT, basepath + "/a",
+                Permissions.CAN_WRITE));
+    }
+    @Test
+    public void testCheckAll() throws StorageClientException, AccessDeniedException {
+        AuthenticatorImpl authenticator = new AuthenticatorImpl(client, configuration);
+        User admin = authenticator.authenticate("admin", "admin");
+        String u1 = "user1-" + System.currentTimeMillis();
+        String basepath = "testcheckall" + System.currentTimeMillis();
+        AccessControlManagerImpl adminAccessControl = new AccessControlManagerImpl(client, admin,
+                configuration, null, new LoggingStorageListener(), principalValidatorResolver);
+        new AuthorizableManagerImpl(admin, client, configuration, adminAccessControl, null,
+                new LoggingStorageListener()).createUser(u1, "User 1", "test",
+                ImmutableMap.of("test", (Object) "test"));
+        adminAccessControl.setAcl(Security.ZONE_CONTENT, basepath,
+                new AclModification[] { new AclModification(AclModification.grantKey(u1),
+                        Permissions.CAN_WRITE.getPermission(), Operation.OP_REPLACE) });
+        adminAccessControl.setAcl(Security.ZONE_CONTENT, basepath + "/a/denied",
+                new AclModification[] { new AclModification(AclModification.denyKey(u1),
+                        Permissions.CAN_WRITE.getPermission(), Operation.OP_REPLACE) });
+        StringBuilder deep = new StringBuilder(basepath);
+        for (int i = 0; i < 25; i++) {
+            deep.append("/level").append(i);
+        }
+        List<String> paths = Lists.newArrayList(basepath + "/a/1", basepath + "/a/denied",
+                basepath + "/a/denied/child", basepath + "/a/2", basepath, deep.toString(),
+                "other" + System.currentTimeMillis() + "/x");
+
+        User user = authenticator.authenticate(u1, "test");
+        AccessControlManagerImpl userAccessControl = new AccessControlManagerImpl(client, user,
+                configuration, null, new LoggingStorageListener(), principalValidatorResolver);
+        List<String> writable = userAccessControl.checkAll(Security.ZONE_CONTENT, paths,
+                Permissions.CAN_WRITE);
+        Assert.assertEquals(Lists.newArrayList(basepath + "/a/1", basepath + "/a/2", basepath),
+                writable);
+        Assert.assertEquals(paths, userAccessControl.checkAll(Security.ZONE_CONTENT, paths,
+                Permissions.CAN_READ));
+
+        // a fresh manager checking one path at a time agrees.
+        userAccessControl = new AccessControlManagerImpl(client, user, configuration, null,
+                new LoggingStorageListener(), principalValidatorResolver);
+        for (String path : paths) {
+            Assert.assertEquals(path, writable.contains(path), userAccessControl.can(user,
+                    Security.ZONE_CONTENT, path, Permissions.CAN_WRITE));
+        }
+    }
+
+    @Test
+    public void testFilterReadable() throws StorageClientException, AccessDeniedException {
+        AuthenticatorImpl authenticator = new AuthenticatorImpl(client, configuration);
+        User admin = authenticator.authenticate("admin", "admin");
+        String u1 = "user1-" + System.currentTimeMillis();
+        String basepath = "testfilterreadable" + System.currentTimeMillis();
+        AccessControlManagerImpl adminAccessControl = new AccessControlManagerImpl(client, admin,
+                configuration, null, new LoggingStorageListener(), principalValidatorResolver);
+        new AuthorizableManagerImpl(admin, client, configuration, adminAccessControl, null,
+                new LoggingStorageListener()).createUser(u1, "User 1", "test",
+                ImmutableMap.of("test", (Object) "test"));
+        adminAccessControl.setAcl(Security.ZONE_CONTENT, basepath + "/hidden",
+                new AclModification[] { new AclModification(AclModification.denyKey(u1),
+                        Permissions.CAN_READ.getPermission(), Operation.OP_REPLACE) });
+        List<String> paths = Lists.newArrayList();
+        List<String> expected = Lists.newArrayList();
+        for (int i = 0; i < 60; i++) {
+            String path = basepath + ((i % 3 == 0) ? "/hidden/" : "/visible/") + i;
+            paths.add(path);
+            if (i % 3 != 0) {
+                expected.add(path);
+            }
+        }
+        paths.add(null);
+
+        User user = authenticator.authenticate(u1, "test");
+        AccessControlManagerImpl userAccessControl = new AccessControlManagerImpl(client, user,
+                configuration, null, new LoggingStorageListener(), principalValidatorResolver);
+        Assert.assertEquals(expected, Lists.newArrayList(userAccessControl.filterReadable(
+                Security.ZONE_CONTENT, paths.iterator())));
+        Assert.assertEquals(expected, Lists.newArrayList(new PermissionFilterIterator(
+                userAccessControl, Security.ZONE_CONTENT, paths.iterator(),
+                Permissions.CAN_READ, 7)));
+        Assert.assertFalse(userAccessControl.filterReadable(Security.ZONE_CONTENT,
+                Lists.<String> newArrayList().iterator()).hasNext());
+    }
+
+    @Test
+    public void testAclUpdateSeenByNewManager() throws StorageClientException, AccessDeniedException {
+        AuthenticatorImpl authenticator = new AuthenticatorImpl(client, configuration);
+        User admin = authenticator.authenticate("admin", "admin");
+        String u1 = "user1-" + System.currentTimeMillis();
+        String path = "testaclupdate" + System.currentTimeMillis();
+        AccessControlManagerImpl adminAccessControl = new AccessControlManagerImpl(client, admin,
+                configuration, null, new LoggingStorageListener(), principalValidatorResolver);
+        new AuthorizableManagerImpl(admin, client, configuration, adminAccessControl, null,
+                new LoggingStorageListener()).createUser(u1, "User 1", "test",
+                ImmutableMap.of("test", (Object) "test"));
+        adminAccessControl.setAcl(Security.ZONE_CONTENT, path,
+                new AclModification[] { new AclModification(AclModification.grantKey(u1),
+                        Permissions.CAN_WRITE.getPermission(), Operation.OP_REPLACE) });
+        User user = authenticator.authenticate(u1, "test");
+        Assert.assertTrue(new AccessControlManagerImpl(client, user, configuration, null,
+                new LoggingStorageListener(), principalValidatorResolver).can(user,
+                Security.ZONE_CONTENT, path, Permissions.CAN_WRITE));
+
+        adminAccessControl.setAcl(Security.ZONE_CONTENT, path,
+                new AclModification[] { new AclModification(AclModification.denyKey(u1),
+                        Permissions.CAN_WRITE.getPermission(), Operation.OP_REPLACE) });
+        Assert.assertFalse(new AccessControlManagerImpl(client, user, configuration, null,
+                new LoggingStorageListener(), principalValidatorResolver).can(user,
+                Security.ZONE_CONTENT, path, Permissions.CAN_WRITE));
+    }
 }
@@ -0,0 +1,82 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.accesscontrol;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.lite.CacheHolder;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AclModification;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+public class CompiledAclTest {
+
+    @Test
+    public void testPermissions() {
+        Map<String, Object> acl = Maps.newHashMap();
+        acl.put(AclModification.grantKey("alice"), 0x01);
+        acl.put(AclModification.denyKey("alice"), 0x04);
+        acl.put(AclModification.grantKey("group1"), 0x02);
+        acl.put(AclModification.denyKey("group2"), 0x08);
+        acl.put("_aclKey", "CO;/a");
+        acl.put("_secretKey", "secret");
+
+        AclCompiler compiler = AclCompiler.getInstance(null);
+        CompiledAcl compiled = compiler.compile(acl);
+        Assert.assertSame(compiled, compiler.compile(acl));
+        Assert.assertEquals(3, compiled.size());
+        Assert.assertSame(CompiledAcl.EMPTY, compiler.compile(null));
+
+        int[] alice = compiler.principalIds(ImmutableList.of("alice", "group1", "group2",
+                "group1", "group3"));
+        Assert.assertEquals(4, alice.length);
+        Assert.assertTrue(Arrays.equals(new int[] { 0x03, 0x0c }, compiled.getPermissions(alice)));
+
+        int[] bob = compiler.principalIds(ImmutableList.of("bob", "group1"));
+        Assert.assertTrue(Arrays.equals(new int[] { 0x02, 0x00 }, compiled.getPermissions(bob)));
+        Assert.assertTrue(Arrays.equals(new int[] { 0x00, 0x00 },
+                compiled.getPermissions(compiler.principalIds(ImmutableList.of("carol")))));
+        Assert.assertTrue(Arrays.equals(new int[] { 0x02, 0x00 },
+                compiled.getPermissions(compiler.principalId("group1"))));
+
+        // a user in more groups than the ACL has entries searches the other way.
+        List<String> many = ImmutableList.of("g0", "g1", "g2", "g3", "g4", "group2", "g5");
+        Assert.assertTrue(Arrays.equals(new int[] { 0x00, 0x08 },
+                compiled.getPermissions(compiler.principalIds(many))));
+    }
+
+    @Test
+    public void testCompilerPerCache() {
+        Map<String, CacheHolder> cache = Maps.newHashMap();
+        AclCompiler compiler = AclCompiler.getInstance(cache);
+        Assert.assertSame(compiler, AclCompiler.getInstance(cache));
+        Assert.assertNotSame(compiler,
+                AclCompiler.getInstance(Maps.<String, CacheHolder> newHashMap()));
+        Assert.assertNotSame(AclCompiler.getInstance(null), AclCompiler.getInstance(null));
+        // principals interned by one compiler are not seen by another.
+        compiler.principalId("alice");
+        AclCompiler other = AclCompiler.getInstance(null);
+        Assert.assertEquals(0, other.principalId("bob"));
+        Assert.assertEquals(1, compiler.principalId("bob"));
+    }
+}
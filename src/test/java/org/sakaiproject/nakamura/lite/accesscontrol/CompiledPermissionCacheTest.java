@@ -0,0 +1,80 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.accesscontrol;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.lite.CacheHolder;
+import org.sakaiproject.nakamura.lite.storage.SegmentedLRUMap;
+
+import java.util.Map;
+
+public class CompiledPermissionCacheTest {
+
+    private static final int[] PRIVILEGES = new int[] { 1, 0 };
+
+    @Test
+    public void testInvalidatePathAndBelow() {
+        Map<String, CacheHolder> aclCache = new SegmentedLRUMap<String, CacheHolder>(10);
+        CompiledPermissionCache cache = CompiledPermissionCache.getInstance(aclCache, "n", "ac");
+        String[] paths = new String[] { "/", "/a", "/a/b", "/a/b/c", "/ab", "x/y" };
+        for (String path : paths) {
+            cache.put("f", "CO", path, PRIVILEGES, cache.getVersion());
+        }
+        cache.put("f", "AU", "/a/b", PRIVILEGES, cache.getVersion());
+        Assert.assertEquals(7, cache.size());
+
+        cache.invalidate("CO", "/a/b");
+        Assert.assertNull(cache.get("f", "CO", "/a/b"));
+        Assert.assertNull(cache.get("f", "CO", "/a/b/c"));
+        Assert.assertNotNull(cache.get("f", "CO", "/a"));
+        Assert.assertNotNull(cache.get("f", "CO", "/ab"));
+        Assert.assertNotNull(cache.get("f", "AU", "/a/b"));
+        Assert.assertEquals(5, cache.size());
+
+        cache.invalidated("n:ac:CO;x");
+        Assert.assertNull(cache.get("f", "CO", "x/y"));
+        cache.invalidate("CO", "/");
+        Assert.assertEquals(1, cache.size());
+
+        // an entry compiled before an invalidation is not cached.
+        long version = cache.getVersion();
+        cache.invalidate("CO", "/other");
+        cache.put("f", "CO", "/a", PRIVILEGES, version);
+        Assert.assertNull(cache.get("f", "CO", "/a"));
+    }
+
+    @Test
+    public void testIndexSweptAfterEviction() {
+        CompiledPermissionCache.setMaxSize(4);
+        try {
+            Map<String, CacheHolder> aclCache = new SegmentedLRUMap<String, CacheHolder>(10);
+            CompiledPermissionCache cache = CompiledPermissionCache.getInstance(aclCache, "n",
+                    "ac");
+            for (int i = 0; i < 100; i++) {
+                cache.put("f" + i, "CO", "/a/b", PRIVILEGES, cache.getVersion());
+            }
+            Assert.assertTrue(cache.size() <= 4);
+            cache.put("f", "CO", "/a/b", PRIVILEGES, cache.getVersion());
+            cache.invalidate("CO", "/a");
+            Assert.assertEquals(0, cache.size());
+        } finally {
+            CompiledPermissionCache.setMaxSize(CompiledPermissionCache.DEFAULT_MAX_SIZE);
+        }
+    }
+}
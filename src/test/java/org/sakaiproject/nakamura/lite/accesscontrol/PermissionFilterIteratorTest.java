@@ -0,0 +1,58 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.accesscontrol;
+
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessControlManager;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.Permission;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.Permissions;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.Security;
+
+import java.util.List;
+
+public class PermissionFilterIteratorTest {
+
+    @Test
+    public void testFailedBatchCheckedPerPath() throws StorageClientException,
+            AccessDeniedException {
+        AccessControlManager accessControlManager = mock(AccessControlManager.class);
+        Permission read = Permissions.CAN_READ;
+        when(accessControlManager.checkAll(eq(Security.ZONE_CONTENT), anyListOf(String.class),
+                eq(read))).thenThrow(new StorageClientException("batch failed"));
+        doThrow(new AccessDeniedException(Security.ZONE_CONTENT, "b", "denied", "u"))
+                .when(accessControlManager).check(Security.ZONE_CONTENT, "b", read);
+        doThrow(new StorageClientException("broken acl")).when(accessControlManager).check(
+                Security.ZONE_CONTENT, "c", read);
+        List<String> paths = ImmutableList.of("a", "b", "c", "d");
+        Assert.assertEquals(ImmutableList.of("a", "d"), Lists.newArrayList(
+                new PermissionFilterIterator(accessControlManager, Security.ZONE_CONTENT,
+                        paths.iterator(), read, 3)));
+    }
+}
@@ -30,7 +30,11 @@ import org.sakaiproject.nakamura.api.lite.ClientPoolException;
 import org.sakaiproject.nakamura.api.lite.Configuration;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AclModification;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AclModification.Operation;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.Permissions;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.PrincipalValidatorResolver;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.Security;
 import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
 import org.sakaiproject.nakamura.api.lite.authorizable.Group;
 import org.sakaiproject.nakamura.api.lite.authorizable.User;
@@ -436,4 +440,109 @@ public abstract class AbstractAuthorizableManagerImplTest {
         Assert.assertTrue(group instanceof Group);
     }
 
+
+    @Test
+    public void testMembership() throws StorageClientException, AccessDeniedException {
+        AuthenticatorImpl authenticator = new AuthenticatorImpl(client, configuration);
+        User admin = authenticator.authenticate("admin", "admin");
+        AccessControlManagerImpl adminAccessControl = new AccessControlManagerImpl(client, admin,
+                configuration, sharedCache, new LoggingStorageListener(), principalValidatorResolver);
+        AuthorizableManagerImpl authorizableManager = new AuthorizableManagerImpl(admin, client,
+                configuration, adminAccessControl, sharedCache, new LoggingStorageListener());
+        String suffix = String.valueOf(System.currentTimeMillis());
+        String ga = "ga" + suffix;
+        String gb = "gb" + suffix;
+        String gc = "gc" + suffix;
+        String u = "u" + suffix;
+        Assert.assertTrue(authorizableManager.createGroup(ga, "A", null));
+        Assert.assertTrue(authorizableManager.createGroup(gb, "B", null));
+        Assert.assertTrue(authorizableManager.createGroup(gc, "C", null));
+        Assert.assertTrue(authorizableManager.createUser(u, "U", "test", null));
+
+        Group b = (Group) authorizableManager.findAuthorizable(gb);
+        b.addMember(u);
+        b.addMember(gc);
+        authorizableManager.updateAuthorizable(b);
+        Group a = (Group) authorizableManager.findAuthorizable(ga);
+        a.addMember(gb);
+        authorizableManager.updateAuthorizable(a);
+
+        List<String> membership = Lists.newArrayList(authorizableManager.findAuthorizable(u)
+                .getMembership());
+        Collections.sort(membership);
+        Assert.assertEquals(Lists.newArrayList(ga, gb), membership);
+        membership = Lists.newArrayList(authorizableManager.findAuthorizable(gc).getMembership());
+        Collections.sort(membership);
+        Assert.assertEquals(Lists.newArrayList(ga, gb), membership);
+
+        // a is above c, so making a a member of c would create a cycle.
+        Group c = (Group) authorizableManager.findAuthorizable(gc);
+        c.addMember(ga);
+        authorizableManager.updateAuthorizable(c);
+        Assert.assertEquals(0, ((Group) authorizableManager.findAuthorizable(gc)).getMembers().length);
+
+        String path = "testmembership" + suffix;
+        adminAccessControl.setAcl(Security.ZONE_CONTENT, path,
+                new AclModification[] { new AclModification(AclModification.grantKey(ga),
+                        Permissions.CAN_WRITE.getPermission(), Operation.OP_REPLACE) });
+        User user = authenticator.authenticate(u, "test");
+        AccessControlManagerImpl userAccessControl = new AccessControlManagerImpl(client, user,
+                configuration, sharedCache, new LoggingStorageListener(), principalValidatorResolver);
+        Assert.assertTrue(userAccessControl.can(user, Security.ZONE_CONTENT, path,
+                Permissions.CAN_WRITE));
+
+        // removing b from a is seen by the existing manager.
+        a = (Group) authorizableManager.findAuthorizable(ga);
+        a.removeMember(gb);
+        authorizableManager.updateAuthorizable(a);
+        Assert.assertArrayEquals(new String[] { gb }, authorizableManager.findAuthorizable(u)
+                .getMembership());
+        Assert.assertFalse(userAccessControl.can(user, Security.ZONE_CONTENT, path,
+                Permissions.CAN_WRITE));
+        Assert.assertNull(authorizableManager.findAuthorizable(u).getSafeProperties().get(
+                Authorizable.MEMBERSHIP_FIELD));
+    }
+
+    @Test
+    public void testMembershipAfterDelete() throws StorageClientException, AccessDeniedException {
+        AuthenticatorImpl authenticator = new AuthenticatorImpl(client, configuration);
+        User admin = authenticator.authenticate("admin", "admin");
+        AccessControlManagerImpl adminAccessControl = new AccessControlManagerImpl(client, admin,
+                configuration, sharedCache, new LoggingStorageListener(), principalValidatorResolver);
+        AuthorizableManagerImpl authorizableManager = new AuthorizableManagerImpl(admin, client,
+                configuration, adminAccessControl, sharedCache, new LoggingStorageListener());
+        String suffix = String.valueOf(System.currentTimeMillis());
+        String ga = "dga" + suffix;
+        String gb = "dgb" + suffix;
+        String u = "du" + suffix;
+        Assert.assertTrue(authorizableManager.createGroup(ga, "A", null));
+        Assert.assertTrue(authorizableManager.createGroup(gb, "B", null));
+        Assert.assertTrue(authorizableManager.createUser(u, "U", "test", null));
+        Group b = (Group) authorizableManager.findAuthorizable(gb);
+        b.addMember(u);
+        authorizableManager.updateAuthorizable(b);
+        Group a = (Group) authorizableManager.findAuthorizable(ga);
+        a.addMember(gb);
+        authorizableManager.updateAuthorizable(a);
+
+        String path = "testmembershipdelete" + suffix;
+        adminAccessControl.setAcl(Security.ZONE_CONTENT, path,
+                new AclModification[] { new AclModification(AclModification.grantKey(ga),
+                        Permissions.CAN_WRITE.getPermission(), Operation.OP_REPLACE) });
+        User user = authenticator.authenticate(u, "test");
+        AccessControlManagerImpl userAccessControl = new AccessControlManagerImpl(client, user,
+                configuration, sharedCache, new LoggingStorageListener(), principalValidatorResolver);
+        Assert.assertTrue(userAccessControl.can(user, Security.ZONE_CONTENT, path,
+                Permissions.CAN_WRITE));
+
+        // deleting b removes a from the membership of b's members.
+        authorizableManager.delete(gb);
+        Assert.assertEquals(0, authorizableManager.findAuthorizable(u).getMembership().length);
+        Assert.assertFalse(userAccessControl.can(user, Security.ZONE_CONTENT, path,
+                Permissions.CAN_WRITE));
+        user = authenticator.authenticate(u, "test");
+        Assert.assertFalse(new AccessControlManagerImpl(client, user, configuration, sharedCache,
+                new LoggingStorageListener(), principalValidatorResolver).can(user,
+                Security.ZONE_CONTENT, path, Permissions.CAN_WRITE));
+    }
 }
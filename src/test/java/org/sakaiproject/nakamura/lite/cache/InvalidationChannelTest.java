@@ -0,0 +1,174 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.cache;
+
+import com.google.common.collect.Lists;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.lite.CacheInvalidationChannel;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class InvalidationChannelTest {
+
+    private static class RecordingListener implements CacheInvalidationChannel.Listener {
+        private List<String> invalidated = Lists.newArrayList();
+        private int invalidatedAll;
+
+        public void invalidated(String cacheKey) {
+            invalidated.add(cacheKey);
+        }
+
+        public void invalidatedAll() {
+            invalidatedAll++;
+        }
+    }
+
+    @Test
+    public void testLoopbackBatchesAndCoalesces() {
+        LoopbackInvalidationChannel c1 = new LoopbackInvalidationChannel("testLoopback", 0, 3);
+        LoopbackInvalidationChannel c2 = new LoopbackInvalidationChannel("testLoopback", 0, 3);
+        LoopbackInvalidationChannel other = new LoopbackInvalidationChannel("testOther", 0, 3);
+        RecordingListener l1 = new RecordingListener();
+        RecordingListener l2 = new RecordingListener();
+        RecordingListener lOther = new RecordingListener();
+        c1.addListener(l1);
+        c2.addListener(l2);
+        other.addListener(lOther);
+        try {
+            c1.invalidate("a");
+            c1.invalidate("a");
+            c1.invalidate("b");
+            Assert.assertEquals(0, l2.invalidated.size());
+            // the third distinct key fills the batch
+            c1.invalidate("c");
+            Assert.assertEquals(Lists.newArrayList("a", "b", "c"), l2.invalidated);
+            c1.invalidate("d");
+            c1.flush();
+            Assert.assertEquals(4, l2.invalidated.size());
+            Assert.assertEquals(0, l1.invalidated.size());
+            Assert.assertEquals(0, lOther.invalidated.size());
+        } finally {
+            c1.close();
+            c2.close();
+            other.close();
+        }
+    }
+
+    @Test
+    public void testLoopbackFlushesOnTimer() throws InterruptedException {
+        LoopbackInvalidationChannel c1 = new LoopbackInvalidationChannel("testTimer", 10, 100);
+        LoopbackInvalidationChannel c2 = new LoopbackInvalidationChannel("testTimer", 10, 100);
+        RecordingListener l2 = new RecordingListener();
+        c2.addListener(l2);
+        try {
+            c1.invalidate("a");
+            for (int i = 0; i < 100 && l2.invalidated.size() == 0; i++) {
+                Thread.sleep(10);
+            }
+            Assert.assertEquals(Lists.newArrayList("a"), l2.invalidated);
+        } finally {
+            c1.close();
+            c2.close();
+        }
+    }
+
+    @Test
+    public void testMulticastEncoding() throws Exception {
+        List<String> keys = Lists.newArrayList();
+        for (int i = 0; i < 1000; i++) {
+            keys.add("n:cn:/some/path/caf\u00e9/" + i);
+        }
+        AtomicLong sequence = new AtomicLong();
+        List<byte[]> packets = MulticastInvalidationChannel.encode("node1", sequence, keys,
+                8192);
+        Assert.assertTrue(packets.size() > 1);
+        Assert.assertEquals(packets.size(), sequence.get());
+        List<String> decoded = Lists.newArrayList();
+        long expected = 1;
+        for (byte[] packet : packets) {
+            Assert.assertTrue(packet.length <= 8192);
+            MulticastInvalidationChannel.Message message = MulticastInvalidationChannel.decode(
+                    packet, 0, packet.length);
+            Assert.assertEquals("node1", message.node);
+            Assert.assertEquals(expected++, message.sequence);
+            decoded.addAll(message.cacheKeys);
+        }
+        Assert.assertEquals(keys, decoded);
+        Assert.assertNull(MulticastInvalidationChannel.decode(new byte[] { 1, 2, 3, 4, 5 }, 0, 5));
+        Assert.assertNull(MulticastInvalidationChannel.decode(new byte[] { 1 }, 0, 1));
+    }
+
+    @Test
+    public void testFlushPublishesOneBatchAtATime() throws Exception {
+        final AtomicInteger publishing = new AtomicInteger();
+        final AtomicInteger overlapped = new AtomicInteger();
+        final List<String> published = Collections.synchronizedList(Lists.<String> newArrayList());
+        final AbstractInvalidationChannel channel = new AbstractInvalidationChannel() {
+            @Override
+            protected void publish(Collection<String> cacheKeys) {
+                if (publishing.incrementAndGet() > 1) {
+                    overlapped.incrementAndGet();
+                }
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                published.addAll(cacheKeys);
+                publishing.decrementAndGet();
+            }
+        };
+        channel.start(0, 5);
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int id = t;
+            threads[t] = new Thread() {
+                public void run() {
+                    for (int i = 0; i < 100; i++) {
+                        channel.invalidate(id + ":" + i);
+                        channel.flush();
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        channel.flush();
+        Assert.assertEquals(0, overlapped.get());
+        Assert.assertEquals(400, published.size());
+        // each thread's keys are published in the order they were invalidated.
+        for (int t = 0; t < threads.length; t++) {
+            int last = -1;
+            for (String key : published) {
+                if (key.startsWith(t + ":")) {
+                    int i = Integer.parseInt(key.substring(key.indexOf(':') + 1));
+                    Assert.assertTrue(i > last);
+                    last = i;
+                }
+            }
+        }
+    }
+}
@@ -17,7 +17,15 @@
  */
 package org.sakaiproject.nakamura.lite.content;
 
+import static org.mockito.Matchers.anyCollection;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 
@@ -28,10 +36,14 @@ import org.junit.Test;
 import org.sakaiproject.nakamura.api.lite.CacheHolder;
 import org.sakaiproject.nakamura.api.lite.ClientPoolException;
 import org.sakaiproject.nakamura.api.lite.Configuration;
+import org.sakaiproject.nakamura.api.lite.StorageCacheManager;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessControlManager;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.Permissions;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.PrincipalValidatorResolver;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.Security;
 import org.sakaiproject.nakamura.api.lite.authorizable.User;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.lite.ConfigurationImpl;
@@ -41,14 +53,18 @@ import org.sakaiproject.nakamura.lite.accesscontrol.AuthenticatorImpl;
 import org.sakaiproject.nakamura.lite.accesscontrol.PrincipalValidatorResolverImpl;
 import org.sakaiproject.nakamura.lite.authorizable.AuthorizableActivator;
 import org.sakaiproject.nakamura.lite.storage.ConcurrentLRUMap;
+import org.sakaiproject.nakamura.lite.storage.InsertBuffer;
 import org.sakaiproject.nakamura.lite.storage.StorageClient;
 import org.sakaiproject.nakamura.lite.storage.StorageClientPool;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
@@ -743,6 +759,164 @@ public abstract class AbstractContentManagerTest {
 
   }
 
+  @Test
+  public void testListManyChildren() throws StorageClientException, AccessDeniedException {
+      AuthenticatorImpl AuthenticatorImpl = new AuthenticatorImpl(client, configuration);
+      User currentUser = AuthenticatorImpl.authenticate("admin", "admin");
+
+      AccessControlManagerImpl accessControlManager = new AccessControlManagerImpl(client,
+              currentUser, configuration, sharedCache,  new LoggingStorageListener(), principalValidatorResolver);
+
+      ContentManagerImpl contentManager = new ContentManagerImpl(client, accessControlManager,
+              configuration, sharedCache,  new LoggingStorageListener());
+      contentManager.update(new Content("/testListManyChildren", ImmutableMap.of("prop1", (Object) "parent")));
+      Set<String> expected = Sets.newHashSet();
+      for (int i = 0; i < 60; i++) {
+          String path = "/testListManyChildren/child" + i;
+          contentManager.update(new Content(path, ImmutableMap.of("prop1", (Object) ("value" + i))));
+          expected.add(path);
+      }
+      // warm part of the cache so that the children are loaded from a mix of cache and store.
+      Assert.assertNotNull(contentManager.get("/testListManyChildren/child7"));
+
+      Iterator<Content> children = contentManager.listChildren("/testListManyChildren");
+      int n = 0;
+      while (children.hasNext()) {
+          Content child = children.next();
+          Assert.assertTrue(expected.remove(child.getPath()));
+          String i = child.getPath().substring("/testListManyChildren/child".length());
+          Assert.assertEquals("value" + i, child.getProperty("prop1"));
+          n++;
+      }
+      Assert.assertEquals(60, n);
+      Assert.assertEquals(0, expected.size());
+  }
+
+  @Test
+  public void testGetMany() throws StorageClientException {
+      client.insert("n", "cn", "testGetMany1", ImmutableMap.of("prop1", (Object) "value1"), true);
+      client.insert("n", "cn", "testGetMany2", ImmutableMap.of("prop1", (Object) "value2"), true);
+      Map<String, Map<String, Object>> rows = client.getMany("n", "cn",
+              Arrays.asList("testGetMany2", "testGetManyMissing", "testGetMany1"));
+      Assert.assertEquals(Arrays.asList("testGetMany2", "testGetManyMissing", "testGetMany1"),
+              Lists.newArrayList(rows.keySet()));
+      Assert.assertEquals("value1", rows.get("testGetMany1").get("prop1"));
+      Assert.assertEquals("value2", rows.get("testGetMany2").get("prop1"));
+      Assert.assertEquals(0, rows.get("testGetManyMissing").size());
+  }
+
+  @Test
+  public void testInsertProbablyNewExisting() throws StorageClientException {
+      client.insert("n", "cn", "testInsertProbablyNewExisting", ImmutableMap.of("prop1", (Object) "value1"), true);
+      // the row is not new, so the stored properties must be merged with the new ones.
+      client.insert("n", "cn", "testInsertProbablyNewExisting", ImmutableMap.of("prop2", (Object) "value2"), true);
+      Map<String, Object> row = client.get("n", "cn", "testInsertProbablyNewExisting");
+      Assert.assertEquals("value1", row.get("prop1"));
+      Assert.assertEquals("value2", row.get("prop2"));
+  }
+
+  @Test
+  public void testInsertAll() throws StorageClientException {
+      client.insert("n", "cn", "/testInsertAll/existing", ImmutableMap.of("prop1", (Object) "old", "prop2", "keep"), true);
+      Map<String, Map<String, Object>> rows = Maps.newLinkedHashMap();
+      rows.put("/testInsertAll/existing", ImmutableMap.of("prop1", (Object) "new"));
+      for (int i = 0; i < 10; i++) {
+          rows.put("/testInsertAll/row" + i, ImmutableMap.of("prop1", (Object) ("value" + i)));
+      }
+      client.insertAll("n", "cn", rows);
+
+      Map<String, Object> existing = client.get("n", "cn", "/testInsertAll/existing");
+      Assert.assertEquals("new", existing.get("prop1"));
+      Assert.assertEquals("keep", existing.get("prop2"));
+      for (int i = 0; i < 10; i++) {
+          Assert.assertEquals("value" + i, client.get("n", "cn", "/testInsertAll/row" + i).get("prop1"));
+      }
+      // the parent index must have been maintained for every row.
+      Iterator<Map<String, Object>> children = client.listChildren("n", "cn", "/testInsertAll");
+      int n = 0;
+      while (children.hasNext()) {
+          Assert.assertTrue(children.next().size() > 0);
+          n++;
+      }
+      Assert.assertEquals(11, n);
+  }
+
+  @Test
+  public void testInsertBuffer() throws StorageClientException {
+      InsertBuffer insertBuffer = new InsertBuffer(client, 7, 60000L);
+      for (int i = 0; i < 20; i++) {
+          insertBuffer.insert("n", "cn", "/testInsertBuffer/row" + i, ImmutableMap.of("prop1", (Object) ("value" + i)));
+      }
+      Assert.assertEquals(6, insertBuffer.size());
+      // a second mutation to a buffered row is coalesced into it.
+      insertBuffer.insert("n", "cn", "/testInsertBuffer/row19", ImmutableMap.of("prop2", (Object) "other"));
+      Assert.assertEquals(6, insertBuffer.size());
+      Assert.assertEquals(0, client.get("n", "cn", "/testInsertBuffer/row19").size());
+      insertBuffer.insert("n", "cn", "/testInsertBuffer/row0", ImmutableMap.of("prop2", (Object) "other"));
+      Assert.assertEquals(0, insertBuffer.size());
+      insertBuffer.close();
+      for (int i = 0; i < 20; i++) {
+          Map<String, Object> row = client.get("n", "cn", "/testInsertBuffer/row" + i);
+          Assert.assertEquals("value" + i, row.get("prop1"));
+      }
+      Assert.assertEquals("other", client.get("n", "cn", "/testInsertBuffer/row0").get("prop2"));
+      Assert.assertEquals("other", client.get("n", "cn", "/testInsertBuffer/row19").get("prop2"));
+  }
+
+  @Test
+  public void testListChildrenFallsBackWhenBatchFails() throws StorageClientException,
+          AccessDeniedException {
+      AuthenticatorImpl authenticator = new AuthenticatorImpl(client, configuration);
+      User admin = authenticator.authenticate("admin", "admin");
+      ContentManagerImpl adminManager = new ContentManagerImpl(client,
+              new AccessControlManagerImpl(client, admin, configuration, null,
+                      new LoggingStorageListener(), principalValidatorResolver),
+              configuration, null, new LoggingStorageListener());
+      for (String child : new String[] { "a", "b", "c" }) {
+          adminManager.update(new Content("/testChildFallback/" + child, ImmutableMap.of(
+                  "prop1", (Object) child)));
+      }
+      AccessControlManager accessControlManager = mock(AccessControlManager.class);
+      when(accessControlManager.getCurrentUserId()).thenReturn("admin");
+      when(accessControlManager.checkAll(eq(Security.ZONE_CONTENT), anyCollection(),
+              eq(Permissions.CAN_READ))).thenThrow(new StorageClientException("batch failed"));
+      doThrow(new AccessDeniedException(Security.ZONE_CONTENT, "/testChildFallback/b",
+              "denied", "admin")).when(accessControlManager).check(Security.ZONE_CONTENT,
+              "/testChildFallback/b", Permissions.CAN_READ);
+      ContentManagerImpl contentManager = new ContentManagerImpl(client, accessControlManager,
+              configuration, null, new LoggingStorageListener());
+      Set<String> paths = Sets.newHashSet();
+      Iterator<Content> children = contentManager.listChildren("/testChildFallback");
+      while (children.hasNext()) {
+          paths.add(children.next().getPath());
+      }
+      Assert.assertEquals(ImmutableSet.of("/testChildFallback/a", "/testChildFallback/c"), paths);
+  }
+
+  @Test
+  public void testInsertBufferInvalidatesCache() throws StorageClientException {
+      final Map<String, CacheHolder> cache = new ConcurrentLRUMap<String, CacheHolder>(100);
+      cache.put("n:cn:/testInsertBufferCache", new CacheHolder(null));
+      StorageCacheManager storageCacheManager = new StorageCacheManager() {
+          public Map<String, CacheHolder> getContentCache() {
+              return cache;
+          }
+
+          public Map<String, CacheHolder> getAuthorizableCache() {
+              return null;
+          }
+
+          public Map<String, CacheHolder> getAccessControlCache() {
+              return cache;
+          }
+      };
+      InsertBuffer insertBuffer = new InsertBuffer(client, storageCacheManager, 10, 60000L);
+      insertBuffer.insert("n", "cn", "/testInsertBufferCache", ImmutableMap.of("prop1", (Object) "value"));
+      Assert.assertTrue(cache.containsKey("n:cn:/testInsertBufferCache"));
+      insertBuffer.close();
+      Assert.assertFalse(cache.containsKey("n:cn:/testInsertBufferCache"));
+  }
+
   // @Test This Test runs forever and tests for OOM on disposables.
   public void testOOM() throws StorageClientException, AccessDeniedException {
       AuthenticatorImpl AuthenticatorImpl = new AuthenticatorImpl(client, configuration);
@@ -766,4 +940,141 @@ public abstract class AbstractContentManagerTest {
         }
       }
   }
+
+  @Test
+  public void testRangeRead() throws StorageClientException, AccessDeniedException, IOException {
+    AuthenticatorImpl AuthenticatorImpl = new AuthenticatorImpl(client, configuration);
+    User currentUser = AuthenticatorImpl.authenticate("admin", "admin");
+
+    AccessControlManagerImpl accessControlManager = new AccessControlManagerImpl(client,
+        currentUser, configuration, null, new LoggingStorageListener(), principalValidatorResolver);
+
+    ContentManagerImpl contentManager = new ContentManagerImpl(client,
+        accessControlManager, configuration, null, new LoggingStorageListener());
+    String path = "/testRangeRead/file.bin";
+    contentManager.update(new Content(path, ImmutableMap.of("prop1", (Object) "value1")));
+    byte[] b = new byte[20 * 1024 * 1024 + 1231];
+    new Random().nextBytes(b);
+    contentManager.writeBody(path, new ByteArrayInputStream(b));
+    contentManager.writeBody(path, new ByteArrayInputStream(b, 0, 4096), "alt");
+
+    // ranges at the start, spanning blocks and block sets, to the end and past the end.
+    long[][] ranges = new long[][] { { 0, 100 }, { 5 * 1024 * 1024 + 17, 3 * 1024 * 1024 },
+        { 11 * 1024 * 1024 - 1, 2 }, { 19 * 1024 * 1024, -1 }, { b.length - 10, 100 },
+        { b.length, 10 } };
+    for (long[] range : ranges) {
+      int offset = (int) range[0];
+      int expected = range[1] < 0 ? b.length - offset : (int) Math.min(range[1], b.length - offset);
+      InputStream in = contentManager.getInputStream(path, null, range[0], range[1]);
+      assertRange(b, offset, expected, in);
+    }
+    assertRange(b, 100, 1000, contentManager.getInputStream(path, "alt", 100, 1000));
+    assertRange(b, 4000, 96, contentManager.getInputStream(path, "alt", 4000, -1));
+
+    // skipping over whole block sets.
+    InputStream in = contentManager.getInputStream(path, null, 10, -1);
+    Assert.assertEquals(b[10], (byte) in.read());
+    Assert.assertEquals(15 * 1024 * 1024, in.skip(15 * 1024 * 1024));
+    Assert.assertEquals(b[11 + 15 * 1024 * 1024], (byte) in.read());
+    Assert.assertEquals(b.length - (12 + 15 * 1024 * 1024), in.skip(b.length));
+    Assert.assertEquals(-1, in.read());
+    in.close();
+  }
+
+  @Test
+  public void testChannelRead() throws StorageClientException, AccessDeniedException, IOException {
+    AuthenticatorImpl AuthenticatorImpl = new AuthenticatorImpl(client, configuration);
+    User currentUser = AuthenticatorImpl.authenticate("admin", "admin");
+
+    AccessControlManagerImpl accessControlManager = new AccessControlManagerImpl(client,
+        currentUser, configuration, null, new LoggingStorageListener(), principalValidatorResolver);
+
+    ContentManagerImpl contentManager = new ContentManagerImpl(client,
+        accessControlManager, configuration, null, new LoggingStorageListener());
+    String path = "/testChannelRead/file.bin";
+    contentManager.update(new Content(path, null));
+    byte[] b = new byte[2 * 1024 * 1024 + 77];
+    new Random().nextBytes(b);
+    contentManager.writeBody(path, new ByteArrayInputStream(b));
+
+    ReadableByteChannel channel = contentManager.getChannel(path, null, 1000, 100000);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ByteBuffer buffer = ByteBuffer.allocate(8192);
+    while (channel.read(buffer) >= 0) {
+      out.write(buffer.array(), 0, buffer.position());
+      buffer.clear();
+    }
+    channel.close();
+    assertRange(b, 1000, 100000, new ByteArrayInputStream(out.toByteArray()));
+
+    channel = contentManager.getChannel(path, null, b.length - 10, -1);
+    buffer = ByteBuffer.allocate(100);
+    Assert.assertEquals(10, channel.read(buffer));
+    Assert.assertEquals(-1, channel.read(buffer));
+    channel.close();
+  }
+
+  @Test
+  public void testSharedBodies() throws StorageClientException, AccessDeniedException, IOException {
+    AuthenticatorImpl AuthenticatorImpl = new AuthenticatorImpl(client, configuration);
+    User currentUser = AuthenticatorImpl.authenticate("admin", "admin");
+
+    AccessControlManagerImpl accessControlManager = new AccessControlManagerImpl(client,
+        currentUser, configuration, null, new LoggingStorageListener(), principalValidatorResolver);
+
+    ContentManagerImpl contentManager = new ContentManagerImpl(client,
+        accessControlManager, configuration, null, new LoggingStorageListener());
+    byte[] b = new byte[3 * 1024 * 1024 + 17];
+    new Random().nextBytes(b);
+    contentManager.update(new Content("/testSharedBodies/a", null));
+    contentManager.writeBody("/testSharedBodies/a", new ByteArrayInputStream(b));
+    contentManager.writeBody("/testSharedBodies/a", new ByteArrayInputStream(b, 0, 100), "alt");
+    Content a = contentManager.get("/testSharedBodies/a");
+    String hash = (String) a.getProperty(BodyIndex.BODY_HASH_FIELD);
+    Assert.assertNotNull(hash);
+
+    // the same body written again is shared.
+    contentManager.update(new Content("/testSharedBodies/b", null));
+    contentManager.writeBody("/testSharedBodies/b", new ByteArrayInputStream(b));
+    Content sb = contentManager.get("/testSharedBodies/b");
+    Assert.assertEquals(a.getProperty(Content.BLOCKID_FIELD), sb.getProperty(Content.BLOCKID_FIELD));
+    Assert.assertEquals(hash, sb.getProperty(BodyIndex.BODY_HASH_FIELD));
+    assertRange(b, 0, b.length, contentManager.getInputStream("/testSharedBodies/b"));
+
+    // a deep copy shares the bodies.
+    contentManager.copy("/testSharedBodies/a", "/testSharedBodies/c", true);
+    Content c = contentManager.get("/testSharedBodies/c");
+    Assert.assertEquals(a.getProperty(Content.BLOCKID_FIELD), c.getProperty(Content.BLOCKID_FIELD));
+    Assert.assertEquals(a.getProperty(Content.BLOCKID_FIELD + "/alt"), c.getProperty(Content.BLOCKID_FIELD + "/alt"));
+    assertRange(b, 0, b.length, contentManager.getInputStream("/testSharedBodies/c"));
+    assertRange(b, 0, 100, contentManager.getInputStream("/testSharedBodies/c", "alt"));
+
+    contentManager.saveVersion("/testSharedBodies/c");
+
+    // replacing or deleting a body leaves it for the content sharing it.
+    contentManager.writeBody("/testSharedBodies/b", new ByteArrayInputStream(b, 0, 10));
+    contentManager.delete("/testSharedBodies/a");
+    assertRange(b, 0, b.length, contentManager.getInputStream("/testSharedBodies/c"));
+
+    // and it is still shared with new content.
+    contentManager.update(new Content("/testSharedBodies/d", null));
+    contentManager.writeBody("/testSharedBodies/d", new ByteArrayInputStream(b));
+    Content d = contentManager.get("/testSharedBodies/d");
+    Assert.assertEquals(a.getProperty(Content.BLOCKID_FIELD), d.getProperty(Content.BLOCKID_FIELD));
+    assertRange(b, 0, b.length, contentManager.getInputStream("/testSharedBodies/d"));
+  }
+
+  private void assertRange(byte[] b, int offset, int expected, InputStream in) throws IOException {
+    byte[] buffer = new byte[8192];
+    int n = 0;
+    int i;
+    while ((i = in.read(buffer)) >= 0) {
+      for (int k = 0; k < i; k++) {
+        Assert.assertEquals(b[offset + n + k], buffer[k]);
+      }
+      n += i;
+    }
+    in.close();
+    Assert.assertEquals(expected, n);
+  }
 }
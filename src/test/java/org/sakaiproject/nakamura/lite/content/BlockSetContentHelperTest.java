@@ -0,0 +1,215 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.content;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.lite.ClientPoolException;
+import org.sakaiproject.nakamura.api.lite.Configuration;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.lite.ConfigurationImpl;
+import org.sakaiproject.nakamura.lite.storage.StorageClient;
+import org.sakaiproject.nakamura.lite.storage.mem.MemoryStorageClientPool;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class BlockSetContentHelperTest {
+
+    private static final int BLOCK_SIZE = 16;
+    private static final int CHUNKS_PER_SET = 2;
+
+    private MemoryStorageClientPool pool;
+    private StorageClient memoryClient;
+    private AtomicInteger inserts = new AtomicInteger();
+    private volatile long insertDelay;
+    private volatile boolean failInserts;
+
+    @Before
+    public void before() throws ClientPoolException, ClassNotFoundException, IOException {
+        ConfigurationImpl configuration = new ConfigurationImpl();
+        Map<String, Object> properties = Maps.newHashMap();
+        properties.put("keyspace", "n");
+        properties.put("content-column-family", "cn");
+        configuration.activate(properties);
+        pool = new MemoryStorageClientPool();
+        pool.activate(ImmutableMap.of("test", (Object) "test", Configuration.class.getName(),
+                configuration));
+        memoryClient = pool.getClient();
+    }
+
+    @After
+    public void after() {
+        memoryClient.close();
+        pool.deactivate(ImmutableMap.<String, Object> of());
+    }
+
+    /**
+     * @return a client that counts inserts, optionally slowing them down or
+     *         failing them.
+     */
+    private StorageClient getClient() {
+        return (StorageClient) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] { StorageClient.class }, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args)
+                            throws Throwable {
+                        if ("insert".equals(method.getName())) {
+                            if (insertDelay > 0) {
+                                Thread.sleep(insertDelay);
+                            }
+                            if (failInserts) {
+                                throw new StorageClientException("Insert failed for test");
+                            }
+                            inserts.incrementAndGet();
+                        }
+                        try {
+                            return method.invoke(memoryClient, args);
+                        } catch (InvocationTargetException e) {
+                            throw e.getCause();
+                        }
+                    }
+                });
+    }
+
+    private byte[] body(int length) {
+        byte[] body = new byte[length];
+        for (int i = 0; i < length; i++) {
+            body[i] = (byte) i;
+        }
+        return body;
+    }
+
+    /**
+     * A stream that fails after a number of bytes.
+     */
+    private InputStream failingStream(final int failAfter) {
+        return new InputStream() {
+            private int n;
+
+            @Override
+            public int read() throws IOException {
+                if (n >= failAfter) {
+                    throw new IOException("Read failed for test");
+                }
+                return (n++) & 0xff;
+            }
+        };
+    }
+
+    @Test
+    public void testWriteAndRead() throws Exception {
+        BlockSetContentHelper helper = new BlockSetContentHelper(getClient());
+        byte[] body = body(BLOCK_SIZE * 7 + 5);
+        Map<String, Object> metadata = helper.writeBody("n", "cn", "testWriteAndRead",
+                "testWriteAndReadBlocks", null, BLOCK_SIZE, CHUNKS_PER_SET,
+                new ByteArrayInputStream(body));
+        Assert.assertEquals((long) body.length, metadata.get(Content.LENGTH_FIELD));
+        int nBlocks = StorageClientUtils.toInt(metadata.get(Content.NBLOCKS_FIELD));
+        // 8 blocks in sets of 3.
+        Assert.assertEquals(3, nBlocks);
+        InputStream in = helper.readBody("n", "cn", "testWriteAndReadBlocks", null, nBlocks);
+        Assert.assertArrayEquals(body, IOUtils.toByteArray(in));
+    }
+
+    @Test
+    public void testReadFailureStopsWriter() throws Exception {
+        BlockSetContentHelper helper = new BlockSetContentHelper(getClient());
+        insertDelay = 50;
+        try {
+            helper.writeBody("n", "cn", "testReadFailure", "testReadFailureBlocks", null,
+                    BLOCK_SIZE, CHUNKS_PER_SET, failingStream(BLOCK_SIZE * 10 + 3));
+            Assert.fail("The read failure should have been thrown");
+        } catch (IOException e) {
+            Assert.assertEquals("Read failed for test", e.getMessage());
+        }
+        int written = inserts.get();
+        Thread.sleep(insertDelay * 4);
+        // nothing is written once writeBody has returned.
+        Assert.assertEquals(written, inserts.get());
+    }
+
+    @Test
+    public void testWriteFailure() throws Exception {
+        BlockSetContentHelper helper = new BlockSetContentHelper(getClient());
+        failInserts = true;
+        try {
+            helper.writeBody("n", "cn", "testWriteFailure", "testWriteFailureBlocks", null,
+                    BLOCK_SIZE, CHUNKS_PER_SET, new ByteArrayInputStream(body(BLOCK_SIZE * 20)));
+            Assert.fail("The write failure should have been thrown");
+        } catch (StorageClientException e) {
+            Assert.assertEquals("Insert failed for test", e.getMessage());
+        }
+        Assert.assertEquals(0, inserts.get());
+    }
+
+    @Test
+    public void testInterruptedUpload() throws Exception {
+        BlockSetContentHelper helper = new BlockSetContentHelper(getClient());
+        insertDelay = 50;
+        Thread.currentThread().interrupt();
+        try {
+            helper.writeBody("n", "cn", "testInterrupted", "testInterruptedBlocks", null,
+                    BLOCK_SIZE, CHUNKS_PER_SET, new ByteArrayInputStream(body(BLOCK_SIZE * 20)));
+            Assert.fail("The upload should have been interrupted");
+        } catch (InterruptedIOException e) {
+            Assert.assertTrue(Thread.interrupted());
+        }
+        int written = inserts.get();
+        Thread.sleep(insertDelay * 4);
+        Assert.assertEquals(written, inserts.get());
+    }
+
+    @Test
+    public void testWriteExecutorIsPerPool() throws Exception {
+        ConfigurationImpl configuration = new ConfigurationImpl();
+        configuration.activate(ImmutableMap.<String, Object> of());
+        MemoryStorageClientPool other = new MemoryStorageClientPool();
+        other.activate(ImmutableMap.of(Configuration.class.getName(), (Object) configuration));
+        ExecutorService otherExecutor = other.getWriteExecutor();
+        // deactivating another pool does not stop the writes of this one.
+        other.deactivate(ImmutableMap.<String, Object> of());
+        Assert.assertTrue(otherExecutor.isShutdown());
+        ExecutorService writeExecutor = pool.getWriteExecutor();
+        Assert.assertNotSame(otherExecutor, writeExecutor);
+        BlockSetContentHelper helper = new BlockSetContentHelper(getClient(), null,
+                writeExecutor, pool);
+        byte[] body = body(BLOCK_SIZE * 7 + 5);
+        Map<String, Object> metadata = helper.writeBody("n", "cn", "testPerPool",
+                "testPerPoolBlocks", null, BLOCK_SIZE, CHUNKS_PER_SET,
+                new ByteArrayInputStream(body));
+        Assert.assertEquals((long) body.length, metadata.get(Content.LENGTH_FIELD));
+        Assert.assertFalse(writeExecutor.isShutdown());
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.content;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import java.util.Random;
+
+public class FileBodyInputStreamTest {
+
+    @Test
+    public void testTransferRange() throws IOException {
+        byte[] b = new byte[100000];
+        new Random().nextBytes(b);
+        File file = File.createTempFile("body", ".bin");
+        try {
+            FileOutputStream out = new FileOutputStream(file);
+            out.write(b);
+            out.close();
+
+            FileBodyInputStream in = new FileBodyInputStream(file, 1000, 50000);
+            Assert.assertEquals(50000, in.getRemaining());
+            Assert.assertEquals(b[1000], (byte) in.read());
+            ByteArrayOutputStream transferred = new ByteArrayOutputStream();
+            Assert.assertEquals(49999, in.transferTo(Channels.newChannel(transferred)));
+            Assert.assertTrue(Arrays.equals(transferred.toByteArray(), copy(b, 1001, 49999)));
+            Assert.assertEquals(-1, in.read());
+            in.close();
+            Assert.assertFalse(in.isOpen());
+
+            // ranges past the end are truncated.
+            in = new FileBodyInputStream(file, b.length - 10, 1000);
+            Assert.assertEquals(10, in.getRemaining());
+            in.close();
+            in = new FileBodyInputStream(file, b.length + 10, -1);
+            Assert.assertEquals(-1, in.read());
+            in.close();
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test(expected = FileNotFoundException.class)
+    public void testMissingFile() throws IOException {
+        new FileBodyInputStream(new File("target/no-such-body.bin"), 0, -1);
+    }
+
+    private byte[] copy(byte[] b, int offset, int length) {
+        byte[] c = new byte[length];
+        System.arraycopy(b, offset, c, 0, length);
+        return c;
+    }
+}
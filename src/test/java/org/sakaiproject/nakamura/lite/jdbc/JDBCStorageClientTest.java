@@ -17,8 +17,13 @@
  */
 package org.sakaiproject.nakamura.lite.jdbc;
 
+import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.contains;
 import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -36,13 +41,17 @@ import org.mockito.Answers;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
+import org.sakaiproject.nakamura.lite.storage.StorageStats;
 import org.sakaiproject.nakamura.lite.storage.jdbc.JDBCStorageClient;
 import org.sakaiproject.nakamura.lite.storage.jdbc.JDBCStorageClientPool;
+import org.sakaiproject.nakamura.lite.types.Types;
 
+import java.io.InputStream;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.text.MessageFormat;
+import java.util.Iterator;
 import java.util.Map;
 
 /**
@@ -68,11 +77,14 @@ public class JDBCStorageClientTest {
 
   Map<String, Object> properties = Maps.newHashMap();
   Map<String, Object> sqlConfig = Maps.newHashMap();
+  StorageStats storageStats = new StorageStats("test");
 
   @Before
   public void setUp() throws Exception {
     // have the pool return the connection we control
     when(connPool.getConnection()).thenReturn(conn);
+    when(connPool.getRowFormat()).thenReturn(Types.DEFAULT_ROW_FORMAT);
+    when(connPool.getStorageStats()).thenReturn(storageStats);
 
     // funnel in data when the indexed columns are looked up
     when(conn.prepareStatement(anyString())).thenReturn(ps2);
@@ -380,4 +392,102 @@ public class JDBCStorageClientTest {
     String sql = sqlCaptor.getValue();
     Assert.assertEquals(expectedSql, sql);
   }
+
+  @Test
+  public void testFindLoadsRowsTogether() throws Exception {
+    PreparedStatement ps3 = mock(PreparedStatement.class);
+    ResultSet rs3 = mock(ResultSet.class);
+    when(conn.prepareStatement(contains(" in ("))).thenReturn(ps3);
+    when(ps3.executeQuery()).thenReturn(rs3);
+    when(rs2.next()).thenReturn(true, true, true, false);
+    when(rs2.getString(1)).thenReturn("r1", "r2", "r3");
+
+    Map<String, Object> props = Maps.newLinkedHashMap();
+    props.put("key1", "val1");
+    Iterator<Map<String, Object>> results = client.find("cn", "conjunctions", props);
+    int n = 0;
+    while (results.hasNext()) {
+      Assert.assertNotNull(results.next());
+      n++;
+    }
+    Assert.assertEquals(3, n);
+
+    verify(conn, times(1)).prepareStatement(contains(" in (?,?,?)"));
+    verify(ps3).setString(1, "r1");
+    verify(ps3).setString(2, "r2");
+    verify(ps3).setString(3, "r3");
+    verify(ps3, times(1)).executeQuery();
+  }
+
+  @Test
+  public void testInsertProbablyNewSkipsRead() throws Exception {
+    when(ps2.executeUpdate()).thenReturn(1);
+    Map<String, Object> values = Maps.newHashMap();
+    values.put("b", "2");
+    client.insert("n", "cn", "testInsertProbablyNew", values, true);
+    verify(ps2, never()).executeQuery();
+    Assert.assertEquals(1, storageStats.getInsertCount());
+    Assert.assertEquals(1, storageStats.getReadBeforeWriteSkippedCount());
+  }
+
+  @Test
+  public void testInsertProbablyNewReadsRowWhenInsertFails() throws Exception {
+    // the insert finds the row exists, the update succeeds.
+    when(ps2.executeUpdate()).thenReturn(0, 1);
+    Map<String, Object> values = Maps.newHashMap();
+    values.put("b", "2");
+    client.insert("n", "cn", "testInsertNotNew", values, true);
+    verify(ps2, atLeastOnce()).executeQuery();
+    Assert.assertEquals(1, storageStats.getInsertCount());
+    Assert.assertEquals(0, storageStats.getReadBeforeWriteSkippedCount());
+  }
+
+  @Test
+  public void testInsertExistingReadsRow() throws Exception {
+    when(ps2.executeUpdate()).thenReturn(1);
+    Map<String, Object> values = Maps.newHashMap();
+    values.put("b", "2");
+    client.insert("n", "cn", "testInsertExisting", values, false);
+    verify(ps2, atLeastOnce()).executeQuery();
+    Assert.assertEquals(1, storageStats.getInsertCount());
+    Assert.assertEquals(0, storageStats.getReadBeforeWriteSkippedCount());
+  }
+
+  @Test
+  public void testInsertUsesPoolRowFormat() throws Exception {
+    when(ps2.executeUpdate()).thenReturn(1);
+    Map<String, Object> values = Maps.newHashMap();
+    values.put("b", "2");
+    client.insert("n", "cn", "testRowFormatV1", values, true);
+    ArgumentCaptor<InputStream> v1 = ArgumentCaptor.forClass(InputStream.class);
+    verify(ps2, atLeastOnce()).setBinaryStream(anyInt(), v1.capture());
+    Assert.assertTrue(v1.getValue().read() != 0xff);
+
+    when(connPool.getRowFormat()).thenReturn(Types.ROW_FORMAT_V2);
+    PreparedStatement ps3 = mock(PreparedStatement.class);
+    when(conn.prepareStatement(anyString())).thenReturn(ps3);
+    when(ps3.executeQuery()).thenReturn(rs2);
+    when(ps3.executeUpdate()).thenReturn(1);
+    client.insert("n", "cn", "testRowFormatV2", values, true);
+    ArgumentCaptor<InputStream> v2 = ArgumentCaptor.forClass(InputStream.class);
+    verify(ps3, atLeastOnce()).setBinaryStream(anyInt(), v2.capture());
+    Assert.assertEquals(0xff, v2.getValue().read());
+  }
+
+  @Test
+  public void testInsertUsesPoolCompression() throws Exception {
+    when(ps2.executeUpdate()).thenReturn(1);
+    when(connPool.getRowFormat()).thenReturn(Types.ROW_FORMAT_V2);
+    when(connPool.getCompressionThreshold("cn")).thenReturn(10);
+    Map<String, Object> values = Maps.newHashMap();
+    values.put("b", "bbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbb");
+    client.insert("n", "cn", "testCompression", values, true);
+    ArgumentCaptor<InputStream> row = ArgumentCaptor.forClass(InputStream.class);
+    verify(ps2, atLeastOnce()).setBinaryStream(anyInt(), row.capture());
+    InputStream in = row.getValue();
+    Assert.assertEquals(0xff, in.read());
+    in.read();
+    // the flags of a deflated row.
+    Assert.assertEquals(1, in.read());
+  }
 }
@@ -0,0 +1,69 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.storage;
+
+import com.google.common.collect.ImmutableMap;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.lite.Configuration;
+import org.sakaiproject.nakamura.lite.ConfigurationImpl;
+import org.sakaiproject.nakamura.lite.storage.mem.MemoryStorageClientPool;
+import org.sakaiproject.nakamura.lite.types.Types;
+
+import java.io.IOException;
+import java.util.Map;
+
+public class AbstractClientConnectionPoolTest {
+
+    private MemoryStorageClientPool activate(Map<String, Object> properties)
+            throws IOException, ClassNotFoundException {
+        ConfigurationImpl configuration = new ConfigurationImpl();
+        configuration.activate(ImmutableMap.<String, Object> of());
+        MemoryStorageClientPool pool = new MemoryStorageClientPool();
+        pool.activate(ImmutableMap.<String, Object> builder().putAll(properties)
+                .put(Configuration.class.getName(), configuration).build());
+        return pool;
+    }
+
+    @Test
+    public void testCompressionSettings() throws Exception {
+        MemoryStorageClientPool pool = activate(ImmutableMap.of("row-format", (Object) "2",
+                "compressed-column-families", "cn, ac", "compression-threshold", "10"));
+        try {
+            Assert.assertEquals(Types.ROW_FORMAT_V2, pool.getRowFormat());
+            Assert.assertEquals(10, pool.getCompressionThreshold("cn"));
+            Assert.assertEquals(10, pool.getCompressionThreshold("ac"));
+            Assert.assertEquals(Types.NOT_COMPRESSED, pool.getCompressionThreshold("au"));
+        } finally {
+            pool.deactivate(ImmutableMap.<String, Object> of());
+        }
+    }
+
+    @Test
+    public void testNoCompressionInRowFormatV1() throws Exception {
+        MemoryStorageClientPool pool = activate(ImmutableMap.of("compressed-column-families",
+                (Object) "cn"));
+        try {
+            Assert.assertEquals(Types.ROW_FORMAT_V1, pool.getRowFormat());
+            Assert.assertEquals(Types.NOT_COMPRESSED, pool.getCompressionThreshold("cn"));
+        } finally {
+            pool.deactivate(ImmutableMap.<String, Object> of());
+        }
+    }
+}
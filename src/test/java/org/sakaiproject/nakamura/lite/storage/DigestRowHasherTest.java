@@ -0,0 +1,71 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.storage;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Random;
+
+public class DigestRowHasherTest {
+
+    private String oldRowHash(String keySpace, String columnFamily, String key, String alg)
+            throws NoSuchAlgorithmException, UnsupportedEncodingException {
+        MessageDigest hasher = MessageDigest.getInstance(alg);
+        String keystring = keySpace + ":" + columnFamily + ":" + key;
+        return StorageClientUtils.encode(hasher.digest(keystring.getBytes("UTF8")));
+    }
+
+    @Test
+    public void testSameAsDigest() throws NoSuchAlgorithmException, UnsupportedEncodingException {
+        for (String alg : new String[] { "SHA1", "MD5", "SHA-256" }) {
+            DigestRowHasher hasher = DigestRowHasher.getInstance(alg);
+            Assert.assertSame(hasher, DigestRowHasher.getInstance(alg));
+            String[] keys = new String[] { "", "a", "/a/b/c", "a:ae6782", "caf\u00e9",
+                    "\u4e2d\u6587/\u8def\u5f84", "emoji \ud83d\ude00", "unpaired \ud83d x",
+                    "unpaired \ude00", "\ud83d" };
+            for (String key : keys) {
+                Assert.assertEquals(oldRowHash("n", "cn", key, alg), hasher.rowHash("n", "cn", key));
+            }
+        }
+    }
+
+    @Test
+    public void testRandomKeys() throws NoSuchAlgorithmException, UnsupportedEncodingException {
+        DigestRowHasher hasher = DigestRowHasher.getInstance("SHA1");
+        Random r = new Random(1234);
+        for (int i = 0; i < 5000; i++) {
+            // long keys make sure the buffer grows.
+            char[] c = new char[r.nextInt(i % 100 == 0 ? 2000 : 40)];
+            for (int j = 0; j < c.length; j++) {
+                c[j] = (char) r.nextInt(r.nextBoolean() ? 128 : 0x10000);
+            }
+            String key = new String(c);
+            Assert.assertEquals(oldRowHash("n", "au", key, "SHA1"), hasher.rowHash("n", "au", key));
+        }
+    }
+
+    @Test(expected = NoSuchAlgorithmException.class)
+    public void testBadAlgorithm() throws NoSuchAlgorithmException {
+        DigestRowHasher.getInstance("NotAnAlgorithm");
+    }
+}
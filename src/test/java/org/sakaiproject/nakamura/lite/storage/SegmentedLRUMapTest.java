@@ -0,0 +1,139 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.storage;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class SegmentedLRUMapTest {
+
+    @Test
+    public void testMapOperations() {
+        SegmentedLRUMap<String, String> map = new SegmentedLRUMap<String, String>(100);
+        Assert.assertTrue(map.isEmpty());
+        Assert.assertNull(map.put("a", "1"));
+        Assert.assertEquals("1", map.put("a", "2"));
+        map.put("b", "3");
+        Assert.assertEquals(2, map.size());
+        Assert.assertTrue(map.containsKey("a"));
+        Assert.assertTrue(map.containsValue("3"));
+        Assert.assertFalse(map.containsValue("1"));
+        Assert.assertEquals("2", map.get("a"));
+        Assert.assertNull(map.get("c"));
+        Assert.assertEquals(2, map.keySet().size());
+        Assert.assertEquals(2, map.values().size());
+        Assert.assertEquals(2, map.entrySet().size());
+        Assert.assertEquals("3", map.remove("b"));
+        Assert.assertNull(map.remove("b"));
+        Assert.assertEquals(1, map.size());
+        map.clear();
+        Assert.assertTrue(map.isEmpty());
+        Assert.assertEquals(1, map.getHitCount());
+        Assert.assertEquals(1, map.getMissCount());
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() {
+        // a single segment gives exact LRU order.
+        SegmentedLRUMap<String, String> map = new SegmentedLRUMap<String, String>(10, 1, 0,
+                null);
+        for (int i = 0; i < 10; i++) {
+            map.put("k" + i, "v" + i);
+        }
+        Assert.assertEquals("v0", map.get("k0"));
+        map.put("k10", "v10");
+        Assert.assertEquals(10, map.size());
+        Assert.assertEquals(1, map.getEvictionCount());
+        Assert.assertTrue(map.containsKey("k0"));
+        Assert.assertFalse(map.containsKey("k1"));
+        Assert.assertTrue(map.containsKey("k10"));
+    }
+
+    @Test
+    public void testBoundedAcrossSegments() {
+        SegmentedLRUMap<String, String> map = new SegmentedLRUMap<String, String>(1000);
+        for (int i = 0; i < 20000; i++) {
+            map.put("/some/path/" + i, String.valueOf(i));
+        }
+        // each segment is rounded up, so the map is within a segment of the bound.
+        Assert.assertTrue(map.size() <= 1000 + SegmentedLRUMap.DEFAULT_SEGMENTS);
+        Assert.assertTrue(map.size() > 900);
+        Assert.assertEquals(20000 - map.size(), map.getEvictionCount());
+    }
+
+    @Test
+    public void testWeightBound() {
+        SegmentedLRUMap<String, byte[]> map = new SegmentedLRUMap<String, byte[]>(1000, 1,
+                10000, new SegmentedLRUMap.Weigher<String, byte[]>() {
+                    public int weigh(String key, byte[] value) {
+                        return key.length() + value.length;
+                    }
+                });
+        for (int i = 0; i < 100; i++) {
+            map.put("n:cn:" + i, new byte[1000]);
+        }
+        Assert.assertTrue(map.getWeight() <= 10000);
+        Assert.assertTrue(map.size() < 10);
+        Assert.assertTrue(map.containsKey("n:cn:99"));
+        map.remove("n:cn:99");
+        map.clear();
+        Assert.assertEquals(0, map.getWeight());
+    }
+
+    @Test
+    public void testConcurrentAccess() throws InterruptedException {
+        final SegmentedLRUMap<String, String> map = new SegmentedLRUMap<String, String>(500);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            final int seed = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        Random r = new Random(seed);
+                        for (int i = 0; i < 50000; i++) {
+                            String key = "k" + r.nextInt(2000);
+                            String v = map.get(key);
+                            if (v == null) {
+                                map.put(key, key);
+                            } else {
+                                Assert.assertEquals(key, v);
+                            }
+                            if (i % 1000 == 0) {
+                                map.remove(key);
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failure.set(e);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        Assert.assertNull(failure.get());
+        Assert.assertTrue(map.size() <= 500 + SegmentedLRUMap.DEFAULT_SEGMENTS);
+        Assert.assertEquals(8 * 50000, map.getHitCount() + map.getMissCount());
+    }
+}
@@ -3,10 +3,15 @@ package org.sakaiproject.nakamura.lite.types;
 import com.google.common.collect.Maps;
 
 
+import org.apache.commons.io.IOUtils;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
+import org.sakaiproject.nakamura.api.lite.RemoveProperty;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.math.BigDecimal;
@@ -258,4 +263,199 @@ public class TestTypes {
 
     }
 
+    @Test
+    public void testLongStringStore() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < 100000) {
+            sb.append("caf\u00e9 \u65e5\u672c ").append(sb.length());
+        }
+        String large = sb.toString();
+        String small = "na\u00efve";
+        LongString largeString = LongString.create(large);
+        LongString smallString = LongString.create(small);
+        try {
+            // read back from the files.
+            LongString.setCacheSize(0);
+            Assert.assertEquals(large, new LongString(largeString.getLocation()).toString());
+            Assert.assertEquals(small, new LongString(smallString.getLocation()).toString());
+            Assert.assertEquals(large, IOUtils.toString(largeString.getReader()));
+
+            // values are shared through the cache.
+            LongString.setCacheSize(LongString.DEFAULT_CACHE_SIZE);
+            Assert.assertEquals(small, smallString.toString());
+            Assert.assertEquals(small, LongStringStore.getCache().get(smallString.getLocation()));
+            Assert.assertEquals(small, IOUtils.toString(new LongString(smallString.getLocation()).getReader()));
+
+            // an update moves the value, the stored file and its cached value are unchanged.
+            String location = smallString.getLocation();
+            smallString.update(large, false);
+            Assert.assertFalse(location.equals(smallString.getLocation()));
+            Assert.assertEquals(large, smallString.toString());
+            Assert.assertEquals(small, new LongString(location).toString());
+            LongString.setCacheSize(0);
+            Assert.assertEquals(small, new LongString(location).toString());
+            Assert.assertEquals(large, new LongString(smallString.getLocation()).toString());
+            LongString.setCacheSize(LongString.DEFAULT_CACHE_SIZE);
+
+            // files written before values were UTF-8 are in the platform charset.
+            File legacy = new File("target/longstringstore/legacy/value");
+            legacy.getParentFile().mkdirs();
+            FileWriter fw = new FileWriter(legacy);
+            fw.write(LONGSTRING);
+            fw.close();
+            Assert.assertEquals(LONGSTRING, new LongString("legacy/value").toString());
+            Assert.assertEquals(LONGSTRING, IOUtils.toString(new LongString("legacy/value").getReader()));
+        } finally {
+            LongString.setCacheSize(LongString.DEFAULT_CACHE_SIZE);
+        }
+    }
+
+    @Test
+    public void testReadBothRowFormats() throws IOException {
+        Map<String, Object> map = Maps.newHashMap();
+        map.put("_path", "a/b/c");
+        map.put("sling:resourceType", "sakai/page");
+        map.put("custom", 42L);
+        map.put("array", new String[] { "x", "y" });
+        map.put("removed", new RemoveProperty());
+        for (int format : new int[] { Types.ROW_FORMAT_V1, Types.ROW_FORMAT_V2 }) {
+            InputStream in = Types.storeMapToStream("testkey", map, "testcf", format);
+            Map<String, Object> output = Types.loadMapFromStream("testkey", in, "testcf");
+            Assert.assertEquals(4, output.size());
+            Assert.assertEquals("a/b/c", output.get("_path"));
+            Assert.assertEquals("sakai/page", output.get("sling:resourceType"));
+            Assert.assertEquals(42L, output.get("custom"));
+            Assert.assertArrayEquals(new String[] { "x", "y" }, (String[]) output.get("array"));
+            Assert.assertFalse(output.containsKey("removed"));
+
+            in = Types.storeMapToStream("testkey", map, "testcf", format);
+            output = Maps.newHashMap();
+            Types.loadFromStream("testkey", output, in, "testcf");
+            Assert.assertEquals(4, output.size());
+            Assert.assertEquals("a/b/c", output.get("_path"));
+        }
+    }
+
+    @Test
+    public void testCompactRowFormatIsSmaller() throws IOException {
+        Map<String, Object> map = Maps.newHashMap();
+        map.put("_path", "a/b/c");
+        map.put("sling:resourceType", "sakai/page");
+        map.put("_lastModified", 1L);
+        map.put("_lastModifiedBy", "ieb");
+        int v1 = Types.storeMapToStream("testkey", map, "testcf", Types.ROW_FORMAT_V1)
+                .available();
+        int v2 = Types.storeMapToStream("testkey", map, "testcf", Types.ROW_FORMAT_V2)
+                .available();
+        Assert.assertTrue("v1 " + v1 + " v2 " + v2, v2 < v1 - 40);
+    }
+
+    @Test
+    public void testLazyDecode() throws IOException {
+        Map<String, Object> map = Maps.newHashMap();
+        for (int i = 0; i < 20; i++) {
+            map.put("k" + i, "value" + i);
+        }
+        InputStream in = Types.storeMapToStream("testkey", map, "testcf", Types.ROW_FORMAT_V2);
+        LazyRowMap output = (LazyRowMap) Types.loadMapFromStream("testkey", in, "testcf");
+        Assert.assertEquals(20, output.size());
+        Assert.assertEquals(0, output.getDecodedCount());
+        Assert.assertEquals("value7", output.get("k7"));
+        Assert.assertTrue(output.containsKey("k19"));
+        Assert.assertNull(output.get("missing"));
+        Assert.assertEquals(1, output.getDecodedCount());
+
+        output.put("k20", "value20");
+        Assert.assertEquals(21, output.getDecodedCount());
+        Assert.assertEquals(map.size() + 1, output.size());
+        Assert.assertEquals("value19", output.get("k19"));
+        Assert.assertEquals("value20", output.get("k20"));
+    }
+
+    @Test
+    public void testCompactRowWrongKeyOrFamily() throws IOException {
+        Map<String, Object> map = Maps.newHashMap();
+        map.put("A", 1);
+        try {
+            Types.loadMapFromStream("testkey",
+                    Types.storeMapToStream("testkey", map, "testcf", Types.ROW_FORMAT_V2),
+                    "not-testcf");
+            Assert.fail();
+        } catch (IOException e) {
+            // Ok
+        }
+        try {
+            Types.loadMapFromStream("not-testkey",
+                    Types.storeMapToStream("testkey", map, "testcf", Types.ROW_FORMAT_V2),
+                    "testcf");
+            Assert.fail();
+        } catch (IOException e) {
+            // Ok
+        }
+    }
+
+    @Test
+    public void testStoreMapToBuffer() throws IOException {
+        Map<String, Object> map = Maps.newHashMap();
+        map.put("_path", "a/b/c");
+        map.put("unicode", "\u00e9\u4e2d\ud83d\ude00");
+        map.put("\u00e9key", 1);
+        RowBuffer buffer = Types.storeMapToBuffer("testkey", map, "testcf");
+        byte[] copy = buffer.toByteArray();
+        Assert.assertEquals(copy.length, buffer.getLength());
+        Map<String, Object> output = Types.loadMapFromStream("testkey", buffer.toInputStream(),
+                "testcf");
+        Assert.assertEquals("\u00e9\u4e2d\ud83d\ude00", output.get("unicode"));
+        Assert.assertEquals(1, output.get("\u00e9key"));
+
+        // the buffer is reused by the next row, the copy is unaffected.
+        map.put("extra", "value");
+        Assert.assertSame(buffer, Types.storeMapToBuffer("testkey", map, "testcf"));
+        Assert.assertEquals(3, Types.loadMapFromStream("testkey",
+                new ByteArrayInputStream(copy), "testcf").size());
+
+        Assert.assertEquals("value", Types.toObject(Types.toByteArray("value")));
+    }
+
+    @Test
+    public void testCompression() throws IOException {
+        Map<String, Object> map = Maps.newHashMap();
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            body.append("A highly compressible message body. ");
+        }
+        map.put("body", body.toString());
+        map.put("_path", "a/b/c");
+        byte[] uncompressed = Types.storeMapToBuffer("testkey", map, "testcf",
+                Types.ROW_FORMAT_V2).toByteArray();
+        byte[] compressed = Types.storeMapToBuffer("testkey", map, "testcf",
+                Types.ROW_FORMAT_V2, 1024).toByteArray();
+        Assert.assertEquals(CompactRowFormat.FLAG_DEFLATE, compressed[2]);
+        Assert.assertTrue(compressed.length * 10 < uncompressed.length);
+        // small rows and rows in the original format are not compressed.
+        Map<String, Object> small = Maps.newHashMap();
+        small.put("_path", "a/b/c");
+        Assert.assertEquals(0, Types.storeMapToBuffer("testkey", small, "testcf",
+                Types.ROW_FORMAT_V2, 1024).getBuffer()[2]);
+        Assert.assertArrayEquals(Types.storeMapToBuffer("testkey", map, "testcf",
+                Types.ROW_FORMAT_V1).toByteArray(), Types.storeMapToBuffer("testkey", map,
+                "testcf", Types.ROW_FORMAT_V1, 1024).toByteArray());
+
+        // both compressed and uncompressed rows are read.
+        for (byte[] row : new byte[][] { compressed, uncompressed }) {
+            Map<String, Object> output = Types.loadMapFromStream("testkey",
+                    new ByteArrayInputStream(row), "testcf");
+            Assert.assertEquals(body.toString(), output.get("body"));
+            Assert.assertEquals("a/b/c", output.get("_path"));
+        }
+
+        compressed[compressed.length - 3] ^= 0x55;
+        try {
+            Types.loadMapFromStream("testkey", new ByteArrayInputStream(compressed), "testcf");
+            Assert.fail();
+        } catch (IOException e) {
+            // Ok
+        }
+    }
+
 }